@@ -20,6 +20,7 @@ import com.google.appinventor.client.tracking.Tracking;
 import com.google.appinventor.client.widgets.Toolbar;
 import com.google.appinventor.client.youngandroid.CodeblocksManager;
 import com.google.appinventor.common.version.AppInventorFeatures;
+import com.google.appinventor.shared.rpc.project.BuildPriority;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 import com.google.common.collect.Lists;
@@ -164,7 +165,7 @@ public class DesignToolbar extends Toolbar {
         String target = YoungAndroidProjectNode.YOUNG_ANDROID_TARGET_ANDROID;
         ChainableCommand cmd = new SaveAllEditorsCommand(
             new SaveBlocksCommand(
-                new BuildCommand(target,
+                new BuildCommand(target, BuildPriority.NORMAL,
                     new WaitForBuildResultCommand(target,
                         new ShowBarcodeCommand(target)))));
         updateBuildButton(true);
@@ -187,7 +188,9 @@ public class DesignToolbar extends Toolbar {
         String target = YoungAndroidProjectNode.YOUNG_ANDROID_TARGET_ANDROID;
         ChainableCommand cmd = new SaveAllEditorsCommand(
             new SaveBlocksCommand(
-                new BuildCommand(target,
+                // Downloading the app packages it to be saved or shared, so the build gives way
+                // to the builds that are being tried out.
+                new BuildCommand(target, BuildPriority.BACKGROUND,
                     new WaitForBuildResultCommand(target,
                         new DownloadProjectOutputCommand(target)))));
         updateBuildButton(true);
@@ -211,7 +214,7 @@ public class DesignToolbar extends Toolbar {
         ChainableCommand cmd = new EnsurePhoneConnectedCommand(
             new SaveAllEditorsCommand(
                 new SaveBlocksCommand(
-                    new BuildCommand(target,
+                    new BuildCommand(target, BuildPriority.INTERACTIVE,
                         new WaitForBuildResultCommand(target,
                             new DownloadToPhoneCommand(target))))));
         updateBuildButton(true);
@@ -536,6 +536,12 @@ public interface OdeMessages extends Messages {
       "a build request.")
   String buildServerBusyError();
 
+  @DefaultMessage("You already have builds waiting or in progress. Please try again when they " +
+      "have finished.")
+  @Description("Error message reported when the build server refuses a build request because " +
+      "the user already has as many builds waiting or in progress as they are allowed.")
+  String buildServerTooManyBuildsError();
+
   @DefaultMessage("The build server is not compatible with this version of App Inventor.")
   @Description("Error message reported when the build server is running a different version of " +
       "the App Inventor code.")
@@ -7,14 +7,17 @@ import com.google.appinventor.client.OdeAsyncCallback;
 import static com.google.appinventor.client.Ode.MESSAGES;
 import com.google.appinventor.client.explorer.project.Project;
 import com.google.appinventor.client.settings.project.ProjectSettings;
+import com.google.appinventor.common.youngandroid.TextDelta;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
+import com.google.appinventor.shared.rpc.project.ProjectService;
 import com.google.gwt.user.client.Command;
 import com.google.gwt.user.client.Timer;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -46,6 +49,10 @@ public final class EditorManager {
   private boolean autoSaveIsScheduled;
   private long autoSaveRequestTime;
 
+  // The contents of each file as it was last saved, so that the next save only needs to send a
+  // delta. Keyed by savedContentsKey.
+  private final Map<String, String> savedContents;
+
   /**
    * Creates the editor manager.
    */
@@ -54,6 +61,7 @@ public final class EditorManager {
 
     dirtyProjectSettings = new HashSet<ProjectSettings>();
     dirtyFileEditors = new HashSet<FileEditor>();
+    savedContents = new HashMap<String, String>();
 
     autoSaveTimer = new Timer() {
       @Override
@@ -119,6 +127,7 @@ public final class EditorManager {
       // won't be a file editor for it. So, check fileEditor for null.
       if (fileEditor != null) {
         dirtyFileEditors.remove(fileEditor);
+        savedContents.remove(savedContentsKey(projectId, fileId));
         projectEditor.closeFileEditor(fileId);
       }
     }
@@ -138,6 +147,12 @@ public final class EditorManager {
     ProjectSettings projectSettings = project.getSettings();
     dirtyProjectSettings.remove(projectSettings);
     openProjectEditors.remove(projectId);
+    String keyPrefix = savedContentsKey(projectId, "");
+    for (Iterator<String> iterator = savedContents.keySet().iterator(); iterator.hasNext(); ) {
+      if (iterator.next().startsWith(keyPrefix)) {
+        iterator.remove();
+      }
+    }
   }
 
   /**
@@ -248,6 +263,10 @@ public final class EditorManager {
    * Saves multiple files to the ODE server and calls the afterSavingFiles
    * command after they have all been saved successfully.
    *
+   * Each file that was saved before is sent as a delta against the contents
+   * that were last saved. If any of the deltas doesn't apply to the contents
+   * stored on the server, all of the files are sent again in full.
+   *
    * If any errors occur while saving, the afterSavingFiles command will not be
    * executed.
    * If filesWithContent is empty, the afterSavingFiles command is called
@@ -267,16 +286,35 @@ public final class EditorManager {
       }
 
     } else {
-      Ode.getInstance().getProjectService().save(filesWithContent,
+      List<FileDescriptorWithContent> filesWithDeltas = new ArrayList<FileDescriptorWithContent>();
+      for (FileDescriptorWithContent fileDescriptor : filesWithContent) {
+        String savedContent = savedContents.get(
+            savedContentsKey(fileDescriptor.getProjectId(), fileDescriptor.getFileId()));
+        TextDelta delta = (savedContent == null)
+            ? TextDelta.full(fileDescriptor.getContent())
+            : TextDelta.create(savedContent, fileDescriptor.getContent());
+        filesWithDeltas.add(new FileDescriptorWithContent(fileDescriptor.getProjectId(),
+            fileDescriptor.getFileId(), delta.encode()));
+      }
+      Ode.getInstance().getProjectService().saveDeltas(filesWithDeltas,
           new OdeAsyncCallback<Long>(MESSAGES.saveErrorMultipleFiles()) {
         @Override
         public void onSuccess(Long date) {
+          if (date == ProjectService.STALE_DELTA) {
+            // The files were changed elsewhere since they were last saved from here. Send the
+            // current contents of the files in full.
+            saveMultipleFilesAtOnce(forgetSavedContents(filesWithContent), afterSavingFiles);
+            return;
+          }
+
           // Call the project editor's onSave method for each file that was saved and update the
           // project's modification date.
           for (FileDescriptorWithContent fileDescriptor : filesWithContent) {
             long projectId = fileDescriptor.getProjectId();
             ProjectEditor projectEditor = openProjectEditors.get(projectId);
             if (projectEditor != null) {
+              savedContents.put(savedContentsKey(projectId, fileDescriptor.getFileId()),
+                  fileDescriptor.getContent());
               projectEditor.onSave(fileDescriptor.getFileId());
             }
             Ode.getInstance().updateModificationDate(projectId, date);
@@ -290,4 +328,27 @@ public final class EditorManager {
       });
     }
   }
+
+  /*
+   * Forgets the saved contents of the given files, so that they are saved in full, and returns
+   * the files with the contents of their open editors, which may have changed in the meantime.
+   */
+  private List<FileDescriptorWithContent> forgetSavedContents(
+      List<FileDescriptorWithContent> filesWithContent) {
+    List<FileDescriptorWithContent> currentFiles = new ArrayList<FileDescriptorWithContent>();
+    for (FileDescriptorWithContent fileDescriptor : filesWithContent) {
+      long projectId = fileDescriptor.getProjectId();
+      String fileId = fileDescriptor.getFileId();
+      savedContents.remove(savedContentsKey(projectId, fileId));
+      ProjectEditor projectEditor = openProjectEditors.get(projectId);
+      FileEditor fileEditor = (projectEditor == null) ? null : projectEditor.getFileEditor(fileId);
+      currentFiles.add((fileEditor == null) ? fileDescriptor
+          : new FileDescriptorWithContent(projectId, fileId, fileEditor.getRawFileContent()));
+    }
+    return currentFiles;
+  }
+
+  private static String savedContentsKey(long projectId, String fileId) {
+    return projectId + ":" + fileId;
+  }
 }
@@ -9,6 +9,7 @@ import com.google.appinventor.client.OdeAsyncCallback;
 import com.google.appinventor.client.output.MessagesOutput;
 import com.google.appinventor.client.tracking.Tracking;
 import com.google.appinventor.shared.rpc.RpcResult;
+import com.google.appinventor.shared.rpc.project.BuildPriority;
 import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.gwt.http.client.Response;
 import com.google.gwt.i18n.client.DateTimeFormat;
@@ -20,16 +21,24 @@ import java.util.Date;
  *
  */
 public class BuildCommand extends ChainableCommand {
+  // The response code of a build server that refuses a build because the user already has too
+  // many builds, which Response doesn't have.
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
   // The build target
   private String target;
 
+  // How urgently the build is wanted
+  private BuildPriority priority;
+
   /**
    * Creates a new build command.
    *
    * @param target the build target
+   * @param priority how urgently the build is wanted
    */
-  public BuildCommand(String target) {
-    this(target, null);
+  public BuildCommand(String target, BuildPriority priority) {
+    this(target, priority, null);
   }
 
   /**
@@ -37,11 +46,13 @@ public class BuildCommand extends ChainableCommand {
    * another ChainableCommand.
    *
    * @param target the build target
+   * @param priority how urgently the build is wanted
    * @param nextCommand the command to execute after the build has finished
    */
-  public BuildCommand(String target, ChainableCommand nextCommand) {
+  public BuildCommand(String target, BuildPriority priority, ChainableCommand nextCommand) {
     super(nextCommand);
     this.target = target;
+    this.priority = priority;
   }
 
   @Override
@@ -87,6 +98,11 @@ public class BuildCommand extends ChainableCommand {
               // of red background.
               ErrorReporter.reportInfo(MESSAGES.buildServerDifferentVersion());
               break;
+            case SC_TOO_MANY_REQUESTS:
+              // SC_TOO_MANY_REQUESTS (response code 429), means that the user already has as many
+              // builds waiting or in progress as they are allowed.
+              ErrorReporter.reportInfo(MESSAGES.buildServerTooManyBuildsError());
+              break;
             default:
               ErrorReporter.reportError(MESSAGES.buildFailedError());
               break;
@@ -102,6 +118,6 @@ public class BuildCommand extends ChainableCommand {
       }
     };
 
-    ode.getProjectService().build(node.getProjectId(), target, callback);
+    ode.getProjectService().build(node.getProjectId(), target, priority, callback);
   }
 }
@@ -21,7 +21,6 @@ import com.google.gwt.json.client.JSONObject;
 import com.google.gwt.json.client.JSONParser;
 import com.google.gwt.json.client.JSONString;
 import com.google.gwt.json.client.JSONValue;
-import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.Window;
 
 import java.util.Date;
@@ -36,7 +35,6 @@ import static com.google.appinventor.client.Ode.MESSAGES;
 public class WaitForBuildResultCommand extends ChainableCommand {
   // The build target
   private final String target;
-  private static final int WAIT_INTERVAL_MILLIS = 10000;
   private final MessagesOutput messagesOutput;
   private final String buildRequestTime;
 
@@ -103,15 +101,8 @@ public class WaitForBuildResultCommand extends ChainableCommand {
           }
           executionFailedOrCanceled();
         } else {
-          // Build isn't done yet
-          Timer timer = new Timer() {
-            @Override
-            public void run() {
-              execute(node);
-            }
-          };
-          // TODO(user): Maybe do an exponential backoff here.
-          timer.schedule(WAIT_INTERVAL_MILLIS);
+          // Build isn't done yet. The server has already waited for it, so ask again right away.
+          execute(node);
         }
       }
 
@@ -122,7 +113,7 @@ public class WaitForBuildResultCommand extends ChainableCommand {
       }
     };
 
-    ode.getProjectService().getBuildResult(node.getProjectId(), target, callback);
+    ode.getProjectService().waitForBuildResult(node.getProjectId(), target, callback);
   }
 
   private static YoungAndroidFormNode findFormNode(YoungAndroidProjectNode projectRootNode,
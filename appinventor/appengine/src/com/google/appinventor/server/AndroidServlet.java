@@ -7,6 +7,7 @@ import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.server.util.CacheHeaders;
 import com.google.appinventor.server.util.CacheHeadersImpl;
 import com.google.appinventor.shared.rpc.ServerLayout;
+import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 
 import java.io.IOException;
@@ -70,10 +71,10 @@ public class AndroidServlet extends OdeServlet {
 
     out.println("<table class=\"ode-Android-body\">");
     String userId = userInfoProvider.getUserId();
-    List<Long> projectIds = storageIo.getProjects(userId);
-    for (long projectId : projectIds) {
-      String projectType = storageIo.getProjectType(userId, projectId);
-      String projectName = storageIo.getProjectName(userId, projectId);
+    for (UserProject projectInfo : storageIo.getProjectInfos(userId)) {
+      long projectId = projectInfo.getProjectId();
+      String projectType = projectInfo.getProjectType();
+      String projectName = projectInfo.getProjectName();
       if (projectType.equals(YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE)) {
         String target = YoungAndroidProjectNode.YOUNG_ANDROID_TARGET_ANDROID;
         // TODO(lizlooney) - we need a 16x16 image for young android.
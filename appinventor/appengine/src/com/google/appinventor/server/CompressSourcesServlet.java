@@ -0,0 +1,91 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.SourceCompressionReport;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that compresses the stored contents of project source files that
+ * were stored before contents were compressed.
+ *
+ * <p>Each request compresses one batch of files and queues a task that
+ * requests the next batch, so that once an administrator has started the
+ * migration by visiting the servlet's URL, it runs in the background until
+ * all files have been seen. The totals so far are passed from batch to batch
+ * and logged after each batch.</p>
+ *
+ */
+public class CompressSourcesServlet extends OdeServlet {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(CompressSourcesServlet.class.getName());
+
+  // How many files each batch looks at
+  private static final Flag<Integer> batchSize =
+      Flag.createFlag("compress.sources.batch.size", 100);
+
+  // Request parameters of the batches after the first
+  private static final String CURSOR = "cursor";
+  private static final String FILES_SCANNED = "scanned";
+  private static final String FILES_COMPRESSED = "compressed";
+  private static final String FILES_FAILED = "failed";
+  private static final String CONTENT_BYTES = "contentBytes";
+  private static final String STORED_BYTES = "storedBytes";
+  private static final String MILLIS = "millis";
+
+  private final transient StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    doPost(req, resp);
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    SourceCompressionReport report =
+        storageIo.compressStoredSources(req.getParameter(CURSOR), batchSize.get());
+    long filesScanned = getTotal(req, FILES_SCANNED) + report.getFilesScanned();
+    long filesCompressed = getTotal(req, FILES_COMPRESSED) + report.getFilesCompressed();
+    long filesFailed = getTotal(req, FILES_FAILED) + report.getFilesFailed();
+    long contentBytes = getTotal(req, CONTENT_BYTES) + report.getContentBytes();
+    long storedBytes = getTotal(req, STORED_BYTES) + report.getStoredBytes();
+    long millis = getTotal(req, MILLIS) + report.getMillis();
+
+    String nextCursor = report.getNextCursor();
+    String summary = (nextCursor == null ? "Finished" : "Compressing") + " stored sources: scanned "
+        + filesScanned + " files, compressed " + filesCompressed + " files from " + contentBytes
+        + " to " + storedBytes + " bytes, failed " + filesFailed + " files, in " + millis + " ms";
+    LOG.info(summary);
+
+    if (nextCursor != null) {
+      QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(req.getRequestURI())
+          .param(CURSOR, nextCursor)
+          .param(FILES_SCANNED, Long.toString(filesScanned))
+          .param(FILES_COMPRESSED, Long.toString(filesCompressed))
+          .param(FILES_FAILED, Long.toString(filesFailed))
+          .param(CONTENT_BYTES, Long.toString(contentBytes))
+          .param(STORED_BYTES, Long.toString(storedBytes))
+          .param(MILLIS, Long.toString(millis)));
+    }
+
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setContentType("text/plain; charset=utf-8");
+    resp.getWriter().println(summary);
+  }
+
+  private static long getTotal(HttpServletRequest req, String name) {
+    String value = req.getParameter(name);
+    return (value == null) ? 0 : Long.parseLong(value);
+  }
+}
@@ -3,14 +3,17 @@
 package com.google.appinventor.server;
 
 import com.google.appinventor.common.utils.StringUtils;
+import com.google.appinventor.server.storage.ExportDestination;
+import com.google.appinventor.server.storage.FileVersion;
 import com.google.appinventor.server.util.CacheHeaders;
 import com.google.appinventor.server.util.CacheHeadersImpl;
+import com.google.appinventor.server.util.ModifiedHeaders;
 import com.google.appinventor.shared.rpc.ServerLayout;
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.storage.StorageUtil;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletOutputStream;
@@ -77,6 +80,10 @@ public class DownloadServlet extends OdeServlet {
     resp.setContentType(CONTENT_TYPE);
 
     RawFile downloadableFile;
+    // The version of the downloaded file, for downloads of single files. It is read before the
+    // file, so that if the file changes in between, the client's copy has an old version and is
+    // sent again next time.
+    FileVersion version = null;
 
     try {
       String uri = req.getRequestURI();
@@ -94,6 +101,11 @@ public class DownloadServlet extends OdeServlet {
         // Download project output file.
         uriComponents = uri.split("/", SPLIT_LIMIT_PROJECT_OUTPUT);
         String target = (uriComponents.length > TARGET_INDEX) ? uriComponents[TARGET_INDEX] : null;
+        // see if we can avoid reading and sending the content again
+        version = fileExporter.getFileVersion(userId, projectId, null);
+        if (notModified(req, resp, version)) {
+          return;
+        }
         downloadableFile = fileExporter.exportProjectOutputFile(userId, projectId, target);
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_PROJECT_SOURCE)) {
@@ -104,21 +116,26 @@ public class DownloadServlet extends OdeServlet {
         final boolean includeProjectHistory = true;
         String zipName = (projectTitle == null) ? null :
             StringUtils.normalizeForFilename(projectTitle) + ".zip";
-        ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(userId,
-            projectId, includeProjectHistory, false, zipName);
-        downloadableFile = zipFile.getRawFile();
+        fileExporter.exportProjectSourceZip(userId, projectId, includeProjectHistory, false,
+            zipName, new ResponseDestination(resp));
+        downloadableFile = null;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_ALL_PROJECTS_SOURCE)) {
         // Download all project source files as a zip of zips.
-        ProjectSourceZip zipFile = fileExporter.exportAllProjectsSourceZip(
-            userId, "all-projects.zip");
-        downloadableFile = zipFile.getRawFile();
+        fileExporter.exportAllProjectsSourceZip(userId, "all-projects.zip",
+            new ResponseDestination(resp));
+        downloadableFile = null;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_FILE)) {
         // Download a specific file.
         uriComponents = uri.split("/", SPLIT_LIMIT_FILE);
         String filePath = (uriComponents.length > FILE_PATH_INDEX) ?
             uriComponents[FILE_PATH_INDEX] : null;
+        // see if we can avoid reading and sending the content again
+        version = fileExporter.getFileVersion(userId, projectId, filePath);
+        if (notModified(req, resp, version)) {
+          return;
+        }
         downloadableFile = fileExporter.exportFile(userId, projectId, filePath);
 
       } else {
@@ -128,18 +145,68 @@ public class DownloadServlet extends OdeServlet {
       throw CrashReport.createAndLogError(LOG, req, null, e);
     }
 
+    if (downloadableFile == null) {
+      // The zip has already been streamed to the response.
+      resp.getOutputStream().close();
+      return;
+    }
+
     String fileName = downloadableFile.getFileName();
     byte[] content = downloadableFile.getContent();
 
     // Set http response information
-    resp.setStatus(HttpServletResponse.SC_OK);
-    resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
-    resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
+    setDownloadHeaders(resp, fileName);
     resp.setContentLength(content.length);
+    ModifiedHeaders.setHeaders(resp, getETag(version), version.getDateModified());
 
     // Attach download data
     ServletOutputStream out = resp.getOutputStream();
     out.write(content);
     out.close();
   }
+
+  /*
+   * Returns whether the client already has the given version of the requested file. If so, the
+   * response is sent with status 304 (Not Modified), without the file having been read.
+   */
+  private static boolean notModified(HttpServletRequest req, HttpServletResponse resp,
+      FileVersion version) {
+    String etag = getETag(version);
+    if (ModifiedHeaders.notModified(req, etag, version.getDateModified())) {
+      ModifiedHeaders.setHeaders(resp, etag, version.getDateModified());
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+    return false;
+  }
+
+  private static String getETag(FileVersion version) {
+    return "\"" + version.getTag() + "\"";
+  }
+
+  private static void setDownloadHeaders(HttpServletResponse resp, String fileName) {
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
+    resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
+  }
+
+  /*
+   * Streams an exported zip directly to the response, so that large projects don't have to be
+   * held in memory. The headers are set when the export is opened, which happens only after the
+   * export has found files to write, so that failures can still be reported as errors. Since the
+   * length isn't known in advance, no content length is set.
+   */
+  private static class ResponseDestination implements ExportDestination {
+    private final HttpServletResponse resp;
+
+    ResponseDestination(HttpServletResponse resp) {
+      this.resp = resp;
+    }
+
+    @Override
+    public OutputStream open(String fileName) throws IOException {
+      setDownloadHeaders(resp, fileName);
+      return resp.getOutputStream();
+    }
+  }
 }
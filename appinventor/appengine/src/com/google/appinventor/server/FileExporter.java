@@ -2,6 +2,8 @@
 
 package com.google.appinventor.server;
 
+import com.google.appinventor.server.storage.ExportDestination;
+import com.google.appinventor.server.storage.FileVersion;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 
@@ -50,6 +52,27 @@ public interface FileExporter {
                                           boolean includeAndroidKeystore, @Nullable String zipName)
       throws IOException;
 
+  /**
+   * Exports the project source files as a zip that is written to the given destination as the
+   * files are read.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @param includeProjectHistory indicates whether to include a file
+   *        containing the project's history in the zip
+   * @param includeAndroidKeystore indicates whether to include the user's android.keystore file
+   * @param zipName the desired name for the zip, or null for a name to be generated
+   * @param destination the destination of the zip, which is not opened if there are no
+   *        source files
+   * @return the number of zipped files
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no source files)
+   * @throws IOException if files cannot be written
+   */
+  int exportProjectSourceZip(String userId, long projectId, boolean includeProjectHistory,
+                             boolean includeAndroidKeystore, @Nullable String zipName,
+                             ExportDestination destination) throws IOException;
+
   /**
    * Exports all of the user's projects' source files as a zip of zips.
    *
@@ -62,6 +85,22 @@ public interface FileExporter {
    */
   ProjectSourceZip exportAllProjectsSourceZip(String userId, String zipName) throws IOException;
 
+  /**
+   * Exports all of the user's projects' source files as a zip of zips that is written to the
+   * given destination one project at a time.
+   *
+   * @param userId the userId
+   * @param zipName the desired name for the zip
+   * @param destination the destination of the zip, which is not opened if there are no
+   *        projects with source files
+   * @return the number of files in the zip
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no projects)
+   * @throws IOException if files cannot be written
+   */
+  int exportAllProjectsSourceZip(String userId, String zipName, ExportDestination destination)
+      throws IOException;
+
   /**
    * Exports a specific file.
    *
@@ -73,4 +112,16 @@ public interface FileExporter {
    *         (file is not known)
    */
   RawFile exportFile(String userId, long projectId, String filePath) throws IOException;
+
+  /**
+   * Returns the version of a specific file, or of the project output file,
+   * without reading any file content.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @param filePath the full path of the file, or null for the project output
+   *        file
+   * @return the version of the file
+   */
+  FileVersion getFileVersion(String userId, long projectId, @Nullable String filePath);
 }
@@ -3,7 +3,8 @@
 package com.google.appinventor.server;
 
 import com.google.common.base.Strings;
-import com.google.appinventor.server.storage.ObjectifyStorageIo;
+import com.google.appinventor.server.storage.ExportDestination;
+import com.google.appinventor.server.storage.FileVersion;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
@@ -12,9 +13,11 @@ import com.google.appinventor.shared.storage.StorageUtil;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipOutputStream;
 
 import javax.annotation.Nullable;
@@ -60,46 +63,50 @@ public final class FileExporterImpl implements FileExporter {
                                                  boolean includeAndroidKeystore,
                                                  @Nullable String zipName) throws IOException {
     // Download project source files as a zip.
-    if (storageIo instanceof ObjectifyStorageIo) {
-      return ((ObjectifyStorageIo)storageIo).exportProjectSourceZip(userId, projectId,
-          includeProjectHistory, includeAndroidKeystore, zipName);
-    } else {
-      throw new IllegalArgumentException("Objectify only");
-    }
+    return storageIo.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, zipName);
+  }
+
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId, boolean includeProjectHistory,
+                                    boolean includeAndroidKeystore, @Nullable String zipName,
+                                    ExportDestination destination) throws IOException {
+    // Stream project source files as a zip.
+    return storageIo.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, zipName, destination);
   }
 
   @Override
   public ProjectSourceZip exportAllProjectsSourceZip(String userId,
       String zipName) throws IOException {
+    final ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    int count = exportAllProjectsSourceZip(userId, zipName, new ExportDestination() {
+      @Override
+      public OutputStream open(String fileName) {
+        return zipFile;
+      }
+    });
+
+    // Package the big zip file up as a ProjectSourceZip and return it.
+    byte[] content = zipFile.toByteArray();
+    return new ProjectSourceZip(zipName, content, count);
+  }
+
+  @Override
+  public int exportAllProjectsSourceZip(String userId, String zipName,
+      ExportDestination destination) throws IOException {
     // Create a zip file for each project's sources.
     List<Long> projectIds = storageIo.getProjects(userId);
     if (projectIds.size() == 0) {
       throw new IllegalArgumentException("No projects to download");
     }
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    ZipOutputStream out = new ZipOutputStream(zipFile);
+    ZipOfZips out = new ZipOfZips(zipName, destination);
     int count = 0;
-    String metadata = "";
     for (Long projectId : projectIds) {
       try {
-        ProjectSourceZip projectSourceZip =
-            exportProjectSourceZip(userId, projectId, false, false, null);
-        byte[] data = projectSourceZip.getContent();
-        String name = projectSourceZip.getFileName();
-
-        // If necessary, rename duplicate projects
-        while (true) {
-          try {
-            out.putNextEntry(new ZipEntry(name));
-            break;
-          } catch (IOException e) {
-            name = "duplicate-" + name;
-          }
-        }
-        metadata += projectSourceZip.getMetadata() + "\n";
-
-        out.write(data, 0, data.length);
+        storageIo.exportProjectSourceZip(userId, projectId, false, false, null,
+            out.nextEntryDestination());
         out.closeEntry();
         count++;
       } catch (IllegalArgumentException e) {
@@ -107,12 +114,19 @@ public final class FileExporterImpl implements FileExporter {
             " for projectid: " + projectId);
         continue;
       } catch (IOException e) {
+        if (out.isEntryOpen()) {
+          // Part of the project has already been written, so the zip can't be completed.
+          throw e;
+        }
         System.err.println("IOException while reading files found for userid: " +
             userId + " for projectid: " + projectId);
         continue;
       }
     }
     if (count == 0) {
+      // The zip is only opened by the first project with source files, so nothing has been
+      // written to the destination, not even the user's keystore, and the caller can still report
+      // the error.
       throw new IllegalArgumentException("No files to download");
     }
 
@@ -121,20 +135,16 @@ public final class FileExporterImpl implements FileExporter {
       byte[] androidKeystoreBytes =
           storageIo.downloadRawUserFile(userId, ANDROID_KEYSTORE_FILENAME);
       if (androidKeystoreBytes.length > 0) {
-        out.putNextEntry(new ZipEntry(ANDROID_KEYSTORE_FILENAME));
-        out.write(androidKeystoreBytes, 0, androidKeystoreBytes.length);
-        out.closeEntry();
+        ZipOutputStream zip = out.getZipOutputStream();
+        zip.putNextEntry(new ZipEntry(ANDROID_KEYSTORE_FILENAME));
+        zip.write(androidKeystoreBytes, 0, androidKeystoreBytes.length);
+        zip.closeEntry();
         count++;
       }
     }
 
-    out.close();
-
-    // Package the big zip file up as a ProjectSourceZip and return it.
-    byte[] content = zipFile.toByteArray();
-    ProjectSourceZip projectSourceZip = new ProjectSourceZip(zipName, content, count);
-    projectSourceZip.setMetadata(metadata);
-    return projectSourceZip;
+    out.finish();
+    return count;
   }
 
   @Override
@@ -148,6 +158,11 @@ public final class FileExporterImpl implements FileExporter {
     }
   }
 
+  @Override
+  public FileVersion getFileVersion(String userId, long projectId, @Nullable String filePath) {
+    return storageIo.getFileVersion(userId, projectId, filePath);
+  }
+
   /*
    * Filters a list of file names, removing those that don't start with the given prefix.
    */
@@ -160,4 +175,66 @@ public final class FileExporterImpl implements FileExporter {
     }
     return filteredFiles;
   }
+
+  /*
+   * A zip whose entries are the zips of individual projects. The zip is only opened when the
+   * first project with source files is written to it, so that an export with no files can still
+   * fail without having written anything.
+   */
+  private static class ZipOfZips {
+    private final String zipName;
+    private final ExportDestination destination;
+    private ZipOutputStream out;
+    private boolean entryOpen;
+
+    ZipOfZips(String zipName, ExportDestination destination) {
+      this.zipName = zipName;
+      this.destination = destination;
+    }
+
+    ZipOutputStream getZipOutputStream() throws IOException {
+      if (out == null) {
+        out = new ZipOutputStream(destination.open(zipName));
+      }
+      return out;
+    }
+
+    /*
+     * Returns a destination that writes a project's zip as the next entry of this zip.
+     */
+    ExportDestination nextEntryDestination() {
+      return new ExportDestination() {
+        @Override
+        public OutputStream open(String name) throws IOException {
+          ZipOutputStream zip = getZipOutputStream();
+          // If necessary, rename duplicate projects
+          while (true) {
+            try {
+              zip.putNextEntry(new ZipEntry(name));
+              break;
+            } catch (ZipException e) {
+              name = "duplicate-" + name;
+            }
+          }
+          entryOpen = true;
+          return zip;
+        }
+      };
+    }
+
+    boolean isEntryOpen() {
+      return entryOpen;
+    }
+
+    void closeEntry() throws IOException {
+      if (entryOpen) {
+        out.closeEntry();
+        entryOpen = false;
+      }
+    }
+
+    void finish() throws IOException {
+      getZipOutputStream().finish();
+    }
+  }
 }
@@ -186,13 +186,14 @@ public final class FileImporterImpl implements FileImporter {
 
   @Override
   public Set<String> getProjectNames(final String userId) {
-    List<Long> projectIds = storageIo.getProjects(userId);
-    Iterable<String> names = Iterables.transform(projectIds, new Function<Long, String>() {
-      @Override
-      public String apply(Long projectId) {
-        return storageIo.getProjectName(userId, projectId);
-      }
-    });
+    List<UserProject> projectInfos = storageIo.getProjectInfos(userId);
+    Iterable<String> names = Iterables.transform(projectInfos,
+        new Function<UserProject, String>() {
+          @Override
+          public String apply(UserProject projectInfo) {
+            return projectInfo.getProjectName();
+          }
+        });
     return ImmutableSet.copyOf(names);
   }
 }
@@ -2,11 +2,13 @@
 
 package com.google.appinventor.server;
 
+import com.google.appinventor.server.flags.Flag;
 import com.google.appinventor.server.project.CommonProjectService;
 import com.google.appinventor.server.project.youngandroid.YoungAndroidProjectService;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.shared.rpc.RpcResult;
+import com.google.appinventor.shared.rpc.project.BuildPriority;
 import com.google.appinventor.shared.rpc.project.FileDescriptor;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
 import com.google.appinventor.shared.rpc.project.NewProjectParameters;
@@ -15,8 +17,11 @@ import com.google.appinventor.shared.rpc.project.ProjectService;
 import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -32,6 +37,11 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
 
   private static final long serialVersionUID = -8316312003804169166L;
 
+  // How long a waitForBuildResult request waits for the build to finish. This must be well under
+  // the App Engine request deadline.
+  private static final Flag<Integer> buildResultWaitSecs =
+      Flag.createFlag("build.result.wait.secs", 20);
+
   private final transient StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
 
   // RPC implementation for YoungAndroid projects
@@ -103,13 +113,7 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
    */
   @Override
   public List<UserProject> getProjectInfos() {
-    String userId = userInfoProvider.getUserId();
-    List<Long> projectIds = storageIo.getProjects(userId);
-    List<UserProject> projectInfos = Lists.newArrayListWithExpectedSize(projectIds.size());
-    for (Long projectId : projectIds) {
-      projectInfos.add(makeUserProject(userId, projectId));
-    }
-    return projectInfos;
+    return storageIo.getProjectInfos(userInfoProvider.getUserId());
   }
 
   /**
@@ -198,14 +202,31 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
    */
   @Override
   public List<FileDescriptorWithContent> load(List<FileDescriptor> files) {
-    List<FileDescriptorWithContent> result = Lists.newArrayList();
     final String userId = userInfoProvider.getUserId();
+    // Load the files of each project with a single call.
+    Map<Long, List<String>> fileIdsByProject = Maps.newLinkedHashMap();
+    for (FileDescriptor file : files) {
+      List<String> fileIds = fileIdsByProject.get(file.getProjectId());
+      if (fileIds == null) {
+        fileIds = Lists.newArrayList();
+        fileIdsByProject.put(file.getProjectId(), fileIds);
+      }
+      fileIds.add(file.getFileId());
+    }
+    Map<Long, Iterator<String>> contentsByProject = Maps.newHashMap();
+    for (Map.Entry<Long, List<String>> entry : fileIdsByProject.entrySet()) {
+      long projectId = entry.getKey();
+      List<String> contents =
+          getProjectRpcImpl(userId, projectId).load(userId, projectId, entry.getValue());
+      contentsByProject.put(projectId, contents.iterator());
+    }
+
+    // Return the contents in the order in which the files were requested.
+    List<FileDescriptorWithContent> result = Lists.newArrayList();
     for (FileDescriptor file : files) {
       long projectId = file.getProjectId();
-      String fileId = file.getFileId();
-      result.add(new FileDescriptorWithContent(
-          projectId, fileId,
-          getProjectRpcImpl(userId, projectId).load(userId, projectId, fileId)));
+      result.add(new FileDescriptorWithContent(projectId, file.getFileId(),
+          contentsByProject.get(projectId).next()));
     }
     return result;
   }
@@ -247,20 +268,48 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
     return date;
   }
 
+  /**
+   * Saves the contents of multiple files, each sent as a delta.
+   *
+   * @param filesAndDeltas  list containing file descriptors and their
+   *                        associated encoded deltas
+   * @return modification date for last modified project of list, or
+   *         {@link #STALE_DELTA} if any of the deltas didn't apply
+   */
+  @Override
+  public long saveDeltas(List<FileDescriptorWithContent> filesAndDeltas) {
+    final String userId = userInfoProvider.getUserId();
+    long date = 0;
+    boolean stale = false;
+    for (FileDescriptorWithContent fileAndDelta : filesAndDeltas) {
+      long projectId = fileAndDelta.getProjectId();
+      long fileDate = getProjectRpcImpl(userId, projectId).saveDelta(userId, projectId,
+          fileAndDelta.getFileId(), fileAndDelta.getContent());
+      // Save the other files even if one of the deltas is stale.
+      if (fileDate == STALE_DELTA) {
+        stale = true;
+      } else {
+        date = fileDate;
+      }
+    }
+    return stale ? STALE_DELTA : date;
+  }
+
   /**
    * Invokes a build command for the project on the back-end.
    *
    * @param projectId  project ID
    * @param target  build target (optional, implementation dependent)
+   * @param priority  how urgently the build is wanted
    *
    * @return  results of build
    */
   @Override
-  public RpcResult build(long projectId, String target) {
+  public RpcResult build(long projectId, String target, BuildPriority priority) {
     // Dispatch
     final String userId = userInfoProvider.getUserId();
     return getProjectRpcImpl(userId, projectId).build(
-        userInfoProvider.getUser(), projectId, target);
+        userInfoProvider.getUser(), projectId, target, priority);
   }
 
   /**
@@ -282,6 +331,23 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
         userInfoProvider.getUser(), projectId, target);
   }
 
+  /**
+   * Waits for the result of a build command for the project.
+   *
+   * @param projectId  project ID
+   * @param target  build target (optional, implementation dependent)
+   *
+   * @return  results of build, as for {@link #getBuildResult}. -1 means that
+   *          the build did not finish within build.result.wait.secs.
+   */
+  @Override
+  public RpcResult waitForBuildResult(long projectId, String target) {
+    // Dispatch
+    final String userId = userInfoProvider.getUserId();
+    return getProjectRpcImpl(userId, projectId).waitForBuildResult(
+        userInfoProvider.getUser(), projectId, target, buildResultWaitSecs.get() * 1000L);
+  }
+
   /*
    * Write the serialized response out to stdout. This is a very unusual thing
    * to do, but it allows us to create a static file version of the response
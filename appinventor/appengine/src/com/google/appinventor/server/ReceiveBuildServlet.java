@@ -3,11 +3,13 @@
 package com.google.appinventor.server;
 
 import com.google.appinventor.server.project.utils.Security;
+import com.google.appinventor.server.storage.ImportSource;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.common.io.ByteStreams;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -33,6 +35,7 @@ public class ReceiveBuildServlet extends OdeServlet {
   private final OdeAuthFilter odeFilter = new OdeAuthFilter();
   private final transient StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
   private static final String ANDROID_KEYSTORE_FILENAME = "android.keystore";
+  private static final String BUILD_OUTPUT_FILENAME = "build.out";
 
   @Override
   public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
@@ -51,27 +54,54 @@ public class ReceiveBuildServlet extends OdeServlet {
     odeFilter.setUserFromUserId(userId);
     try {
       String buildFileDirPath = uriComponents[4];
-      ZipInputStream zipInputStream = new ZipInputStream(req.getInputStream());
+      LOG.info("Saving build output files: " + buildFileDirPath);
+      // The output files and the build status are saved together, so that a client waiting for
+      // the build sees that it has finished only once all of the output files are saved.
+      storageIo.storeBuildOutputFiles(userId, projectId, buildFileDirPath,
+          new BuildOutputZip(userId, new ZipInputStream(req.getInputStream())),
+          BUILD_OUTPUT_FILENAME);
+    } finally {
+      odeFilter.removeUser();
+    }
+  }
+
+  /*
+   * The build output files in the zip posted by the build server. The user's
+   * android.keystore, which the build server creates if the user doesn't
+   * have one yet, is saved as it is read rather than returned as an output
+   * file.
+   */
+  private class BuildOutputZip implements ImportSource {
+    private final String userId;
+    private final ZipInputStream zipInputStream;
+
+    BuildOutputZip(String userId, ZipInputStream zipInputStream) {
+      this.userId = userId;
+      this.zipInputStream = zipInputStream;
+    }
+
+    @Override
+    public String nextFile() throws IOException {
       while (true) {
         ZipEntry zipEntry = zipInputStream.getNextEntry();
         if (zipEntry == null) {
-          break;
+          return null;
         }
         String fileName = zipEntry.getName();
-        byte[] fileBytes = ByteStreams.toByteArray(zipInputStream);
-        if (ANDROID_KEYSTORE_FILENAME.equals(fileName)) {
-          LOG.info("Saving android.keystore for user: " + userId);
-          storageIo.addFilesToUser(userId, ANDROID_KEYSTORE_FILENAME);
-          storageIo.uploadRawUserFile(userId, fileName, fileBytes);
-        } else {
-          String filePath = buildFileDirPath + "/" + fileName;
-          LOG.info("Saving build output files: " + filePath);
-          storageIo.addOutputFilesToProject(userId, projectId, filePath);
-          storageIo.uploadRawFile(projectId, filePath, userId, fileBytes);
+        if (!ANDROID_KEYSTORE_FILENAME.equals(fileName)) {
+          return fileName;
         }
+        // The keystore belongs to the user rather than the project, so it can't be saved in the
+        // same transaction as the output files.
+        LOG.info("Saving android.keystore for user: " + userId);
+        storageIo.addFilesToUser(userId, ANDROID_KEYSTORE_FILENAME);
+        storageIo.uploadRawUserFile(userId, fileName, ByteStreams.toByteArray(zipInputStream));
       }
-    } finally {
-      odeFilter.removeUser();
+    }
+
+    @Override
+    public InputStream getContent() {
+      return zipInputStream;
     }
   }
 }
@@ -2,14 +2,19 @@
 
 package com.google.appinventor.server.project;
 
+import com.google.appinventor.server.CrashReport;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.shared.rpc.RpcResult;
+import com.google.appinventor.shared.rpc.project.BuildPriority;
 import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
 
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Logger;
 
 /**
  * The base class for classes that provide project services for a specific
@@ -18,6 +23,16 @@ import java.util.List;
  * @author lizlooney@google.com (Liz Looney)
  */
 public abstract class CommonProjectService {
+  private static final Logger LOG = Logger.getLogger(CommonProjectService.class.getName());
+
+  /**
+   * The value of RpcResult.result for a build that is not yet done.
+   */
+  public static final int BUILD_NOT_DONE = -1;
+
+  // How often waitForBuildResult checks whether the build is done
+  private static final long BUILD_RESULT_POLL_MILLIS = 1000;
+
   protected final String projectType;
   protected final StorageIo storageIo;
 
@@ -143,6 +158,30 @@ public abstract class CommonProjectService {
     return storageIo.downloadFile(userId, projectId, fileId, StorageUtil.DEFAULT_CHARSET);
   }
 
+  /**
+   * Loads the file information associated with several nodes in the project
+   * tree at once. See {@link #load(String, long, String)}.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param fileIds  project nodes whose source should be loaded
+   *
+   * @return  implementation dependent, in the same order as {@code fileIds}
+   */
+  public List<String> load(String userId, long projectId, List<String> fileIds) {
+    List<byte[]> contents = storageIo.downloadRawFiles(userId, projectId, fileIds);
+    List<String> result = new ArrayList<String>(contents.size());
+    try {
+      for (byte[] content : contents) {
+        result.add(new String(content, StorageUtil.DEFAULT_CHARSET));
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          "Unsupported file content encoding, project=" + projectId, e);
+    }
+    return result;
+  }
+
   /**
    * Saves the content of the file associated with a node in the project tree.
    *
@@ -155,8 +194,25 @@ public abstract class CommonProjectService {
    * @see com.google.appinventor.shared.rpc.project.ProjectService#load(long, String)
    */
   public long save(String userId, long projectId, String fileId, String content) {
-    return storageIo.uploadFile(projectId, fileId, userId,
-        content, StorageUtil.DEFAULT_CHARSET);
+    return new FileSaver(storageIo).save(userId, projectId, fileId, content);
+  }
+
+  /**
+   * Saves the content of a project source file that results from applying a
+   * delta to its stored content.
+   *
+   * @param userId the user id
+   * @param projectId  project ID
+   * @param fileId  project node whose source should be saved
+   * @param delta  encoded delta to be applied
+   * @return modification date for project, or
+   *         {@link com.google.appinventor.shared.rpc.project.ProjectService#STALE_DELTA}
+   *         if the delta doesn't apply to the stored content
+   *
+   * @see FileSaver#saveDelta(String, long, String, String)
+   */
+  public long saveDelta(String userId, long projectId, String fileId, String delta) {
+    return new FileSaver(storageIo).saveDelta(userId, projectId, fileId, delta);
   }
 
   /**
@@ -165,10 +221,12 @@ public abstract class CommonProjectService {
    * @param user the User that owns the {@code projectId}.
    * @param projectId  project id to be built
    * @param target  build target (optional, implementation dependent)
+   * @param priority  how urgently the build is wanted
    *
    * @return  build results
    */
-  public abstract RpcResult build(User user, long projectId, String target);
+  public abstract RpcResult build(User user, long projectId, String target,
+      BuildPriority priority);
 
   /**
    * Gets the result of a build command for the project.
@@ -182,4 +240,36 @@ public abstract class CommonProjectService {
    *           -1: Build is not yet done.
    */
   public abstract RpcResult getBuildResult(User user, long projectId, String target);
+
+  /**
+   * Waits for the result of a build command for the project, checking it
+   * every {@link #BUILD_RESULT_POLL_MILLIS} until the build is done or the
+   * timeout has passed.
+   *
+   * @param user the User that owns the {@code projectId}.
+   * @param projectId  project id to be built
+   * @param target  build target (optional, implementation dependent.
+   * @param timeoutMillis  how long to wait for the build to finish
+   * @return  build results, as described for {@link #getBuildResult}.
+   *          -1 means that the build did not finish within the timeout, or
+   *          that the thread was interrupted while waiting.
+   */
+  public RpcResult waitForBuildResult(User user, long projectId, String target,
+      long timeoutMillis) {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (true) {
+      RpcResult result = getBuildResult(user, projectId, target);
+      long remainingMillis = deadline - System.currentTimeMillis();
+      if (result.getResult() != BUILD_NOT_DONE || remainingMillis <= 0) {
+        return result;
+      }
+      try {
+        Thread.sleep(Math.min(BUILD_RESULT_POLL_MILLIS, remainingMillis));
+      } catch (InterruptedException e) {
+        // Let the caller see the interruption, and report the build as not yet done.
+        Thread.currentThread().interrupt();
+        return result;
+      }
+    }
+  }
 }
@@ -0,0 +1,97 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.project;
+
+import com.google.appinventor.common.youngandroid.TextDelta;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.DeltaUploadResult;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.shared.rpc.project.ProjectService;
+import com.google.appinventor.shared.storage.StorageUtil;
+
+import java.util.logging.Logger;
+
+/**
+ * Saves the contents of project source files, either whole or as a
+ * {@link TextDelta} against the stored contents, and records statistics
+ * about the saves.
+ *
+ */
+public final class FileSaver {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(FileSaver.class.getName());
+
+  // How many saves there are between logged summaries of the save statistics, or 0 for none
+  private static final Flag<Integer> statsLogInterval =
+      Flag.createFlag("save.stats.log.interval", 1000);
+
+  // Shared by all FileSavers, so that the saves of the RPC service and of the Blocks Editor are
+  // counted together.
+  private static final SaveStats stats = new SaveStats();
+
+  private final StorageIo storageIo;
+
+  public FileSaver(StorageIo storageIo) {
+    this.storageIo = storageIo;
+  }
+
+  /**
+   * Saves the whole contents of a file.
+   *
+   * @return the project's new modification date
+   */
+  public long save(String userId, long projectId, String fileId, String content) {
+    long start = System.currentTimeMillis();
+    long date = storageIo.uploadFile(projectId, fileId, userId, content,
+        StorageUtil.DEFAULT_CHARSET);
+    record(SaveStats.Kind.FULL, content.length(), content.length(), start);
+    return date;
+  }
+
+  /**
+   * Saves the contents of a file that result from applying the given delta to
+   * the stored contents. The delta is applied by the storage, in the
+   * transaction that writes the result, so that of two deltas against the
+   * same contents, only the first is applied.
+   *
+   * @param delta  an encoded {@link TextDelta}
+   * @return the project's new modification date, or
+   *     {@link ProjectService#STALE_DELTA} if the delta doesn't apply to the
+   *     stored contents, which are then left unchanged
+   * @throws IllegalArgumentException if delta isn't an encoded delta
+   */
+  public long saveDelta(String userId, long projectId, String fileId, String delta) {
+    long start = System.currentTimeMillis();
+    TextDelta textDelta = TextDelta.decode(delta);
+    if (textDelta.isFull()) {
+      String content = textDelta.apply(null);
+      if (content == null) {
+        record(SaveStats.Kind.STALE, textDelta.getReplacementLength(), 0, start);
+        return ProjectService.STALE_DELTA;
+      }
+      long date = storageIo.uploadFile(projectId, fileId, userId, content,
+          StorageUtil.DEFAULT_CHARSET);
+      record(SaveStats.Kind.FULL, textDelta.getReplacementLength(), content.length(), start);
+      return date;
+    }
+    DeltaUploadResult result = storageIo.uploadFileDelta(userId, projectId, fileId, textDelta,
+        StorageUtil.DEFAULT_CHARSET);
+    if (result.isStale()) {
+      record(SaveStats.Kind.STALE, textDelta.getReplacementLength(), 0, start);
+      return ProjectService.STALE_DELTA;
+    }
+    record(SaveStats.Kind.DELTA, textDelta.getReplacementLength(), result.getContentLength(),
+        start);
+    return result.getDateModified();
+  }
+
+  private static void record(SaveStats.Kind kind, long receivedChars, long contentChars,
+      long start) {
+    long saveCount = stats.record(kind, receivedChars, contentChars,
+        System.currentTimeMillis() - start);
+    int interval = statsLogInterval.get();
+    if (interval > 0 && saveCount % interval == 0) {
+      LOG.info(stats.summarize());
+    }
+  }
+}
@@ -0,0 +1,96 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.project;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the saves of project files, and the characters received and stored
+ * and the time taken by them, for full saves and delta saves, so that the
+ * bandwidth saved by deltas and the latency of saves can be seen.
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ */
+final class SaveStats {
+  /**
+   * The kinds of save.
+   */
+  enum Kind {
+    // The whole contents were received.
+    FULL,
+    // A delta against the stored contents was received and applied.
+    DELTA,
+    // A delta was received, but didn't apply to the stored contents, so the client has to send
+    // the whole contents.
+    STALE
+  }
+
+  private static class Counters {
+    final AtomicLong saves = new AtomicLong();
+    final AtomicLong receivedChars = new AtomicLong();
+    final AtomicLong contentChars = new AtomicLong();
+    final AtomicLong millis = new AtomicLong();
+  }
+
+  private final Counters[] counters = new Counters[Kind.values().length];
+  private final AtomicLong saveCount = new AtomicLong();
+
+  SaveStats() {
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = new Counters();
+    }
+  }
+
+  /**
+   * Records a save.
+   *
+   * @param kind  the kind of save
+   * @param receivedChars  the number of characters of contents received
+   * @param contentChars  the number of characters of the saved contents, or 0
+   *     for a stale delta
+   * @param millis  how long the save took
+   * @return the number of saves recorded so far
+   */
+  long record(Kind kind, long receivedChars, long contentChars, long millis) {
+    Counters kindCounters = counters[kind.ordinal()];
+    kindCounters.saves.incrementAndGet();
+    kindCounters.receivedChars.addAndGet(receivedChars);
+    kindCounters.contentChars.addAndGet(contentChars);
+    kindCounters.millis.addAndGet(millis);
+    return saveCount.incrementAndGet();
+  }
+
+  long getSaveCount(Kind kind) {
+    return counters[kind.ordinal()].saves.get();
+  }
+
+  long getReceivedChars(Kind kind) {
+    return counters[kind.ordinal()].receivedChars.get();
+  }
+
+  long getContentChars(Kind kind) {
+    return counters[kind.ordinal()].contentChars.get();
+  }
+
+  long getMillis(Kind kind) {
+    return counters[kind.ordinal()].millis.get();
+  }
+
+  /**
+   * Returns a one-line summary of the counts, for the log.
+   */
+  String summarize() {
+    StringBuilder sb = new StringBuilder("Saves:");
+    for (Kind kind : Kind.values()) {
+      long saves = getSaveCount(kind);
+      sb.append(' ').append(kind.name().toLowerCase()).append('=').append(saves);
+      if (saves > 0) {
+        sb.append(" (received ").append(getReceivedChars(kind)).append(" of ")
+            .append(getContentChars(kind)).append(" chars, avg ")
+            .append(getMillis(kind) / saves).append(" ms)");
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,241 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.appinventor.server.flags.Flag;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.CharStreams;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The build servers that builds are sent to.
+ *
+ * <p>The health of each build server is checked with /buildserver/health and
+ * its load is read from /buildserver/vars. Since App Engine requests can't
+ * start background threads, the checks are made during a build request, when
+ * the last check of a build server is older than build.server.status.secs.
+ * Builds are sent to the least loaded healthy build server first.
+ *
+ */
+final class BuildServerPool {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildServerPool.class.getName());
+
+  // How long the health and load of a build server are used before they are checked again
+  private static final Flag<Integer> buildServerStatusSecs =
+      Flag.createFlag("build.server.status.secs", 10);
+
+  // Timeout for checking the health and load of a build server
+  private static final int STATUS_TIMEOUT_MILLIS = 2000;
+
+  // Matches a variable on the /buildserver/vars page
+  private static final Pattern VAR_PATTERN = Pattern.compile("<b>([^<]*)</b> ([^<]*)<br>");
+
+  @VisibleForTesting
+  static class ServerStatus {
+    final boolean healthy;
+    // Builds that are running or waiting
+    final int load;
+    // The maximum number of simultaneous builds, or 0 if it is not known
+    final int capacity;
+    final long checkedMillis;
+
+    ServerStatus(boolean healthy, int load, int capacity, long checkedMillis) {
+      this.healthy = healthy;
+      this.load = load;
+      this.capacity = capacity;
+      this.checkedMillis = checkedMillis;
+    }
+
+    double getLoadRatio() {
+      return (capacity > 0) ? (double) load / capacity : load;
+    }
+  }
+
+  private final Flag<String> buildServerHosts;
+
+  // Maps each build server host to its latest status. Guarded by this.
+  private final Map<String, ServerStatus> statuses = new HashMap<String, ServerStatus>();
+
+  /**
+   * Creates a BuildServerPool.
+   *
+   * @param buildServerHosts a comma separated list of host[:port] of the build
+   *        servers
+   */
+  BuildServerPool(Flag<String> buildServerHosts) {
+    this.buildServerHosts = buildServerHosts;
+  }
+
+  /**
+   * Returns the hosts of all of the build servers.
+   */
+  List<String> getHosts() {
+    List<String> hosts = new ArrayList<String>();
+    for (String host : buildServerHosts.get().split(",")) {
+      host = host.trim();
+      if (!host.isEmpty()) {
+        hosts.add(host);
+      }
+    }
+    return hosts;
+  }
+
+  /**
+   * Returns the hosts of all of the build servers, in the order in which a
+   * build should be offered to them: healthy build servers before unhealthy
+   * ones, and less loaded build servers before more loaded ones.
+   */
+  List<String> chooseHosts() {
+    List<String> hosts = getHosts();
+    if (hosts.size() <= 1) {
+      return hosts;
+    }
+    final Map<String, ServerStatus> current = new HashMap<String, ServerStatus>();
+    long staleMillis = currentTimeMillis() - buildServerStatusSecs.get() * 1000L;
+    for (String host : hosts) {
+      ServerStatus status = getStatus(host);
+      if (status == null || status.checkedMillis <= staleMillis) {
+        status = checkStatus(host);
+        setStatus(host, status);
+      }
+      current.put(host, status);
+    }
+    // The sort is stable, so equally loaded build servers stay in the configured order.
+    Collections.sort(hosts, new Comparator<String>() {
+      @Override
+      public int compare(String host1, String host2) {
+        ServerStatus status1 = current.get(host1);
+        ServerStatus status2 = current.get(host2);
+        if (status1.healthy != status2.healthy) {
+          return status1.healthy ? -1 : 1;
+        }
+        return Double.compare(status1.getLoadRatio(), status2.getLoadRatio());
+      }
+    });
+    return hosts;
+  }
+
+  /**
+   * Records that a build server accepted a build, so that the next builds go
+   * to other build servers until the load is checked again.
+   */
+  synchronized void reportAccepted(String host) {
+    ServerStatus status = statuses.get(host);
+    if (status != null) {
+      statuses.put(host, new ServerStatus(status.healthy, status.load + 1, status.capacity,
+          status.checkedMillis));
+    }
+  }
+
+  /**
+   * Records that a build server rejected a build because it is too busy.
+   */
+  synchronized void reportBusy(String host) {
+    ServerStatus status = statuses.get(host);
+    int capacity = (status != null) ? status.capacity : 0;
+    statuses.put(host, new ServerStatus(true, Math.max(capacity, 1) * 1000, capacity,
+        currentTimeMillis()));
+  }
+
+  /**
+   * Records that a build server could not be reached or can't build for this
+   * App Inventor instance.
+   */
+  synchronized void reportUnhealthy(String host) {
+    statuses.put(host, new ServerStatus(false, 0, 0, currentTimeMillis()));
+  }
+
+  @VisibleForTesting
+  synchronized ServerStatus getStatus(String host) {
+    return statuses.get(host);
+  }
+
+  private synchronized void setStatus(String host, ServerStatus status) {
+    statuses.put(host, status);
+  }
+
+  /*
+   * Checks the health and load of a build server. This must not be called
+   * while synchronized on this, since it makes requests to the build server.
+   */
+  private ServerStatus checkStatus(String host) {
+    long now = currentTimeMillis();
+    try {
+      if (!"ok".equals(fetch("http://" + host + "/buildserver/health").trim())) {
+        return new ServerStatus(false, 0, 0, now);
+      }
+    } catch (IOException e) {
+      LOG.warning("Build server " + host + " is not healthy: " + e);
+      return new ServerStatus(false, 0, 0, now);
+    }
+
+    int load = 0;
+    int capacity = 0;
+    try {
+      Map<String, String> vars = parseVars(fetch("http://" + host + "/buildserver/vars"));
+      load = parseInt(vars.get("active-build-tasks")) + parseInt(vars.get("build-queue-length"));
+      capacity = parseInt(vars.get("maximum-simultaneous-build-tasks"));
+    } catch (IOException e) {
+      // The build server is healthy, but its load is unknown.
+      LOG.warning("Unable to read the load of build server " + host + ": " + e);
+    }
+    return new ServerStatus(true, load, capacity, now);
+  }
+
+  @VisibleForTesting
+  static Map<String, String> parseVars(String html) {
+    Map<String, String> vars = new HashMap<String, String>();
+    Matcher matcher = VAR_PATTERN.matcher(html);
+    while (matcher.find()) {
+      vars.put(matcher.group(1), matcher.group(2));
+    }
+    return vars;
+  }
+
+  // Returns 0 for missing or non-numeric values, such as "unlimited".
+  private static int parseInt(String value) {
+    if (value != null) {
+      try {
+        return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        // Fall through.
+      }
+    }
+    return 0;
+  }
+
+  private static String fetch(String url) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(STATUS_TIMEOUT_MILLIS);
+    connection.setReadTimeout(STATUS_TIMEOUT_MILLIS);
+    if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+      throw new IOException("Response code " + connection.getResponseCode() + " from " + url);
+    }
+    Reader reader = new InputStreamReader(connection.getInputStream(), "UTF-8");
+    try {
+      return CharStreams.toString(reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  // Overridden in tests.
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+}
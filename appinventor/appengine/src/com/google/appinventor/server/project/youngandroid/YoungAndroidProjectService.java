@@ -14,16 +14,16 @@ import com.google.appinventor.server.flags.Flag;
 import com.google.appinventor.server.project.CommonProjectService;
 import com.google.appinventor.server.project.utils.Security;
 import com.google.appinventor.server.properties.json.ServerJsonParser;
+import com.google.appinventor.server.storage.ExportDestination;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.shared.properties.json.JSONParser;
 import com.google.appinventor.shared.rpc.RpcResult;
 import com.google.appinventor.shared.rpc.ServerLayout;
+import com.google.appinventor.shared.rpc.project.BuildPriority;
 import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
-import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
 import com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAndroidProjectParameters;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidAssetNode;
@@ -50,10 +50,10 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.List;
@@ -98,10 +98,17 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   private static final String KEYSTORE_FILE_NAME = YoungAndroidProjectService.PROJECT_DIRECTORY +
                                                    "/" + PROJECT_KEYSTORE_LOCATION;
 
-  // host[:port] to use for connecting to the build server
-  private static final Flag<String> buildServerHost =
+  // Comma separated list of host[:port] to use for connecting to the build servers
+  @VisibleForTesting
+  static final Flag<String> buildServerHost =
       Flag.createFlag("build.server.host", "localhost:9990");
 
+  private static final BuildServerPool buildServerPool = new BuildServerPool(buildServerHost);
+
+  // The response code of a build server that refuses a build because the user already has too
+  // many builds, which HttpURLConnection doesn't have.
+  static final int HTTP_TOO_MANY_REQUESTS = 429;
+
   public YoungAndroidProjectService(StorageIo storageIo) {
     super(YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE, storageIo);
   }
@@ -268,42 +275,33 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     newProject.setProjectHistory(oldProjectHistory);
 
     // Get the old project's source files and add them to new project, modifying where necessary.
+    // Files that don't change are copied by the storage, which shares their contents with the
+    // old project rather than downloading and uploading them.
+    Map<String, String> copiedFileNames = Maps.newLinkedHashMap();
     for (String oldSourceFileName : storageIo.getProjectSourceFiles(userId, oldProjectId)) {
-      String newSourceFileName;
-
-      String newContents = null;
       if (oldSourceFileName.equals(PROJECT_PROPERTIES_FILE_NAME)) {
         // This is the project properties file. The name of the file doesn't contain the old
         // project name.
-        newSourceFileName = oldSourceFileName;
         // For the contents of the project properties file, generate the file with the new project
         // name and qualified name.
         String qualifiedFormName = StringUtils.getQualifiedFormName(
             storageIo.getUser(userId).getUserEmail(), newName);
-        newContents = getProjectPropertiesFileContents(newName, qualifiedFormName, icon);
+        String newContents = getProjectPropertiesFileContents(newName, qualifiedFormName, icon);
+        newProject.addTextFile(new TextFile(oldSourceFileName, newContents));
       } else {
         // This is some file other than the project properties file.
         // oldSourceFileName may contain the old project name as a path segment, surrounded by /.
         // Replace the old name with the new name.
-        newSourceFileName = StringUtils.replaceLastOccurrence(oldSourceFileName,
+        String newSourceFileName = StringUtils.replaceLastOccurrence(oldSourceFileName,
             "/" + oldName + "/", "/" + newName + "/");
-      }
-
-      if (newContents != null) {
-        // We've determined (above) that the contents of the file must change for the new project.
-        // Use newContents when adding the file to the new project.
-        newProject.addTextFile(new TextFile(newSourceFileName, newContents));
-      } else {
-        // If we get here, we know that the contents of the file can just be copied from the old
-        // project. Since it might be a binary file, we copy it as a raw file (that works for both
-        // text and binary files).
-        byte[] contents = storageIo.downloadRawFile(userId, oldProjectId, oldSourceFileName);
-        newProject.addRawFile(new RawFile(newSourceFileName, contents));
+        // The contents of the file can just be copied from the old project.
+        copiedFileNames.put(oldSourceFileName, newSourceFileName);
       }
     }
 
     // Create the new project and return the new project's id.
-    return storageIo.createProject(userId, newProject, getProjectSettings(icon));
+    return storageIo.copyProject(userId, oldProjectId, newProject, copiedFileNames,
+        getProjectSettings(icon));
   }
 
   @Override
@@ -404,11 +402,13 @@ public final class YoungAndroidProjectService extends CommonProjectService {
    * @param user the User that owns the {@code projectId}.
    * @param projectId  project id to be built
    * @param target  build target (optional, implementation dependent)
+   * @param priority  how urgently the build is wanted, which orders the build
+   *     server's queue
    *
    * @return an RpcResult reflecting the call to the Build Server
    */
   @Override
-  public RpcResult build(User user, long projectId, String target) {
+  public RpcResult build(User user, long projectId, String target, BuildPriority priority) {
     String userId = user.getUserId();
     String projectName = storageIo.getProjectName(userId, projectId);
     String outputFileDir = BUILD_FOLDER + '/' + target;
@@ -418,79 +418,172 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     for (String buildOutputFile : buildOutputFiles) {
       storageIo.deleteFile(userId, projectId, buildOutputFile);
     }
+    // ReceiveBuildServlet will record the result when the build server posts it.
+    storageIo.storeBuildStatus(userId, projectId, outputFileDir, null);
+    RpcResult result = sendBuild(user, projectId, projectName, outputFileDir, priority);
+    if (!result.succeeded()) {
+      // No build server has the build, so none will post its result. Record the failure, so that
+      // waitForBuildResult doesn't wait for a build that will never finish.
+      storageIo.storeBuildStatus(userId, projectId, outputFileDir, getFailedBuildOutput(result));
+    }
+    return result;
+  }
+
+  /*
+   * Offers the build to the build servers.
+   *
+   * @return an RpcResult reflecting the response of the build server that
+   *         accepted the build, or of the last one that refused it
+   */
+  private RpcResult sendBuild(User user, long projectId, String projectName,
+      String outputFileDir, BuildPriority priority) {
+    String userId = user.getUserId();
+    String buildServerQuery;
     try {
-      URL buildServerUrl =
-          new URL(getBuildServerUrlStr(user.getUserEmail(),
-                                       userId,
-                                       projectId,
-                                       outputFileDir));
-      HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
-      connection.setDoOutput(true);
-      connection.setRequestMethod("POST");
-
-      BufferedOutputStream bufferedOutputStream =
-          new BufferedOutputStream(connection.getOutputStream());
-      FileExporter fileExporter = new FileExporterImpl();
-      ProjectSourceZip zipFile =
-          fileExporter.exportProjectSourceZip(userId, projectId, false,
-                                              /* includeAndroidKeystore */ true,
-                                              projectName + ".zip");
-      bufferedOutputStream.write(zipFile.getContent());
-      bufferedOutputStream.flush();
-      bufferedOutputStream.close();
-
-      int responseCode = connection.getResponseCode();
-      if (responseCode != HttpURLConnection.HTTP_OK) {
-        // Put the HTTP response code into the RpcResult so the client code in BuildCommand.java
-        // can provide an appropriate error message to the user.
-        // NOTE(lizlooney) - There is some weird bug/problem with HttpURLConnection. When the
-        // responseCode is 503, connection.getResponseMessage() returns "OK", but it should return
-        // "Service Unavailable". If I make the request with curl and look at the headers, they
-        // have the expected error message.
-        // For now, the moral of the story is: don't use connection.getResponseMessage().
-        String error = "Build server responded with response code " + responseCode + ".";
-        try {
-          String content = readContent(connection.getInputStream());
-          if (content != null && !content.isEmpty()) {
-            error += "\n" + content;
+      buildServerQuery = getBuildServerQueryStr(user.getUserEmail(), userId, projectId,
+          outputFileDir, priority);
+    } catch (UnsupportedEncodingException e) {
+      return new RpcResult(false, "", e.getMessage());
+    } catch (EncryptionException e) {
+      return new RpcResult(false, "", e.getMessage());
+    }
+
+    // Offer the build to each build server in turn, until one accepts it or refuses it for a
+    // reason that another build server would share.
+    RpcResult result = new RpcResult(false, "", "No build server is configured.");
+    for (String host : buildServerPool.chooseHosts()) {
+      try {
+        result = sendBuildRequest(host, buildServerQuery, userId, projectId, projectName);
+      } catch (IOException e) {
+        LOG.warning("Unable to send build request to " + host + ": " + e);
+        buildServerPool.reportUnhealthy(host);
+        result = new RpcResult(false, "", e.getMessage());
+        continue;
+      }
+      switch (result.getResult()) {
+        case HttpURLConnection.HTTP_UNAVAILABLE:
+          buildServerPool.reportBusy(host);
+          continue;
+        case HttpURLConnection.HTTP_CONFLICT:
+          buildServerPool.reportUnhealthy(host);
+          continue;
+        case HTTP_TOO_MANY_REQUESTS:
+          // The user already has too many builds. Every build server applies the limit, so the
+          // build isn't offered to another one, and this one isn't busy.
+          return result;
+        default:
+          if (result.succeeded()) {
+            buildServerPool.reportAccepted(host);
           }
-        } catch (IOException e) {
-          // No content. That's ok.
-        }
-        try {
-          String errorContent = readContent(connection.getErrorStream());
-          if (errorContent != null && !errorContent.isEmpty()) {
-            error += "\n" + errorContent;
+          return result;
+      }
+    }
+    return result;
+  }
+
+  /*
+   * Returns the content of a build.out for a build that no build server took, which
+   * getBuildResult reports as a failed build with the reason that the build was refused.
+   */
+  private static String getFailedBuildOutput(RpcResult result) {
+    Map<String, Object> buildOutput = Maps.newHashMap();
+    buildOutput.put("result", 1);
+    buildOutput.put("output", result.getOutput());
+    buildOutput.put("error", result.getError());
+    return new JSONObject(buildOutput).toString();
+  }
+
+  /*
+   * Sends the project to the build server at the given host.
+   *
+   * @return an RpcResult reflecting the response of the build server
+   * @throws IOException if the build server could not be reached
+   */
+  private RpcResult sendBuildRequest(String host, String buildServerQuery, String userId,
+      long projectId, String projectName) throws IOException {
+    URL buildServerUrl =
+        new URL("http://" + host + "/buildserver/build-all-from-zip-async" + buildServerQuery);
+    HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+
+    final BufferedOutputStream bufferedOutputStream =
+        new BufferedOutputStream(connection.getOutputStream());
+    FileExporter fileExporter = new FileExporterImpl();
+    // Write the zip to the build server as it is created rather than building it in memory.
+    fileExporter.exportProjectSourceZip(userId, projectId, false,
+        /* includeAndroidKeystore */ true, projectName + ".zip", new ExportDestination() {
+          @Override
+          public OutputStream open(String fileName) {
+            return bufferedOutputStream;
           }
-        } catch (IOException e) {
-          // No error content. That's ok.
+        });
+    bufferedOutputStream.flush();
+    bufferedOutputStream.close();
+
+    int responseCode = connection.getResponseCode();
+    if (responseCode != HttpURLConnection.HTTP_OK) {
+      // Put the HTTP response code into the RpcResult so the client code in BuildCommand.java
+      // can provide an appropriate error message to the user.
+      // NOTE(lizlooney) - There is some weird bug/problem with HttpURLConnection. When the
+      // responseCode is 503, connection.getResponseMessage() returns "OK", but it should return
+      // "Service Unavailable". If I make the request with curl and look at the headers, they
+      // have the expected error message.
+      // For now, the moral of the story is: don't use connection.getResponseMessage().
+      String error = "Build server " + host + " responded with response code " + responseCode +
+          ".";
+      try {
+        String content = readContent(connection.getInputStream());
+        if (content != null && !content.isEmpty()) {
+          error += "\n" + content;
         }
-        if (responseCode == HttpURLConnection.HTTP_CONFLICT) {
-          // The build server is not compatible with this App Inventor instance. Log this as severe
-          // so the owner of the app engine instance will know about it.
-          LOG.severe(error);
+      } catch (IOException e) {
+        // No content. That's ok.
+      }
+      try {
+        String errorContent = readContent(connection.getErrorStream());
+        if (errorContent != null && !errorContent.isEmpty()) {
+          error += "\n" + errorContent;
         }
-
-        return new RpcResult(responseCode, "", StringUtils.escape(error));
+      } catch (IOException e) {
+        // No error content. That's ok.
       }
-    } catch (MalformedURLException e) {
-      return new RpcResult(false, "", e.getMessage());
-    } catch (IOException e) {
-      return new RpcResult(false, "", e.getMessage());
-    } catch (EncryptionException e) {
-      return new RpcResult(false, "", e.getMessage());
+      if (responseCode == HttpURLConnection.HTTP_CONFLICT) {
+        // The build server is not compatible with this App Inventor instance. Log this as severe
+        // so the owner of the app engine instance will know about it.
+        LOG.severe(error);
+      }
+
+      return new RpcResult(responseCode, "", StringUtils.escape(error));
+    }
+    // The build server responds with the estimated number of milliseconds that the build will
+    // wait for other builds to finish.
+    long estimatedWaitSecs = parseEstimatedWaitSecs(readContent(connection.getInputStream()));
+    if (estimatedWaitSecs > 0) {
+      return new RpcResult(true, "Building " + projectName + " (waiting about " +
+          estimatedWaitSecs + " seconds for other builds)", "");
     }
     return new RpcResult(true, "Building " + projectName, "");
   }
 
-  // Note that this is a function rather than just a constant because we assume it will get
-  // a little more complicated when we want to get the URL from an App Engine config file or
-  // command line argument.
-  private String getBuildServerUrlStr(String userName, String userId,
-                                      long projectId, String fileName)
+  private static long parseEstimatedWaitSecs(String content) {
+    if (content != null) {
+      try {
+        return Long.parseLong(content.trim()) / 1000;
+      } catch (NumberFormatException e) {
+        // An older build server, which doesn't send an estimate.
+      }
+    }
+    return 0;
+  }
+
+  // Returns the query of the build request, which is the same whichever build server gets it.
+  @VisibleForTesting
+  String getBuildServerQueryStr(String userName, String userId, long projectId, String fileName,
+                                BuildPriority priority)
       throws UnsupportedEncodingException, EncryptionException {
-    return "http://" + buildServerHost.get() + "/buildserver/build-all-from-zip-async"
-           + "?uname=" + URLEncoder.encode(userName, "UTF-8")
+    return "?uname=" + URLEncoder.encode(userName, "UTF-8")
+           + "&priority=" + priority.name()
            + "&mercurialBuildId=" + URLEncoder.encode(MercurialBuildId.MERCURIAL_BUILD_ID, "UTF-8")
            + "&callback="
            + URLEncoder.encode("http://" + getCurrentHost() + ServerLayout.ODE_BASEURL_NOAUTH
@@ -541,24 +634,37 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   @Override
   public RpcResult getBuildResult(User user, long projectId, String target) {
     String userId = user.getUserId();
-    String buildOutputFileName = BUILD_FOLDER + '/' + target + '/' + "build.out";
+    String outputFileDir = BUILD_FOLDER + '/' + target;
+    // The build status is a single small record, which is much cheaper to read than the list of
+    // output files and build.out.
+    String buildStatus = storageIo.getBuildStatus(userId, projectId, outputFileDir);
+    if (buildStatus != null) {
+      if (buildStatus.equals(StorageIo.BUILD_IN_PROGRESS)) {
+        return new RpcResult(BUILD_NOT_DONE, "", "");
+      }
+      return parseBuildOutput(buildStatus);
+    }
+
+    // There is no build status for builds started before build statuses were recorded.
+    String buildOutputFileName = outputFileDir + '/' + "build.out";
     List<String> outputFiles = storageIo.getProjectOutputFiles(userId, projectId);
-    RpcResult buildResult = new RpcResult(-1, "", ""); // Build not finished yet
     for (String outputFile : outputFiles) {
       if (buildOutputFileName.equals(outputFile)) {
-        String outputStr = storageIo.downloadFile(userId, projectId, outputFile, "UTF-8");
-        try {
-          JSONObject buildResultJsonObj = new JSONObject(outputStr);
-          buildResult = new RpcResult(buildResultJsonObj.getInt("result"),
-                                      buildResultJsonObj.getString("output"),
-                                      buildResultJsonObj.getString("error"),
-                                      outputStr);
-        } catch (JSONException e) {
-          buildResult = new RpcResult(1, "", "");
-        }
-        break;
+        return parseBuildOutput(storageIo.downloadFile(userId, projectId, outputFile, "UTF-8"));
       }
     }
-    return buildResult;
+    return new RpcResult(BUILD_NOT_DONE, "", ""); // Build not finished yet
+  }
+
+  private static RpcResult parseBuildOutput(String outputStr) {
+    try {
+      JSONObject buildResultJsonObj = new JSONObject(outputStr);
+      return new RpcResult(buildResultJsonObj.getInt("result"),
+                           buildResultJsonObj.getString("output"),
+                           buildResultJsonObj.getString("error"),
+                           outputStr);
+    } catch (JSONException e) {
+      return new RpcResult(1, "", "");
+    }
   }
 }
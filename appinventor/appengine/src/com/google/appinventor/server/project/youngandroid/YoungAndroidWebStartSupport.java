@@ -8,12 +8,14 @@ import com.google.common.io.CharStreams;
 import com.google.appinventor.common.youngandroid.YaHttpServerConstants;
 import com.google.appinventor.server.CrashReport;
 import com.google.appinventor.server.encryption.EncryptionException;
+import com.google.appinventor.server.project.FileSaver;
 import com.google.appinventor.server.project.WebStartSupport;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.util.JsonpConnectionUtil;
 import com.google.appinventor.server.util.ModifiedHeaders;
 import com.google.appinventor.server.util.ResourceUtil;
 import com.google.appinventor.shared.rpc.ServerLayout;
+import com.google.appinventor.shared.rpc.project.ProjectService;
 import com.google.appinventor.shared.rpc.user.UserInfoProvider;
 import com.google.appinventor.shared.storage.StorageUtil;
 
@@ -173,6 +175,19 @@ public final class YoungAndroidWebStartSupport extends WebStartSupport {
         out.write(data);
         out.close();
 
+      } else if (isDelta(req)) {
+        // Codeblocks is posting a delta against the last contents of a project source file that
+        // it saved. If the file has changed since, codeblocks posts the whole contents instead.
+        List<String> sourceFiles = getStorageIo().getProjectSourceFiles(userId, projectId);
+        if (!sourceFiles.contains(fileName) ||
+            new FileSaver(getStorageIo()).saveDelta(userId, projectId, fileName, content)
+                == ProjectService.STALE_DELTA) {
+          resp.setStatus(HttpServletResponse.SC_CONFLICT);
+        } else {
+          resp.setStatus(HttpServletResponse.SC_OK);
+        }
+        resp.setContentType(CONTENT_TYPE);
+
       } else {
         // Codeblocks is posting a project source file.
         if (!content.endsWith("\n")) {
@@ -182,7 +197,7 @@ public final class YoungAndroidWebStartSupport extends WebStartSupport {
         if (!sourceFiles.contains(fileName)) {
           getStorageIo().addSourceFilesToProject(userId, projectId, false, fileName);
         }
-        getStorageIo().uploadFile(projectId, fileName, userId, content, StorageUtil.DEFAULT_CHARSET);
+        new FileSaver(getStorageIo()).save(userId, projectId, fileName, content);
         // TODO(sharon): technically this should probably return HttpServletResponse.SC_CREATED (201)
         // I'm not sure whether it really matters.
         resp.setStatus(HttpServletResponse.SC_OK);
@@ -193,6 +208,11 @@ public final class YoungAndroidWebStartSupport extends WebStartSupport {
     }
   }
 
+  private static boolean isDelta(HttpServletRequest req) {
+    String contentType = req.getContentType();
+    return contentType != null && contentType.startsWith(YaHttpServerConstants.DELTA_MIME_TYPE);
+  }
+
   @VisibleForTesting
   public byte[] getAssetsZipFile(String userId, long projectId) throws IOException {
     List<String> files = storageIo.getProjectSourceFiles(userId, projectId);
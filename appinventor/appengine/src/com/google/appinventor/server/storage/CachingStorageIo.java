@@ -0,0 +1,599 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.appinventor.common.youngandroid.TextDelta;
+import com.google.appinventor.server.CrashReport;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.shared.rpc.Motd;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.project.UserProject;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A StorageIo that caches file contents and project metadata of another
+ * StorageIo.
+ *
+ * <p>Reads are served from the cache when possible and otherwise read from
+ * the underlying StorageIo and added to the cache. Writes go to the
+ * underlying StorageIo first and then remove what they changed from the
+ * cache, so that the next read caches the new data. Everything else is
+ * passed through unchanged.
+ *
+ * <p>On App Engine the cache is memcache, which is shared by all instances.
+ * On the development server it is a size-bounded LRU cache in the JVM.
+ *
+ */
+final class CachingStorageIo implements StorageIo {
+  private static final Logger LOG = Logger.getLogger(CachingStorageIo.class.getName());
+
+  private static final Flag<Boolean> useStorageCache = Flag.createFlag("use.storage.cache", true);
+
+  // The size of the cache on the development server
+  private static final Flag<Integer> localStorageCacheMegs =
+      Flag.createFlag("local.storage.cache.megs", 32);
+
+  // Larger files are not cached. Memcache does not accept values over 1 MB.
+  @VisibleForTesting
+  static final int MAX_CACHED_FILE_BYTES = 512 * 1024;
+
+  private static final String FILE_PREFIX = "file:";
+  private static final String PROJECT_PREFIX = "project:";
+  private static final String NAME = ":name";
+  private static final String TYPE = ":type";
+  private static final String SETTINGS = ":settings";
+  private static final String HISTORY = ":history";
+  private static final String DATE_CREATED = ":created";
+  private static final String DATE_MODIFIED = ":modified";
+  private static final String BUILD_STATUS = ":build:";
+
+  private final StorageIo storageIo;
+  private final StorageCache cache;
+
+  // Used to check that a project belongs to a user before returning cached data
+  private final ProjectMembershipCache projectMembershipCache;
+
+  private final AtomicLong hitCount = new AtomicLong(0);
+  private final AtomicLong missCount = new AtomicLong(0);
+
+  /**
+   * Returns a StorageIo that caches the given StorageIo, according to the
+   * use.storage.cache flag and the environment. Outside of App Engine (for
+   * example, in tests) the given StorageIo is returned unchanged.
+   */
+  static StorageIo wrap(StorageIo storageIo) {
+    if (!useStorageCache.get() || SystemProperty.environment == null) {
+      return storageIo;
+    }
+    SystemProperty.Environment.Value environment = SystemProperty.environment.value();
+    if (environment == SystemProperty.Environment.Value.Production) {
+      return new CachingStorageIo(storageIo,
+          new MemcacheStorageCache(MemcacheServiceFactory.getMemcacheService()));
+    } else if (environment == SystemProperty.Environment.Value.Development) {
+      return new CachingStorageIo(storageIo,
+          new LocalStorageCache(localStorageCacheMegs.get() * 1024L * 1024L));
+    }
+    return storageIo;
+  }
+
+  @VisibleForTesting
+  CachingStorageIo(StorageIo storageIo, StorageCache cache) {
+    this.storageIo = storageIo;
+    this.cache = cache;
+    projectMembershipCache = ProjectMembershipCache.create();
+  }
+
+  // Cache support
+
+  @VisibleForTesting
+  static String fileKey(long projectId, String fileName) {
+    return FILE_PREFIX + projectId + ":" + fileName;
+  }
+
+  private static String projectKey(long projectId, String field) {
+    return PROJECT_PREFIX + projectId + field;
+  }
+
+  private Object getCached(String key) {
+    Object value = cache.get(key);
+    if (value != null) {
+      hitCount.incrementAndGet();
+    } else {
+      missCount.incrementAndGet();
+    }
+    return value;
+  }
+
+  private void addFile(long projectId, String fileName, byte[] content) {
+    if (content.length <= MAX_CACHED_FILE_BYTES) {
+      cache.add(fileKey(projectId, fileName), content);
+    }
+  }
+
+  private void deleteFiles(long projectId, String... fileNames) {
+    List<String> keys = new ArrayList<String>(fileNames.length);
+    for (String fileName : fileNames) {
+      keys.add(fileKey(projectId, fileName));
+    }
+    cache.deleteAll(keys);
+  }
+
+  private void deleteProjectDateModified(long projectId) {
+    cache.deleteAll(Arrays.asList(projectKey(projectId, DATE_MODIFIED)));
+  }
+
+  /*
+   * Checks that the project belongs to the user, before returning cached data
+   * that the underlying StorageIo would only return after checking that.
+   */
+  private void checkUserProject(String userId, long projectId) {
+    Set<Long> projectIds = projectMembershipCache.get(userId);
+    if (projectIds != null && projectIds.contains(projectId)) {
+      return;
+    }
+    if (!getProjects(userId).contains(projectId)) {
+      throw CrashReport.createAndLogError(LOG, null, "user=" + userId + ", project=" + projectId,
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the fraction of cache lookups that were hits, or 0 if there
+   * haven't been any.
+   */
+  public double getHitRatio() {
+    long hits = hitCount.get();
+    long lookups = hits + missCount.get();
+    return (lookups == 0) ? 0 : (double) hits / lookups;
+  }
+
+  // User management
+
+  @Override
+  public User getUser(String userId) {
+    return storageIo.getUser(userId);
+  }
+
+  @Override
+  public User getUser(String userId, String email) {
+    return storageIo.getUser(userId, email);
+  }
+
+  @Override
+  public void setUserEmail(String userId, String email) {
+    storageIo.setUserEmail(userId, email);
+  }
+
+  @Override
+  public void setTosAccepted(String userId) {
+    storageIo.setTosAccepted(userId);
+  }
+
+  @Override
+  public String loadSettings(String userId) {
+    return storageIo.loadSettings(userId);
+  }
+
+  @Override
+  public void storeSettings(String userId, String settings) {
+    storageIo.storeSettings(userId, settings);
+  }
+
+  // Project management
+
+  @Override
+  public long createProject(String userId, Project project, String projectSettings) {
+    long projectId = storageIo.createProject(userId, project, projectSettings);
+    projectMembershipCache.invalidate(userId);
+    return projectId;
+  }
+
+  @Override
+  public long copyProject(String userId, long oldProjectId, Project newProject,
+      Map<String, String> copiedFileNames, String projectSettings) {
+    long projectId = storageIo.copyProject(userId, oldProjectId, newProject, copiedFileNames,
+        projectSettings);
+    projectMembershipCache.invalidate(userId);
+    return projectId;
+  }
+
+  @Override
+  public void deleteProject(String userId, long projectId) {
+    storageIo.deleteProject(userId, projectId);
+    projectMembershipCache.invalidate(userId);
+    cache.deleteAll(Arrays.asList(projectKey(projectId, NAME), projectKey(projectId, TYPE),
+        projectKey(projectId, SETTINGS), projectKey(projectId, HISTORY),
+        projectKey(projectId, DATE_CREATED), projectKey(projectId, DATE_MODIFIED)));
+  }
+
+  @Override
+  public List<Long> getProjects(String userId) {
+    List<Long> projects = storageIo.getProjects(userId);
+    projectMembershipCache.put(userId, projects);
+    return projects;
+  }
+
+  @Override
+  public List<UserProject> getProjectInfos(String userId) {
+    return storageIo.getProjectInfos(userId);
+  }
+
+  @Override
+  public String loadProjectSettings(String userId, long projectId) {
+    String key = projectKey(projectId, SETTINGS);
+    String settings = (String) getCached(key);
+    if (settings != null) {
+      checkUserProject(userId, projectId);
+      return settings;
+    }
+    settings = storageIo.loadProjectSettings(userId, projectId);
+    cache.add(key, settings);
+    return settings;
+  }
+
+  @Override
+  public void storeProjectSettings(String userId, long projectId, String settings) {
+    storageIo.storeProjectSettings(userId, projectId, settings);
+    cache.deleteAll(Arrays.asList(projectKey(projectId, SETTINGS)));
+  }
+
+  @Override
+  public String getProjectType(String userId, long projectId) {
+    String key = projectKey(projectId, TYPE);
+    String projectType = (String) getCached(key);
+    if (projectType != null) {
+      checkUserProject(userId, projectId);
+      return projectType;
+    }
+    projectType = storageIo.getProjectType(userId, projectId);
+    cache.add(key, projectType);
+    return projectType;
+  }
+
+  @Override
+  public String getProjectName(String userId, long projectId) {
+    String key = projectKey(projectId, NAME);
+    String projectName = (String) getCached(key);
+    if (projectName != null) {
+      checkUserProject(userId, projectId);
+      return projectName;
+    }
+    projectName = storageIo.getProjectName(userId, projectId);
+    cache.add(key, projectName);
+    return projectName;
+  }
+
+  @Override
+  public long getProjectDateModified(String userId, long projectId) {
+    String key = projectKey(projectId, DATE_MODIFIED);
+    Long dateModified = (Long) getCached(key);
+    if (dateModified != null) {
+      checkUserProject(userId, projectId);
+      return dateModified;
+    }
+    dateModified = storageIo.getProjectDateModified(userId, projectId);
+    cache.add(key, dateModified);
+    return dateModified;
+  }
+
+  @Override
+  public String getProjectHistory(String userId, long projectId) {
+    String key = projectKey(projectId, HISTORY);
+    String history = (String) getCached(key);
+    if (history != null) {
+      checkUserProject(userId, projectId);
+      return history;
+    }
+    history = storageIo.getProjectHistory(userId, projectId);
+    if (history != null) {
+      cache.add(key, history);
+    }
+    return history;
+  }
+
+  @Override
+  public long getProjectDateCreated(String userId, long projectId) {
+    String key = projectKey(projectId, DATE_CREATED);
+    Long dateCreated = (Long) getCached(key);
+    if (dateCreated != null) {
+      checkUserProject(userId, projectId);
+      return dateCreated;
+    }
+    dateCreated = storageIo.getProjectDateCreated(userId, projectId);
+    cache.add(key, dateCreated);
+    return dateCreated;
+  }
+
+  @Override
+  public void storeBuildStatus(String userId, long projectId, String outputDir,
+      @Nullable String buildOutput) {
+    storageIo.storeBuildStatus(userId, projectId, outputDir, buildOutput);
+    cache.deleteAll(Arrays.asList(projectKey(projectId, BUILD_STATUS + outputDir)));
+  }
+
+  @Override
+  public String getBuildStatus(String userId, long projectId, String outputDir) {
+    // Clients wait for a build by checking its status repeatedly, so this is read often.
+    String key = projectKey(projectId, BUILD_STATUS + outputDir);
+    String buildStatus = (String) getCached(key);
+    if (buildStatus != null) {
+      checkUserProject(userId, projectId);
+      return buildStatus;
+    }
+    buildStatus = storageIo.getBuildStatus(userId, projectId, outputDir);
+    if (buildStatus != null) {
+      cache.add(key, buildStatus);
+    }
+    return buildStatus;
+  }
+
+  @Override
+  public long storeBuildOutputFiles(String userId, long projectId, final String outputDir,
+      final ImportSource outputFiles, String statusFileName) throws IOException {
+    // Note the names of the files as they are read, so that their cached contents can be removed.
+    final List<String> filePaths = new ArrayList<String>();
+    try {
+      return storageIo.storeBuildOutputFiles(userId, projectId, outputDir, new ImportSource() {
+        @Override
+        public String nextFile() throws IOException {
+          String fileName = outputFiles.nextFile();
+          if (fileName != null) {
+            filePaths.add(outputDir + "/" + fileName);
+          }
+          return fileName;
+        }
+
+        @Override
+        public InputStream getContent() {
+          return outputFiles.getContent();
+        }
+      }, statusFileName);
+    } finally {
+      deleteFiles(projectId, filePaths.toArray(new String[filePaths.size()]));
+      cache.deleteAll(Arrays.asList(projectKey(projectId, DATE_MODIFIED),
+          projectKey(projectId, BUILD_STATUS + outputDir)));
+    }
+  }
+
+  // Non-project-specific file management
+
+  @Override
+  public void addFilesToUser(String userId, String... fileIds) {
+    storageIo.addFilesToUser(userId, fileIds);
+  }
+
+  @Override
+  public List<String> getUserFiles(String userId) {
+    return storageIo.getUserFiles(userId);
+  }
+
+  @Override
+  public void uploadUserFile(String userId, String fileId, String content, String encoding) {
+    storageIo.uploadUserFile(userId, fileId, content, encoding);
+  }
+
+  @Override
+  public void uploadRawUserFile(String userId, String fileName, byte[] content) {
+    storageIo.uploadRawUserFile(userId, fileName, content);
+  }
+
+  @Override
+  public String downloadUserFile(String userId, String fileId, String encoding) {
+    return storageIo.downloadUserFile(userId, fileId, encoding);
+  }
+
+  @Override
+  public byte[] downloadRawUserFile(String userId, String fileName) {
+    return storageIo.downloadRawUserFile(userId, fileName);
+  }
+
+  @Override
+  public void deleteUserFile(String userId, String fileId) {
+    storageIo.deleteUserFile(userId, fileId);
+  }
+
+  // File management
+
+  @Override
+  public int getMaxJobSizeBytes() {
+    return storageIo.getMaxJobSizeBytes();
+  }
+
+  @Override
+  public void addSourceFilesToProject(String userId, long projectId, boolean changeModDate,
+      String... fileIds) {
+    storageIo.addSourceFilesToProject(userId, projectId, changeModDate, fileIds);
+    deleteFiles(projectId, fileIds);
+    if (changeModDate) {
+      deleteProjectDateModified(projectId);
+    }
+  }
+
+  @Override
+  public void addOutputFilesToProject(String userId, long projectId, String... fileIds) {
+    storageIo.addOutputFilesToProject(userId, projectId, fileIds);
+    deleteFiles(projectId, fileIds);
+  }
+
+  @Override
+  public void removeSourceFilesFromProject(String userId, long projectId, boolean changeModDate,
+      String... fileIds) {
+    storageIo.removeSourceFilesFromProject(userId, projectId, changeModDate, fileIds);
+    deleteFiles(projectId, fileIds);
+    if (changeModDate) {
+      deleteProjectDateModified(projectId);
+    }
+  }
+
+  @Override
+  public void removeOutputFilesFromProject(String userId, long projectId, String... fileIds) {
+    storageIo.removeOutputFilesFromProject(userId, projectId, fileIds);
+    deleteFiles(projectId, fileIds);
+  }
+
+  @Override
+  public List<String> getProjectSourceFiles(String userId, long projectId) {
+    return storageIo.getProjectSourceFiles(userId, projectId);
+  }
+
+  @Override
+  public List<String> getProjectOutputFiles(String userId, long projectId) {
+    return storageIo.getProjectOutputFiles(userId, projectId);
+  }
+
+  @Override
+  public long uploadFile(long projectId, String fileId, String userId, String content,
+      String encoding) {
+    long modDate = storageIo.uploadFile(projectId, fileId, userId, content, encoding);
+    deleteFiles(projectId, fileId);
+    deleteProjectDateModified(projectId);
+    return modDate;
+  }
+
+  @Override
+  public long uploadRawFile(long projectId, String fileId, String userId, byte[] content) {
+    long modDate = storageIo.uploadRawFile(projectId, fileId, userId, content);
+    deleteFiles(projectId, fileId);
+    deleteProjectDateModified(projectId);
+    return modDate;
+  }
+
+  @Override
+  public DeltaUploadResult uploadFileDelta(String userId, long projectId, String fileId,
+      TextDelta delta, String encoding) {
+    DeltaUploadResult result =
+        storageIo.uploadFileDelta(userId, projectId, fileId, delta, encoding);
+    if (!result.isStale()) {
+      deleteFiles(projectId, fileId);
+      deleteProjectDateModified(projectId);
+    }
+    return result;
+  }
+
+  @Override
+  public long deleteFile(String userId, long projectId, String fileId) {
+    long modDate = storageIo.deleteFile(userId, projectId, fileId);
+    deleteFiles(projectId, fileId);
+    deleteProjectDateModified(projectId);
+    return modDate;
+  }
+
+  @Override
+  public String downloadFile(String userId, long projectId, String fileId, String encoding) {
+    try {
+      return new String(downloadRawFile(userId, projectId, fileId), encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + "project=" + projectId + ", file=" + fileId, e);
+    }
+  }
+
+  @Override
+  public byte[] downloadRawFile(String userId, long projectId, String fileId) {
+    byte[] content = (byte[]) getCached(fileKey(projectId, fileId));
+    if (content != null) {
+      checkUserProject(userId, projectId);
+      return content;
+    }
+    content = storageIo.downloadRawFile(userId, projectId, fileId);
+    addFile(projectId, fileId, content);
+    return content;
+  }
+
+  @Override
+  public List<byte[]> downloadRawFiles(String userId, long projectId, List<String> fileIds) {
+    List<String> keys = new ArrayList<String>(fileIds.size());
+    for (String fileId : fileIds) {
+      keys.add(fileKey(projectId, fileId));
+    }
+    Map<String, Object> cached = cache.getAll(keys);
+    hitCount.addAndGet(cached.size());
+    missCount.addAndGet(keys.size() - cached.size());
+    if (!cached.isEmpty()) {
+      checkUserProject(userId, projectId);
+    }
+
+    // Read the files that weren't cached with one call.
+    List<String> uncachedFileIds = new ArrayList<String>();
+    for (int i = 0; i < fileIds.size(); i++) {
+      if (!cached.containsKey(keys.get(i))) {
+        uncachedFileIds.add(fileIds.get(i));
+      }
+    }
+    List<byte[]> uncachedContents = uncachedFileIds.isEmpty()
+        ? new ArrayList<byte[]>()
+        : storageIo.downloadRawFiles(userId, projectId, uncachedFileIds);
+    for (int i = 0; i < uncachedFileIds.size(); i++) {
+      addFile(projectId, uncachedFileIds.get(i), uncachedContents.get(i));
+    }
+
+    List<byte[]> contents = new ArrayList<byte[]>(fileIds.size());
+    int uncachedIndex = 0;
+    for (String key : keys) {
+      byte[] content = (byte[]) cached.get(key);
+      contents.add((content != null) ? content : uncachedContents.get(uncachedIndex++));
+    }
+    return contents;
+  }
+
+  @Override
+  public FileVersion getFileVersion(String userId, long projectId, @Nullable String fileId) {
+    // A version is cheap to read and must not be stale, so it isn't cached.
+    return storageIo.getFileVersion(userId, projectId, fileId);
+  }
+
+  // MOTD management
+
+  @Override
+  public Motd getCurrentMotd() {
+    return storageIo.getCurrentMotd();
+  }
+
+  @Override
+  public ProjectSourceZip exportProjectSourceZip(String userId, long projectId,
+      boolean includeProjectHistory, boolean includeAndroidKeystore, @Nullable String zipName)
+      throws IOException {
+    return storageIo.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, zipName);
+  }
+
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId, boolean includeProjectHistory,
+      boolean includeAndroidKeystore, @Nullable String zipName, ExportDestination destination)
+      throws IOException {
+    return storageIo.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, zipName, destination);
+  }
+
+  @Override
+  public SourceCompressionReport compressStoredSources(@Nullable String cursor, int batchSize) {
+    // The contents of the files don't change, only how they are stored, and the cache holds
+    // contents.
+    return storageIo.compressStoredSources(cursor, batchSize);
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes of file contents that are compressed for storage and
+ * decompressed when read, and the time taken to do it, so that the space
+ * saved by compression and its cost in latency can be seen.
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ */
+final class CompressionStats {
+  private final AtomicLong compressedFiles = new AtomicLong();
+  private final AtomicLong compressedContentBytes = new AtomicLong();
+  private final AtomicLong compressedStoredBytes = new AtomicLong();
+  private final AtomicLong compressNanos = new AtomicLong();
+  private final AtomicLong decompressedFiles = new AtomicLong();
+  private final AtomicLong decompressNanos = new AtomicLong();
+
+  /**
+   * Records that a file's content was compressed.
+   *
+   * @param contentBytes  the size of the content
+   * @param storedBytes  the size of the compressed content
+   * @param nanos  how long the compression took
+   */
+  void recordCompress(long contentBytes, long storedBytes, long nanos) {
+    compressedFiles.incrementAndGet();
+    compressedContentBytes.addAndGet(contentBytes);
+    compressedStoredBytes.addAndGet(storedBytes);
+    compressNanos.addAndGet(nanos);
+  }
+
+  /**
+   * Records that a file's content was decompressed.
+   */
+  void recordDecompress(long nanos) {
+    decompressedFiles.incrementAndGet();
+    decompressNanos.addAndGet(nanos);
+  }
+
+  long getCompressedFiles() {
+    return compressedFiles.get();
+  }
+
+  long getCompressedContentBytes() {
+    return compressedContentBytes.get();
+  }
+
+  long getCompressedStoredBytes() {
+    return compressedStoredBytes.get();
+  }
+
+  long getDecompressedFiles() {
+    return decompressedFiles.get();
+  }
+
+  /**
+   * Returns a one-line summary of the counts, for the log.
+   */
+  String summarize() {
+    long files = compressedFiles.get();
+    long contentBytes = compressedContentBytes.get();
+    long storedBytes = compressedStoredBytes.get();
+    long decompressed = decompressedFiles.get();
+    StringBuilder sb = new StringBuilder("Compressed ").append(files).append(" files, ")
+        .append(contentBytes).append(" bytes to ").append(storedBytes).append(" bytes");
+    if (contentBytes > 0) {
+      sb.append(" (").append(storedBytes * 100 / contentBytes).append("%)");
+    }
+    if (files > 0) {
+      sb.append(", avg ").append(TimeUnit.NANOSECONDS.toMicros(compressNanos.get() / files))
+          .append(" us");
+    }
+    sb.append("; decompressed ").append(decompressed).append(" files");
+    if (decompressed > 0) {
+      sb.append(", avg ")
+          .append(TimeUnit.NANOSECONDS.toMicros(decompressNanos.get() / decompressed))
+          .append(" us");
+    }
+    return sb.toString();
+  }
+}
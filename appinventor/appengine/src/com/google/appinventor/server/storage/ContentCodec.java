@@ -0,0 +1,105 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * How the content of a file is encoded where it is stored, in the datastore
+ * or in Blobstore.
+ *
+ * <p>Files that were stored before contents were encoded have no codec,
+ * which is the same as {@link #NONE}.</p>
+ *
+ */
+enum ContentCodec {
+  // The content is stored as is.
+  NONE {
+    @Override
+    byte[] encode(byte[] content) {
+      return content;
+    }
+
+    @Override
+    InputStream decode(InputStream stored) {
+      return stored;
+    }
+  },
+
+  // The content is stored compressed with gzip.
+  GZIP {
+    @Override
+    byte[] encode(byte[] content) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 4 + 64);
+      try {
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(content);
+        out.close();
+      } catch (IOException e) {
+        // A ByteArrayOutputStream doesn't throw IOException.
+        throw new RuntimeException(e);
+      }
+      return bytes.toByteArray();
+    }
+
+    @Override
+    InputStream decode(InputStream stored) throws IOException {
+      return new GZIPInputStream(stored);
+    }
+  };
+
+  /**
+   * Returns the stored form of the given content.
+   */
+  abstract byte[] encode(byte[] content);
+
+  /**
+   * Returns a stream of the content whose stored form is read from the given
+   * stream. The content is decoded as it is read.
+   */
+  abstract InputStream decode(InputStream stored) throws IOException;
+
+  /**
+   * Returns the content whose stored form is given.
+   *
+   * @throws IOException if the stored form is corrupt
+   */
+  byte[] decode(byte[] stored) throws IOException {
+    if (this == NONE) {
+      return stored;
+    }
+    InputStream in = decode(new ByteArrayInputStream(stored));
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns the codec of a stored file, which is {@link #NONE} for files
+   * stored without one.
+   */
+  static ContentCodec of(@Nullable ContentCodec codec) {
+    return (codec == null) ? NONE : codec;
+  }
+
+  /**
+   * Returns the codec to store a file with the given name with. Forms and
+   * blocks are verbose JSON and XML, and shrink to a fraction of their size
+   * when compressed. Other files, such as images, sounds and APKs, are
+   * usually compressed already.
+   */
+  static ContentCodec forFile(String fileName) {
+    return (fileName.endsWith(".scm") || fileName.endsWith(".blk")) ? GZIP : NONE;
+  }
+}
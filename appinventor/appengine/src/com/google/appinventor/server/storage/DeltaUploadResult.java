@@ -0,0 +1,61 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+/**
+ * The result of applying a delta to the stored contents of a file, which
+ * either stores the new contents or is found to be stale.
+ *
+ */
+public final class DeltaUploadResult {
+  private static final DeltaUploadResult STALE = new DeltaUploadResult(true, 0, 0);
+
+  private final boolean stale;
+  private final long dateModified;
+  private final int contentLength;
+
+  private DeltaUploadResult(boolean stale, long dateModified, int contentLength) {
+    this.stale = stale;
+    this.dateModified = dateModified;
+    this.contentLength = contentLength;
+  }
+
+  /**
+   * Creates the result of a delta that was applied.
+   *
+   * @param dateModified  the project's modification date after the upload
+   * @param contentLength  the length of the file's new contents, in chars
+   */
+  public DeltaUploadResult(long dateModified, int contentLength) {
+    this(false, dateModified, contentLength);
+  }
+
+  /**
+   * Returns the result of a delta that doesn't apply to the stored contents,
+   * which are left unchanged.
+   */
+  public static DeltaUploadResult stale() {
+    return STALE;
+  }
+
+  /**
+   * Returns whether the delta didn't apply to the stored contents.
+   */
+  public boolean isStale() {
+    return stale;
+  }
+
+  /**
+   * Returns the project's modification date after the upload.
+   */
+  public long getDateModified() {
+    return dateModified;
+  }
+
+  /**
+   * Returns the length of the file's new contents, in chars.
+   */
+  public int getContentLength() {
+    return contentLength;
+  }
+}
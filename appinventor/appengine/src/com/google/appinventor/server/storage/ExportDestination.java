@@ -0,0 +1,25 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The destination of an export that is streamed rather than built in memory.
+ *
+ * <p>The destination is only opened once the name of the exported file is known and the export
+ * is known not to be empty. Until then, the caller can still report an error (for example, by
+ * throwing an exception from a servlet) without having written anything.
+ *
+ */
+public interface ExportDestination {
+  /**
+   * Opens the destination. This is called at most once per export.
+   *
+   * @param fileName the name of the exported file
+   * @return the stream to write the exported file to. The exporter does not close it.
+   * @throws IOException if the destination cannot be opened
+   */
+  OutputStream open(String fileName) throws IOException;
+}
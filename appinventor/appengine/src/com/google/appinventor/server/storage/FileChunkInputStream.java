@@ -0,0 +1,126 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.storage.StoredData.FileChunkData;
+import com.googlecode.objectify.AsyncObjectify;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams the stored content of a file that is kept in chunks.
+ *
+ * <p>The chunks are fetched a few at a time, each few with one batch get,
+ * whose entities the datastore reads in parallel. The next few chunks are
+ * fetched while the current ones are read, so only about twice that many
+ * chunks are in memory at once, whatever the size of the file.</p>
+ *
+ */
+final class FileChunkInputStream extends InputStream {
+  private final AsyncObjectify datastore;
+  private final List<Key<FileChunkData>> chunkKeys;
+  private final int chunksPerFetch;
+
+  // The index in chunkKeys of the first chunk that hasn't been fetched
+  private int nextFetch;
+  // The keys and pending result of the chunks that are being fetched, or null
+  private List<Key<FileChunkData>> fetchingKeys;
+  private Result<Map<Key<FileChunkData>, FileChunkData>> fetching;
+
+  // The fetched chunks that haven't been read yet
+  private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+  // The chunk being read, and the position in it
+  private byte[] chunk;
+  private int position;
+
+  /**
+   * Creates a FileChunkInputStream, and starts fetching the first chunks.
+   *
+   * @param datastore  the datastore to fetch the chunks from
+   * @param chunkKeys  the keys of the chunks, in order
+   * @param chunksPerFetch  how many chunks are fetched with each batch get
+   */
+  FileChunkInputStream(AsyncObjectify datastore, List<Key<FileChunkData>> chunkKeys,
+      int chunksPerFetch) {
+    this.datastore = datastore;
+    this.chunkKeys = chunkKeys;
+    this.chunksPerFetch = chunksPerFetch;
+    fetchNext();
+  }
+
+  private void fetchNext() {
+    if (nextFetch < chunkKeys.size()) {
+      int end = Math.min(nextFetch + chunksPerFetch, chunkKeys.size());
+      fetchingKeys = chunkKeys.subList(nextFetch, end);
+      fetching = datastore.get(fetchingKeys);
+      nextFetch = end;
+    } else {
+      fetchingKeys = null;
+      fetching = null;
+    }
+  }
+
+  /*
+   * Makes chunk a chunk with bytes left to read, waiting for the chunks being fetched if
+   * necessary. Returns false if the whole content has been read.
+   */
+  private boolean nextChunk() throws IOException {
+    while (chunk == null || position == chunk.length) {
+      if (chunks.isEmpty()) {
+        if (fetching == null) {
+          return false;
+        }
+        Map<Key<FileChunkData>, FileChunkData> fetched = fetching.get();
+        for (Key<FileChunkData> key : fetchingKeys) {
+          FileChunkData chunkData = fetched.get(key);
+          if (chunkData == null) {
+            // The file's content was replaced after its entity was read.
+            throw new IOException("Missing chunk " + key.getName() + " of "
+                + key.getParent().getName());
+          }
+          chunks.add((chunkData.content == null) ? new byte[0] : chunkData.content);
+        }
+        fetchNext();
+      }
+      chunk = chunks.removeFirst();
+      position = 0;
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!nextChunk()) {
+      return -1;
+    }
+    return chunk[position++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!nextChunk()) {
+      return -1;
+    }
+    int count = Math.min(len, chunk.length - position);
+    System.arraycopy(chunk, position, b, off, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public void close() {
+    chunks.clear();
+    chunk = null;
+    fetching = null;
+    nextFetch = chunkKeys.size();
+  }
+}
@@ -0,0 +1,42 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+/**
+ * A version of a project file, which is read without reading the file's
+ * content, so that a client that already has the file can be told that it
+ * hasn't changed without the file being read again.
+ *
+ */
+public final class FileVersion {
+  private final String tag;
+  private final long dateModified;
+
+  /**
+   * Creates a FileVersion.
+   *
+   * @param tag  a string that changes whenever the file's content changes
+   * @param dateModified  the date the file's project was last modified
+   */
+  public FileVersion(String tag, long dateModified) {
+    this.tag = tag;
+    this.dateModified = dateModified;
+  }
+
+  /**
+   * Returns a string that changes whenever the file's content changes. It
+   * may also change when the content doesn't, for example when other files
+   * of the project change.
+   */
+  public String getTag() {
+    return tag;
+  }
+
+  /**
+   * Returns the date the file's project was last modified, which is no
+   * earlier than the date the file was last changed.
+   */
+  public long getDateModified() {
+    return dateModified;
+  }
+}
@@ -0,0 +1,30 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * The source of files that are stored as they are read rather than being
+ * held in memory, such as the entries of a zip file that is being received.
+ *
+ */
+public interface ImportSource {
+  /**
+   * Advances to the next file.
+   *
+   * @return the name of the next file, or null if there are no more files
+   * @throws IOException if the next file cannot be read
+   */
+  @Nullable
+  String nextFile() throws IOException;
+
+  /**
+   * Returns the content of the current file. The stream is only valid until
+   * {@link #nextFile} is called again, and the caller does not close it.
+   */
+  InputStream getContent();
+}
@@ -0,0 +1,87 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the retries of datastore jobs, and the jobs that failed after
+ * running out of retries, for each kind of operation, so that contention on
+ * entity groups can be seen and attributed.
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ */
+final class JobRetryStats {
+  private final ConcurrentMap<String, AtomicLong> retryCounts = Maps.newConcurrentMap();
+  private final ConcurrentMap<String, AtomicLong> exhaustedCounts = Maps.newConcurrentMap();
+
+  /**
+   * Records that a job for the given operation is being retried.
+   */
+  void recordRetry(String operation) {
+    getCounter(retryCounts, operation).incrementAndGet();
+  }
+
+  /**
+   * Records that a job for the given operation failed after its last retry.
+   */
+  void recordExhausted(String operation) {
+    getCounter(exhaustedCounts, operation).incrementAndGet();
+  }
+
+  long getRetryCount(String operation) {
+    return getCount(retryCounts, operation);
+  }
+
+  long getExhaustedCount(String operation) {
+    return getCount(exhaustedCounts, operation);
+  }
+
+  /**
+   * Returns the number of retries of each operation that has been retried,
+   * sorted by operation.
+   */
+  Map<String, Long> getRetryCounts() {
+    return snapshot(retryCounts);
+  }
+
+  /**
+   * Returns the number of jobs of each operation that ran out of retries,
+   * sorted by operation.
+   */
+  Map<String, Long> getExhaustedCounts() {
+    return snapshot(exhaustedCounts);
+  }
+
+  private static AtomicLong getCounter(ConcurrentMap<String, AtomicLong> counters,
+      String operation) {
+    AtomicLong counter = counters.get(operation);
+    if (counter == null) {
+      counter = new AtomicLong();
+      AtomicLong existing = counters.putIfAbsent(operation, counter);
+      if (existing != null) {
+        counter = existing;
+      }
+    }
+    return counter;
+  }
+
+  private static long getCount(ConcurrentMap<String, AtomicLong> counters, String operation) {
+    AtomicLong counter = counters.get(operation);
+    return (counter == null) ? 0 : counter.get();
+  }
+
+  private static Map<String, Long> snapshot(ConcurrentMap<String, AtomicLong> counters) {
+    Map<String, Long> counts = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      counts.put(entry.getKey(), entry.getValue().get());
+    }
+    return counts;
+  }
+}
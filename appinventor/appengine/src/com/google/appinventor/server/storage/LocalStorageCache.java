@@ -0,0 +1,127 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link StorageCache} in this JVM, for the development server. When the
+ * total size of the values exceeds the limit, the least recently used values
+ * are dropped.
+ *
+ */
+class LocalStorageCache implements StorageCache {
+  private final long maxBytes;
+
+  // From least recently used to most recently used. Guarded by this.
+  private final LinkedHashMap<String, Object> values =
+      new LinkedHashMap<String, Object>(16, 0.75f, true);
+
+  // Guarded by this.
+  private long sizeBytes;
+
+  // The times until which recently deleted keys aren't added. Guarded by this.
+  private final Map<String, Long> heldUntilMillis = new HashMap<String, Long>();
+
+  /**
+   * Creates a LocalStorageCache.
+   *
+   * @param maxBytes the maximum total size of the cached values
+   */
+  LocalStorageCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  @Override
+  public synchronized Object get(String key) {
+    return copy(values.get(key));
+  }
+
+  @Override
+  public synchronized Map<String, Object> getAll(Collection<String> keys) {
+    Map<String, Object> result = new HashMap<String, Object>();
+    for (String key : keys) {
+      Object value = values.get(key);
+      if (value != null) {
+        result.put(key, copy(value));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized void add(String key, Object value) {
+    if (values.containsKey(key)) {
+      return;
+    }
+    Long heldUntil = heldUntilMillis.get(key);
+    if (heldUntil != null) {
+      if (currentTimeMillis() < heldUntil) {
+        return;
+      }
+      heldUntilMillis.remove(key);
+    }
+    values.put(key, copy(value));
+    sizeBytes += sizeOf(key, value);
+    Iterator<Map.Entry<String, Object>> iterator = values.entrySet().iterator();
+    while (sizeBytes > maxBytes && iterator.hasNext()) {
+      Map.Entry<String, Object> entry = iterator.next();
+      sizeBytes -= sizeOf(entry.getKey(), entry.getValue());
+      iterator.remove();
+    }
+  }
+
+  @Override
+  public synchronized void deleteAll(Collection<String> keys) {
+    long now = currentTimeMillis();
+    // Forget the holds that have ended, so that they don't accumulate.
+    Iterator<Long> holds = heldUntilMillis.values().iterator();
+    while (holds.hasNext()) {
+      if (holds.next() <= now) {
+        holds.remove();
+      }
+    }
+    for (String key : keys) {
+      remove(key);
+      heldUntilMillis.put(key, now + DELETE_HOLD_MILLIS);
+    }
+  }
+
+  // Overridden in tests.
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  // Must be called while synchronized on this.
+  private void remove(String key) {
+    Object oldValue = values.remove(key);
+    if (oldValue != null) {
+      sizeBytes -= sizeOf(key, oldValue);
+    }
+  }
+
+  synchronized long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  // Callers may modify the byte arrays they get from or put into the cache.
+  private static Object copy(Object value) {
+    return (value instanceof byte[]) ? ((byte[]) value).clone() : value;
+  }
+
+  private static long sizeOf(String key, Object value) {
+    long size = 2 * key.length();
+    if (value instanceof byte[]) {
+      size += ((byte[]) value).length;
+    } else if (value instanceof String) {
+      size += 2 * ((String) value).length();
+    } else {
+      size += 8;
+    }
+    return size;
+  }
+}
@@ -0,0 +1,48 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link StorageCache} in App Engine memcache, which is shared by all
+ * instances of the application and bounded by memcache itself.
+ *
+ */
+final class MemcacheStorageCache implements StorageCache {
+  // Values expire eventually, in case a write to memcache failed after the
+  // corresponding write to the datastore succeeded.
+  private static final Expiration EXPIRATION = Expiration.byDeltaSeconds(60 * 60);
+
+  private final MemcacheService memcache;
+
+  MemcacheStorageCache(MemcacheService memcache) {
+    this.memcache = memcache;
+  }
+
+  @Override
+  public Object get(String key) {
+    return memcache.get(key);
+  }
+
+  @Override
+  public Map<String, Object> getAll(Collection<String> keys) {
+    return new HashMap<String, Object>(memcache.getAll(keys));
+  }
+
+  @Override
+  public void add(String key, Object value) {
+    memcache.put(key, value, EXPIRATION, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    // Memcache refuses adds of the keys during the hold, on every instance.
+    memcache.deleteAll(keys, DELETE_HOLD_MILLIS);
+  }
+}
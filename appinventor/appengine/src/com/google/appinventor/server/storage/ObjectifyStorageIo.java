@@ -4,14 +4,20 @@ package com.google.appinventor.server.storage;
 
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.files.AppEngineFile;
 import com.google.appengine.api.files.FileReadChannel;
 import com.google.appengine.api.files.FileService;
 import com.google.appengine.api.files.FileServiceFactory;
 import com.google.appengine.api.files.FileWriteChannel;
+import com.google.appinventor.common.youngandroid.TextDelta;
 import com.google.appinventor.server.CrashReport;
 import com.google.appinventor.server.flags.Flag;
 import com.google.appinventor.server.FileExporter;
+import com.google.appinventor.server.storage.StoredData.BlobRefData;
+import com.google.appinventor.server.storage.StoredData.BuildStatusData;
+import com.google.appinventor.server.storage.StoredData.FileChunkData;
 import com.google.appinventor.server.storage.StoredData.FileData;
 import com.google.appinventor.server.storage.StoredData.MotdData;
 import com.google.appinventor.server.storage.StoredData.ProjectData;
@@ -23,9 +29,11 @@ import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.io.ByteStreams;
@@ -35,6 +43,7 @@ import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.Query;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -42,9 +51,17 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -71,14 +88,54 @@ public class ObjectifyStorageIo implements  StorageIo {
   // TODO(user): need a way to modify this. Also, what is really a good value?
   private static final int MAX_JOB_RETRIES = 10;
 
+  // The longest that a job waits before its first retry. Each retry waits a random time up to a
+  // limit that doubles for each retry, so that conflicting jobs don't retry in lockstep.
+  private static final Flag<Integer> jobRetryInitialBackoffMillis =
+      Flag.createFlag("job.retry.initial.backoff.millis", 10);
+  private static final Flag<Integer> jobRetryMaxBackoffMillis =
+      Flag.createFlag("job.retry.max.backoff.millis", 1000);
+
+  // How long a write of a project file waits for other writes to the same project, so that they
+  // are committed in one transaction. Writes that arrive while the project's previous writes are
+  // being committed wait for them regardless.
+  private static final Flag<Integer> uploadCoalesceMillis =
+      Flag.createFlag("upload.coalesce.millis", 10);
+
+  // Files of the kinds that are stored in Blobstore, such as assets, are kept in the datastore
+  // instead when they are smaller than this, which saves the Blobstore round trips.
+  static final Flag<Integer> inlineMaxBytes =
+      Flag.createFlag("storage.inline.max.bytes", 16 * 1024);
+
+  // Files in the datastore whose stored content is at least this large are kept in chunks of
+  // chunkSizeBytes, since an entity can't hold 1MB.
+  static final Flag<Integer> chunkThresholdBytes =
+      Flag.createFlag("storage.chunk.threshold.bytes", 512 * 1024);
+  static final Flag<Integer> chunkSizeBytes =
+      Flag.createFlag("storage.chunk.size.bytes", 256 * 1024);
+
+  // How many chunks of a file are fetched with each batch get when the file is streamed
+  private static final int CHUNKS_PER_FETCH = 4;
+
   private static final String ANDROID_KEYSTORE_FILENAME = "android.keystore";
 
   // Use this class to define the work of a job that can be retried. The
   // "datastore" argument to run() is the Objectify object for this job
   // (created with ObjectifyService.beginTransaction()). Note that all operations
-  // on "datastore" should be for objects in the same entity group.
+  // on "datastore" should be for objects in the same entity group. The operation
+  // is the name of the StorageIo method that runs the job, which retries are
+  // counted by.
   @VisibleForTesting
   abstract class JobRetryHelper {
+    private final String operation;
+
+    JobRetryHelper(String operation) {
+      this.operation = operation;
+    }
+
+    String getOperation() {
+      return operation;
+    }
+
     public abstract void run(Objectify datastore) throws ObjectifyException;
     public void onNonFatalError() throws ObjectifyException {
       // Default is to do nothing
@@ -91,17 +148,80 @@ public class ObjectifyStorageIo implements  StorageIo {
     T t;
   }
 
+  // The stored form of a file's content, and how it is encoded.
+  private static class EncodedContent {
+    final ContentCodec codec;
+    final byte[] bytes;
+
+    EncodedContent(ContentCodec codec, byte[] bytes) {
+      this.codec = codec;
+      this.bytes = bytes;
+    }
+  }
+
+  // The blobs of files that a job replaces or deletes. They are released after the job commits,
+  // since blobstore operations, and the reference counts of shared blobs, are not in the job's
+  // entity group.
+  private static class UnusedBlobs {
+    // Blobs that belong only to their files, which are deleted
+    final List<String> blobstorePaths = new ArrayList<String>();
+    // Shared blobs, whose reference counts are decremented
+    final List<String> contentHashes = new ArrayList<String>();
+
+    void add(FileData fd) {
+      if (fd.contentHash != null) {
+        contentHashes.add(fd.contentHash);
+      } else if (fd.isBlob && fd.blobstorePath != null) {
+        blobstorePaths.add(fd.blobstorePath);
+      }
+    }
+
+    void clear() {
+      blobstorePaths.clear();
+      contentHashes.clear();
+    }
+  }
+
   static {
     // Register the data object classes stored in the database
     ObjectifyService.register(UserData.class);
     ObjectifyService.register(ProjectData.class);
     ObjectifyService.register(UserProjectData.class);
     ObjectifyService.register(FileData.class);
+    ObjectifyService.register(FileChunkData.class);
     ObjectifyService.register(UserFileData.class);
     ObjectifyService.register(MotdData.class);
+    ObjectifyService.register(BuildStatusData.class);
+    ObjectifyService.register(BlobRefData.class);
   }
 
+  // Caches the result of getProjects for the checks that a project belongs to a user
+  private final ProjectMembershipCache projectMembershipCache;
+
+  private final JobRetryStats jobRetryStats = new JobRetryStats();
+
+  private final CompressionStats compressionStats = new CompressionStats();
+
+  // Used to choose how long to wait before retrying a job
+  private final Random backoffRandom = new Random();
+
+  // Combines concurrent uploads of files that are stored in the datastore into one transaction
+  private final ProjectWriteCoalescer uploadCoalescer;
+
   ObjectifyStorageIo() {
+    this(ProjectMembershipCache.create());
+  }
+
+  @VisibleForTesting
+  ObjectifyStorageIo(ProjectMembershipCache projectMembershipCache) {
+    this.projectMembershipCache = projectMembershipCache;
+    uploadCoalescer = new ProjectWriteCoalescer(new ProjectWriteCoalescer.BatchWriter() {
+      @Override
+      public long write(long projectId, Map<String, byte[]> files,
+          Map<String, RuntimeException> failures) throws ObjectifyException {
+        return uploadDatastoreFiles(projectId, files, failures);
+      }
+    }, uploadCoalesceMillis.get());
     initMotd();
   }
 
@@ -114,7 +234,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public User getUser(final String userId, final String email) {
     final User user = new User(userId, email, false);
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("getUser") {
         @Override
         public void run(Objectify datastore) {
           UserData userData = datastore.find(userKey(userId));
@@ -147,7 +267,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void setTosAccepted(final String userId) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("setTosAccepted") {
         @Override
         public void run(Objectify datastore) {
           UserData userData = datastore.find(userKey(userId));
@@ -165,7 +285,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void setUserEmail(final String userId, final String email) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("setUserEmail") {
         @Override
         public void run(Objectify datastore) {
           UserData userData = datastore.find(userKey(userId));
@@ -184,7 +304,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public String loadSettings(final String userId) {
     final Result<String> settings = new Result<String>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("loadSettings") {
         @Override
         public void run(Objectify datastore) {
           UserData userData = datastore.find(UserData.class, userId);
@@ -204,7 +324,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void storeSettings(final String userId, final String settings) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("storeSettings") {
         @Override
         public void run(Objectify datastore) {
           UserData userData = datastore.find(userKey(userId));
@@ -222,61 +342,134 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public long createProject(final String userId, final Project project,
       final String projectSettings) {
-    final Result<Long> projectId = new Result<Long>();
+    List<FileData> files = new ArrayList<FileData>();
+    boolean created = false;
     try {
-      // first job is on the project entity, creating the ProjectData object
-      // and the associated files.
-      runJobWithRetries(new JobRetryHelper() {
-        List<FileData> addedFiles = new ArrayList<FileData>();
+      // Blobs are uploaded, or shared with files with the same content, before the project's
+      // job, since they are in other entity groups.
+      addProjectFiles(project, files);
+      long projectId = storeNewProject("createProject", userId, project, projectSettings, files);
+      created = true;
+      return projectId;
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+    } finally {
+      if (!created) {
+        releaseBlobs(files);
+      }
+    }
+  }
 
+  @Override
+  public long copyProject(final String userId, final long oldProjectId, Project newProject,
+      Map<String, String> copiedFileNames, String projectSettings) {
+    if (!isUserProject(userId, oldProjectId)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, oldProjectId),
+          new UnauthorizedAccessException(userId, oldProjectId, null));
+    }
+    final Key<ProjectData> oldProjectKey = projectKey(oldProjectId);
+    final List<Key<FileData>> oldFileKeys = new ArrayList<Key<FileData>>();
+    for (String oldFileName : copiedFileNames.keySet()) {
+      oldFileKeys.add(projectFileKey(oldProjectKey, oldFileName));
+    }
+    final Result<Map<Key<FileData>, FileData>> oldFiles =
+        new Result<Map<Key<FileData>, FileData>>();
+    List<FileData> files = new ArrayList<FileData>();
+    boolean created = false;
+    try {
+      runJobWithRetries(new JobRetryHelper("copyProject") {
         @Override
-        public void run(Objectify datastore) throws ObjectifyException {
-          long date = System.currentTimeMillis();
-          ProjectData pd = new ProjectData();
-          pd.id = null;  // let Objectify auto-generate the project id
-          pd.dateCreated = date;
-          pd.dateModified = date;
-          pd.history = project.getProjectHistory();
-          pd.name = project.getProjectName();
-          pd.settings = projectSettings;
-          pd.type = project.getProjectType();
-          datastore.put(pd); // put the project in the db so that it gets assigned an id
-
-          assert pd.id != null;
-          projectId.t = pd.id;
-          // After the job commits projectId.t should end up with the last value
-          // we've gotten for pd.id (i.e. the one that committed if there
-          // was no error).
-          // Note that while we cannot expect to read back a value that we've
-          // written in this job, reading the assigned id from pd should work.
-
-          Key<ProjectData> projectKey = projectKey(projectId.t);
-          try {
-            for (TextFile file : project.getSourceFiles()) {
-              addedFiles.add(createRawFile(projectKey, FileData.RoleEnum.SOURCE, file.getFileName(),
-                  file.getContent().getBytes(DEFAULT_ENCODING)));
-            }
-          } catch (UnsupportedEncodingException e) {  // shouldn't happen!
-            throw CrashReport.createAndLogError(LOG, null, project.getProjectName(), e);
-          }
-          for (RawFile file : project.getRawSourceFiles()) {
-            addedFiles.add(createRawFile(projectKey, FileData.RoleEnum.SOURCE, file.getFileName(),
-                file.getContent()));
-          }
-          datastore.put(addedFiles);  // batch put
+        public void run(Objectify datastore) {
+          // All of the files are in the old project's entity group, so one batch get will do.
+          oldFiles.t = datastore.get(oldFileKeys);
+        }
+      });
+      addProjectFiles(newProject, files);
+      for (Map.Entry<String, String> entry : copiedFileNames.entrySet()) {
+        FileData oldFile = oldFiles.t.get(projectFileKey(oldProjectKey, entry.getKey()));
+        if (oldFile == null) {
+          throw CrashReport.createAndLogError(LOG, null,
+              collectProjectErrorInfo(oldProjectId, entry.getKey()),
+              new FileNotFoundException(entry.getKey()));
         }
+        files.add(copyFile(oldFile, entry.getValue()));
+      }
+      long projectId = storeNewProject("copyProject", userId, newProject, projectSettings, files);
+      created = true;
+      return projectId;
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, oldProjectId), e);
+    } finally {
+      if (!created) {
+        releaseBlobs(files);
+      }
+    }
+  }
 
-        public void onNonFatalError() {
-          for (FileData addedFile : addedFiles) {
-            if (addedFile.isBlob && addedFile.blobstorePath != null) {
-              deleteBlobstoreFile(addedFile.blobstorePath);
-            }
-          }
+  /*
+   * Adds new FileData objects for the source files of the project to files. The project key of
+   * each is set when the project is stored.
+   */
+  private void addProjectFiles(Project project, List<FileData> files) throws ObjectifyException {
+    try {
+      for (TextFile file : project.getSourceFiles()) {
+        files.add(createRawFile(FileData.RoleEnum.SOURCE, file.getFileName(),
+            file.getContent().getBytes(DEFAULT_ENCODING)));
+      }
+    } catch (UnsupportedEncodingException e) {  // shouldn't happen!
+      throw CrashReport.createAndLogError(LOG, null, project.getProjectName(), e);
+    }
+    for (RawFile file : project.getRawSourceFiles()) {
+      files.add(createRawFile(FileData.RoleEnum.SOURCE, file.getFileName(), file.getContent()));
+    }
+  }
+
+  /*
+   * Stores a new project with the given files, whose blobs have already been stored, and adds it
+   * to the user's projects. Returns the new project's id. If adding the project to the user's
+   * projects fails after the files were stored, the list of files is cleared, so that the caller
+   * doesn't release their blobs.
+   */
+  private long storeNewProject(String operation, final String userId, final Project project,
+      final String projectSettings, final List<FileData> files) throws ObjectifyException {
+    final Result<Long> projectId = new Result<Long>();
+    // first job is on the project entity, creating the ProjectData object
+    // and the associated files.
+    runJobWithRetries(new JobRetryHelper(operation) {
+      @Override
+      public void run(Objectify datastore) {
+        long date = System.currentTimeMillis();
+        ProjectData pd = new ProjectData();
+        pd.id = null;  // let Objectify auto-generate the project id
+        pd.dateCreated = date;
+        pd.dateModified = date;
+        pd.history = project.getProjectHistory();
+        pd.name = project.getProjectName();
+        pd.settings = projectSettings;
+        pd.type = project.getProjectType();
+        datastore.put(pd); // put the project in the db so that it gets assigned an id
+
+        assert pd.id != null;
+        projectId.t = pd.id;
+        // After the job commits projectId.t should end up with the last value
+        // we've gotten for pd.id (i.e. the one that committed if there
+        // was no error).
+        // Note that while we cannot expect to read back a value that we've
+        // written in this job, reading the assigned id from pd should work.
+
+        Key<ProjectData> projectKey = projectKey(projectId.t);
+        for (FileData file : files) {
+          file.projectKey = projectKey;
         }
-      });
+        putEntities(datastore, files);  // batch put
+      }
+    });
 
-      // second job is on the user entity
-      runJobWithRetries(new JobRetryHelper() {
+    // second job is on the user entity
+    try {
+      runJobWithRetries(new JobRetryHelper(operation) {
         @Override
         public void run(Objectify datastore) {
           UserProjectData upd = new UserProjectData();
@@ -288,37 +481,77 @@ public class ObjectifyStorageIo implements  StorageIo {
         }
       });
     } catch (ObjectifyException e) {
-      throw CrashReport.createAndLogError(LOG, null,
-          collectUserProjectErrorInfo(userId, projectId.t), e);
+      // The project's files were stored, so their blobs mustn't be released.
+      files.clear();
+      throw e;
     }
+    projectMembershipCache.invalidate(userId);
     return projectId.t;
   }
 
   /*
    *  Creates and returns a new FileData object with the specified fields.
    *  Does not check for the existence of the object and does not update
-   *  the database.
+   *  the database. A file that is stored in Blobstore shares the blob of any
+   *  other file with the same content. The content of a file that is stored
+   *  in the datastore is split into chunks when the file is put, if it is large.
    */
-  private FileData createRawFile(Key<ProjectData> projectKey, FileData.RoleEnum role,
-      String fileName, byte[] content) throws ObjectifyException {
+  private FileData createRawFile(FileData.RoleEnum role, String fileName, byte[] content)
+      throws ObjectifyException {
     FileData file = new FileData();
     file.fileName = fileName;
-    file.projectKey = projectKey;
     file.role = role;
-    if (useBlobstoreForFile(fileName)) {
-      file.isBlob = true;
-      file.blobstorePath = uploadToBlobstore(content);
+    if (useBlobstoreForFile(fileName, content.length)) {
+      setSharedBlob(file, acquireBlob(fileName, content));
     } else {
-      file.content = content;
+      EncodedContent encoded = encodeContent(fileName, content);
+      file.content = encoded.bytes;
+      file.codec = encoded.codec;
+    }
+    return file;
+  }
+
+  /*
+   * Creates and returns a new FileData object with the given name and the role, settings and
+   * content of a file of another project. A blob is shared with the other file, and only copied if
+   * the other file was stored before blobs were shared. The content is copied in its stored form,
+   * without being decompressed.
+   */
+  private FileData copyFile(FileData oldFile, String fileName) throws ObjectifyException {
+    FileData file = new FileData();
+    file.fileName = fileName;
+    file.role = oldFile.role;
+    file.settings = oldFile.settings;
+    if (oldFile.isBlob) {
+      BlobRefData blobRef = (oldFile.contentHash != null)
+          ? addBlobRef(oldFile.contentHash, null, null, 0, 0)
+          : null;
+      if (blobRef == null) {
+        try {
+          blobRef = acquireBlob(fileName, readContent(oldFile));
+        } catch (IOException e) {
+          throw new ObjectifyException(e);
+        }
+      }
+      setSharedBlob(file, blobRef);
+    } else {
+      // The content of a file in chunks is read, and split into new chunks when the copy is put.
+      try {
+        file.content = readStoredContent(oldFile);
+      } catch (IOException e) {
+        throw new ObjectifyException(e);
+      }
+      file.codec = oldFile.codec;
     }
     return file;
   }
 
   @Override
   public void deleteProject(final String userId, final long projectId) {
+    final UnusedBlobs unusedBlobs = new UnusedBlobs();
     try {
       // first job deletes the UserProjectData in the user's entity group
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("deleteProject") {
         @Override
         public void run(Objectify datastore) {
           // delete the UserProjectData object
@@ -327,14 +560,25 @@ public class ObjectifyStorageIo implements  StorageIo {
           // delete any FileData objects associated with this project
         }
       });
+      projectMembershipCache.invalidate(userId);
       // second job delete the project files and ProjectData in the project's
       // entity group
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("deleteProject") {
         @Override
         public void run(Objectify datastore) {
+          unusedBlobs.clear();
           Key<ProjectData> projectKey = projectKey(projectId);
-          Query<FileData> fdq = datastore.query(FileData.class).ancestor(projectKey);
-          datastore.delete(fdq);
+          List<Key<FileData>> fileKeys = new ArrayList<Key<FileData>>();
+          List<Key<FileChunkData>> chunkKeys = new ArrayList<Key<FileChunkData>>();
+          for (FileData fd : datastore.query(FileData.class).ancestor(projectKey)) {
+            unusedBlobs.add(fd);
+            Key<FileData> fileKey = projectFileKey(projectKey, fd.fileName);
+            fileKeys.add(fileKey);
+            chunkKeys.addAll(fileChunkKeys(fileKey, fd));
+          }
+          datastore.delete(fileKeys);
+          datastore.delete(chunkKeys);
+          datastore.delete(datastore.query(BuildStatusData.class).ancestor(projectKey));
           // finally, delete the ProjectData object
           datastore.delete(projectKey);
         }
@@ -343,14 +587,14 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId), e);
     }
-
+    releaseBlobs(unusedBlobs);
   }
 
   @Override
   public List<Long> getProjects(final String userId) {
     final List<Long> projects = new ArrayList<Long>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("getProjects") {
         @Override
         public void run(Objectify datastore) {
           Key<UserData> userKey = userKey(userId);
@@ -362,20 +606,73 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
+    projectMembershipCache.put(userId, projects);
 
     return projects;
   }
 
+  /*
+   * Returns whether the given project belongs to the given user. A project
+   * that isn't in the cached ids of the user's projects may have been created
+   * on another instance, so it is always checked against the datastore.
+   */
+  private boolean isUserProject(String userId, long projectId) {
+    Set<Long> projectIds = projectMembershipCache.get(userId);
+    if (projectIds != null && projectIds.contains(projectId)) {
+      return true;
+    }
+    return getProjects(userId).contains(projectId);
+  }
+
+  @Override
+  public List<UserProject> getProjectInfos(final String userId) {
+    final List<UserProject> projectInfos = new ArrayList<UserProject>();
+    try {
+      runJobWithRetries(new JobRetryHelper("getProjectInfos") {
+        @Override
+        public void run(Objectify datastore) {
+          projectInfos.clear();
+          Key<UserData> userKey = userKey(userId);
+          List<Key<ProjectData>> projectKeys = new ArrayList<Key<ProjectData>>();
+          for (UserProjectData upd : datastore.query(UserProjectData.class).ancestor(userKey)) {
+            projectKeys.add(projectKey(upd.projectId));
+          }
+          // Each project is in its own entity group, so they can't all be read in this
+          // transaction. Read them with a single non-transactional batch get instead.
+          Map<Key<ProjectData>, ProjectData> projects =
+              ObjectifyService.begin().get(projectKeys);
+          for (Key<ProjectData> projectKey : projectKeys) {
+            ProjectData pd = projects.get(projectKey);
+            if (pd != null) {
+              projectInfos.add(new UserProject(projectKey.getId(), pd.name, pd.type,
+                  pd.dateCreated, pd.dateModified));
+            } else {
+              projectInfos.add(new UserProject(projectKey.getId(), "", "", 0, 0));
+            }
+          }
+        }
+      });
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+    }
+    List<Long> projectIds = new ArrayList<Long>(projectInfos.size());
+    for (UserProject projectInfo : projectInfos) {
+      projectIds.add(projectInfo.getProjectId());
+    }
+    projectMembershipCache.put(userId, projectIds);
+    return projectInfos;
+  }
+
   @Override
   public String loadProjectSettings(final String userId, final long projectId) {
-    if (!getProjects(userId).contains(projectId)) {
+    if (!isUserProject(userId, projectId)) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
     }
     final Result<String> settings = new Result<String>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("loadProjectSettings") {
         @Override
         public void run(Objectify datastore) {
           ProjectData pd = datastore.find(projectKey(projectId));
@@ -397,7 +694,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public void storeProjectSettings(final String userId, final long projectId,
       final String settings) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("storeProjectSettings") {
         @Override
         public void run(Objectify datastore) {
           ProjectData pd = datastore.find(projectKey(projectId));
@@ -417,7 +714,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public String getProjectType(final String userId, final long projectId) {
     final Result<String> projectType = new Result<String>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("getProjectType") {
         @Override
         public void run(Objectify datastore) {
           ProjectData pd = datastore.find(projectKey(projectId));
@@ -439,7 +736,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public String getProjectName(final String userId, final long projectId) {
     final Result<String> projectName = new Result<String>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("getProjectName") {
         @Override
         public void run(Objectify datastore) {
           ProjectData pd = datastore.find(projectKey(projectId));
@@ -461,7 +758,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public long getProjectDateModified(final String userId, final long projectId) {
     final Result<Long> modDate = new Result<Long>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("getProjectDateModified") {
         @Override
         public void run(Objectify datastore) {
           ProjectData pd = datastore.find(projectKey(projectId));
@@ -481,14 +778,14 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public String getProjectHistory(final String userId, final long projectId) {
-    if (!getProjects(userId).contains(projectId)) {
+    if (!isUserProject(userId, projectId)) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
     }
     final Result<String> projectHistory = new Result<String>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("getProjectHistory") {
         @Override
         public void run(Objectify datastore) {
           ProjectData pd = datastore.find(projectKey(projectId));
@@ -510,7 +807,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public long getProjectDateCreated(final String userId, final long projectId) {
     final Result<Long> dateCreated = new Result<Long>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("getProjectDateCreated") {
         @Override
         public void run(Objectify datastore) {
           ProjectData pd = datastore.find(projectKey(projectId));
@@ -528,10 +825,165 @@ public class ObjectifyStorageIo implements  StorageIo {
     return dateCreated.t;
   }
 
+  @Override
+  public void storeBuildStatus(final String userId, final long projectId, final String outputDir,
+      @Nullable final String buildOutput) {
+    if (!isUserProject(userId, projectId)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+    try {
+      runJobWithRetries(new JobRetryHelper("storeBuildStatus") {
+        @Override
+        public void run(Objectify datastore) {
+          BuildStatusData bsd = new BuildStatusData();
+          bsd.projectKey = projectKey(projectId);
+          bsd.outputDir = outputDir;
+          bsd.buildOutput = buildOutput;
+          datastore.put(bsd);
+        }
+      });
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    }
+  }
+
+  @Override
+  public String getBuildStatus(final String userId, final long projectId,
+      final String outputDir) {
+    if (!isUserProject(userId, projectId)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+    final Result<String> buildStatus = new Result<String>();
+    try {
+      runJobWithRetries(new JobRetryHelper("getBuildStatus") {
+        @Override
+        public void run(Objectify datastore) {
+          BuildStatusData bsd = datastore.find(buildStatusKey(projectKey(projectId), outputDir));
+          if (bsd != null) {
+            buildStatus.t = (bsd.buildOutput != null) ? bsd.buildOutput : BUILD_IN_PROGRESS;
+          }
+        }
+      });
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    }
+    return buildStatus.t;
+  }
+
+  @Override
+  public long storeBuildOutputFiles(final String userId, final long projectId,
+      final String outputDir, ImportSource outputFiles, String statusFileName)
+      throws IOException {
+    if (!isUserProject(userId, projectId)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+    // Read all of the files before the transaction starts, so that a slow upload doesn't hold it
+    // open. Blobstore files are streamed to the blobstore; the others are small.
+    final Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+    final Map<String, String> newBlobstorePaths = new LinkedHashMap<String, String>();
+    final Result<Long> modTime = new Result<Long>();
+    final UnusedBlobs unusedBlobs = new UnusedBlobs();
+    String buildOutput = null;
+    // Whether the files are stored. If not, the new blobstore files are deleted.
+    boolean stored = false;
+    try {
+      for (String fileName = outputFiles.nextFile(); fileName != null;
+           fileName = outputFiles.nextFile()) {
+        String filePath = outputDir + "/" + fileName;
+        if (useBlobstoreForFile(filePath)) {
+          newBlobstorePaths.put(filePath, uploadToBlobstore(outputFiles.getContent()));
+        } else {
+          byte[] content = ByteStreams.toByteArray(outputFiles.getContent());
+          contents.put(filePath, content);
+          if (fileName.equals(statusFileName)) {
+            buildOutput = new String(content, DEFAULT_ENCODING);
+          }
+        }
+      }
+
+      final String buildStatus = buildOutput;
+      runJobWithRetries(new JobRetryHelper("storeBuildOutputFiles") {
+        @Override
+        public void run(Objectify datastore) {
+          unusedBlobs.clear();
+          Key<ProjectData> projectKey = projectKey(projectId);
+          List<Key<FileData>> fileKeys = new ArrayList<Key<FileData>>();
+          for (String filePath : contents.keySet()) {
+            fileKeys.add(projectFileKey(projectKey, filePath));
+          }
+          for (String filePath : newBlobstorePaths.keySet()) {
+            fileKeys.add(projectFileKey(projectKey, filePath));
+          }
+          // The files, the build status and the project are all in the project's entity group.
+          Map<Key<FileData>, FileData> existingFiles = datastore.get(fileKeys);
+          List<Object> entities = new ArrayList<Object>();
+          for (Key<FileData> fileKey : fileKeys) {
+            String filePath = fileKey.getName();
+            FileData fd = existingFiles.get(fileKey);
+            if (fd == null) {
+              fd = new FileData();
+              fd.fileName = filePath;
+              fd.projectKey = projectKey;
+              fd.role = FileData.RoleEnum.TARGET;
+            } else if (!fd.role.equals(FileData.RoleEnum.TARGET)) {
+              throw CrashReport.createAndLogError(LOG, null,
+                  collectProjectErrorInfo(projectId, filePath),
+                  new IllegalStateException("File role change is not supported"));
+            } else {
+              unusedBlobs.add(fd);
+            }
+            // Build outputs are different for every build, so their blobs aren't shared, and
+            // they are mostly compressed already.
+            fd.contentHash = null;
+            fd.codec = ContentCodec.NONE;
+            if (newBlobstorePaths.containsKey(filePath)) {
+              fd.isBlob = true;
+              fd.blobstorePath = newBlobstorePaths.get(filePath);
+              fd.content = null;
+            } else {
+              fd.isBlob = false;
+              fd.blobstorePath = null;
+              fd.content = contents.get(filePath);
+            }
+            entities.add(fd);
+          }
+          if (buildStatus != null) {
+            BuildStatusData bsd = new BuildStatusData();
+            bsd.projectKey = projectKey;
+            bsd.outputDir = outputDir;
+            bsd.buildOutput = buildStatus;
+            entities.add(bsd);
+          }
+          putEntities(datastore, entities);  // batch put
+          modTime.t = updateProjectModDate(datastore, projectId);
+        }
+      });
+      stored = true;
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    } finally {
+      if (!stored) {
+        deleteBlobstoreFiles(newBlobstorePaths.values());
+      }
+    }
+    // As in uploadRawFile, replaced blobstore files are released outside of the transaction.
+    releaseBlobs(unusedBlobs);
+    return modTime.t;
+  }
+
   @Override
   public void addFilesToUser(final String userId, final String... fileNames) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("addFilesToUser") {
         @Override
         public void run(Objectify datastore) {
           Key<UserData> userKey = userKey(userId);
@@ -573,7 +1025,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public List<String> getUserFiles(final String userId) {
     final List<String> fileList = new ArrayList<String>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("getUserFiles") {
         @Override
         public void run(Objectify datastore) {
           Key<UserData> userKey = userKey(userId);
@@ -592,7 +1044,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public void uploadUserFile(final String userId, final String fileName,
       final String content, final String encoding) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("uploadUserFile") {
         @Override
         public void run(Objectify datastore) {
           byte[] bytes;
@@ -615,7 +1067,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public void uploadRawUserFile(final String userId, final String fileName,
       final byte[] content) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("uploadRawUserFile") {
         @Override
         public void run(Objectify datastore) {
           addUserFileContents(datastore, userId, fileName, content);
@@ -642,7 +1094,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       final String encoding) {
     final Result<String> result = new Result<String>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("downloadUserFile") {
         @Override
         public void run(Objectify datastore) {
           try {
@@ -663,7 +1115,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public byte[] downloadRawUserFile(final String userId, final String fileName) {
     final Result<byte[]> result = new Result<byte[]>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("downloadRawUserFile") {
         @Override
         public void run(Objectify datastore) {
           UserFileData ufd = datastore.find(userFileKey(userKey(userId), fileName));
@@ -684,7 +1136,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void deleteUserFile(final String userId, final String fileName) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("deleteUserFile") {
         @Override
         public void run(Objectify datastore) {
           Key<UserFileData> ufdKey = userFileKey(userKey(userId), fileName);
@@ -707,13 +1159,13 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void addSourceFilesToProject(final String userId, final long projectId,
       final boolean changeModDate, final String... fileNames) {
-    if (!getProjects(userId).contains(projectId)) {
+    if (!isUserProject(userId, projectId)) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
     }
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("addSourceFilesToProject") {
         @Override
         public void run(Objectify datastore) {
           addFilesToProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
@@ -728,13 +1180,13 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void addOutputFilesToProject(final String userId, final long projectId,
       final String... fileNames) {
-    if (!getProjects(userId).contains(projectId)) {
+    if (!isUserProject(userId, projectId)) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
     }
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("addOutputFilesToProject") {
         @Override
         public void run(Objectify datastore) {
           addFilesToProject(datastore, projectId, FileData.RoleEnum.TARGET, false, fileNames);
@@ -782,44 +1234,56 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void removeSourceFilesFromProject(final String userId, final long projectId,
       final boolean changeModDate, final String... fileNames) {
+    final UnusedBlobs unusedBlobs = new UnusedBlobs();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("removeSourceFilesFromProject") {
         @Override
         public void run(Objectify datastore) {
-          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
+          unusedBlobs.clear();
+          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate,
+              unusedBlobs, fileNames);
         }
       });
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(projectId, fileNames[0]), e);
     }
+    releaseBlobs(unusedBlobs);
   }
 
   @Override
   public void removeOutputFilesFromProject(final String userId, final long projectId,
       final String... fileNames) {
+    final UnusedBlobs unusedBlobs = new UnusedBlobs();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("removeOutputFilesFromProject") {
         @Override
         public void run(Objectify datastore) {
-          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.TARGET, false, fileNames);
+          unusedBlobs.clear();
+          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.TARGET, false, unusedBlobs,
+              fileNames);
         }
       });
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(projectId, fileNames[0]), e);
     }
+    releaseBlobs(unusedBlobs);
   }
 
   private void removeFilesFromProject(Objectify datastore, long projectId,
-      FileData.RoleEnum role, boolean changeModDate, String... fileNames) {
+      FileData.RoleEnum role, boolean changeModDate, UnusedBlobs unusedBlobs,
+      String... fileNames) {
     Key<ProjectData> projectKey = projectKey(projectId);
     List<Key<FileData>> filesToRemove = new ArrayList<Key<FileData>>();
+    List<Key<FileChunkData>> chunksToRemove = new ArrayList<Key<FileChunkData>>();
     for (String fileName : fileNames) {
       FileData fd = datastore.find(projectFileKey(projectKey, fileName));
       if (fd != null) {
         if (fd.role.equals(role)) {
           filesToRemove.add(projectFileKey(projectKey, fileName));
+          chunksToRemove.addAll(fileChunkKeys(projectFileKey(projectKey, fileName), fd));
+          unusedBlobs.add(fd);
         } else {
           throw CrashReport.createAndLogError(LOG, null, collectProjectErrorInfo(projectId, fileName),
               new IllegalStateException("File role change is not supported"));
@@ -827,6 +1291,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       }
     }
     datastore.delete(filesToRemove);  // batch delete
+    datastore.delete(chunksToRemove);
     if (changeModDate) {
       updateProjectModDate(datastore, projectId);
     }
@@ -834,14 +1299,14 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public List<String> getProjectSourceFiles(final String userId, final long projectId) {
-    if (!getProjects(userId).contains(projectId)) {
+    if (!isUserProject(userId, projectId)) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
     }
     final Result<List<String>> result = new Result<List<String>>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("getProjectSourceFiles") {
         @Override
         public void run(Objectify datastore) {
           result.t = getProjectFiles(datastore, projectId, FileData.RoleEnum.SOURCE);
@@ -856,14 +1321,14 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public List<String> getProjectOutputFiles(final String userId, final long projectId) {
-   if (!getProjects(userId).contains(projectId)) {
+   if (!isUserProject(userId, projectId)) {
      throw CrashReport.createAndLogError(LOG, null,
          collectUserProjectErrorInfo(userId, projectId),
          new UnauthorizedAccessException(userId, projectId, null));
    }
    final Result<List<String>> result = new Result<List<String>>();
    try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("getProjectOutputFiles") {
         @Override
         public void run(Objectify datastore) {
           result.t = getProjectFiles(datastore, projectId, FileData.RoleEnum.TARGET);
@@ -915,52 +1380,522 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public long uploadRawFile(final long projectId, final String fileName, final String userId,
       final byte[] content) {
+    if (!useBlobstoreForFile(fileName, content.length)) {
+      // Autosaves of a project's forms and blocks arrive together. Committing them in one
+      // transaction saves them from conflicting with each other in the project's entity group.
+      try {
+        return uploadCoalescer.write(projectId, fileName, content);
+      } catch (ObjectifyException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(projectId, fileName), e);
+      }
+    }
+
     final Result<Long> modTime = new Result<Long>();
-    final boolean useBlobstore = useBlobstoreForFile(fileName);
-    final Result<String> oldBlobstorePath = new Result<String>();
+    final UnusedBlobs unusedBlobs = new UnusedBlobs();
+    // The blob is uploaded, or shared with a file with the same content, before the job, since it
+    // isn't in the project's entity group.
+    final BlobRefData blobRef;
     try {
-      runJobWithRetries(new JobRetryHelper() {
-        FileData fd;
-
+      blobRef = acquireBlob(fileName, content);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(projectId, fileName), e);
+    }
+    boolean stored = false;
+    try {
+      runJobWithRetries(new JobRetryHelper("uploadRawFile") {
         @Override
         public void run(Objectify datastore) throws ObjectifyException {
-          fd = datastore.find(projectFileKey(projectKey(projectId), fileName));
+          unusedBlobs.clear();
+          FileData fd = datastore.find(projectFileKey(projectKey(projectId), fileName));
           Preconditions.checkState(fd != null);
-          if (fd.isBlob) {
-            // mark the old blobstore blob for deletion
-           oldBlobstorePath.t = fd.blobstorePath;
+          // mark the old blobstore blob for release
+          unusedBlobs.add(fd);
+          setSharedBlob(fd, blobRef);
+          putEntities(datastore, Collections.singletonList(fd));
+          modTime.t = updateProjectModDate(datastore, projectId);
+        }
+      });
+      stored = true;
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(projectId, fileName), e);
+    } finally {
+      if (!stored) {
+        releaseBlobRef(blobRef.contentHash);
+      }
+    }
+    // It would have been convenient to release the old blobstore file within the run() method
+    // above but that caused an exception where the app engine datastore claimed to be doing
+    // operations on multiple entity groups within the same transaction.  Apparently the blobstore
+    // operations are, at least partially, also datastore operations.
+    releaseBlobs(unusedBlobs);
+    return modTime.t;
+  }
+
+  /*
+   * Writes files of a project that are stored in the datastore, in one transaction. A file that
+   * hasn't been added to the project isn't written, and an IllegalStateException is put in
+   * failures for it. Returns the project's new modification date.
+   */
+  private long uploadDatastoreFiles(final long projectId, final Map<String, byte[]> files,
+      final Map<String, RuntimeException> failures) throws ObjectifyException {
+    final Result<Long> modTime = new Result<Long>();
+    final UnusedBlobs unusedBlobs = new UnusedBlobs();
+    // The contents are encoded once, rather than every time the job is retried.
+    final Map<String, EncodedContent> encodedFiles = new LinkedHashMap<String, EncodedContent>();
+    for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+      encodedFiles.put(entry.getKey(), encodeContent(entry.getKey(), entry.getValue()));
+    }
+    runJobWithRetries(new JobRetryHelper("uploadRawFile") {
+      @Override
+      public void run(Objectify datastore) {
+        failures.clear();
+        unusedBlobs.clear();
+        Key<ProjectData> projectKey = projectKey(projectId);
+        List<Key<FileData>> fileKeys = new ArrayList<Key<FileData>>();
+        for (String fileName : files.keySet()) {
+          fileKeys.add(projectFileKey(projectKey, fileName));
+        }
+        Map<Key<FileData>, FileData> existingFiles = datastore.get(fileKeys);
+        List<FileData> updatedFiles = new ArrayList<FileData>();
+        for (Map.Entry<String, EncodedContent> entry : encodedFiles.entrySet()) {
+          FileData fd = existingFiles.get(projectFileKey(projectKey, entry.getKey()));
+          if (fd == null) {
+            // File upload should be preceded by add
+            failures.put(entry.getKey(), new IllegalStateException());
+            continue;
           }
-          if (useBlobstore) {
-            fd.isBlob = true;
-            fd.blobstorePath = uploadToBlobstore(content);
-            // If the content was previously stored in the datastore, clear it out.
-            fd.content = null;
-          } else {
-            fd.content = content;
+          if (fd.isBlob) {
+            // mark the old blobstore blob for release, since the content is now in the datastore
+            unusedBlobs.add(fd);
+            fd.isBlob = false;
+            fd.blobstorePath = null;
+            fd.contentHash = null;
           }
-          datastore.put(fd);
+          fd.content = entry.getValue().bytes;
+          fd.codec = entry.getValue().codec;
+          updatedFiles.add(fd);
+        }
+        if (!updatedFiles.isEmpty()) {
+          putEntities(datastore, updatedFiles); // batch put
           modTime.t = updateProjectModDate(datastore, projectId);
         }
+      }
+    });
+    // See uploadRawFile for why the old blobs are released outside of the job.
+    releaseBlobs(unusedBlobs);
+    return (modTime.t == null) ? 0 : modTime.t;
+  }
+
+  @Override
+  public DeltaUploadResult uploadFileDelta(final String userId, final long projectId,
+      final String fileName, final TextDelta delta, final String encoding) {
+    if (!isUserProject(userId, projectId)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+    final Result<DeltaUploadResult> result = new Result<DeltaUploadResult>();
+    // The file as it was read, and its new content, if the new content is stored in Blobstore
+    final Result<FileData> readFile = new Result<FileData>();
+    final Result<byte[]> blobContent = new Result<byte[]>();
+    final UnusedBlobs unusedBlobs = new UnusedBlobs();
+    try {
+      runJobWithRetries(new JobRetryHelper("uploadFileDelta") {
+        @Override
+        public void run(Objectify datastore) throws ObjectifyException {
+          readFile.t = null;
+          blobContent.t = null;
+          unusedBlobs.clear();
+          // The file is read in the transaction that writes it, so that another save of the file
+          // that commits first makes this one retry, and then find the delta stale.
+          FileData fd = datastore.find(projectFileKey(projectKey(projectId), fileName));
+          Preconditions.checkState(fd != null);
+          String newContent;
+          byte[] content;
+          try {
+            String oldContent = new String(readContent(fd), encoding);
+            newContent = delta.apply(oldContent);
+            if (newContent == null) {
+              result.t = DeltaUploadResult.stale();
+              return;
+            }
+            if (newContent.equals(oldContent)) {
+              // Nothing changed, so there's nothing to write.
+              ProjectData pd = datastore.find(projectKey(projectId));
+              result.t = new DeltaUploadResult((pd == null) ? 0 : pd.dateModified,
+                  newContent.length());
+              return;
+            }
+            content = newContent.getBytes(encoding);
+          } catch (IOException e) {
+            throw new ObjectifyException(e);
+          }
+          result.t = new DeltaUploadResult(0, newContent.length());
+          if (useBlobstoreForFile(fileName, content.length)) {
+            // The blob can't be uploaded in this job, since it isn't in the project's entity
+            // group, so the file is written by another one.
+            readFile.t = fd;
+            blobContent.t = content;
+            return;
+          }
+          EncodedContent encoded = encodeContent(fileName, content);
+          if (fd.isBlob) {
+            // mark the old blobstore blob for release, since the content is now in the datastore
+            unusedBlobs.add(fd);
+            fd.isBlob = false;
+            fd.blobstorePath = null;
+            fd.contentHash = null;
+          }
+          fd.content = encoded.bytes;
+          fd.codec = encoded.codec;
+          putEntities(datastore, Collections.singletonList(fd));
+          result.t = new DeltaUploadResult(updateProjectModDate(datastore, projectId),
+              newContent.length());
+        }
+      });
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(projectId, fileName), e);
+    }
+    // See uploadRawFile for why the old blobs are released outside of the job.
+    releaseBlobs(unusedBlobs);
+    if (blobContent.t != null) {
+      return uploadBlobDelta(projectId, fileName, readFile.t, blobContent.t,
+          result.t.getContentLength());
+    }
+    return result.t;
+  }
 
+  /*
+   * Stores the new content of a file that a delta was applied to in Blobstore, unless the file's
+   * stored content has changed since it was read, in which case the delta is stale.
+   */
+  private DeltaUploadResult uploadBlobDelta(final long projectId, final String fileName,
+      final FileData readFile, byte[] content, int contentLength) {
+    final Result<Long> modTime = new Result<Long>();
+    final UnusedBlobs unusedBlobs = new UnusedBlobs();
+    final BlobRefData blobRef;
+    try {
+      blobRef = acquireBlob(fileName, content);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(projectId, fileName), e);
+    }
+    try {
+      runJobWithRetries(new JobRetryHelper("uploadFileDelta") {
         @Override
-        public void onNonFatalError() throws ObjectifyException {
-          if (fd != null && fd.blobstorePath != null) {
-            oldBlobstorePath.t = fd.blobstorePath;
+        public void run(Objectify datastore) {
+          modTime.t = null;
+          unusedBlobs.clear();
+          FileData fd = datastore.find(projectFileKey(projectKey(projectId), fileName));
+          if (fd == null || !hasSameStoredContent(fd, readFile)) {
+            return;
           }
+          unusedBlobs.add(fd);
+          setSharedBlob(fd, blobRef);
+          putEntities(datastore, Collections.singletonList(fd));
+          modTime.t = updateProjectModDate(datastore, projectId);
         }
       });
-      // It would have been convenient to delete the old blobstore file within the run() method
-      // above but that caused an exception where the app engine datastore claimed to be doing
-      // operations on multiple entity groups within the same transaction.  Apparently the blobstore
-      // operations are, at least partially, also datastore operations.
-      if (oldBlobstorePath.t != null) {
-        deleteBlobstoreFile(oldBlobstorePath.t);
-      }
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(projectId, fileName), e);
+    } finally {
+      if (modTime.t == null) {
+        releaseBlobRef(blobRef.contentHash);
+      }
+    }
+    releaseBlobs(unusedBlobs);
+    return (modTime.t == null)
+        ? DeltaUploadResult.stale()
+        : new DeltaUploadResult(modTime.t, contentLength);
+  }
+
+  /*
+   * Returns whether two reads of a file's entity found the same stored content. Content in chunks
+   * gets a new chunk generation whenever it is written.
+   */
+  private static boolean hasSameStoredContent(FileData fd1, FileData fd2) {
+    return fd1.isBlob == fd2.isBlob
+        && Objects.equal(fd1.blobstorePath, fd2.blobstorePath)
+        && fd1.chunkCount == fd2.chunkCount
+        && fd1.chunkGeneration == fd2.chunkGeneration
+        && fd1.codec == fd2.codec
+        && Arrays.equals(fd1.content, fd2.content);
+  }
+
+  /*
+   * Returns the shared blob with the given content, and counts a reference to it. The content is
+   * only uploaded, encoded as suits the named file, if no other file has the same content. The
+   * reference must be released if the file that it is for isn't stored.
+   */
+  private BlobRefData acquireBlob(String fileName, byte[] content) throws ObjectifyException {
+    String contentHash = hashContent(content);
+    BlobRefData blobRef = addBlobRef(contentHash, null, null, 0, 0);
+    if (blobRef == null) {
+      EncodedContent encoded = encodeContent(fileName, content);
+      String blobstorePath = uploadToBlobstore(encoded.bytes);
+      blobRef = addBlobRef(contentHash, blobstorePath, encoded.codec, content.length,
+          encoded.bytes.length);
+      if (!blobRef.blobstorePath.equals(blobstorePath)) {
+        // The same content was uploaded concurrently for another file, and that blob is shared.
+        deleteBlobstoreFile(blobstorePath);
+      }
+    }
+    return blobRef;
+  }
+
+  /*
+   * Counts a reference to the shared blob with the given content hash and returns it. If there
+   * isn't one, it is created for the given Blobstore path, codec and sizes, unless the path is
+   * null, in which case null is returned.
+   */
+  @Nullable
+  private BlobRefData addBlobRef(final String contentHash, @Nullable final String blobstorePath,
+      @Nullable final ContentCodec codec, final long size, final long storedSize)
+      throws ObjectifyException {
+    final Result<BlobRefData> blobRef = new Result<BlobRefData>();
+    runJobWithRetries(new JobRetryHelper("addBlobRef") {
+      @Override
+      public void run(Objectify datastore) {
+        BlobRefData ref = datastore.find(blobRefKey(contentHash));
+        if (ref == null) {
+          if (blobstorePath == null) {
+            blobRef.t = null;
+            return;
+          }
+          ref = new BlobRefData();
+          ref.contentHash = contentHash;
+          ref.blobstorePath = blobstorePath;
+          ref.codec = codec;
+          ref.size = size;
+          ref.storedSize = storedSize;
+        }
+        ref.refCount++;
+        datastore.put(ref);
+        blobRef.t = ref;
+      }
+    });
+    return blobRef.t;
+  }
+
+  /*
+   * Releases the blobs of files that weren't stored, after their blobs were acquired.
+   */
+  private void releaseBlobs(List<FileData> files) {
+    UnusedBlobs unusedBlobs = new UnusedBlobs();
+    for (FileData fd : files) {
+      unusedBlobs.add(fd);
+    }
+    releaseBlobs(unusedBlobs);
+  }
+
+  /*
+   * Deletes the blobs that belonged only to files that were replaced or deleted, and releases the
+   * references of those files to shared blobs.
+   */
+  private void releaseBlobs(UnusedBlobs unusedBlobs) {
+    deleteBlobstoreFiles(unusedBlobs.blobstorePaths);
+    for (String contentHash : unusedBlobs.contentHashes) {
+      releaseBlobRef(contentHash);
+    }
+  }
+
+  /*
+   * Releases a reference to the shared blob with the given content hash, and deletes the blob if
+   * no other file references it.
+   */
+  private void releaseBlobRef(final String contentHash) {
+    final Result<String> unreferencedBlobstorePath = new Result<String>();
+    try {
+      runJobWithRetries(new JobRetryHelper("releaseBlobRef") {
+        @Override
+        public void run(Objectify datastore) {
+          unreferencedBlobstorePath.t = null;
+          BlobRefData ref = datastore.find(blobRefKey(contentHash));
+          if (ref == null) {
+            return;
+          }
+          ref.refCount--;
+          if (ref.refCount > 0) {
+            datastore.put(ref);
+          } else {
+            datastore.delete(ref);
+            unreferencedBlobstorePath.t = ref.blobstorePath;
+          }
+        }
+      });
+    } catch (ObjectifyException e) {
+      // The files that referenced the blob are already gone, so this only leaks the blob.
+      LOG.log(Level.WARNING, "Couldn't release shared blob " + contentHash, e);
+      return;
+    }
+    if (unreferencedBlobstorePath.t != null) {
+      deleteBlobstoreFile(unreferencedBlobstorePath.t);
+    }
+  }
+
+  private static void setSharedBlob(FileData fd, BlobRefData blobRef) {
+    fd.isBlob = true;
+    fd.blobstorePath = blobRef.blobstorePath;
+    fd.contentHash = blobRef.contentHash;
+    fd.codec = blobRef.codec;
+    // If the content was previously stored in the datastore, clear it out.
+    fd.content = null;
+  }
+
+  /*
+   * Returns the stored form of the content of the named file. The content of a file whose codec
+   * compresses it is stored compressed, unless compressing doesn't make it smaller.
+   */
+  private EncodedContent encodeContent(String fileName, byte[] content) {
+    ContentCodec codec = ContentCodec.forFile(fileName);
+    if (codec != ContentCodec.NONE) {
+      long start = System.nanoTime();
+      byte[] encoded = codec.encode(content);
+      compressionStats.recordCompress(content.length, encoded.length, System.nanoTime() - start);
+      if (encoded.length < content.length) {
+        return new EncodedContent(codec, encoded);
+      }
+    }
+    return new EncodedContent(ContentCodec.NONE, content);
+  }
+
+  /*
+   * Returns the content of a file, read from the datastore or Blobstore and decoded.
+   */
+  private byte[] readContent(FileData fd) throws IOException {
+    byte[] stored = readStoredContent(fd);
+    ContentCodec codec = ContentCodec.of(fd.codec);
+    if (codec == ContentCodec.NONE) {
+      return stored;
+    }
+    long start = System.nanoTime();
+    byte[] content = codec.decode(stored);
+    compressionStats.recordDecompress(System.nanoTime() - start);
+    return content;
+  }
+
+  /*
+   * Returns the stored form of a file's content, from the file's entity, its chunks or Blobstore.
+   * All of the chunks of a file are fetched with one batch get.
+   */
+  private byte[] readStoredContent(FileData fd) throws IOException {
+    if (fd.isBlob) {
+      return getBlobstoreBytes(fd.blobstorePath);
+    } else if (fd.chunkCount > 0) {
+      InputStream in = openStoredInputStream(fd, fd.chunkCount);
+      try {
+        return ByteStreams.toByteArray(in);
+      } finally {
+        in.close();
+      }
+    } else {
+      return fd.content;
     }
-    return modTime.t;
+  }
+
+  /*
+   * Returns a stream of the stored form of a file's content. The chunks of a file in chunks are
+   * fetched the given number at a time, as they are read.
+   */
+  private InputStream openStoredInputStream(FileData fd, int chunksPerFetch) throws IOException {
+    if (fd.isBlob) {
+      return openBlobstoreInputStream(fd.blobstorePath);
+    } else if (fd.chunkCount > 0) {
+      return new FileChunkInputStream(ObjectifyService.begin().async(),
+          fileChunkKeys(projectFileKey(fd.projectKey, fd.fileName), fd), chunksPerFetch);
+    } else {
+      return new ByteArrayInputStream((fd.content == null) ? new byte[0] : fd.content);
+    }
+  }
+
+  /*
+   * Puts the given entities. The content of each file that is in the datastore is split into
+   * chunks, if it is large, which are put with it. The chunks of the content that a file had
+   * before are deleted. The files' content isn't changed, so that a retried job can put them
+   * again; only their chunk counts and generations are.
+   */
+  private void putEntities(Objectify datastore, List<?> entities) {
+    int threshold = chunkThresholdBytes.get();
+    int chunkSize = chunkSizeBytes.get();
+    List<Object> entitiesToPut = new ArrayList<Object>(entities);
+    List<Key<FileChunkData>> unusedChunkKeys = new ArrayList<Key<FileChunkData>>();
+    Map<FileData, byte[]> chunkedContents = new LinkedHashMap<FileData, byte[]>();
+    for (Object entity : entities) {
+      if (!(entity instanceof FileData)) {
+        continue;
+      }
+      FileData fd = (FileData) entity;
+      if (!fd.isBlob && fd.content == null) {
+        // The content, in the entity or in chunks, isn't being replaced.
+        continue;
+      }
+      Key<FileData> fileKey = projectFileKey(fd.projectKey, fd.fileName);
+      unusedChunkKeys.addAll(fileChunkKeys(fileKey, fd));
+      fd.chunkCount = 0;
+      if (!fd.isBlob && fd.content.length >= threshold) {
+        fd.chunkGeneration++;
+        for (int start = 0; start < fd.content.length; start += chunkSize) {
+          FileChunkData chunk = new FileChunkData();
+          chunk.fileKey = fileKey;
+          chunk.id = fileChunkId(fd.chunkGeneration, ++fd.chunkCount);
+          chunk.content =
+              Arrays.copyOfRange(fd.content, start, Math.min(start + chunkSize, fd.content.length));
+          entitiesToPut.add(chunk);
+        }
+        chunkedContents.put(fd, fd.content);
+        fd.content = null;
+      }
+    }
+    try {
+      datastore.delete(unusedChunkKeys);
+      datastore.put(entitiesToPut);
+    } finally {
+      for (Map.Entry<FileData, byte[]> entry : chunkedContents.entrySet()) {
+        entry.getKey().content = entry.getValue();
+      }
+    }
+  }
+
+  /*
+   * Returns the keys of the chunks of a file's content, in order. A file that isn't in chunks
+   * has none.
+   */
+  private static List<Key<FileChunkData>> fileChunkKeys(Key<FileData> fileKey, FileData fd) {
+    List<Key<FileChunkData>> keys = new ArrayList<Key<FileChunkData>>(fd.chunkCount);
+    for (int index = 1; index <= fd.chunkCount; index++) {
+      keys.add(new Key<FileChunkData>(fileKey, FileChunkData.class,
+          fileChunkId(fd.chunkGeneration, index)));
+    }
+    return keys;
+  }
+
+  private static String fileChunkId(long generation, int index) {
+    return generation + "-" + index;
+  }
+
+  /*
+   * Returns the SHA-1 hash of the content, as hex digits.
+   */
+  @VisibleForTesting
+  static String hashContent(byte[] content) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-1.
+      throw new RuntimeException(e);
+    }
+    byte[] hash = digest.digest(content);
+    StringBuilder sb = new StringBuilder(hash.length * 2);
+    for (byte b : hash) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
   }
 
   private void deleteBlobstoreFile(String blobstorePath) {
@@ -971,7 +1906,19 @@ public class ObjectifyStorageIo implements  StorageIo {
     BlobstoreServiceFactory.getBlobstoreService().delete(blobKey);
   }
 
+  private void deleteBlobstoreFiles(Iterable<String> blobstorePaths) {
+    for (String blobstorePath : blobstorePaths) {
+      deleteBlobstoreFile(blobstorePath);
+    }
+  }
+
   private String uploadToBlobstore(byte[] content) throws ObjectifyException {
+    return uploadToBlobstore(new ByteArrayInputStream(content));
+  }
+
+  // Copies the content to a new blobstore file without holding all of it in memory. The content
+  // stream is not closed.
+  private String uploadToBlobstore(InputStream content) throws ObjectifyException {
     // Get a file service
     FileService fileService = FileServiceFactory.getFileService();
 
@@ -984,7 +1931,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       FileWriteChannel blobstoreWriteChannel = fileService.openWriteChannel(blobstoreFile, true);
 
       OutputStream blobstoreOutputStream = Channels.newOutputStream(blobstoreWriteChannel);
-      ByteStreams.copy(ByteStreams.newInputStreamSupplier(content), blobstoreOutputStream);
+      ByteStreams.copy(content, blobstoreOutputStream);
       blobstoreOutputStream.flush();
       blobstoreOutputStream.close();
       blobstoreWriteChannel.closeFinally();
@@ -1004,23 +1951,33 @@ public class ObjectifyStorageIo implements  StorageIo {
            || (fileName.contains("src/") && fileName.endsWith(".blk"));
   }
 
+  /*
+   * Returns whether a file with the given name and content length is stored in Blobstore. Small
+   * files are kept in the datastore, whatever their names.
+   */
+  private boolean useBlobstoreForFile(String fileName, int length) {
+    return useBlobstoreForFile(fileName) && length >= inlineMaxBytes.get();
+  }
+
   @Override
   public long deleteFile(final String userId, final long projectId, final String fileName) {
-    if (!getProjects(userId).contains(projectId)) {
+    if (!isUserProject(userId, projectId)) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
     }
     final Result<Long> modTime = new Result<Long>();
-    final Result<String> oldBlobstorePath = new Result<String>();
+    final UnusedBlobs unusedBlobs = new UnusedBlobs();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("deleteFile") {
         @Override
         public void run(Objectify datastore) {
+          unusedBlobs.clear();
           Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
           FileData fileData = datastore.find(fileKey);
           if (fileData != null) {
-            oldBlobstorePath.t = fileData.blobstorePath;
+            unusedBlobs.add(fileData);
+            datastore.delete(fileChunkKeys(fileKey, fileData));
           }
           datastore.delete(fileKey);
           modTime.t = updateProjectModDate(datastore, projectId);
@@ -1030,9 +1987,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(projectId, fileName), e);
     }
-    if (oldBlobstorePath.t != null) {
-      deleteBlobstoreFile(oldBlobstorePath.t);
-    }
+    releaseBlobs(unusedBlobs);
     return (modTime.t == null) ? 0 : modTime.t;
   }
 
@@ -1052,7 +2007,7 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public byte[] downloadRawFile(final String userId, final long projectId, final String fileName) {
-    if (!getProjects(userId).contains(projectId)) {
+    if (!isUserProject(userId, projectId)) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
@@ -1060,7 +2015,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     final Result<byte[]> result = new Result<byte[]>();
     final Result<FileData> fd = new Result<FileData>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("downloadRawFile") {
         @Override
         public void run(Objectify datastore) {
           Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
@@ -1073,16 +2028,12 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
     FileData fileData = fd.t;
     if (fileData != null) {
-      if (fileData.isBlob) {
-        try {
-          result.t = getBlobstoreBytes(fileData.blobstorePath);
-        } catch (IOException e) {
-          throw CrashReport.createAndLogError(LOG, null,
-                                              collectProjectErrorInfo(projectId, fileName),
-                                              new FileNotFoundException(fileName));
-        }
-      } else {
-        result.t = fileData.content;
+      try {
+        result.t = readContent(fileData);
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+                                            collectProjectErrorInfo(projectId, fileName),
+                                            new FileNotFoundException(fileName));
       }
     } else {
       throw CrashReport.createAndLogError(LOG, null,
@@ -1092,12 +2043,102 @@ public class ObjectifyStorageIo implements  StorageIo {
     return result.t;
   }
 
+  @Override
+  public List<byte[]> downloadRawFiles(final String userId, final long projectId,
+      final List<String> fileNames) {
+    if (!isUserProject(userId, projectId)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+    final List<Key<FileData>> fileKeys = new ArrayList<Key<FileData>>(fileNames.size());
+    for (String fileName : fileNames) {
+      fileKeys.add(projectFileKey(projectKey(projectId), fileName));
+    }
+    final Result<Map<Key<FileData>, FileData>> fds = new Result<Map<Key<FileData>, FileData>>();
+    try {
+      runJobWithRetries(new JobRetryHelper("downloadRawFiles") {
+        @Override
+        public void run(Objectify datastore) {
+          // All of the files are in the project's entity group, so one batch get will do.
+          fds.t = datastore.get(fileKeys);
+        }
+      });
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(projectId, fileNames.toString()), e);
+    }
+    List<byte[]> contents = new ArrayList<byte[]>(fileNames.size());
+    for (int i = 0; i < fileNames.size(); i++) {
+      String fileName = fileNames.get(i);
+      FileData fileData = fds.t.get(fileKeys.get(i));
+      if (fileData == null) {
+        throw CrashReport.createAndLogError(LOG, null,
+                                            collectProjectErrorInfo(projectId, fileName),
+                                            new FileNotFoundException(fileName));
+      }
+      try {
+        contents.add(readContent(fileData));
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+                                            collectProjectErrorInfo(projectId, fileName),
+                                            new FileNotFoundException(fileName));
+      }
+    }
+    return contents;
+  }
+
+  @Override
+  public FileVersion getFileVersion(final String userId, final long projectId,
+      @Nullable final String fileName) {
+    if (!isUserProject(userId, projectId)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+    final Result<FileVersion> version = new Result<FileVersion>();
+    try {
+      runJobWithRetries(new JobRetryHelper("getFileVersion") {
+        @Override
+        public void run(Objectify datastore) {
+          Key<ProjectData> projectKey = projectKey(projectId);
+          ProjectData pd = datastore.find(projectKey);
+          long dateModified = (pd == null) ? 0 : pd.dateModified;
+          // The entity of a file in the datastore holds its content, so only the entities of
+          // files in Blobstore are read. A shared blob's content hash changes only when the
+          // file's content does, while the project's modification date changes with every
+          // file of the project.
+          if (fileName != null && useBlobstoreForFile(fileName)) {
+            FileData fd = datastore.find(projectFileKey(projectKey, fileName));
+            if (fd != null && fd.isBlob && fd.contentHash != null) {
+              version.t = new FileVersion("h" + fd.contentHash, dateModified);
+              return;
+            }
+          }
+          version.t = new FileVersion("d" + dateModified, dateModified);
+        }
+      });
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(projectId, String.valueOf(fileName)), e);
+    }
+    return version.t;
+  }
+
   private byte[] getBlobstoreBytes(String blobstorePath) throws IOException {
+    InputStream blobstoreInputStream = openBlobstoreInputStream(blobstorePath);
+    try {
+      return ByteStreams.toByteArray(blobstoreInputStream);
+    } finally {
+      blobstoreInputStream.close();
+    }
+  }
+
+  private InputStream openBlobstoreInputStream(String blobstorePath) throws IOException {
     AppEngineFile blobstoreFile = new AppEngineFile(blobstorePath);
     FileReadChannel blobstoreReadChannel =
         FileServiceFactory.getFileService().openReadChannel(blobstoreFile, false);
-    InputStream blobstoreInputStream = Channels.newInputStream(blobstoreReadChannel);
-    return ByteStreams.toByteArray(blobstoreInputStream);
+    return Channels.newInputStream(blobstoreReadChannel);
   }
 
   /**
@@ -1114,61 +2155,63 @@ public class ObjectifyStorageIo implements  StorageIo {
                                                  final boolean includeProjectHistory,
                                                  final boolean includeAndroidKeystore,
                                                  @Nullable String zipName) throws IOException {
-    final Result<Integer> fileCount = new Result<Integer>();
-    fileCount.t = 0;
-    final Result<String> projectName = new Result<String>();
-    projectName.t = "";
+    final ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    final Result<String> fileName = new Result<String>();
+    Result<String> projectName = new Result<String>();
+    int fileCount = exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, zipName, new ExportDestination() {
+          @Override
+          public OutputStream open(String name) {
+            fileName.t = name;
+            return zipFile;
+          }
+        }, projectName);
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(fileName.t, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName.t);
+    return projectSourceZip;
+  }
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    final ZipOutputStream out = new ZipOutputStream(zipFile);
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId, boolean includeProjectHistory,
+                                    boolean includeAndroidKeystore, @Nullable String zipName,
+                                    ExportDestination destination) throws IOException {
+    return exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, zipName, destination, null);
+  }
 
+  /*
+   * Streams a project's source files as a zip to the destination, and puts the project's name,
+   * which is read along with its files, in projectName if that isn't null.
+   */
+  private int exportProjectSourceZip(final String userId, final long projectId,
+                                     final boolean includeProjectHistory,
+                                     final boolean includeAndroidKeystore,
+                                     @Nullable String zipName,
+                                     ExportDestination destination,
+                                     @Nullable Result<String> projectName) throws IOException {
+    // Only the file entities are read in the transaction. The blobstore contents are copied to the
+    // destination afterwards, one file at a time, so that a retried job can't write anything twice
+    // and the zip is never held in memory.
+    final List<FileData> sourceFiles = new ArrayList<FileData>();
+    final Result<ProjectData> projectData = new Result<ProjectData>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("exportProjectSourceZip") {
         @Override
         public void run(Objectify datastore) {
-          try {
-            Key<ProjectData> projectKey = projectKey(projectId);
-            List<String> fileList = new ArrayList<String>();
-            for (FileData fd : datastore.query(FileData.class).ancestor(projectKey)) {
-              if (fd.role.equals(FileData.RoleEnum.SOURCE)) {
-                String fileName = fd.fileName;
-
-                if (fileName.equals(FileExporter.REMIX_INFORMATION_FILE_PATH)) {
-                  // Skip legacy remix history files that were previous stored with the project
-                  continue;
-                }
-                byte[] data;
-                if (fd.isBlob) {
-                  data = getBlobstoreBytes(fd.blobstorePath);
-                } else {
-                  data = fd.content;
-                }
-                out.putNextEntry(new ZipEntry(fileName));
-                out.write(data, 0, data.length);
-                out.closeEntry();
-                fileCount.t++;
-              }
-            }
-
-            if (fileCount.t > 0) {
-              ProjectData pd = datastore.find(projectKey(projectId));
-              if (includeProjectHistory) {
-                if (!Strings.isNullOrEmpty(pd.history)) {
-                  byte[] data = pd.history.getBytes(StorageUtil.DEFAULT_CHARSET);
-                  out.putNextEntry(new ZipEntry(FileExporter.REMIX_INFORMATION_FILE_PATH));
-                  out.write(data, 0, data.length);
-                  out.closeEntry();
-                  fileCount.t++;
-                }
+          sourceFiles.clear();
+          Key<ProjectData> projectKey = projectKey(projectId);
+          for (FileData fd : datastore.query(FileData.class).ancestor(projectKey)) {
+            if (fd.role.equals(FileData.RoleEnum.SOURCE)) {
+              if (fd.fileName.equals(FileExporter.REMIX_INFORMATION_FILE_PATH)) {
+                // Skip legacy remix history files that were previous stored with the project
+                continue;
               }
-              projectName.t = pd.name;
+              sourceFiles.add(fd);
             }
-
-          } catch (IOException e) {
-            System.err.println("Unexpected io exception for userid " + userId +
-                               " projectId " + projectId);
-            throw CrashReport.createAndLogError(LOG, null,
-                                                collectProjectErrorInfo(projectId, null), e);
+          }
+          if (!sourceFiles.isEmpty()) {
+            projectData.t = datastore.find(projectKey);
           }
         }
       });
@@ -1186,55 +2229,186 @@ public class ObjectifyStorageIo implements  StorageIo {
           " projectId " + projectId);
     }
 
-    if (fileCount.t == 0) {
-      // can't close out since will get a ZipException due to the lack of files
+    if (sourceFiles.isEmpty() || projectData.t == null) {
+      // Nothing has been written to the destination yet, so the caller can still report this.
       throw new IllegalArgumentException("No files to download");
     }
 
+    final Result<UserFileData> keystore = new Result<UserFileData>();
     if (includeAndroidKeystore) {
       try {
-        runJobWithRetries(new JobRetryHelper() {
-            @Override
-            public void run(Objectify datastore) {
-              try {
-                Key<UserData> userKey = userKey(userId);
-                for (UserFileData ufd : datastore.query(UserFileData.class).ancestor(userKey)) {
-                  if (ufd.fileName.equals(ANDROID_KEYSTORE_FILENAME) && (ufd.content.length > 0)) {
-                    out.putNextEntry(new ZipEntry(ANDROID_KEYSTORE_FILENAME));
-                    out.write(ufd.content, 0, ufd.content.length);
-                    out.closeEntry();
-                    fileCount.t++;
-                  }
-                }
-              } catch (IOException e) {
-                System.err.println("Unexpected io exception for userid " + userId +
-                                   " projectId " + projectId);
-                throw CrashReport.createAndLogError(LOG, null,
-                                                    collectProjectErrorInfo(projectId, null), e);
-              }
-            }
-          });
+        runJobWithRetries(new JobRetryHelper("exportProjectSourceZip") {
+          @Override
+          public void run(Objectify datastore) {
+            keystore.t = datastore.find(userFileKey(userKey(userId), ANDROID_KEYSTORE_FILENAME));
+          }
+        });
       } catch (ObjectifyException e) {
         throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
       }
     }
 
-    out.close();
-
+    ProjectData pd = projectData.t;
+    if (projectName != null) {
+      projectName.t = pd.name;
+    }
     if (zipName == null) {
-      zipName = projectName.t + ".zip";
+      zipName = pd.name + ".zip";
     }
-    ProjectSourceZip projectSourceZip =
-        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount.t);
-    projectSourceZip.setMetadata(projectName.t);
-    return projectSourceZip;
+    ZipOutputStream out = new ZipOutputStream(destination.open(zipName));
+    int fileCount = 0;
+    for (FileData fd : sourceFiles) {
+      out.putNextEntry(new ZipEntry(fd.fileName));
+      // Compressed content is decompressed as it is copied into the zip, and the chunks of a file
+      // in chunks are fetched as they are needed.
+      InputStream storedInputStream = openStoredInputStream(fd, CHUNKS_PER_FETCH);
+      try {
+        ByteStreams.copy(ContentCodec.of(fd.codec).decode(storedInputStream), out);
+      } finally {
+        storedInputStream.close();
+      }
+      out.closeEntry();
+      fileCount++;
+    }
+
+    if (includeProjectHistory && !Strings.isNullOrEmpty(pd.history)) {
+      byte[] data = pd.history.getBytes(StorageUtil.DEFAULT_CHARSET);
+      out.putNextEntry(new ZipEntry(FileExporter.REMIX_INFORMATION_FILE_PATH));
+      out.write(data, 0, data.length);
+      out.closeEntry();
+      fileCount++;
+    }
+
+    UserFileData ufd = keystore.t;
+    if (ufd != null && ufd.content != null && ufd.content.length > 0) {
+      out.putNextEntry(new ZipEntry(ANDROID_KEYSTORE_FILENAME));
+      out.write(ufd.content, 0, ufd.content.length);
+      out.closeEntry();
+      fileCount++;
+    }
+
+    // Don't close out, since that would close the destination's stream.
+    out.finish();
+    return fileCount;
+  }
+
+  @Override
+  public SourceCompressionReport compressStoredSources(@Nullable String cursor, int batchSize) {
+    long start = System.currentTimeMillis();
+    SourceCompressionReport report = new SourceCompressionReport();
+    // The batch spans projects, so it is read outside of a transaction, and each file is
+    // compressed in a job in its project's entity group.
+    Query<FileData> query = ObjectifyService.begin().query(FileData.class).limit(batchSize);
+    if (cursor != null) {
+      query.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    QueryResultIterator<FileData> iterator = query.iterator();
+    int count = 0;
+    while (iterator.hasNext()) {
+      FileData fd = iterator.next();
+      count++;
+      report.recordScanned();
+      if (fd.role == FileData.RoleEnum.SOURCE && ContentCodec.of(fd.codec) == ContentCodec.NONE
+          && ContentCodec.forFile(fd.fileName) != ContentCodec.NONE) {
+        try {
+          compressStoredSource(fd, report);
+        } catch (ObjectifyException e) {
+          LOG.log(Level.WARNING, "Couldn't compress " + fd.projectKey + " " + fd.fileName, e);
+          report.recordFailed();
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Couldn't compress " + fd.projectKey + " " + fd.fileName, e);
+          report.recordFailed();
+        }
+      }
+    }
+    report.setNextCursor((count < batchSize) ? null : iterator.getCursor().toWebSafeString());
+    report.setMillis(System.currentTimeMillis() - start);
+    LOG.info(compressionStats.summarize());
+    return report;
+  }
+
+  /*
+   * Compresses the stored content of a source file that was stored uncompressed, unless the file
+   * has changed since it was read. A file in the datastore is compressed in place. A file with a
+   * blob of its own gets a compressed blob, which is shared with any other file with the same
+   * content, and its old blob is deleted.
+   */
+  private void compressStoredSource(FileData fd, SourceCompressionReport report)
+      throws ObjectifyException, IOException {
+    final Key<FileData> fileKey = projectFileKey(fd.projectKey, fd.fileName);
+    final Result<Boolean> compressed = new Result<Boolean>();
+    if (!fd.isBlob) {
+      if (fd.content == null) {
+        return;
+      }
+      final byte[] oldContent = fd.content;
+      final EncodedContent encoded = encodeContent(fd.fileName, oldContent);
+      if (encoded.codec == ContentCodec.NONE) {
+        return;
+      }
+      runJobWithRetries(new JobRetryHelper("compressStoredSources") {
+        @Override
+        public void run(Objectify datastore) {
+          compressed.t = false;
+          FileData current = datastore.find(fileKey);
+          if (current == null || current.isBlob
+              || ContentCodec.of(current.codec) != ContentCodec.NONE
+              || !Arrays.equals(current.content, oldContent)) {
+            return;
+          }
+          current.content = encoded.bytes;
+          current.codec = encoded.codec;
+          datastore.put(current);
+          compressed.t = true;
+        }
+      });
+      if (compressed.t) {
+        report.recordCompressed(oldContent.length, encoded.bytes.length);
+      }
+
+    } else if (fd.contentHash == null) {
+      final String oldBlobstorePath = fd.blobstorePath;
+      byte[] content = getBlobstoreBytes(oldBlobstorePath);
+      final BlobRefData blobRef = acquireBlob(fd.fileName, content);
+      compressed.t = false;
+      try {
+        runJobWithRetries(new JobRetryHelper("compressStoredSources") {
+          @Override
+          public void run(Objectify datastore) {
+            compressed.t = false;
+            FileData current = datastore.find(fileKey);
+            if (current == null || !current.isBlob
+                || !oldBlobstorePath.equals(current.blobstorePath)) {
+              return;
+            }
+            setSharedBlob(current, blobRef);
+            datastore.put(current);
+            compressed.t = true;
+          }
+        });
+      } finally {
+        if (!compressed.t) {
+          releaseBlobRef(blobRef.contentHash);
+        }
+      }
+      if (compressed.t) {
+        deleteBlobstoreFile(oldBlobstorePath);
+        // The blob may be shared with a file that was stored uncompressed before contents were
+        // compressed.
+        if (ContentCodec.of(blobRef.codec) != ContentCodec.NONE) {
+          report.recordCompressed(content.length, blobRef.storedSize);
+        }
+      }
+    }
+    // Blobs that are already shared are left uncompressed, since every file that shares one
+    // records its path and codec.
   }
 
   @Override
   public Motd getCurrentMotd() {
     final Result<Motd> motd = new Result<Motd>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("getCurrentMotd") {
         @Override
         public void run(Objectify datastore) {
           MotdData motdData = datastore.find(MotdData.class, MOTD_ID);
@@ -1253,7 +2427,7 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   private void initMotd() {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper("initMotd") {
         @Override
         public void run(Objectify datastore) {
           MotdData motdData = datastore.find(MotdData.class, MOTD_ID);
@@ -1293,10 +2467,22 @@ public class ObjectifyStorageIo implements  StorageIo {
     return new Key<FileData>(projectKey, FileData.class, fileName);
   }
 
+  private Key<BuildStatusData> buildStatusKey(Key<ProjectData> projectKey, String outputDir) {
+    return new Key<BuildStatusData>(projectKey, BuildStatusData.class, outputDir);
+  }
+
+  private Key<BlobRefData> blobRefKey(String contentHash) {
+    return new Key<BlobRefData>(BlobRefData.class, contentHash);
+  }
+
   @VisibleForTesting
   void runJobWithRetries(JobRetryHelper job) throws ObjectifyException {
     int tries = 0;
     while (tries <= MAX_JOB_RETRIES) {
+      if (tries > 0) {
+        jobRetryStats.recordRetry(job.getOperation());
+        sleep(getBackoffMillis(tries));
+      }
       Objectify datastore = ObjectifyService.beginTransaction();
       try {
         job.run(datastore);
@@ -1315,10 +2501,48 @@ public class ObjectifyStorageIo implements  StorageIo {
       tries++;
     }
     if (tries > MAX_JOB_RETRIES) {
+      jobRetryStats.recordExhausted(job.getOperation());
+      LOG.warning("Couldn't commit " + job.getOperation() + " job after max retries. " +
+          "Retries so far: " + jobRetryStats.getRetryCounts() +
+          ", exhausted so far: " + jobRetryStats.getExhaustedCounts());
       throw new ObjectifyException("Couldn't commit job after max retries.");
     }
   }
 
+  /*
+   * Returns how long to wait before the given retry of a job, which is a random time up to a limit
+   * that starts at the initial backoff and doubles for each retry, up to the maximum backoff.
+   */
+  @VisibleForTesting
+  long getBackoffMillis(int retry) {
+    long limit = Math.min(jobRetryMaxBackoffMillis.get(),
+        (long) jobRetryInitialBackoffMillis.get() << Math.min(retry - 1, 30));
+    return (long) (backoffRandom.nextDouble() * (limit + 1));
+  }
+
+  @VisibleForTesting
+  void sleep(long millis) throws ObjectifyException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ObjectifyException(e);
+    }
+  }
+
+  JobRetryStats getJobRetryStats() {
+    return jobRetryStats;
+  }
+
+  CompressionStats getCompressionStats() {
+    return compressionStats;
+  }
+
+  @VisibleForTesting
+  ProjectWriteCoalescer getUploadCoalescer() {
+    return uploadCoalescer;
+  }
+
   private static String collectUserErrorInfo(final String userId) {
     return collectUserErrorInfo(userId, CrashReport.NOT_AVAILABLE);
   }
@@ -1362,4 +2586,14 @@ public class ObjectifyStorageIo implements  StorageIo {
   ProjectData getProject(long projectId) {
     return ObjectifyService.begin().find(projectKey(projectId));
   }
+
+  @VisibleForTesting
+  FileData getFileData(long projectId, String fileName) {
+    return ObjectifyService.begin().find(projectFileKey(projectKey(projectId), fileName));
+  }
+
+  @VisibleForTesting
+  BlobRefData getBlobRef(String contentHash) {
+    return ObjectifyService.begin().find(blobRefKey(contentHash));
+  }
 }
@@ -0,0 +1,130 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.flags.Flag;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caches the ids of each user's projects, so that checking that a project
+ * belongs to a user doesn't need a query over all of the user's
+ * UserProjectData on every call.
+ *
+ * <p>Entries expire after a short time, because another App Engine instance
+ * may have created or deleted one of the user's projects. A project that is
+ * missing from a cached set must not be treated as unauthorized on the
+ * strength of the cache alone; callers reload the set from the datastore
+ * first. A stale entry can therefore only let a user reach a project that
+ * they deleted on another instance within the expiration time.
+ *
+ */
+class ProjectMembershipCache {
+  // How long the ids of a user's projects are cached, or 0 to always query them.
+  private static final Flag<Integer> projectMembershipCacheSecs =
+      Flag.createFlag("project.membership.cache.secs", 10);
+
+  private static final int MAX_USERS = 10000;
+
+  private static class Entry {
+    final Set<Long> projectIds;
+    final long expirationMillis;
+
+    Entry(Set<Long> projectIds, long expirationMillis) {
+      this.projectIds = projectIds;
+      this.expirationMillis = expirationMillis;
+    }
+  }
+
+  private final long ttlMillis;
+
+  // Maps user ids to entries, from least recently used to most recently used. Guarded by this.
+  private final LinkedHashMap<String, Entry> entries;
+
+  private final AtomicInteger hitCount = new AtomicInteger(0);
+  private final AtomicInteger missCount = new AtomicInteger(0);
+
+  /**
+   * Creates a ProjectMembershipCache.
+   *
+   * @param maxUsers the maximum number of users whose projects are cached
+   * @param ttlMillis how long an entry is used before it is reloaded, or 0 to
+   *        disable the cache
+   */
+  ProjectMembershipCache(final int maxUsers, long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+    entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxUsers;
+      }
+    };
+  }
+
+  /**
+   * Creates a ProjectMembershipCache configured by the project.membership.cache.secs flag.
+   */
+  static ProjectMembershipCache create() {
+    return new ProjectMembershipCache(MAX_USERS, projectMembershipCacheSecs.get() * 1000L);
+  }
+
+  /**
+   * Returns the cached project ids of the given user, or null if there is
+   * no unexpired entry for the user.
+   */
+  Set<Long> get(String userId) {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(userId);
+      if (entry != null && entry.expirationMillis <= currentTimeMillis()) {
+        entries.remove(userId);
+        entry = null;
+      }
+    }
+    if (entry == null) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    hitCount.incrementAndGet();
+    return entry.projectIds;
+  }
+
+  /**
+   * Caches the project ids of the given user, as just read from the datastore.
+   */
+  void put(String userId, Collection<Long> projectIds) {
+    if (ttlMillis <= 0) {
+      return;
+    }
+    Entry entry = new Entry(ImmutableSet.copyOf(projectIds), currentTimeMillis() + ttlMillis);
+    synchronized (this) {
+      entries.put(userId, entry);
+    }
+  }
+
+  /**
+   * Removes the entry for the given user. This must be called whenever one
+   * of the user's projects is created or deleted.
+   */
+  synchronized void invalidate(String userId) {
+    entries.remove(userId);
+  }
+
+  // Overridden in tests.
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  int getHitCount() {
+    return hitCount.get();
+  }
+
+  int getMissCount() {
+    return missCount.get();
+  }
+}
@@ -0,0 +1,191 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Combines concurrent writes of files of the same project into one
+ * transaction.
+ *
+ * <p>All of the files of a project are in the project's entity group, so
+ * concurrent transactions that write them, such as the autosaves of a
+ * project's forms and blocks, conflict with each other and have to be
+ * retried. Instead, at most one transaction per project is committed at a
+ * time. The writes that arrive while it is being committed, or within a short
+ * window after the first of them, wait and are then committed together in the
+ * next transaction. If the same file is written more than once, the last
+ * write wins.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ */
+final class ProjectWriteCoalescer {
+  /**
+   * Writes files of a project.
+   */
+  interface BatchWriter {
+    /**
+     * Writes files of a project in one transaction.
+     *
+     * @param projectId  the project
+     * @param files  the contents of the files, by file name
+     * @param failures  where to put an exception for each file that couldn't
+     *     be written, without failing the writes of the other files
+     * @return the project's new modification date
+     * @throws ObjectifyException if none of the files could be written
+     */
+    long write(long projectId, Map<String, byte[]> files, Map<String, RuntimeException> failures)
+        throws ObjectifyException;
+  }
+
+  /*
+   * The writes of one project that are committed together.
+   */
+  private static class Batch {
+    // Guarded by the ProjectWriteCoalescer.
+    final Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+    final CountDownLatch committed = new CountDownLatch(1);
+
+    // Set before committed is counted down.
+    long modDate;
+    Map<String, RuntimeException> failures = Collections.emptyMap();
+    // What the writer threw, which is thrown to every writer of the batch
+    Throwable exception;
+  }
+
+  private final BatchWriter writer;
+  private final long windowMillis;
+
+  // The batch that is accepting writes, for each project. Guarded by this.
+  private final Map<Long, Batch> openBatches = Maps.newHashMap();
+  // The projects that have a batch being committed. Guarded by this.
+  private final Set<Long> committingProjects = Sets.newHashSet();
+
+  private final AtomicLong batchCount = new AtomicLong();
+  private final AtomicLong writeCount = new AtomicLong();
+
+  /**
+   * Creates a ProjectWriteCoalescer.
+   *
+   * @param writer  writes the batches
+   * @param windowMillis  how long the first write of a batch waits for other
+   *     writes before the batch is committed, in addition to waiting for the
+   *     project's previous batch to be committed
+   */
+  ProjectWriteCoalescer(BatchWriter writer, long windowMillis) {
+    this.writer = writer;
+    this.windowMillis = windowMillis;
+  }
+
+  /**
+   * Writes a file of a project, possibly in the same transaction as other
+   * writes to the project, and returns when it has been committed.
+   *
+   * @return the project's new modification date
+   */
+  long write(long projectId, String fileName, byte[] content) throws ObjectifyException {
+    Batch batch;
+    boolean first;
+    synchronized (this) {
+      batch = openBatches.get(projectId);
+      first = (batch == null);
+      if (first) {
+        batch = new Batch();
+        openBatches.put(projectId, batch);
+      }
+      batch.files.put(fileName, content);
+      writeCount.incrementAndGet();
+    }
+
+    if (first) {
+      commit(projectId, batch);
+    } else {
+      Uninterruptibles.awaitUninterruptibly(batch.committed);
+    }
+
+    if (batch.exception != null) {
+      Throwables.propagateIfInstanceOf(batch.exception, ObjectifyException.class);
+      throw Throwables.propagate(batch.exception);
+    }
+    RuntimeException failure = batch.failures.get(fileName);
+    if (failure != null) {
+      throw failure;
+    }
+    return batch.modDate;
+  }
+
+  /*
+   * Waits for the project's previous batch to be committed and for the window to pass, and then
+   * commits the given batch. Called by the first writer of the batch.
+   */
+  private void commit(long projectId, Batch batch) {
+    boolean interrupted = false;
+    synchronized (this) {
+      while (committingProjects.contains(projectId)) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          // The other writers of the batch are waiting for it, so it must still be committed.
+          interrupted = true;
+        }
+      }
+      committingProjects.add(projectId);
+    }
+    try {
+      if (windowMillis > 0) {
+        Uninterruptibles.sleepUninterruptibly(windowMillis, TimeUnit.MILLISECONDS);
+      }
+      Map<String, byte[]> files;
+      synchronized (this) {
+        openBatches.remove(projectId);
+        files = new LinkedHashMap<String, byte[]>(batch.files);
+      }
+      batchCount.incrementAndGet();
+      Map<String, RuntimeException> failures = Maps.newHashMap();
+      try {
+        batch.modDate = writer.write(projectId, files, failures);
+        batch.failures = failures;
+      } catch (Throwable e) {
+        // Even an Error must reach the other writers, who would otherwise take the batch's
+        // unset modification date for a successful write.
+        batch.exception = e;
+      }
+    } finally {
+      synchronized (this) {
+        committingProjects.remove(projectId);
+        notifyAll();
+      }
+      batch.committed.countDown();
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of transactions that have been committed, or tried.
+   */
+  long getBatchCount() {
+    return batchCount.get();
+  }
+
+  /**
+   * Returns the number of writes that have joined a batch, which is larger
+   * than the number of batches when writes are coalesced.
+   */
+  long getWriteCount() {
+    return writeCount.get();
+  }
+}
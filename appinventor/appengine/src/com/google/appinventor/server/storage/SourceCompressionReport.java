@@ -0,0 +1,91 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import javax.annotation.Nullable;
+
+/**
+ * The results of compressing a batch of project source files that were
+ * stored uncompressed, by {@link StorageIo#compressStoredSources}.
+ *
+ */
+public final class SourceCompressionReport {
+  private int filesScanned;
+  private int filesCompressed;
+  private int filesFailed;
+  private long contentBytes;
+  private long storedBytes;
+  private long millis;
+  private String nextCursor;
+
+  void recordScanned() {
+    filesScanned++;
+  }
+
+  void recordCompressed(long contentBytes, long storedBytes) {
+    filesCompressed++;
+    this.contentBytes += contentBytes;
+    this.storedBytes += storedBytes;
+  }
+
+  void recordFailed() {
+    filesFailed++;
+  }
+
+  void setMillis(long millis) {
+    this.millis = millis;
+  }
+
+  void setNextCursor(@Nullable String nextCursor) {
+    this.nextCursor = nextCursor;
+  }
+
+  /**
+   * Returns the number of files in the batch, including the ones that were
+   * already compressed or aren't compressed.
+   */
+  public int getFilesScanned() {
+    return filesScanned;
+  }
+
+  public int getFilesCompressed() {
+    return filesCompressed;
+  }
+
+  /**
+   * Returns the number of files that couldn't be compressed, which are left
+   * as they were.
+   */
+  public int getFilesFailed() {
+    return filesFailed;
+  }
+
+  /**
+   * Returns the total size of the contents of the files that were compressed.
+   */
+  public long getContentBytes() {
+    return contentBytes;
+  }
+
+  /**
+   * Returns the total size of the compressed contents.
+   */
+  public long getStoredBytes() {
+    return storedBytes;
+  }
+
+  /**
+   * Returns how long the batch took.
+   */
+  public long getMillis() {
+    return millis;
+  }
+
+  /**
+   * Returns where the next batch starts, or null if this was the last batch.
+   */
+  @Nullable
+  public String getNextCursor() {
+    return nextCursor;
+  }
+}
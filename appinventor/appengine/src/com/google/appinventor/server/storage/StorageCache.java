@@ -0,0 +1,49 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A size-bounded cache used by {@link CachingStorageIo}. Values are byte
+ * arrays, strings or longs. An implementation may drop any entry at any time.
+ *
+ * <p>Values are only added after reads. A write removes the values that it
+ * changes, and the next read adds them again. Concurrent writes could
+ * otherwise cache their values in a different order than they were stored
+ * in.</p>
+ *
+ */
+interface StorageCache {
+  /**
+   * How long, in milliseconds, {@link #add} ignores a key after
+   * {@link #deleteAll} removed it.
+   */
+  long DELETE_HOLD_MILLIS = 5000;
+
+  /**
+   * Returns the value for the given key, or null if there is none.
+   */
+  Object get(String key);
+
+  /**
+   * Returns the values for those of the given keys that have one.
+   */
+  Map<String, Object> getAll(Collection<String> keys);
+
+  /**
+   * Caches a value that was just read from the datastore, unless the key
+   * already has a value, or was removed within the last
+   * {@link #DELETE_HOLD_MILLIS}. In that case the value may have been read
+   * before a write that removed the key, and be stale.
+   */
+  void add(String key, Object value);
+
+  /**
+   * Removes the values for the given keys, after the data that they cache
+   * was written or deleted, and keeps them from being added again for
+   * {@link #DELETE_HOLD_MILLIS}.
+   */
+  void deleteAll(Collection<String> keys);
+}
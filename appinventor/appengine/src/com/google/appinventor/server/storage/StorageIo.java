@@ -2,13 +2,16 @@
 
 package com.google.appinventor.server.storage;
 
+import com.google.appinventor.common.youngandroid.TextDelta;
 import com.google.appinventor.shared.rpc.Motd;
 import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.user.User;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
@@ -93,6 +96,27 @@ public interface StorageIo {
    */
   long createProject(String userId, Project project, String projectSettings);
 
+  /**
+   * Creates a new project as a copy of one of the user's projects. The
+   * copied files share their stored contents with the files of the old
+   * project, rather than being downloaded and uploaded again.
+   *
+   * <p>
+   * This is an atomic operation.
+   *
+   * @param userId user id
+   * @param oldProjectId project ID of the project to copy
+   * @param newProject the new project's information and the files that
+   *        aren't copied from the old project, such as files whose contents
+   *        change in the copy
+   * @param copiedFileNames the names of the old project's source files that
+   *        are copied, mapped to their names in the new project
+   * @param projectSettings project settings of the new project
+   * @return project id of the new project
+   */
+  long copyProject(String userId, long oldProjectId, Project newProject,
+      Map<String, String> copiedFileNames, String projectSettings);
+
   /**
    * Deletes a project and all its files.
    *
@@ -109,6 +133,18 @@ public interface StorageIo {
    */
   List<Long> getProjects(String userId);
 
+  /**
+   * Returns the name, type, creation date and modification date of each of
+   * the user's projects. This is equivalent to calling {@link #getProjectName},
+   * {@link #getProjectType}, {@link #getProjectDateCreated} and
+   * {@link #getProjectDateModified} for each project returned by
+   * {@link #getProjects}, but reads all of the projects at once.
+   *
+   * @param userId  user ID
+   * @return  list of project infos, in the same order as {@link #getProjects}
+   */
+  List<UserProject> getProjectInfos(String userId);
+
   /**
    * Returns a string with the project settings.
    * @param userId a user Id (the request is made on behalf of this user)
@@ -170,6 +206,54 @@ public interface StorageIo {
    */
   long getProjectDateCreated(String userId, long projectId);
 
+  /**
+   * The build status of a build that has been started but has not finished.
+   */
+  String BUILD_IN_PROGRESS = "";
+
+  /**
+   * Records the status of the latest build of a project, so that it can be
+   * checked without reading the build output files.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project id
+   * @param outputDir  the directory of the build output files, for example
+   *                   build/Android
+   * @param buildOutput  the content of build.out, or null if the build has
+   *                     been started but has not finished
+   */
+  void storeBuildStatus(String userId, long projectId, String outputDir,
+      @Nullable String buildOutput);
+
+  /**
+   * Returns the status of the latest build of a project.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project id
+   * @param outputDir  the directory of the build output files
+   *
+   * @return the content of build.out, {@link #BUILD_IN_PROGRESS} if the build
+   *         has not finished, or null if no build status has been recorded
+   */
+  @Nullable
+  String getBuildStatus(String userId, long projectId, String outputDir);
+
+  /**
+   * Adds the output files of a build to the project, stores their contents
+   * and records the build status, all in one transaction. Files that are
+   * kept in the blobstore, such as APKs, are streamed there as they are read.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project id
+   * @param outputDir  the directory of the build output files, for example
+   *                   build/Android
+   * @param outputFiles  the build output files, named relative to outputDir
+   * @param statusFileName  the name of the output file whose content is the
+   *                        build status, usually build.out. If there is no
+   *                        such file, the build status is not changed.
+   * @return modification date for project
+   * @throws IOException if the output files cannot be read
+   */
+  long storeBuildOutputFiles(String userId, long projectId, String outputDir,
+      ImportSource outputFiles, String statusFileName) throws IOException;
+
   // Non-project-specific file management
 
   /**
@@ -323,6 +407,22 @@ public interface StorageIo {
    */
   long uploadRawFile(long projectId, String fileId, String userId, byte[] content);
 
+  /**
+   * Uploads the contents of a text file that result from applying a delta to
+   * its stored contents. The stored contents are read, and the new contents
+   * written, in one transaction, so that a delta is never applied to contents
+   * that have changed since they were read.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param fileId  file ID
+   * @param delta  a delta that isn't full
+   * @param encoding encoding of the file's contents
+   * @return the result, which is stale if the delta doesn't apply to the
+   *     stored contents
+   */
+  DeltaUploadResult uploadFileDelta(String userId, long projectId, String fileId,
+      TextDelta delta, String encoding);
+
   /**
    * Deletes a file.
    * @param userId a user Id (the request is made on behalf of this user)
@@ -353,6 +453,28 @@ public interface StorageIo {
    */
   byte[] downloadRawFile(String userId, long projectId, String fileId);
 
+  /**
+   * Downloads raw file data for several files of a project at once.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param fileIds  file IDs
+   *
+   * @return  file contents, in the same order as {@code fileIds}
+   */
+  List<byte[]> downloadRawFiles(String userId, long projectId, List<String> fileIds);
+
+  /**
+   * Returns the version of a project file, or of the project's output files,
+   * without reading any file content.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param fileId  file ID, or null for the version of the project's output
+   *     files
+   *
+   * @return  the version
+   */
+  FileVersion getFileVersion(String userId, long projectId, @Nullable String fileId);
+
   // MOTD management
 
   /**
@@ -377,4 +499,34 @@ public interface StorageIo {
                                           boolean includeAndroidKeystore,
                                           @Nullable String zipName) throws IOException;
 
+  /**
+   *  Exports project files as a zip archive that is written to the given destination as the
+   *  files are read, so that the archive is never held in memory.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param zipName  the name of the zip file, if a specific one is desired
+   * @param destination  the destination of the zip file. It is not opened if the project has no
+   *     source files.
+   *
+   * @return  the number of files in the zip file
+   * @throws IllegalArgumentException if the project has no source files
+   */
+  int exportProjectSourceZip(String userId, long projectId, boolean includeProjectHistory,
+                             boolean includeAndroidKeystore, @Nullable String zipName,
+                             ExportDestination destination) throws IOException;
+
+  /**
+   * Compresses the stored contents of a batch of project source files that
+   * were stored before contents were compressed. The files' contents are
+   * unchanged when read, and the projects' modification dates are left alone.
+   * This is run in batches in the background, each batch starting where the
+   * previous one ended, until all files have been seen.
+   *
+   * @param cursor  where the previous batch ended, or null for the first batch
+   * @param batchSize  the maximum number of files to look at
+   * @return  the results of the batch, including where the next batch starts
+   */
+  SourceCompressionReport compressStoredSources(@Nullable String cursor, int batchSize);
 }
@@ -11,7 +11,7 @@ package com.google.appinventor.server.storage;
  *
  */
 public class StorageIoInstanceHolder {
-  public static final StorageIo INSTANCE = new ObjectifyStorageIo();
+  public static final StorageIo INSTANCE = CachingStorageIo.wrap(new ObjectifyStorageIo());
   
   private StorageIoInstanceHolder() {} // not to be instantiated
     
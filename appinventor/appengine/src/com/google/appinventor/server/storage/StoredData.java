@@ -136,6 +136,14 @@ public class StoredData {
     // should be retrieved from Blobstore.
     byte[] content;
 
+    // The number of FileChunkData children that hold the content of a file that is too large to
+    // be kept in content, which is then null. 0 for other files.
+    int chunkCount;
+
+    // Distinguishes the chunks of the file's current content from those of its earlier contents,
+    // so that a reader can't mix them up.
+    long chunkGeneration;
+
     // Is this file stored in Blobstore.  If it is, the blobstorePath will contain the path to use
     // to retrieve the data from Blobstore.
     boolean isBlob;
@@ -143,10 +151,73 @@ public class StoredData {
     // The Blobstore path to use to get the data from Blobstore
     String blobstorePath;
 
+    // How the content is encoded, in the datastore or in Blobstore. Null for files stored before
+    // contents were encoded, whose content is stored as is.
+    ContentCodec codec;
+
+    // The hash of the content of a Blobstore file whose blob may be shared with other files, and
+    // is counted by the BlobRefData with this id. Null for files that aren't in Blobstore and for
+    // files whose blob belongs only to them, such as build outputs and files stored before blobs
+    // were shared.
+    String contentHash;
+
     // File settings
     String settings;
   }
 
+  // A fixed-size piece of the stored content of a file that is too large for one entity. The
+  // chunks of a file are its children, so that they are written in the same transaction, and can
+  // be fetched together with one batch get.
+  @Unindexed
+  static final class FileChunkData {
+    // The file's chunk generation and the index of the chunk, starting at 1
+    @Id String id;
+
+    // Key of the file (parent) whose content this is part of
+    @Parent Key<FileData> fileKey;
+
+    // This chunk of the file's stored content
+    byte[] content;
+  }
+
+  // A Blobstore blob that is shared by the files with the same content, such as the assets of a
+  // project and of its copies. The BlobRefData class is an entity root, so that the files of any
+  // project can reference it.
+  @Unindexed
+  static final class BlobRefData {
+    // The hash of the content
+    @Id String contentHash;
+
+    // The Blobstore path of the content
+    String blobstorePath;
+
+    // How the content is encoded in Blobstore. Null for blobs stored before contents were encoded.
+    ContentCodec codec;
+
+    // The number of files that reference the blob. The blob is deleted when it reaches 0.
+    long refCount;
+
+    // The size of the content in bytes
+    long size;
+
+    // The size of the content as stored, which is smaller than size if the content is compressed.
+    // 0 for blobs stored before contents were encoded.
+    long storedSize;
+  }
+
+  // The status of the latest build of a project for one build target
+  @Unindexed
+  static final class BuildStatusData {
+    // The directory of the build output files, for example build/Android
+    @Id String outputDir;
+
+    // Key of the project (parent) that was built
+    @Parent Key<ProjectData> projectKey;
+
+    // The content of build.out, or null while the build is in progress
+    String buildOutput;
+  }
+
   // MOTD data.
   @Unindexed
   static final class MotdData {
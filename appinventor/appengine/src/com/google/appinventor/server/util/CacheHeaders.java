@@ -26,4 +26,16 @@ public interface CacheHeaders {
    * @param resp the response
    */
   void setCacheablePrivate(HttpServletResponse resp);
+
+  /**
+   * Marks the given response as only cacheable for the current user and
+   * needing to be revalidated, and sets the validators with which the
+   * cached content can be revalidated by a conditional request.
+   *
+   * @param resp the response
+   * @param etag the entity tag of the content, including its quotes
+   * @param lastModified the time the content was last modified, in
+   *        milliseconds
+   */
+  void setCacheablePrivate(HttpServletResponse resp, String etag, long lastModified);
 }
@@ -30,4 +30,11 @@ public class CacheHeadersImpl implements CacheHeaders {
     resp.setDateHeader("Expires", nowMillis);  // Forces HTTP/1.0 not to cache
     resp.setHeader("Cache-Control", "private,max-age=0");
   }
+
+  @Override
+  public void setCacheablePrivate(HttpServletResponse resp, String etag, long lastModified) {
+    setCacheablePrivate(resp);
+    resp.setHeader("ETag", etag);
+    resp.setDateHeader("Last-Modified", lastModified);
+  }
 }
@@ -6,8 +6,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Utility class for dealing with "If-Modified-Since" and
- * "Last-Modified" headers for servlet requests and responses.
+ * Utility class for dealing with "If-Modified-Since", "If-None-Match",
+ * "Last-Modified" and "ETag" headers for servlet requests and responses.
  *
  * @author sharon@google.com (Sharon Perl)
  */
@@ -49,4 +49,55 @@ public class ModifiedHeaders {
       CACHE_HEADERS.setCacheablePrivate(resp);
     }
   }
+
+  /**
+   * Compares the "If-None-Match" header in this request (if present), or
+   * else the "If-Modified-Since" header (if present), to the given validators
+   * of the requested data in order to determine whether the requested data
+   * has been modified since the prior request.
+   *
+   * @param req the request
+   * @param etag the entity tag of the requested data, including its quotes
+   * @param lastModified the time the requested data was last modified, in
+   *        milliseconds
+   * @return {@code true} iff we're sure that request is for a resource that
+   *         has not been modified since the prior request
+   */
+  public static boolean notModified(HttpServletRequest req, String etag, long lastModified) {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        // Only the content matters for a GET, so a weak tag matches too.
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if (tag.equals("*") || tag.equals(etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    long ifModDate;
+    try {
+      ifModDate = req.getDateHeader("If-Modified-Since");
+    } catch (IllegalArgumentException e) {
+      // A malformed date is ignored.
+      return false;
+    }
+    // HTTP dates are in whole seconds.
+    return ifModDate > 0 && lastModified / 1000 <= ifModDate / 1000;
+  }
+
+  /**
+   * Sets headers such that the response includes the given validators and
+   * validation is required for reuse.
+   *
+   * @param resp the response
+   * @param etag the entity tag of the data, including its quotes
+   * @param lastModified the time the data was last modified, in milliseconds
+   */
+  public static void setHeaders(HttpServletResponse resp, String etag, long lastModified) {
+    CACHE_HEADERS.setCacheablePrivate(resp, etag, lastModified);
+  }
 }
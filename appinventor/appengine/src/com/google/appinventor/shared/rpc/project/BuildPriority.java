@@ -0,0 +1,18 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.shared.rpc.project;
+
+/**
+ * The priority of a build, which the build server uses to order the builds
+ * that are waiting for it. The names are those of the build server's
+ * priorities.
+ *
+ */
+public enum BuildPriority {
+  // A build that someone is actively waiting for on a connected phone.
+  INTERACTIVE,
+  NORMAL,
+  // A build that packages the app to be saved or shared, which can wait for
+  // the builds that are being tried out.
+  BACKGROUND;
+}
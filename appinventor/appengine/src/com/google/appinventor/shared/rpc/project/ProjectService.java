@@ -16,6 +16,12 @@ import java.util.List;
 @RemoteServiceRelativePath(ServerLayout.PROJECT_SERVICE)
 public interface ProjectService extends RemoteService {
 
+  /**
+   * The value returned by {@link #saveDeltas(List)} when a delta doesn't
+   * apply to the stored contents of its file.
+   */
+  long STALE_DELTA = -1;
+
   /**
    * Creates a new project.
    * @param projectType type of new project
@@ -138,15 +144,31 @@ public interface ProjectService extends RemoteService {
    */
   public long save(List<FileDescriptorWithContent> filesAndContent);
 
+  /**
+   * Saves the contents of multiple files, each sent as an encoded
+   * {@link com.google.appinventor.common.youngandroid.TextDelta} against the
+   * contents that were last saved or loaded. If a delta doesn't apply to the
+   * stored contents of its file, for example because the file was saved from
+   * somewhere else since, that file is left unchanged, and the caller should
+   * save it again with a full delta.
+   *
+   * @param filesAndDeltas  list containing file descriptors and their
+   *                        associated encoded deltas
+   * @return modification date for last modified project of list, or
+   *         {@link #STALE_DELTA} if any of the deltas didn't apply
+   */
+  long saveDeltas(List<FileDescriptorWithContent> filesAndDeltas);
+
   /**
    * Invokes a build command for the project on the back-end.
    *
    * @param projectId  project ID
    * @param target  build target (optional, implementation dependent)
+   * @param priority  how urgently the build is wanted
    *
    * @return  results of invoking the build command
    */
-  RpcResult build(long projectId, String target);
+  RpcResult build(long projectId, String target, BuildPriority priority);
 
   /**
    * Gets the result of a build command for the project from the back-end.
@@ -161,6 +183,19 @@ public interface ProjectService extends RemoteService {
    */
   RpcResult getBuildResult(long projectId, String target);
 
+  /**
+   * Waits for the result of a build command for the project from the
+   * back-end. The call returns as soon as the build is done, or after a
+   * limited time if it isn't.
+   *
+   * @param projectId  project ID
+   * @param target  build target (optional, implementation dependent)
+   *
+   * @return  results of build, as for {@link #getBuildResult}. -1 means
+   *          that the build is not yet done and the call should be repeated.
+   */
+  RpcResult waitForBuildResult(long projectId, String target);
+
   /**
    * Adds a new file to the given project.
    *
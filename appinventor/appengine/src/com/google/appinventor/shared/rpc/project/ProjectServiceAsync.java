@@ -87,15 +87,26 @@ public interface ProjectServiceAsync {
   void save(List<FileDescriptorWithContent> filesAndContent, AsyncCallback<Long> callback);
 
   /**
-   * @see ProjectService#build(long, String)
+   * @see ProjectService#saveDeltas(List)
    */
-  void build(long projectId, String target, AsyncCallback<RpcResult> callback);
+  void saveDeltas(List<FileDescriptorWithContent> filesAndDeltas, AsyncCallback<Long> callback);
+
+  /**
+   * @see ProjectService#build(long, String, BuildPriority)
+   */
+  void build(long projectId, String target, BuildPriority priority,
+      AsyncCallback<RpcResult> callback);
 
   /**
    * @see ProjectService#getBuildResult(long, String)
    */
   void getBuildResult(long projectId, String target, AsyncCallback<RpcResult> callback);
 
+  /**
+   * @see ProjectService#waitForBuildResult(long, String)
+   */
+  void waitForBuildResult(long projectId, String target, AsyncCallback<RpcResult> callback);
+
   /**
    * @see ProjectService#addFile(long, String)
    */
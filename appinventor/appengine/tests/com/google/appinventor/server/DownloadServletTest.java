@@ -2,9 +2,15 @@
 
 package com.google.appinventor.server;
 
+import static org.easymock.EasyMock.anyLong;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.isNull;
 
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.server.storage.ExportDestination;
+import com.google.appinventor.server.storage.FileVersion;
 import com.google.appinventor.shared.rpc.project.RawFile;
 
 import com.riq.MockHttpServletRequest;
@@ -12,6 +18,7 @@ import com.riq.MockHttpServletResponse;
 
 import static junit.framework.Assert.*;
 
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -40,9 +47,9 @@ public class DownloadServletTest {
   private static final String DUMMY_ZIP_FILENAME = "filename123.zip";
   private static final String DUMMY_ZIP_FILENAME_WITH_TITLE = "MyProjectTitle123.zip";
   private static final String DOWNLOAD_URL = "http://localhost/baseUrl/download/";
+  private static final FileVersion VERSION = new FileVersion("d1300000000000", 1300000000000L);
+  private static final String ETAG = "\"d1300000000000\"";
 
-  private ProjectSourceZip dummyZip;
-  private ProjectSourceZip dummyZipWithTitle;
   private RawFile dummyApk;
   private RawFile dummyFile;
 
@@ -57,25 +64,47 @@ public class DownloadServletTest {
     expect(localUserMock.getUserId()).andReturn(USER_ID).anyTimes();
     exporterMock = PowerMock.createNiceMock(FileExporterImpl.class);
     PowerMock.expectNew(FileExporterImpl.class).andReturn(exporterMock).anyTimes();
+    expect(exporterMock.getFileVersion(eq(USER_ID), anyLong(), (String) anyObject()))
+        .andReturn(VERSION).anyTimes();
 
-    dummyZip = new ProjectSourceZip(DUMMY_ZIP_FILENAME, new byte[] {}, 2);
-    dummyZipWithTitle = new ProjectSourceZip(DUMMY_ZIP_FILENAME_WITH_TITLE, new byte[] {}, 2);
     dummyApk = new RawFile(DUMMY_APK_FILENAME, new byte[] {});
     dummyFile = new RawFile(DUMMY_FILENAME, new byte[] {});
   }
 
+  /*
+   * Returns an answer for a streaming export that opens the destination (the last argument)
+   * with the given file name, as the real exporter does once it has found files to export.
+   */
+  private static IAnswer<Integer> openDestination(final String fileName) {
+    return new IAnswer<Integer>() {
+      @Override
+      public Integer answer() throws Throwable {
+        Object[] args = getCurrentArguments();
+        ((ExportDestination) args[args.length - 1]).open(fileName);
+        return 2;
+      }
+    };
+  }
+
   private void checkResponseHeader(MockHttpServletResponse response, String header) {
     List cd = (List) response.getHeader("content-disposition");
     assertEquals(header, cd.get(0));
     assertEquals(1, cd.size());
   }
 
+  private static Object getHeader(MockHttpServletResponse response, String header) {
+    List values = (List) response.getHeader(header);
+    assertEquals(1, values.size());
+    return values.get(0);
+  }
+
   @Test
   public void testDownloadProjectSourceZipWithoutTitle() throws Exception {
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/1234");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, PROJECT_ID, true, false, null))
-        .andReturn(dummyZip);
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        (String) isNull(), (ExportDestination) anyObject()))
+        .andAnswer(openDestination(DUMMY_ZIP_FILENAME));
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
     MockHttpServletResponse response = new MockHttpServletResponse();
@@ -89,9 +118,9 @@ public class DownloadServletTest {
   public void testDownloadProjectSourceZipWithTitle() throws IOException {
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/1234/My Project Title 123");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, PROJECT_ID, true, false,
-                                               "MyProjectTitle123.zip"))
-        .andReturn(dummyZipWithTitle);
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        eq("MyProjectTitle123.zip"), (ExportDestination) anyObject()))
+        .andAnswer(openDestination(DUMMY_ZIP_FILENAME_WITH_TITLE));
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
     MockHttpServletResponse response = new MockHttpServletResponse();
@@ -106,7 +135,8 @@ public class DownloadServletTest {
     IllegalArgumentException expectedException = new IllegalArgumentException();
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/12345");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, 12345L, true, false, null))
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(12345L), eq(true), eq(false),
+        (String) isNull(), (ExportDestination) anyObject()))
         .andThrow(expectedException);
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
@@ -202,6 +232,73 @@ public class DownloadServletTest {
     PowerMock.verifyAll();
   }
 
+  @Test
+  public void testDownloadFileSetsValidators() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
+        "file/1234/" + FORM1_QUALIFIED_NAME);
+    expect(exporterMock.exportFile(USER_ID, PROJECT_ID, FORM1_QUALIFIED_NAME))
+        .andReturn(dummyFile);
+    PowerMock.replayAll();
+    DownloadServlet download = new DownloadServlet();
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    download.doGet(request, response);
+    assertEquals(200, response.getStatus());
+    assertEquals(ETAG, getHeader(response, "ETag"));
+    assertEquals("private,max-age=0", getHeader(response, "Cache-Control"));
+    PowerMock.verifyAll();
+  }
+
+  @Test
+  public void testDownloadFileNotModifiedSkipsContent() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
+        "file/1234/" + FORM1_QUALIFIED_NAME);
+    request.setHeader("If-None-Match", "\"d1\", " + ETAG);
+    // The file's content must not be read.
+    expect(exporterMock.exportFile(USER_ID, PROJECT_ID, FORM1_QUALIFIED_NAME))
+        .andThrow(new AssertionError("content read")).anyTimes();
+    PowerMock.replayAll();
+    DownloadServlet download = new DownloadServlet();
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    download.doGet(request, response);
+    assertEquals(304, response.getStatus());
+    assertEquals(ETAG, getHeader(response, "ETag"));
+    PowerMock.verifyAll();
+  }
+
+  @Test
+  public void testDownloadFileModifiedSendsContent() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
+        "file/1234/" + FORM1_QUALIFIED_NAME);
+    request.setHeader("If-None-Match", "\"d1\"");
+    // If-None-Match takes precedence over If-Modified-Since.
+    request.setDateHeader("If-Modified-Since", VERSION.getDateModified());
+    expect(exporterMock.exportFile(USER_ID, PROJECT_ID, FORM1_QUALIFIED_NAME))
+        .andReturn(dummyFile);
+    PowerMock.replayAll();
+    DownloadServlet download = new DownloadServlet();
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    download.doGet(request, response);
+    assertEquals(200, response.getStatus());
+    checkResponseHeader(response, "attachment; filename=\"filename123\"");
+    PowerMock.verifyAll();
+  }
+
+  @Test
+  public void testDownloadProjectOutputFileNotModifiedSinceSkipsContent() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
+        "project-output/1234");
+    request.setDateHeader("If-Modified-Since", VERSION.getDateModified() + 500);
+    // The APK must not be read.
+    expect(exporterMock.exportProjectOutputFile(USER_ID, PROJECT_ID, null))
+        .andThrow(new AssertionError("content read")).anyTimes();
+    PowerMock.replayAll();
+    DownloadServlet download = new DownloadServlet();
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    download.doGet(request, response);
+    assertEquals(304, response.getStatus());
+    PowerMock.verifyAll();
+  }
+
   @Test
   public void testDownloadFileWithNonExistingProject() throws IOException {
     IllegalArgumentException expectedException = new IllegalArgumentException();
@@ -239,6 +336,38 @@ public class DownloadServletTest {
     PowerMock.verifyAll();
     }
 
-  // TODO(user): Add testDownloadAllProjectsSource* to test
-  // downloading all projects.
+  @Test
+  public void testDownloadAllProjectsSource() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
+        "all-projects-source");
+    expect(exporterMock.exportAllProjectsSourceZip(eq(USER_ID), eq("all-projects.zip"),
+        (ExportDestination) anyObject()))
+        .andAnswer(openDestination("all-projects.zip"));
+    PowerMock.replayAll();
+    DownloadServlet download = new DownloadServlet();
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    download.doGet(request, response);
+    checkResponseHeader(response, "attachment; filename=\"all-projects.zip\"");
+    assertEquals("application/zip; charset=utf-8", response.getContentType());
+    PowerMock.verifyAll();
+  }
+
+  @Test
+  public void testDownloadAllProjectsSourceWithNoProjects() throws IOException {
+    IllegalArgumentException expectedException = new IllegalArgumentException();
+    MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
+        "all-projects-source");
+    expect(exporterMock.exportAllProjectsSourceZip(eq(USER_ID), eq("all-projects.zip"),
+        (ExportDestination) anyObject()))
+        .andThrow(expectedException);
+    PowerMock.replayAll();
+    DownloadServlet download = new DownloadServlet();
+    try {
+      download.doGet(request, new MockHttpServletResponse());
+      fail();
+    } catch (IllegalArgumentException ex) {
+      assertEquals(expectedException, ex);
+    }
+    PowerMock.verifyAll();
+  }
 }
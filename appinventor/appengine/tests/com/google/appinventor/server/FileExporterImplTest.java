@@ -2,6 +2,7 @@
 
 package com.google.appinventor.server;
 
+import com.google.appinventor.server.storage.ExportDestination;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.server.storage.UnauthorizedAccessException;
@@ -15,6 +16,7 @@ import com.google.common.io.ByteStreams;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -103,6 +105,7 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
         false, false, null);
     Map<String, byte[]> content = testExportProjectSourceZipHelper(project);
     assertEquals(2, content.size());
+    assertEquals(PROJECT_NAME, project.getMetadata());
     /* Do not expect remix history when includeProjectHistory parameter is false
      * as in the publish case. */
     assertFalse(content.containsKey(FileExporter.REMIX_INFORMATION_FILE_PATH));
@@ -130,6 +133,41 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
     }
   }
 
+  public void testExportProjectSourceZipToDestination() throws IOException {
+    final ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    final String[] fileName = new String[1];
+    int fileCount = exporter.exportProjectSourceZip(USER_ID, projectId, true, false, null,
+        new ExportDestination() {
+          @Override
+          public OutputStream open(String name) {
+            assertNull(fileName[0]);
+            fileName[0] = name;
+            return zipFile;
+          }
+        });
+    assertEquals(PROJECT_NAME + ".zip", fileName[0]);
+    Map<String, byte[]> content = testExportProjectSourceZipHelper(
+        new ProjectSourceZip(fileName[0], zipFile.toByteArray(), fileCount));
+    assertEquals(3, content.size());
+  }
+
+  public void testExportProjectSourceZipToDestinationWithNonExistingProject()
+      throws IOException {
+    try {
+      exporter.exportProjectSourceZip(USER_ID, projectId + 1, false, false, null,
+          new ExportDestination() {
+            @Override
+            public OutputStream open(String name) {
+              fail("The destination should not be opened when there are no files");
+              return null;
+            }
+          });
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
   public void testExportProjectOutputFileWithTarget() throws IOException {
     RawFile file = exporter.exportProjectOutputFile(USER_ID, projectId, "target1");
     assertEquals(TARGET1_NAME, file.getFileName());
@@ -161,5 +199,68 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
     }
   }
 
-  // TODO(user): Add test of exportAllProjectsSourceZip().
+  public void testExportAllProjectsSourceZip() throws IOException {
+    // A second project with the same name, which must be renamed in the zip of zips.
+    Project project = new Project(PROJECT_NAME);
+    project.setProjectType(FAKE_PROJECT_TYPE);
+    project.addTextFile(new TextFile(FORM1_QUALIFIED_NAME, FORM1_CONTENT));
+    storageIo.createProject(USER_ID, project, SETTINGS);
+
+    ProjectSourceZip allProjects = exporter.exportAllProjectsSourceZip(USER_ID, "all.zip");
+    assertEquals("all.zip", allProjects.getFileName());
+    assertEquals(2, allProjects.getFileCount());
+
+    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(allProjects.getContent()));
+    Map<String, byte[]> content = new HashMap<String, byte[]>();
+    ZipEntry zipEntry;
+    while ((zipEntry = zis.getNextEntry()) != null) {
+      content.put(zipEntry.getName(), ByteStreams.toByteArray(zis));
+    }
+    assertEquals(2, content.size());
+    assertTrue(content.containsKey(PROJECT_NAME + ".zip"));
+    assertTrue(content.containsKey("duplicate-" + PROJECT_NAME + ".zip"));
+
+    // Each entry is itself a zip of a project's sources.
+    for (byte[] projectZip : content.values()) {
+      ZipInputStream projectZis = new ZipInputStream(new ByteArrayInputStream(projectZip));
+      assertNotNull(projectZis.getNextEntry());
+    }
+  }
+
+  public void testExportAllProjectsSourceZipWithNoProjects() throws IOException {
+    try {
+      exporter.exportAllProjectsSourceZip(USER_ID + "1", "all.zip", new ExportDestination() {
+        @Override
+        public OutputStream open(String name) {
+          fail("The destination should not be opened when there are no projects");
+          return null;
+        }
+      });
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testExportAllProjectsSourceZipWithNoFiles() throws IOException {
+    // The user has a project and a keystore, but the project has no source files.
+    String userId = USER_ID + "2";
+    Project project = new Project(PROJECT_NAME);
+    project.setProjectType(FAKE_PROJECT_TYPE);
+    storageIo.createProject(userId, project, SETTINGS);
+    storageIo.addFilesToUser(userId, "android.keystore");
+    storageIo.uploadRawUserFile(userId, "android.keystore", IMAGE_CONTENT);
+    try {
+      exporter.exportAllProjectsSourceZip(userId, "all.zip", new ExportDestination() {
+        @Override
+        public OutputStream open(String name) {
+          fail("The destination should not be opened when no project has source files");
+          return null;
+        }
+      });
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
 }
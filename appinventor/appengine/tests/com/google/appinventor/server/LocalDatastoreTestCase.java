@@ -5,13 +5,14 @@ package com.google.appinventor.server;
 import com.google.appinventor.common.testutils.TestUtils;
 
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.apphosting.utils.config.GenerationDirectory;
 
 import junit.framework.TestCase;
 
 /**
- * Abstract base class for tests that need local datastore.
+ * Abstract base class for tests that need local datastore and memcache.
  *
  * @author lizlooney@google.com
  */
@@ -19,7 +20,8 @@ public abstract class LocalDatastoreTestCase extends TestCase {
   private static final String APPENGINE_GENERATED_DIR = TestUtils.APP_INVENTOR_ROOT_DIR +
       "/appengine/build/tests/appengine-generated";
   private final LocalServiceTestHelper helper =
-      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+          new LocalMemcacheServiceTestConfig());
 
   @Override
   protected void setUp() throws Exception {
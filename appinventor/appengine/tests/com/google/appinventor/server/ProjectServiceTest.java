@@ -6,6 +6,7 @@ import static com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAnd
 import static org.easymock.EasyMock.expect;
 
 import com.google.appinventor.common.testutils.TestUtils;
+import com.google.appinventor.common.youngandroid.TextDelta;
 import com.google.appinventor.components.common.YaVersion;
 import com.google.appinventor.server.encryption.KeyczarEncryptor;
 import com.google.appinventor.server.storage.StorageIo;
@@ -14,6 +15,7 @@ import com.google.appinventor.shared.rpc.project.FileDescriptor;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
 import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
+import com.google.appinventor.shared.rpc.project.ProjectService;
 import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAndroidProjectParameters;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
@@ -470,6 +472,44 @@ public class ProjectServiceTest {
     PowerMock.verifyAll();
   }
 
+  @Test
+  public void testSaveDeltas() throws Exception {
+    expect(localUserMock.getUserId()).andReturn(USER_ID_ONE).anyTimes();
+    PowerMock.replayAll();
+    do_init();
+
+    NewYoungAndroidProjectParameters params = new NewYoungAndroidProjectParameters(
+        PACKAGE_BASE + PROJECT1_NAME);
+    long projectId = projectServiceImpl.newProject(
+        YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE, PROJECT1_NAME, params).getProjectId();
+    String fileId = "src/com/domain/noname/Project1/Screen1.scm";
+    String oldContent = projectServiceImpl.load(projectId, fileId);
+
+    // A delta against the stored content is applied.
+    String newContent = oldContent.replace("\"Title\":\"Screen1\"", "\"Title\":\"Hello\"");
+    long modificationDate = projectServiceImpl.saveDeltas(Lists.newArrayList(
+        new FileDescriptorWithContent(projectId, fileId,
+            TextDelta.create(oldContent, newContent).encode())));
+    assertTrue(modificationDate > 0);
+    checkModificationDateMatchesStored(modificationDate, USER_ID_ONE, projectId);
+    assertEquals(newContent, projectServiceImpl.load(projectId, fileId));
+
+    // A delta against content that is no longer stored leaves the file unchanged.
+    String otherContent = oldContent + ";;; Other\n";
+    assertEquals(ProjectService.STALE_DELTA, projectServiceImpl.saveDeltas(Lists.newArrayList(
+        new FileDescriptorWithContent(projectId, fileId,
+            TextDelta.create(oldContent, otherContent).encode()))));
+    assertEquals(newContent, projectServiceImpl.load(projectId, fileId));
+
+    // A full delta applies to any stored content.
+    modificationDate = projectServiceImpl.saveDeltas(Lists.newArrayList(
+        new FileDescriptorWithContent(projectId, fileId,
+            TextDelta.full(otherContent).encode())));
+    checkModificationDateMatchesStored(modificationDate, USER_ID_ONE, projectId);
+    assertEquals(otherContent, projectServiceImpl.load(projectId, fileId));
+    PowerMock.verifyAll();
+  }
+
   private Map<String, String> getTextFiles(String userId, long projectId) {
     Map<String, String> textFiles = new HashMap<String, String>();
     for (String fileId : storageIo.getProjectSourceFiles(userId, projectId)) {
@@ -0,0 +1,250 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.server.ProjectServiceTest;
+import com.google.appinventor.server.encryption.KeyczarEncryptor;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+import com.google.appinventor.shared.rpc.RpcResult;
+import com.google.appinventor.shared.rpc.project.BuildPriority;
+import com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAndroidProjectParameters;
+import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.common.io.ByteStreams;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link BuildServerPool}, using local stand-ins for the build
+ * servers.
+ *
+ */
+public class BuildServerPoolTest extends LocalDatastoreTestCase {
+  private static final String USER_ID = "1000";
+  private static final String USER_EMAIL = "noname@domain.com";
+  private static final String PROJECT_NAME = "Project1";
+  private static final String TARGET = YoungAndroidProjectNode.YOUNG_ANDROID_TARGET_ANDROID;
+
+  private final List<StandInBuildServer> buildServers = new ArrayList<StandInBuildServer>();
+
+  @Override
+  public void tearDown() throws Exception {
+    for (StandInBuildServer buildServer : buildServers) {
+      buildServer.stop();
+    }
+    super.tearDown();
+  }
+
+  public void testParseVars() {
+    Map<String, String> vars = BuildServerPool.parseVars(
+        "<html><body><b>active-build-tasks</b> 3<br>" +
+        "<b>maximum-simultaneous-build-tasks</b> unlimited<br></body></html>");
+    assertEquals("3", vars.get("active-build-tasks"));
+    assertEquals("unlimited", vars.get("maximum-simultaneous-build-tasks"));
+  }
+
+  public void testChooseHostsPrefersHealthyLeastLoadedServers() throws Exception {
+    StandInBuildServer busy = startBuildServer(3, 1, 4, 200);
+    StandInBuildServer idle = startBuildServer(0, 0, 4, 200);
+    String down = unreachableHost();
+    StandInBuildServer half = startBuildServer(2, 0, 4, 200);
+
+    BuildServerPool pool = new BuildServerPool(hostsFlag(down, busy.host, idle.host, half.host));
+    assertEquals(Arrays.asList(idle.host, half.host, busy.host, down), pool.chooseHosts());
+    assertFalse(pool.getStatus(down).healthy);
+    assertEquals(4, pool.getStatus(busy.host).load);
+
+    // Statuses are reused until they are stale, but accepted builds count towards the load.
+    pool.reportAccepted(idle.host);
+    pool.reportAccepted(idle.host);
+    pool.reportAccepted(idle.host);
+    assertEquals(Arrays.asList(half.host, idle.host, busy.host, down), pool.chooseHosts());
+    assertEquals(1, idle.statusRequests.get());
+  }
+
+  public void testSingleServerIsNotChecked() throws Exception {
+    StandInBuildServer server = startBuildServer(0, 0, 4, 200);
+    BuildServerPool pool = new BuildServerPool(hostsFlag(server.host));
+    assertEquals(Arrays.asList(server.host), pool.chooseHosts());
+    assertEquals(0, server.statusRequests.get());
+  }
+
+  public void testBuildFailsOverToAnotherServer() throws Exception {
+    KeyczarEncryptor.rootPath.setForTest(ProjectServiceTest.KEYSTORE_ROOT_PATH);
+    StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+    YoungAndroidProjectService service = new YoungAndroidProjectService(storageIo);
+    User user = storageIo.getUser(USER_ID, USER_EMAIL);
+    long projectId = service.newProject(USER_ID, PROJECT_NAME,
+        new NewYoungAndroidProjectParameters("com.domain.noname." + PROJECT_NAME));
+
+    // The least loaded server is full and the next one is incompatible.
+    StandInBuildServer full = startBuildServer(0, 0, 4, 503);
+    StandInBuildServer incompatible = startBuildServer(1, 0, 4, 409);
+    StandInBuildServer accepting = startBuildServer(3, 0, 4, 200);
+    YoungAndroidProjectService.buildServerHost.setForTest(
+        unreachableHost() + "," + accepting.host + "," + incompatible.host + "," + full.host);
+
+    RpcResult result = service.build(user, projectId, TARGET, BuildPriority.NORMAL);
+    assertTrue(result.getError(), result.succeeded());
+    assertEquals(1, full.buildRequests.get());
+    assertEquals(1, incompatible.buildRequests.get());
+    assertEquals(1, accepting.buildRequests.get());
+
+    // When every server refuses, the last refusal is returned, and the build is recorded as
+    // failed rather than in progress.
+    YoungAndroidProjectService.buildServerHost.setForTest(full.host + "," + incompatible.host);
+    result = service.build(user, projectId, TARGET, BuildPriority.NORMAL);
+    assertFalse(result.succeeded());
+    RpcResult buildResult = service.waitForBuildResult(user, projectId, TARGET, 20000);
+    assertEquals(1, buildResult.getResult());
+    assertEquals(result.getError(), buildResult.getError());
+
+    // The same goes for servers that can't be reached.
+    YoungAndroidProjectService.buildServerHost.setForTest(unreachableHost());
+    assertFalse(service.build(user, projectId, TARGET, BuildPriority.NORMAL).succeeded());
+    assertEquals(1, service.getBuildResult(user, projectId, TARGET).getResult());
+  }
+
+  public void testUserLimitIsNotFailedOver() throws Exception {
+    KeyczarEncryptor.rootPath.setForTest(ProjectServiceTest.KEYSTORE_ROOT_PATH);
+    StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+    YoungAndroidProjectService service = new YoungAndroidProjectService(storageIo);
+    User user = storageIo.getUser(USER_ID, USER_EMAIL);
+    long projectId = service.newProject(USER_ID, PROJECT_NAME,
+        new NewYoungAndroidProjectParameters("com.domain.noname." + PROJECT_NAME));
+
+    // The least loaded server refuses the build because the user already has too many builds.
+    StandInBuildServer limiting =
+        startBuildServer(0, 0, 4, YoungAndroidProjectService.HTTP_TOO_MANY_REQUESTS);
+    StandInBuildServer accepting = startBuildServer(3, 0, 4, 200);
+    YoungAndroidProjectService.buildServerHost.setForTest(accepting.host + "," + limiting.host);
+
+    RpcResult result = service.build(user, projectId, TARGET, BuildPriority.NORMAL);
+    assertFalse(result.succeeded());
+    assertEquals(YoungAndroidProjectService.HTTP_TOO_MANY_REQUESTS, result.getResult());
+    assertEquals(1, service.getBuildResult(user, projectId, TARGET).getResult());
+    assertEquals(1, limiting.buildRequests.get());
+    assertEquals(0, accepting.buildRequests.get());
+
+    // The refusing server wasn't reported busy, so it is still offered the next build first.
+    result = service.build(user, projectId, TARGET, BuildPriority.NORMAL);
+    assertEquals(2, limiting.buildRequests.get());
+    assertEquals(0, accepting.buildRequests.get());
+  }
+
+  public void testBuildPriorityIsSent() throws Exception {
+    KeyczarEncryptor.rootPath.setForTest(ProjectServiceTest.KEYSTORE_ROOT_PATH);
+    StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+    YoungAndroidProjectService service = new YoungAndroidProjectService(storageIo);
+    User user = storageIo.getUser(USER_ID, USER_EMAIL);
+    long projectId = service.newProject(USER_ID, PROJECT_NAME,
+        new NewYoungAndroidProjectParameters("com.domain.noname." + PROJECT_NAME));
+    StandInBuildServer server = startBuildServer(0, 0, 4, 200);
+    YoungAndroidProjectService.buildServerHost.setForTest(server.host);
+
+    assertTrue(service.build(user, projectId, TARGET, BuildPriority.INTERACTIVE).succeeded());
+    assertTrue(server.lastBuildQuery, server.lastBuildQuery.contains("priority=INTERACTIVE"));
+    assertTrue(service.build(user, projectId, TARGET, BuildPriority.BACKGROUND).succeeded());
+    assertTrue(server.lastBuildQuery, server.lastBuildQuery.contains("priority=BACKGROUND"));
+  }
+
+  private StandInBuildServer startBuildServer(int activeBuilds, int queuedBuilds,
+      int maxBuilds, int buildResponseCode) throws IOException {
+    StandInBuildServer buildServer =
+        new StandInBuildServer(activeBuilds, queuedBuilds, maxBuilds, buildResponseCode);
+    buildServers.add(buildServer);
+    return buildServer;
+  }
+
+  // Returns a host[:port] on which nothing is listening.
+  private static String unreachableHost() throws IOException {
+    ServerSocket socket = new ServerSocket(0, 0, InetAddress.getByName("localhost"));
+    int port = socket.getLocalPort();
+    socket.close();
+    return "localhost:" + port;
+  }
+
+  private static Flag<String> hostsFlag(String... hosts) {
+    StringBuilder value = new StringBuilder();
+    for (String host : hosts) {
+      value.append(host).append(", ");
+    }
+    Flag<String> flag = Flag.createFlag("build.server.pool.test." + value.hashCode(), "");
+    flag.setForTest(value.toString());
+    return flag;
+  }
+
+  /*
+   * A stand-in for a build server, which reports a fixed load and answers
+   * build requests with a fixed response code.
+   */
+  private static class StandInBuildServer {
+    final String host;
+    final AtomicInteger statusRequests = new AtomicInteger(0);
+    final AtomicInteger buildRequests = new AtomicInteger(0);
+    volatile String lastBuildQuery;
+    private final HttpServer server;
+
+    StandInBuildServer(final int activeBuilds, final int queuedBuilds, final int maxBuilds,
+        final int buildResponseCode) throws IOException {
+      server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      server.createContext("/buildserver/health", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          statusRequests.incrementAndGet();
+          respond(exchange, 200, "ok");
+        }
+      });
+      server.createContext("/buildserver/vars", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          respond(exchange, 200, "<html><body>" +
+              "<b>active-build-tasks</b> " + activeBuilds + "<br>" +
+              "<b>build-queue-length</b> " + queuedBuilds + "<br>" +
+              "<b>maximum-simultaneous-build-tasks</b> " + maxBuilds + "<br>" +
+              "</body></html>");
+        }
+      });
+      server.createContext("/buildserver/build-all-from-zip-async", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          buildRequests.incrementAndGet();
+          lastBuildQuery = exchange.getRequestURI().getRawQuery();
+          ByteStreams.toByteArray(exchange.getRequestBody());
+          respond(exchange, buildResponseCode, (buildResponseCode == 200) ? "0" : "");
+        }
+      });
+      server.start();
+      host = "localhost:" + server.getAddress().getPort();
+    }
+
+    void stop() {
+      server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, int responseCode, String content)
+        throws IOException {
+      byte[] bytes = content.getBytes("UTF-8");
+      exchange.sendResponseHeaders(responseCode, bytes.length == 0 ? -1 : bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+    }
+  }
+}
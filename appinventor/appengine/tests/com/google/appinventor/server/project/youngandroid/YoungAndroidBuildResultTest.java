@@ -0,0 +1,199 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.project.youngandroid;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.server.ProjectServiceTest;
+import com.google.appinventor.server.ReceiveBuildServlet;
+import com.google.appinventor.server.encryption.KeyczarEncryptor;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+import com.google.appinventor.shared.rpc.RpcResult;
+import com.google.appinventor.shared.rpc.project.BuildPriority;
+import com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAndroidProjectParameters;
+import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.io.ByteStreams;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Tests for the build result methods of {@link YoungAndroidProjectService},
+ * using a local stand-in for the build server.
+ *
+ */
+public class YoungAndroidBuildResultTest extends LocalDatastoreTestCase {
+  private static final String USER_ID = "1000";
+  private static final String USER_EMAIL = "noname@domain.com";
+  private static final String PROJECT_NAME = "Project1";
+  private static final String TARGET = YoungAndroidProjectNode.YOUNG_ANDROID_TARGET_ANDROID;
+  private static final String BUILD_OUTPUT =
+      "{\"result\":0,\"output\":\"Build succeeded\",\"error\":\"\"}";
+  private static final long CALLBACK_DELAY_MILLIS = 1000;
+
+  private StorageIo storageIo;
+  private YoungAndroidProjectService service;
+  private User user;
+  private long projectId;
+  private HttpServer buildServer;
+  private final AtomicInteger buildRequests = new AtomicInteger(0);
+  private volatile Throwable callbackFailure;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    KeyczarEncryptor.rootPath.setForTest(ProjectServiceTest.KEYSTORE_ROOT_PATH);
+    storageIo = StorageIoInstanceHolder.INSTANCE;
+    service = new YoungAndroidProjectService(storageIo);
+    user = storageIo.getUser(USER_ID, USER_EMAIL);
+    projectId = service.newProject(USER_ID, PROJECT_NAME,
+        new NewYoungAndroidProjectParameters("com.domain.noname." + PROJECT_NAME));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    if (buildServer != null) {
+      buildServer.stop(0);
+    }
+    super.tearDown();
+  }
+
+  public void testWaitForBuildResultReturnsWhenBuildFinishes() throws Exception {
+    startBuildServer(true);
+
+    RpcResult buildResult = service.build(user, projectId, TARGET, BuildPriority.NORMAL);
+    assertTrue(buildResult.succeeded());
+    assertEquals(1, buildRequests.get());
+    assertEquals(StorageIo.BUILD_IN_PROGRESS,
+        storageIo.getBuildStatus(USER_ID, projectId, "build/" + TARGET));
+    assertEquals(-1, service.getBuildResult(user, projectId, TARGET).getResult());
+
+    long start = System.currentTimeMillis();
+    RpcResult result = service.waitForBuildResult(user, projectId, TARGET, 20000);
+    long elapsed = System.currentTimeMillis() - start;
+    assertNull(callbackFailure);
+    assertEquals(0, result.getResult());
+    assertEquals("Build succeeded", result.getOutput());
+    // The result arrives shortly after the build server posts it, not at the end of the wait.
+    assertTrue("Waited " + elapsed + " ms", elapsed < 10000);
+
+    assertTrue(storageIo.getProjectOutputFiles(USER_ID, projectId).contains(
+        "build/" + TARGET + "/" + PROJECT_NAME + ".apk"));
+  }
+
+  public void testWaitForBuildResultTimesOut() throws Exception {
+    startBuildServer(false);
+
+    assertTrue(service.build(user, projectId, TARGET, BuildPriority.NORMAL).succeeded());
+    RpcResult result = service.waitForBuildResult(user, projectId, TARGET, 1500);
+    assertEquals(-1, result.getResult());
+  }
+
+  public void testBuildResultWithoutBuildStatus() throws Exception {
+    // A build started before build statuses were recorded has only its output files.
+    assertNull(storageIo.getBuildStatus(USER_ID, projectId, "build/" + TARGET));
+    assertEquals(-1, service.getBuildResult(user, projectId, TARGET).getResult());
+
+    String buildOutputFile = "build/" + TARGET + "/build.out";
+    storageIo.addOutputFilesToProject(USER_ID, projectId, buildOutputFile);
+    storageIo.uploadFile(projectId, buildOutputFile, USER_ID, BUILD_OUTPUT, "UTF-8");
+    RpcResult result = service.getBuildResult(user, projectId, TARGET);
+    assertEquals(0, result.getResult());
+    assertEquals("Build succeeded", result.getOutput());
+  }
+
+  /*
+   * Starts a stand-in for the build server, which accepts build requests and,
+   * if postResults is true, posts the results to the callback URL shortly
+   * afterwards, as a real build server would.
+   */
+  private void startBuildServer(final boolean postResults) throws IOException {
+    final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    buildServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    buildServer.createContext("/buildserver/build-all-from-zip-async", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        buildRequests.incrementAndGet();
+        ByteStreams.toByteArray(exchange.getRequestBody());
+        String callbackUrl = null;
+        for (String param : exchange.getRequestURI().getRawQuery().split("&")) {
+          if (param.startsWith("callback=")) {
+            callbackUrl = URLDecoder.decode(param.substring("callback=".length()), "UTF-8");
+          }
+        }
+        byte[] estimatedWait = "0".getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, estimatedWait.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(estimatedWait);
+        out.close();
+
+        if (postResults) {
+          final String callbackPath = new URL(callbackUrl).getPath();
+          new Thread(new Runnable() {
+            @Override
+            public void run() {
+              ApiProxy.setEnvironmentForCurrentThread(environment);
+              try {
+                Thread.sleep(CALLBACK_DELAY_MILLIS);
+                postBuildResults(callbackPath);
+              } catch (Throwable e) {
+                callbackFailure = e;
+              }
+            }
+          }).start();
+        }
+      }
+    });
+    buildServer.start();
+    YoungAndroidProjectService.buildServerHost.setForTest(
+        "localhost:" + buildServer.getAddress().getPort());
+  }
+
+  /*
+   * Delivers the build results to ReceiveBuildServlet, as the build server's
+   * callback would.
+   */
+  private static void postBuildResults(String callbackPath) throws Exception {
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    ZipOutputStream zip = new ZipOutputStream(zipBytes);
+    zip.putNextEntry(new ZipEntry(PROJECT_NAME + ".apk"));
+    zip.write(new byte[] { 1, 2, 3 });
+    zip.putNextEntry(new ZipEntry("build.out"));
+    zip.write(BUILD_OUTPUT.getBytes("UTF-8"));
+    zip.close();
+    final InputStream zipInputStream = new ByteArrayInputStream(zipBytes.toByteArray());
+
+    HttpServletRequest request = createMock(HttpServletRequest.class);
+    expect(request.getRequestURI()).andReturn(callbackPath).anyTimes();
+    expect(request.getInputStream()).andReturn(new ServletInputStream() {
+      @Override
+      public int read() throws IOException {
+        return zipInputStream.read();
+      }
+    }).anyTimes();
+    replay(request);
+    new ReceiveBuildServlet().doPost(request, null);
+  }
+}
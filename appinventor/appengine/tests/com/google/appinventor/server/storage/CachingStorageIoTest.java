@@ -0,0 +1,292 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.storage.StorageUtil;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link CachingStorageIo}.
+ *
+ */
+public class CachingStorageIoTest extends LocalDatastoreTestCase {
+  private static final String USER_ID = "1000";
+  private static final String OTHER_USER_ID = "2000";
+  private static final String SETTINGS = "{settings: \"none\"}";
+  private static final String PROJECT_NAME = "Project1";
+  private static final String PROJECT_TYPE = "FakeProjectType";
+  private static final String FILE_NAME = "src/File1.scm";
+  private static final String FILE_CONTENT = "The quick onyx goblin jumps over the lazy dwarf";
+  private static final String RAW_FILE_NAME1 = "assets/File1.jpg";
+  private static final String RAW_FILE_NAME2 = "assets/File2.wav";
+  private static final byte[] RAW_FILE_CONTENT1 = { (byte) 0, (byte) 1, (byte) 32, (byte) 255};
+  private static final byte[] RAW_FILE_CONTENT2 = { (byte) 9, (byte) 8, (byte) 7};
+  private static final byte[] NEW_CONTENT = { (byte) 42 };
+
+  private ObjectifyStorageIo datastoreStorage;
+  private CachingStorageIo storage;
+  private long projectId;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    datastoreStorage = new ObjectifyStorageIo();
+    storage = new CachingStorageIo(datastoreStorage, new LocalStorageCache(1024 * 1024));
+
+    Project project = new Project(PROJECT_NAME);
+    project.setProjectType(PROJECT_TYPE);
+    project.addTextFile(new TextFile(FILE_NAME, FILE_CONTENT));
+    project.addRawFile(new RawFile(RAW_FILE_NAME1, RAW_FILE_CONTENT1));
+    project.addRawFile(new RawFile(RAW_FILE_NAME2, RAW_FILE_CONTENT2));
+    storage.getUser(USER_ID);
+    projectId = storage.createProject(USER_ID, project, SETTINGS);
+  }
+
+  public void testReadThrough() {
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+    assertEquals(0, storage.getHitCount());
+    assertEquals(1, storage.getMissCount());
+
+    // Change the file behind the cache's back, to show that it is not read again.
+    datastoreStorage.uploadRawFile(projectId, RAW_FILE_NAME1, USER_ID, NEW_CONTENT);
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+    assertEquals(1, storage.getHitCount());
+    assertEquals(0.5, storage.getHitRatio());
+  }
+
+  public void testCachedContentIsNotShared() {
+    byte[] content = storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1);
+    content[0] = (byte) 99;
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+  }
+
+  public void testUploadInvalidates() {
+    storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1);
+    storage.uploadRawFile(projectId, RAW_FILE_NAME1, USER_ID, NEW_CONTENT);
+    assertTrue(Arrays.equals(NEW_CONTENT,
+        storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+    assertEquals(0, storage.getHitCount());
+    assertTrue(Arrays.equals(NEW_CONTENT,
+        datastoreStorage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+
+    storage.downloadFile(USER_ID, projectId, FILE_NAME, StorageUtil.DEFAULT_CHARSET);
+    storage.uploadFile(projectId, FILE_NAME, USER_ID, "new text", StorageUtil.DEFAULT_CHARSET);
+    assertEquals("new text",
+        storage.downloadFile(USER_ID, projectId, FILE_NAME, StorageUtil.DEFAULT_CHARSET));
+    assertEquals(0, storage.getHitCount());
+  }
+
+  public void testStaleReadIsNotCachedAfterWrite() {
+    LocalStorageCache cache = new LocalStorageCache(1024 * 1024);
+    storage = new CachingStorageIo(datastoreStorage, cache);
+    checkStaleReadIsNotCached(cache);
+  }
+
+  /*
+   * A read that got the old content before a write, but caches it after the write, would leave
+   * the old content in the cache.
+   */
+  private void checkStaleReadIsNotCached(StorageCache cache) {
+    byte[] staleContent = datastoreStorage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1);
+    storage.uploadRawFile(projectId, RAW_FILE_NAME1, USER_ID, NEW_CONTENT);
+    cache.add(CachingStorageIo.fileKey(projectId, RAW_FILE_NAME1), staleContent);
+    assertTrue(Arrays.equals(NEW_CONTENT,
+        storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+  }
+
+  public void testDeleteFileInvalidates() {
+    storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1);
+    storage.deleteFile(USER_ID, projectId, RAW_FILE_NAME1);
+    try {
+      storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1);
+      fail();
+    } catch (RuntimeException e) {
+      // expected
+    }
+  }
+
+  public void testUploadInvalidatesDateModified() {
+    long dateModified = storage.getProjectDateModified(USER_ID, projectId);
+    long uploadDate = storage.uploadRawFile(projectId, RAW_FILE_NAME1, USER_ID, NEW_CONTENT);
+    assertTrue(uploadDate >= dateModified);
+    assertEquals(uploadDate, storage.getProjectDateModified(USER_ID, projectId));
+  }
+
+  public void testProjectMetadata() {
+    assertEquals(PROJECT_NAME, storage.getProjectName(USER_ID, projectId));
+    assertEquals(PROJECT_NAME, storage.getProjectName(USER_ID, projectId));
+    assertEquals(PROJECT_TYPE, storage.getProjectType(USER_ID, projectId));
+    assertEquals(SETTINGS, storage.loadProjectSettings(USER_ID, projectId));
+    storage.storeProjectSettings(USER_ID, projectId, "{}");
+    assertEquals("{}", storage.loadProjectSettings(USER_ID, projectId));
+    assertEquals(1, storage.getHitCount());
+  }
+
+  public void testOtherUserIsUnauthorizedForCachedMetadata() {
+    storage.getProjectName(USER_ID, projectId);
+    storage.getProjectType(USER_ID, projectId);
+    storage.getProjectDateModified(USER_ID, projectId);
+    storage.getProjectDateCreated(USER_ID, projectId);
+    storage.getUser(OTHER_USER_ID);
+    try {
+      storage.getProjectName(OTHER_USER_ID, projectId);
+      fail();
+    } catch (Exception e) {
+      assertTrue(e instanceof UnauthorizedAccessException
+                 || e.getCause() instanceof UnauthorizedAccessException);
+    }
+    try {
+      storage.getProjectType(OTHER_USER_ID, projectId);
+      fail();
+    } catch (Exception e) {
+      assertTrue(e instanceof UnauthorizedAccessException
+                 || e.getCause() instanceof UnauthorizedAccessException);
+    }
+    try {
+      storage.getProjectDateModified(OTHER_USER_ID, projectId);
+      fail();
+    } catch (Exception e) {
+      assertTrue(e instanceof UnauthorizedAccessException
+                 || e.getCause() instanceof UnauthorizedAccessException);
+    }
+    try {
+      storage.getProjectDateCreated(OTHER_USER_ID, projectId);
+      fail();
+    } catch (Exception e) {
+      assertTrue(e instanceof UnauthorizedAccessException
+                 || e.getCause() instanceof UnauthorizedAccessException);
+    }
+    assertEquals(4, storage.getHitCount());
+  }
+
+  public void testOtherUserIsUnauthorizedOnHit() {
+    storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1);
+    storage.getUser(OTHER_USER_ID);
+    try {
+      storage.downloadRawFile(OTHER_USER_ID, projectId, RAW_FILE_NAME1);
+      fail();
+    } catch (Exception e) {
+      assertTrue(e instanceof UnauthorizedAccessException
+                 || e.getCause() instanceof UnauthorizedAccessException);
+    }
+    assertEquals(1, storage.getHitCount());
+  }
+
+  public void testDownloadRawFilesReadsOnlyMisses() {
+    storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME2);
+    List<byte[]> contents = storage.downloadRawFiles(USER_ID, projectId,
+        Arrays.asList(RAW_FILE_NAME1, RAW_FILE_NAME2));
+    assertEquals(2, contents.size());
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1, contents.get(0)));
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT2, contents.get(1)));
+    assertEquals(1, storage.getHitCount());
+    assertEquals(2, storage.getMissCount());
+
+    contents = storage.downloadRawFiles(USER_ID, projectId,
+        Arrays.asList(RAW_FILE_NAME1, RAW_FILE_NAME2));
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1, contents.get(0)));
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT2, contents.get(1)));
+    assertEquals(3, storage.getHitCount());
+  }
+
+  public void testLargeFilesAreNotCached() {
+    byte[] large = new byte[CachingStorageIo.MAX_CACHED_FILE_BYTES + 1];
+    storage.uploadRawFile(projectId, RAW_FILE_NAME1, USER_ID, large);
+    storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1);
+    assertEquals(0, storage.getHitCount());
+  }
+
+  public void testLocalStorageCacheEvictsLeastRecentlyUsed() {
+    LocalStorageCache cache = new LocalStorageCache(100);
+    cache.add("a", new byte[40]);
+    cache.add("b", new byte[40]);
+    cache.get("a");
+    cache.add("c", new byte[40]);
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    assertTrue(cache.getSizeBytes() <= 100);
+
+    cache.add("a", new byte[1]);
+    assertEquals(40, ((byte[]) cache.get("a")).length);
+  }
+
+  public void testLocalStorageCacheHoldsDeletedKeys() {
+    final long[] now = { 1000 };
+    LocalStorageCache cache = new LocalStorageCache(100) {
+      @Override
+      long currentTimeMillis() {
+        return now[0];
+      }
+    };
+    cache.add("a", new byte[1]);
+    cache.deleteAll(Arrays.asList("a"));
+    cache.add("a", new byte[2]);
+    assertNull(cache.get("a"));
+    now[0] += StorageCache.DELETE_HOLD_MILLIS;
+    cache.add("a", new byte[3]);
+    assertEquals(3, ((byte[]) cache.get("a")).length);
+  }
+
+  public void testMemcache() {
+    storage = new CachingStorageIo(datastoreStorage,
+        new MemcacheStorageCache(MemcacheServiceFactory.getMemcacheService()));
+    storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1);
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+    assertEquals(1, storage.getHitCount());
+
+    storage.uploadRawFile(projectId, RAW_FILE_NAME1, USER_ID, NEW_CONTENT);
+    assertTrue(Arrays.equals(NEW_CONTENT,
+        storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+    assertEquals(1, storage.getHitCount());
+  }
+
+  public void testMemcacheStaleReadIsNotCachedAfterWrite() {
+    MemcacheStorageCache cache =
+        new MemcacheStorageCache(MemcacheServiceFactory.getMemcacheService());
+    storage = new CachingStorageIo(datastoreStorage, cache);
+    checkStaleReadIsNotCached(cache);
+  }
+
+  public void testWrapUsesMemcacheInProduction() {
+    String environment = SystemProperty.environment.get();
+    try {
+      SystemProperty.environment.set(SystemProperty.Environment.Value.Production);
+      StorageIo wrapped = CachingStorageIo.wrap(datastoreStorage);
+      assertTrue(wrapped instanceof CachingStorageIo);
+      storage = (CachingStorageIo) wrapped;
+
+      assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+          storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+      assertNotNull(MemcacheServiceFactory.getMemcacheService().get(
+          CachingStorageIo.fileKey(projectId, RAW_FILE_NAME1)));
+      assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+          storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+      assertEquals(1, storage.getHitCount());
+
+      storage.uploadRawFile(projectId, RAW_FILE_NAME1, USER_ID, NEW_CONTENT);
+      assertNull(MemcacheServiceFactory.getMemcacheService().get(
+          CachingStorageIo.fileKey(projectId, RAW_FILE_NAME1)));
+      assertTrue(Arrays.equals(NEW_CONTENT,
+          storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+    } finally {
+      if (environment != null) {
+        SystemProperty.environment.set(environment);
+      } else {
+        System.clearProperty(SystemProperty.environment.key());
+      }
+    }
+  }
+}
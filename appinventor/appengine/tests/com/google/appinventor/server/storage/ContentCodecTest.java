@@ -0,0 +1,53 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ContentCodec}.
+ *
+ */
+public class ContentCodecTest extends TestCase {
+  private static final byte[] CONTENT =
+      Strings.repeat("<xml><block type=\"text\"/></xml>\n", 100).getBytes();
+
+  public void testNoneStoresContentAsIs() throws Exception {
+    assertSame(CONTENT, ContentCodec.NONE.encode(CONTENT));
+    assertSame(CONTENT, ContentCodec.NONE.decode(CONTENT));
+  }
+
+  public void testGzipRoundTrips() throws Exception {
+    byte[] stored = ContentCodec.GZIP.encode(CONTENT);
+    assertTrue(stored.length < CONTENT.length / 10);
+    assertTrue(Arrays.equals(CONTENT, ContentCodec.GZIP.decode(stored)));
+    assertTrue(Arrays.equals(CONTENT, ByteStreams.toByteArray(
+        ContentCodec.GZIP.decode(new ByteArrayInputStream(stored)))));
+    assertEquals(0, ContentCodec.GZIP.decode(ContentCodec.GZIP.encode(new byte[0])).length);
+  }
+
+  public void testCorruptContent() {
+    try {
+      ContentCodec.GZIP.decode(CONTENT);
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testCodecs() {
+    assertEquals(ContentCodec.NONE, ContentCodec.of(null));
+    assertEquals(ContentCodec.GZIP, ContentCodec.of(ContentCodec.GZIP));
+    assertEquals(ContentCodec.GZIP, ContentCodec.forFile("src/com/yourdomain/Screen1.scm"));
+    assertEquals(ContentCodec.GZIP, ContentCodec.forFile("src/com/yourdomain/Screen1.blk"));
+    assertEquals(ContentCodec.NONE, ContentCodec.forFile("assets/kitty.png"));
+    assertEquals(ContentCodec.NONE, ContentCodec.forFile("youngandroidproject/project.properties"));
+  }
+}
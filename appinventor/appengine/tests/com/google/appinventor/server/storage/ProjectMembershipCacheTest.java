@@ -0,0 +1,77 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ProjectMembershipCache}.
+ *
+ */
+public class ProjectMembershipCacheTest extends TestCase {
+  private static final String USER_ID1 = "1";
+  private static final String USER_ID2 = "2";
+  private static final long TTL_MILLIS = 10000;
+
+  private long now;
+
+  private ProjectMembershipCache newCache(int maxUsers, long ttlMillis) {
+    return new ProjectMembershipCache(maxUsers, ttlMillis) {
+      @Override
+      long currentTimeMillis() {
+        return now;
+      }
+    };
+  }
+
+  public void testGetAndPut() {
+    ProjectMembershipCache cache = newCache(10, TTL_MILLIS);
+    assertNull(cache.get(USER_ID1));
+    cache.put(USER_ID1, Arrays.asList(1L, 2L));
+    Set<Long> projectIds = cache.get(USER_ID1);
+    assertEquals(2, projectIds.size());
+    assertTrue(projectIds.contains(1L));
+    assertTrue(projectIds.contains(2L));
+    assertNull(cache.get(USER_ID2));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  public void testExpiration() {
+    ProjectMembershipCache cache = newCache(10, TTL_MILLIS);
+    cache.put(USER_ID1, Arrays.asList(1L));
+    now += TTL_MILLIS - 1;
+    assertNotNull(cache.get(USER_ID1));
+    now += 1;
+    assertNull(cache.get(USER_ID1));
+  }
+
+  public void testInvalidate() {
+    ProjectMembershipCache cache = newCache(10, TTL_MILLIS);
+    cache.put(USER_ID1, Arrays.asList(1L));
+    cache.put(USER_ID2, Arrays.asList(2L));
+    cache.invalidate(USER_ID1);
+    assertNull(cache.get(USER_ID1));
+    assertNotNull(cache.get(USER_ID2));
+  }
+
+  public void testLeastRecentlyUsedUserIsEvicted() {
+    ProjectMembershipCache cache = newCache(2, TTL_MILLIS);
+    cache.put(USER_ID1, Arrays.asList(1L));
+    cache.put(USER_ID2, Arrays.asList(2L));
+    cache.get(USER_ID1);
+    cache.put("3", Arrays.asList(3L));
+    assertNotNull(cache.get(USER_ID1));
+    assertNull(cache.get(USER_ID2));
+    assertNotNull(cache.get("3"));
+  }
+
+  public void testZeroTtlDisablesCache() {
+    ProjectMembershipCache cache = newCache(10, 0);
+    cache.put(USER_ID1, Arrays.asList(1L));
+    assertNull(cache.get(USER_ID1));
+  }
+}
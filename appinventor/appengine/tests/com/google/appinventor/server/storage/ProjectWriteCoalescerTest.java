@@ -0,0 +1,268 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ProjectWriteCoalescer}.
+ *
+ */
+public class ProjectWriteCoalescerTest extends TestCase {
+  private static final long PROJECT_ID1 = 1;
+  private static final long PROJECT_ID2 = 2;
+
+  // A BatchWriter that records the batches that it writes, and returns the number of each batch as
+  // its modification date. It can hold the first batch until it is released, so that the writes
+  // made meanwhile are known to wait for the next batch.
+  private static class RecordingBatchWriter implements ProjectWriteCoalescer.BatchWriter {
+    final List<Map<String, byte[]>> batches =
+        Collections.synchronizedList(new ArrayList<Map<String, byte[]>>());
+    final CountDownLatch firstBatchWriting = new CountDownLatch(1);
+    final CountDownLatch releaseFirstBatch;
+
+    RecordingBatchWriter(boolean holdFirstBatch) {
+      releaseFirstBatch = new CountDownLatch(holdFirstBatch ? 1 : 0);
+    }
+
+    @Override
+    public long write(long projectId, Map<String, byte[]> files,
+        Map<String, RuntimeException> failures) throws ObjectifyException {
+      int batch;
+      synchronized (batches) {
+        batches.add(new LinkedHashMap<String, byte[]>(files));
+        batch = batches.size();
+      }
+      if (batch == 1) {
+        firstBatchWriting.countDown();
+        try {
+          releaseFirstBatch.await();
+        } catch (InterruptedException e) {
+          throw new ObjectifyException(e);
+        }
+      }
+      return batch;
+    }
+  }
+
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  public void testSingleWrite() throws Exception {
+    RecordingBatchWriter writer = new RecordingBatchWriter(false);
+    ProjectWriteCoalescer coalescer = new ProjectWriteCoalescer(writer, 0);
+    assertEquals(1, coalescer.write(PROJECT_ID1, "Screen1.scm", new byte[] { 1 }));
+    assertEquals(1, writer.batches.size());
+    assertEquals(1, writer.batches.get(0).get("Screen1.scm")[0]);
+    assertEquals(1, coalescer.getBatchCount());
+    assertEquals(1, coalescer.getWriteCount());
+  }
+
+  public void testConcurrentWritesAreCoalesced() throws Exception {
+    RecordingBatchWriter writer = new RecordingBatchWriter(true);
+    ProjectWriteCoalescer coalescer = new ProjectWriteCoalescer(writer, 0);
+    Future<Long> first = executor.submit(newWrite(coalescer, new CountDownLatch(0), PROJECT_ID1,
+        "Screen0.scm", new byte[] { 0 }));
+    assertTrue(writer.firstBatchWriting.await(10, TimeUnit.SECONDS));
+
+    // The writes made while the first batch is being committed are committed together next.
+    List<Future<Long>> results = new ArrayList<Future<Long>>();
+    int writes = 20;
+    for (int i = 1; i < writes; i++) {
+      results.add(executor.submit(newWrite(coalescer, new CountDownLatch(0), PROJECT_ID1,
+          "Screen" + i + ".scm", new byte[] { (byte) i })));
+    }
+    awaitWrites(coalescer, writes);
+    writer.releaseFirstBatch.countDown();
+    assertEquals(1, first.get(10, TimeUnit.SECONDS).longValue());
+    for (Future<Long> result : results) {
+      assertEquals(2, result.get(10, TimeUnit.SECONDS).longValue());
+    }
+
+    assertEquals(writes, coalescer.getWriteCount());
+    assertEquals(2, coalescer.getBatchCount());
+    assertEquals(2, writer.batches.size());
+    assertEquals(1, writer.batches.get(0).size());
+    assertEquals(writes - 1, writer.batches.get(1).size());
+  }
+
+  public void testLastWriteOfAFileWins() throws Exception {
+    RecordingBatchWriter writer = new RecordingBatchWriter(true);
+    ProjectWriteCoalescer coalescer = new ProjectWriteCoalescer(writer, 0);
+    Future<Long> held = executor.submit(newWrite(coalescer, new CountDownLatch(0), PROJECT_ID1,
+        "Screen1.scm", new byte[0]));
+    assertTrue(writer.firstBatchWriting.await(10, TimeUnit.SECONDS));
+
+    // Both writes of the file wait for the held batch, and the later one is committed.
+    Future<Long> first = executor.submit(newWrite(coalescer, new CountDownLatch(0), PROJECT_ID1,
+        "Screen1.blk", new byte[] { 1 }));
+    awaitWrites(coalescer, 2);
+    Future<Long> second = executor.submit(newWrite(coalescer, new CountDownLatch(0), PROJECT_ID1,
+        "Screen1.blk", new byte[] { 2 }));
+    awaitWrites(coalescer, 3);
+    writer.releaseFirstBatch.countDown();
+    assertEquals(1, held.get(10, TimeUnit.SECONDS).longValue());
+    assertEquals(2, first.get(10, TimeUnit.SECONDS).longValue());
+    assertEquals(2, second.get(10, TimeUnit.SECONDS).longValue());
+    assertEquals(2, writer.batches.size());
+    assertEquals(1, writer.batches.get(1).size());
+    assertEquals(2, writer.batches.get(1).get("Screen1.blk")[0]);
+  }
+
+  public void testProjectsAreNotCoalescedTogether() throws Exception {
+    final CountDownLatch project1Writing = new CountDownLatch(1);
+    final CountDownLatch releaseProject1 = new CountDownLatch(1);
+    ProjectWriteCoalescer coalescer = new ProjectWriteCoalescer(
+        new ProjectWriteCoalescer.BatchWriter() {
+          @Override
+          public long write(long projectId, Map<String, byte[]> files,
+              Map<String, RuntimeException> failures) throws ObjectifyException {
+            if (projectId == PROJECT_ID1) {
+              project1Writing.countDown();
+              try {
+                releaseProject1.await();
+              } catch (InterruptedException e) {
+                throw new ObjectifyException(e);
+              }
+            }
+            return projectId;
+          }
+        }, 0);
+    Future<Long> project1Write = executor.submit(
+        newWrite(coalescer, new CountDownLatch(0), PROJECT_ID1, "Screen1.scm", new byte[0]));
+    assertTrue(project1Writing.await(10, TimeUnit.SECONDS));
+    // Project 2 doesn't wait for project 1's transaction.
+    assertEquals(PROJECT_ID2, coalescer.write(PROJECT_ID2, "Screen1.scm", new byte[0]));
+    assertFalse(project1Write.isDone());
+    releaseProject1.countDown();
+    assertEquals(PROJECT_ID1, project1Write.get(10, TimeUnit.SECONDS).longValue());
+  }
+
+  public void testFailureOfOneFileGoesToItsWriter() throws Exception {
+    ProjectWriteCoalescer coalescer = new ProjectWriteCoalescer(
+        new ProjectWriteCoalescer.BatchWriter() {
+          @Override
+          public long write(long projectId, Map<String, byte[]> files,
+              Map<String, RuntimeException> failures) {
+            for (String fileName : files.keySet()) {
+              if (fileName.startsWith("missing")) {
+                failures.put(fileName, new IllegalStateException(fileName));
+              }
+            }
+            return 42;
+          }
+        }, 100);
+    CountDownLatch start = new CountDownLatch(1);
+    Future<Long> good =
+        executor.submit(newWrite(coalescer, start, PROJECT_ID1, "Screen1.scm", new byte[0]));
+    Future<Long> bad =
+        executor.submit(newWrite(coalescer, start, PROJECT_ID1, "missing.scm", new byte[0]));
+    start.countDown();
+    assertEquals(42, good.get().longValue());
+    try {
+      bad.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+      assertEquals("missing.scm", e.getCause().getMessage());
+    }
+  }
+
+  public void testExceptionGoesToAllWriters() throws Exception {
+    ProjectWriteCoalescer coalescer = new ProjectWriteCoalescer(
+        new ProjectWriteCoalescer.BatchWriter() {
+          @Override
+          public long write(long projectId, Map<String, byte[]> files,
+              Map<String, RuntimeException> failures) throws ObjectifyException {
+            throw new ObjectifyException("Couldn't commit job after max retries.");
+          }
+        }, 100);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<Long>> results = new ArrayList<Future<Long>>();
+    for (int i = 0; i < 3; i++) {
+      results.add(executor.submit(newWrite(coalescer, start, PROJECT_ID1, "Screen" + i + ".scm",
+          new byte[0])));
+    }
+    start.countDown();
+    for (Future<Long> result : results) {
+      try {
+        result.get();
+        fail();
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof ObjectifyException);
+      }
+    }
+  }
+
+  public void testErrorGoesToAllWriters() throws Exception {
+    final Error error = new Error("writer failed");
+    ProjectWriteCoalescer coalescer = new ProjectWriteCoalescer(
+        new ProjectWriteCoalescer.BatchWriter() {
+          @Override
+          public long write(long projectId, Map<String, byte[]> files,
+              Map<String, RuntimeException> failures) {
+            throw error;
+          }
+        }, 100);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<Long>> results = new ArrayList<Future<Long>>();
+    for (int i = 0; i < 3; i++) {
+      results.add(executor.submit(newWrite(coalescer, start, PROJECT_ID1, "Screen" + i + ".scm",
+          new byte[0])));
+    }
+    start.countDown();
+    for (Future<Long> result : results) {
+      try {
+        result.get();
+        fail();
+      } catch (ExecutionException e) {
+        assertSame(error, e.getCause());
+      }
+    }
+  }
+
+  // Waits until the given number of writes have joined a batch.
+  private static void awaitWrites(ProjectWriteCoalescer coalescer, int writes)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (coalescer.getWriteCount() < writes) {
+      assertTrue("Timed out waiting for " + writes + " writes",
+          System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+  }
+
+  private static Callable<Long> newWrite(final ProjectWriteCoalescer coalescer,
+      final CountDownLatch start, final long projectId, final String fileName,
+      final byte[] content) {
+    return new Callable<Long>() {
+      @Override
+      public Long call() throws Exception {
+        start.await();
+        return coalescer.write(projectId, fileName, content);
+      }
+    };
+  }
+}
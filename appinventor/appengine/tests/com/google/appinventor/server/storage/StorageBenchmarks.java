@@ -0,0 +1,210 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.common.testutils.TestUtils;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.storage.StorageUtil;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.utils.config.GenerationDirectory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmarks of {@link ObjectifyStorageIo} against the local datastore. The
+ * unit tests check how these operations behave, such as how many
+ * transactions they take, and these measure how long they take.
+ *
+ * <p>Run it with {@code ant StorageBenchmarks}. The local datastore is much
+ * faster than App Engine's, so the times are only useful for comparing
+ * commits with each other.</p>
+ *
+ */
+public final class StorageBenchmarks {
+  private static final String APPENGINE_GENERATED_DIR = TestUtils.APP_INVENTOR_ROOT_DIR +
+      "/appengine/build/benchmarks/appengine-generated";
+  private static final String PROJECT_TYPE = "FakeProjectType";
+  private static final String SETTINGS = "";
+
+  private StorageBenchmarks() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty(GenerationDirectory.GENERATED_DIR_PROPERTY, APPENGINE_GENERATED_DIR);
+    LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+            new LocalMemcacheServiceTestConfig());
+    helper.setUp();
+    try {
+      benchmarkProjectMembershipCache(6, 20, 20);
+      benchmarkConcurrentSaves(8, 5);
+      benchmarkCopyProject(50, 32 * 1024, 5);
+    } finally {
+      helper.tearDown();
+    }
+  }
+
+  /*
+   * Opens each form and blocks file of a project of a user with other projects, without and with
+   * the project membership cache.
+   */
+  private static void benchmarkProjectMembershipCache(int screens, int otherProjects, int opens) {
+    ObjectifyStorageIo storage = new ObjectifyStorageIo();
+    String userId = "projectMembershipCache";
+    storage.getUser(userId);
+    // The check without the cache reads all of the user's projects.
+    for (int i = 0; i < otherProjects; i++) {
+      Project project = new Project("Other" + i);
+      project.setProjectType(PROJECT_TYPE);
+      project.addTextFile(new TextFile("src/com/yourdomain/Screen1.scm", ""));
+      storage.createProject(userId, project, SETTINGS);
+    }
+    Project project = new Project("ProjectMembershipCache");
+    project.setProjectType(PROJECT_TYPE);
+    List<String> fileNames = new ArrayList<String>();
+    for (int i = 1; i <= screens; i++) {
+      String formName = "src/com/yourdomain/Screen" + i + ".scm";
+      String blocksName = "src/com/yourdomain/Screen" + i + ".blk";
+      project.addTextFile(new TextFile(formName, "form " + i));
+      project.addTextFile(new TextFile(blocksName, "blocks " + i));
+      fileNames.add(formName);
+      fileNames.add(blocksName);
+    }
+    long projectId = storage.createProject(userId, project, SETTINGS);
+
+    ObjectifyStorageIo uncached = new ObjectifyStorageIo(new ProjectMembershipCache(1, 0));
+    ObjectifyStorageIo cached = new ObjectifyStorageIo(new ProjectMembershipCache(1, 60000));
+    // Warm up.
+    openFiles(uncached, userId, projectId, fileNames, 1);
+    openFiles(cached, userId, projectId, fileNames, 1);
+    long uncachedMillis = openFiles(uncached, userId, projectId, fileNames, opens);
+    long cachedMillis = openFiles(cached, userId, projectId, fileNames, opens);
+    System.out.println("Opening " + fileNames.size() + " files: " +
+        ((double) uncachedMillis / opens) + " ms without the project membership cache, " +
+        ((double) cachedMillis / opens) + " ms with it");
+  }
+
+  private static long openFiles(StorageIo storageIo, String userId, long projectId,
+      List<String> fileNames, int opens) {
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < opens; i++) {
+      for (String fileName : fileNames) {
+        storageIo.downloadRawFile(userId, projectId, fileName);
+      }
+    }
+    return System.currentTimeMillis() - start;
+  }
+
+  /*
+   * Several threads save different files of one project at the same time, as the autosaves of a
+   * project's editors do.
+   */
+  private static void benchmarkConcurrentSaves(int files, final int savesPerFile)
+      throws Exception {
+    final ObjectifyStorageIo storage = new ObjectifyStorageIo();
+    final String userId = "concurrentSaves";
+    storage.getUser(userId);
+    Project project = new Project("ConcurrentSaves");
+    project.setProjectType(PROJECT_TYPE);
+    List<String> fileNames = new ArrayList<String>();
+    for (int i = 1; i <= files; i++) {
+      String fileName = "src/com/yourdomain/Screen" + i + ".scm";
+      project.addTextFile(new TextFile(fileName, ""));
+      fileNames.add(fileName);
+    }
+    final long projectId = storage.createProject(userId, project, SETTINGS);
+
+    final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    List<Thread> threads = new ArrayList<Thread>();
+    long start = System.currentTimeMillis();
+    for (final String fileName : fileNames) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          ApiProxy.setEnvironmentForCurrentThread(environment);
+          try {
+            for (int i = 0; i < savesPerFile; i++) {
+              storage.uploadFile(projectId, fileName, userId, fileName + " save " + i,
+                  StorageUtil.DEFAULT_CHARSET);
+            }
+          } catch (Throwable e) {
+            failures.add(e);
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long millis = System.currentTimeMillis() - start;
+    if (!failures.isEmpty()) {
+      throw new IllegalStateException("A save failed", failures.get(0));
+    }
+
+    ProjectWriteCoalescer coalescer = storage.getUploadCoalescer();
+    System.out.println(files * savesPerFile + " concurrent saves to one project: " + millis +
+        " ms in " + coalescer.getBatchCount() + " transactions, with " +
+        storage.getJobRetryStats().getRetryCount("uploadRawFile") + " retries");
+  }
+
+  /*
+   * Copies a project with the given number of assets, by downloading and uploading them and by
+   * sharing them with copyProject.
+   */
+  private static void benchmarkCopyProject(int assets, int assetBytes, int copies) {
+    ObjectifyStorageIo storage = new ObjectifyStorageIo();
+    String userId = "copyProject";
+    storage.getUser(userId);
+    Project project = new Project("CopyProject");
+    project.setProjectType(PROJECT_TYPE);
+    project.addTextFile(new TextFile("src/com/yourdomain/Screen1.scm", ""));
+    Random random = new Random(assets);
+    Map<String, String> copiedFileNames = new LinkedHashMap<String, String>();
+    for (int i = 1; i <= assets; i++) {
+      byte[] content = new byte[assetBytes];
+      random.nextBytes(content);
+      String fileName = "assets/asset" + i + ".png";
+      project.addRawFile(new RawFile(fileName, content));
+      copiedFileNames.put(fileName, fileName);
+    }
+    long projectId = storage.createProject(userId, project, SETTINGS);
+
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < copies; i++) {
+      Project copy = new Project("Downloaded" + i);
+      copy.setProjectType(PROJECT_TYPE);
+      for (String fileName : storage.getProjectSourceFiles(userId, projectId)) {
+        copy.addRawFile(new RawFile(fileName,
+            storage.downloadRawFile(userId, projectId, fileName)));
+      }
+      storage.createProject(userId, copy, SETTINGS);
+    }
+    long downloadMillis = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    for (int i = 0; i < copies; i++) {
+      Project copy = new Project("Shared" + i);
+      copy.setProjectType(PROJECT_TYPE);
+      copy.addTextFile(new TextFile("src/com/yourdomain/Screen1.scm", ""));
+      storage.copyProject(userId, projectId, copy, copiedFileNames, SETTINGS);
+    }
+    long sharedMillis = System.currentTimeMillis() - start;
+    System.out.println("Copying a project with " + assets + " assets: " +
+        ((double) downloadMillis / copies) + " ms by downloading and uploading them, " +
+        ((double) sharedMillis / copies) + " ms by sharing them");
+  }
+}
@@ -3,6 +3,8 @@
 package com.google.appinventor.blockseditor.youngandroid;
 
 import com.google.appinventor.blockseditor.jsonp.Util;
+import com.google.appinventor.common.youngandroid.TextDelta;
+import com.google.appinventor.common.youngandroid.YaHttpServerConstants;
 
 import openblocks.yacodeblocks.ExternalController;
 import openblocks.yacodeblocks.FeedbackReporter;
@@ -31,37 +33,71 @@ public final class YaCodeblocksController implements ExternalController {
   private final String baseUrl;
   private String formPropertiesPath;
 
+  // The contents of each codeblocks source file as it was last saved, so that the next save only
+  // needs to post a delta. Guarded by this.
+  private final Map<String, String> savedContents = new HashMap<String, String>();
+
   public YaCodeblocksController(YaHttpServerMain.ServerConnection conn, String baseUrl) {
     this.conn = conn;
     this.baseUrl = baseUrl;
     this.formPropertiesPath = "";
   }
 
+  // Synchronized so that the saves of a file reach the server in order, each with the delta
+  // against the contents of the one before.
   @Override
-  public void writeCodeblocksSourceToServer(String path, String contents) throws IOException {
+  public synchronized void writeCodeblocksSourceToServer(String path, String contents)
+      throws IOException {
     if (path == null) {
       throw new IOException("Can't save codeblocks source since we don't know " +
           "the path name yet!");
     }
     System.out.println("Trying to save codeblocks source");
-    if (writeContentsToServer(path, contents, "codeblocks source")) {
+    // The server adds a newline to contents that don't end with one, and the deltas must be
+    // against the contents that the server stored.
+    if (!contents.endsWith("\n")) {
+      contents = contents + "\n";
+    }
+    if (writeDeltaToServer(path, contents)
+        || writeContentsToServer(path, contents, "codeblocks source")) {
+      savedContents.put(path, contents);
       System.out.println("Successfully saved codeblocks source");
     } else {
+      savedContents.remove(path);
       throw new IOException("Couldn't save blocks source");
     }
   }
 
+  /*
+   * Posts the delta between the contents that were last saved to the given path and the given
+   * contents. Returns false, without reporting an error, if nothing was saved to the path yet, or
+   * if the server didn't apply the delta, for example because the file was changed by someone
+   * else since, in which case the caller saves the whole contents.
+   */
+  private boolean writeDeltaToServer(String path, String contents) {
+    String savedContent = savedContents.get(path);
+    if (savedContent == null) {
+      return false;
+    }
+    try {
+      HttpURLConnection httpUrlConn = postToServer(path, YaHttpServerConstants.DELTA_CONTENT_TYPE,
+          TextDelta.create(savedContent, contents).encode());
+      int responseCode = httpUrlConn.getResponseCode();
+      if (responseCode == HttpURLConnection.HTTP_OK) {
+        return true;
+      }
+      System.out.println("Delta for " + path + " not saved (response code " + responseCode
+          + "), saving the whole contents");
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    return false;
+  }
+
   // @VisibleForTesting
   boolean writeContentsToServer(String path, String contents, String what) {
     try {
-      HttpURLConnection httpUrlConn = conn.getConnection(baseUrl + path);
-      httpUrlConn.setDoOutput(true);
-      httpUrlConn.setRequestMethod("POST");
-      httpUrlConn.addRequestProperty("Content-Type", "text/plain; charset=utf-8");
-      httpUrlConn.connect();
-      OutputStreamWriter writer = new OutputStreamWriter(httpUrlConn.getOutputStream(), "UTF-8");
-      writer.write(contents);
-      writer.close();
+      HttpURLConnection httpUrlConn = postToServer(path, "text/plain; charset=utf-8", contents);
       int responseCode = httpUrlConn.getResponseCode();
       if (responseCode == HttpURLConnection.HTTP_OK) {
         System.out.println("Saved " + what);
@@ -93,6 +129,23 @@ public final class YaCodeblocksController implements ExternalController {
     return false;
   }
 
+  /*
+   * Posts the given body to the given path and returns the connection, from which the response
+   * can be read.
+   */
+  private HttpURLConnection postToServer(String path, String contentType, String body)
+      throws IOException {
+    HttpURLConnection httpUrlConn = conn.getConnection(baseUrl + path);
+    httpUrlConn.setDoOutput(true);
+    httpUrlConn.setRequestMethod("POST");
+    httpUrlConn.addRequestProperty("Content-Type", contentType);
+    httpUrlConn.connect();
+    OutputStreamWriter writer = new OutputStreamWriter(httpUrlConn.getOutputStream(), "UTF-8");
+    writer.write(body);
+    writer.close();
+    return httpUrlConn;
+  }
+
   /**
    * Returns the content of the given {@link InputStream} as a {@link String}.
    * @param inputStream the InputStream to get the contents of.
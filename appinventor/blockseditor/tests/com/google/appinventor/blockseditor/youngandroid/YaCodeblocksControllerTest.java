@@ -0,0 +1,92 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.blockseditor.youngandroid;
+
+import static org.easymock.EasyMock.expect;
+
+import com.google.appinventor.common.youngandroid.TextDelta;
+import com.google.appinventor.common.youngandroid.YaHttpServerConstants;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import openblocks.yacodeblocks.FeedbackReporter;
+
+import java.io.ByteArrayOutputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * Tests for the saving of codeblocks source by {@link YaCodeblocksController}.
+ *
+ */
+public class YaCodeblocksControllerTest extends TestCase {
+  private static final String baseUrl = "/yatest/";
+  private static final String codeblocksSourcePath = "test.blk";
+  private static final String oldSource = "<YACodeBlocks><Block id=\"1\"/></YACodeBlocks>\n";
+  private static final String newSource =
+      "<YACodeBlocks><Block id=\"1\"/><Block id=\"2\"/></YACodeBlocks>\n";
+
+  private YaHttpServerMain.ServerConnection mockServerConn;
+  private YaCodeblocksController controller;
+
+  @Override
+  protected void setUp() throws Exception {
+    FeedbackReporter.testingMode = true;
+    mockServerConn = EasyMock.createMock(YaHttpServerMain.ServerConnection.class);
+    controller = new YaCodeblocksController(mockServerConn, baseUrl);
+  }
+
+  public void testFirstSaveIsFullAndLaterSavesAreDeltas() throws Exception {
+    ByteArrayOutputStream fullBody = new ByteArrayOutputStream();
+    HttpURLConnection fullConn =
+        expectPost("text/plain; charset=utf-8", fullBody, HttpURLConnection.HTTP_OK);
+    ByteArrayOutputStream deltaBody = new ByteArrayOutputStream();
+    HttpURLConnection deltaConn =
+        expectPost(YaHttpServerConstants.DELTA_CONTENT_TYPE, deltaBody, HttpURLConnection.HTTP_OK);
+    EasyMock.replay(mockServerConn, fullConn, deltaConn);
+
+    // The source is saved with the newline that the server would add.
+    controller.writeCodeblocksSourceToServer(codeblocksSourcePath, oldSource.trim());
+    assertEquals(oldSource, fullBody.toString("UTF-8"));
+    controller.writeCodeblocksSourceToServer(codeblocksSourcePath, newSource);
+    TextDelta delta = TextDelta.decode(deltaBody.toString("UTF-8"));
+    assertFalse(delta.isFull());
+    assertEquals("<Block id=\"2\"/>".length(), delta.getReplacementLength());
+    assertEquals(newSource, delta.apply(oldSource));
+
+    EasyMock.verify(mockServerConn, fullConn, deltaConn);
+  }
+
+  public void testRejectedDeltaFallsBackToFullSave() throws Exception {
+    ByteArrayOutputStream firstBody = new ByteArrayOutputStream();
+    HttpURLConnection firstConn =
+        expectPost("text/plain; charset=utf-8", firstBody, HttpURLConnection.HTTP_OK);
+    ByteArrayOutputStream deltaBody = new ByteArrayOutputStream();
+    HttpURLConnection deltaConn = expectPost(YaHttpServerConstants.DELTA_CONTENT_TYPE, deltaBody,
+        HttpURLConnection.HTTP_CONFLICT);
+    ByteArrayOutputStream fullBody = new ByteArrayOutputStream();
+    HttpURLConnection fullConn =
+        expectPost("text/plain; charset=utf-8", fullBody, HttpURLConnection.HTTP_OK);
+    EasyMock.replay(mockServerConn, firstConn, deltaConn, fullConn);
+
+    controller.writeCodeblocksSourceToServer(codeblocksSourcePath, oldSource);
+    controller.writeCodeblocksSourceToServer(codeblocksSourcePath, newSource);
+    assertEquals(newSource, fullBody.toString("UTF-8"));
+
+    EasyMock.verify(mockServerConn, firstConn, deltaConn, fullConn);
+  }
+
+  private HttpURLConnection expectPost(String contentType, ByteArrayOutputStream body,
+      int responseCode) throws Exception {
+    HttpURLConnection urlConn = EasyMock.createMock(HttpURLConnection.class);
+    expect(mockServerConn.getConnection(baseUrl + codeblocksSourcePath)).andReturn(urlConn);
+    urlConn.setDoOutput(true);
+    urlConn.setRequestMethod("POST");
+    urlConn.addRequestProperty("Content-Type", contentType);
+    urlConn.connect();
+    expect(urlConn.getOutputStream()).andReturn(body);
+    expect(urlConn.getResponseCode()).andReturn(responseCode);
+    return urlConn;
+  }
+}
@@ -0,0 +1,236 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Histograms of the latencies and sizes of builds, which are served by the
+ * build server as JSON and in the Prometheus text format so that they can be
+ * monitored and alerted on.
+ *
+ * <p>This class is thread-safe.</p>
+ */
+final class BuildMetrics {
+  // The stages that aren't part of the BuildPipeline.
+  static final String EXTRACT_STAGE = "extract";
+  static final String CALLBACK_UPLOAD_STAGE = "callback_upload";
+
+  // The child processes whose peak resident set size is recorded.
+  static final String KAWA_PROCESS = "kawa";
+  static final String DX_PROCESS = "dx";
+
+  // The short names of the stages of the BuildPipeline, which are used as label values.
+  private static final Map<String, String> STAGE_LABELS = ImmutableMap.<String, String>builder()
+      .put(ProjectBuilder.YAIL_STAGE, "yail")
+      .put(ProjectBuilder.KEYSTORE_STAGE, "keystore")
+      .put(Compiler.ICON_STAGE, "icon")
+      .put(Compiler.PERMISSIONS_STAGE, "permissions")
+      .put(Compiler.MANIFEST_STAGE, "manifest")
+      .put(Compiler.CLASSES_STAGE, "kawa")
+      .put(Compiler.DX_STAGE, "dx")
+      .put(Compiler.AAPT_STAGE, "aapt")
+      .put(Compiler.APK_BUILDER_STAGE, "apkbuilder")
+      .put(Compiler.SIGNING_STAGE, "sign")
+      .build();
+
+  // 10ms to about 22 minutes.
+  private static final long[] MILLIS_LIMITS = Histogram.exponentialLimits(10, 1310720, 2);
+  // 16MB to 8GB.
+  private static final long[] RSS_LIMITS =
+      Histogram.exponentialLimits(16L << 20, 8L << 30, 2);
+  // 1KB to 1GB.
+  private static final long[] SIZE_LIMITS = Histogram.exponentialLimits(1L << 10, 1L << 30, 4);
+
+  private static final String PROMETHEUS_PREFIX = "appinventor_build";
+
+  private final Histogram buildMillis = new Histogram(MILLIS_LIMITS);
+  private final Histogram queueWaitMillis = new Histogram(MILLIS_LIMITS);
+  private final ConcurrentMap<String, Histogram> stageMillis = Maps.newConcurrentMap();
+  private final ConcurrentMap<String, Histogram> peakRssBytes = Maps.newConcurrentMap();
+  private final Histogram requestBytes = new Histogram(SIZE_LIMITS);
+  private final Histogram responseBytes = new Histogram(SIZE_LIMITS);
+
+  /**
+   * Records how long a whole build took, from extracting the project to
+   * signing the APK.
+   */
+  void recordBuild(long millis) {
+    buildMillis.record(millis);
+  }
+
+  /**
+   * Records how long a build waited in the build queue before it started.
+   */
+  void recordQueueWait(long millis) {
+    queueWaitMillis.record(millis);
+  }
+
+  /**
+   * Records how long a stage of a build took.
+   *
+   * @param stage  the name of a stage of the {@link BuildPipeline}, or one of
+   *     {@link #EXTRACT_STAGE} and {@link #CALLBACK_UPLOAD_STAGE}
+   * @param millis  how long the stage took
+   */
+  void recordStage(String stage, long millis) {
+    String label = STAGE_LABELS.get(stage);
+    getHistogram(stageMillis, (label != null) ? label : stage, MILLIS_LIMITS).record(millis);
+  }
+
+  /**
+   * Records the peak resident set size of a child process.
+   *
+   * @param process  {@link #KAWA_PROCESS} or {@link #DX_PROCESS}
+   * @param bytes  the peak resident set size
+   */
+  void recordPeakRss(String process, long bytes) {
+    getHistogram(peakRssBytes, process, RSS_LIMITS).record(bytes);
+  }
+
+  /**
+   * Records the size of the project zip received for a build.
+   */
+  void recordRequestBytes(long bytes) {
+    requestBytes.record(bytes);
+  }
+
+  /**
+   * Records the size of the zip of build results sent back for a build.
+   */
+  void recordResponseBytes(long bytes) {
+    responseBytes.record(bytes);
+  }
+
+  private static Histogram getHistogram(ConcurrentMap<String, Histogram> histograms, String key,
+      long[] limits) {
+    Histogram histogram = histograms.get(key);
+    if (histogram == null) {
+      histogram = new Histogram(limits);
+      Histogram existing = histograms.putIfAbsent(key, histogram);
+      if (existing != null) {
+        histogram = existing;
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Returns the metrics as JSON. Each histogram is an object with its count,
+   * sum, max, estimated p50, p90 and p99, and the number of values in each
+   * bucket. Times are in milliseconds and sizes are in bytes.
+   */
+  String toJson() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("build_ms", toJson(buildMillis));
+    json.put("queue_wait_ms", toJson(queueWaitMillis));
+    json.put("stage_ms", toJson(stageMillis));
+    json.put("child_process_peak_rss_bytes", toJson(peakRssBytes));
+    json.put("request_bytes", toJson(requestBytes));
+    json.put("response_bytes", toJson(responseBytes));
+    return json.toString();
+  }
+
+  private static JSONObject toJson(Map<String, Histogram> histograms) throws JSONException {
+    JSONObject json = new JSONObject();
+    Map<String, Histogram> sorted = new TreeMap<String, Histogram>(histograms);
+    for (Map.Entry<String, Histogram> entry : sorted.entrySet()) {
+      json.put(entry.getKey(), toJson(entry.getValue()));
+    }
+    return json;
+  }
+
+  private static JSONObject toJson(Histogram histogram) throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("count", histogram.getCount());
+    json.put("sum", histogram.getSum());
+    json.put("max", histogram.getMax());
+    json.put("p50", histogram.getPercentile(50));
+    json.put("p90", histogram.getPercentile(90));
+    json.put("p99", histogram.getPercentile(99));
+    long[] limits = histogram.getBucketLimits();
+    long[] counts = histogram.getBucketCounts();
+    JSONArray buckets = new JSONArray();
+    for (int i = 0; i < counts.length; i++) {
+      JSONObject bucket = new JSONObject();
+      bucket.put("le", (i < limits.length) ? Long.toString(limits[i]) : "+Inf");
+      bucket.put("count", counts[i]);
+      buckets.put(bucket);
+    }
+    json.put("buckets", buckets);
+    return json;
+  }
+
+  /**
+   * Returns the metrics in the Prometheus text exposition format. Times are
+   * in seconds and sizes are in bytes, following the Prometheus conventions.
+   */
+  String toPrometheus() {
+    StringBuilder text = new StringBuilder();
+    appendFamily(text, "duration_seconds", "Time taken by a build.", null,
+        ImmutableMap.of("", buildMillis), 1000);
+    appendFamily(text, "queue_wait_seconds",
+        "Time that a build waited in the build queue before it started.", null,
+        ImmutableMap.of("", queueWaitMillis), 1000);
+    appendFamily(text, "stage_duration_seconds", "Time taken by a stage of a build.", "stage",
+        stageMillis, 1000);
+    appendFamily(text, "child_process_peak_rss_bytes",
+        "Peak resident set size of a Kawa or DX process.", "process", peakRssBytes, 1);
+    appendFamily(text, "request_bytes", "Size of the project zip received for a build.", null,
+        ImmutableMap.of("", requestBytes), 1);
+    appendFamily(text, "response_bytes", "Size of the build results sent back for a build.",
+        null, ImmutableMap.of("", responseBytes), 1);
+    return text.toString();
+  }
+
+  /*
+   * Appends a histogram metric family. The values recorded in the histograms are divided by
+   * divisor. If labelName is null, the map has a single histogram whose key is ignored.
+   */
+  private static void appendFamily(StringBuilder text, String name, String help,
+      String labelName, Map<String, Histogram> histograms, int divisor) {
+    String metric = PROMETHEUS_PREFIX + "_" + name;
+    text.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(metric).append(" histogram\n");
+    Map<String, Histogram> sorted = new TreeMap<String, Histogram>(histograms);
+    for (Map.Entry<String, Histogram> entry : sorted.entrySet()) {
+      String labels = (labelName == null)
+          ? ""
+          : labelName + "=\"" + escapeLabelValue(entry.getKey()) + "\",";
+      Histogram histogram = entry.getValue();
+      long[] limits = histogram.getBucketLimits();
+      long[] counts = histogram.getBucketCounts();
+      long cumulativeCount = 0;
+      for (int i = 0; i < counts.length; i++) {
+        cumulativeCount += counts[i];
+        String le = (i < limits.length) ? formatValue(limits[i], divisor) : "+Inf";
+        text.append(metric).append("_bucket{").append(labels).append("le=\"").append(le)
+            .append("\"} ").append(cumulativeCount).append('\n');
+      }
+      String sampleLabels = (labelName == null)
+          ? ""
+          : "{" + labels.substring(0, labels.length() - 1) + "}";
+      text.append(metric).append("_sum").append(sampleLabels).append(' ')
+          .append(formatValue(histogram.getSum(), divisor)).append('\n');
+      text.append(metric).append("_count").append(sampleLabels).append(' ')
+          .append(cumulativeCount).append('\n');
+    }
+  }
+
+  private static String formatValue(long value, int divisor) {
+    return (divisor == 1) ? Long.toString(value) : Double.toString((double) value / divisor);
+  }
+
+  private static String escapeLabelValue(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,210 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the stages of a build, each one as soon as the stages that it depends
+ * on have succeeded, so that independent stages run at the same time.
+ *
+ * <p>If a stage fails, no more stages are started, and {@link #run} waits
+ * for the stages that are running to finish before it returns.
+ *
+ */
+final class BuildPipeline {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildPipeline.class.getName());
+
+  /**
+   * A stage of a build.
+   */
+  interface Stage {
+    /**
+     * Runs the stage.
+     *
+     * @return {@code true} if the stage succeeded, {@code false} otherwise
+     * @throws Exception if the stage failed unexpectedly
+     */
+    boolean run() throws Exception;
+  }
+
+  // The stages of all builds run on these threads. Most stages spend their time waiting for a
+  // child process, and the number of builds is limited by the build queue, so the pool isn't
+  // bounded.
+  private static final ExecutorService SHARED_EXECUTOR = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("BuildPipeline-%d").build());
+
+  private static class StageInfo {
+    final String name;
+    final Stage stage;
+    final List<String> dependencies;
+    // Written by the thread running the stage, and read after the stage is taken from the
+    // finished queue.
+    boolean succeeded;
+    Exception exception;
+    long millis = -1;
+
+    StageInfo(String name, Stage stage, List<String> dependencies) {
+      this.name = name;
+      this.stage = stage;
+      this.dependencies = dependencies;
+    }
+  }
+
+  private final Executor executor;
+
+  // In the order in which they were added, which is a topological order.
+  private final Map<String, StageInfo> stages = Maps.newLinkedHashMap();
+
+  private long wallClockMillis = -1;
+
+  /**
+   * Creates a BuildPipeline whose stages run on threads shared by all builds.
+   */
+  BuildPipeline() {
+    this(SHARED_EXECUTOR);
+  }
+
+  @VisibleForTesting
+  BuildPipeline(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Adds a stage.
+   *
+   * @param name  the name of the stage, which is also printed when it starts
+   * @param stage  the stage
+   * @param dependencies  the names of the stages that must succeed before this
+   *     one starts. They must already have been added, so the stages can't
+   *     form a cycle.
+   */
+  void addStage(String name, Stage stage, String... dependencies) {
+    Preconditions.checkArgument(!stages.containsKey(name), "Duplicate stage %s", name);
+    for (String dependency : dependencies) {
+      Preconditions.checkArgument(stages.containsKey(dependency), "Unknown stage %s", dependency);
+    }
+    stages.put(name, new StageInfo(name, stage, Arrays.asList(dependencies)));
+  }
+
+  /**
+   * Runs the stages, and prints how long each one took.
+   *
+   * @param out  the stream to print the name of each stage to as it starts,
+   *     and the times of the stages to at the end
+   * @return {@code true} if every stage succeeded, {@code false} otherwise
+   * @throws InterruptedException if interrupted while waiting for a stage
+   */
+  boolean run(PrintStream out) throws InterruptedException {
+    long start = System.currentTimeMillis();
+    BlockingQueue<StageInfo> finished = new LinkedBlockingQueue<StageInfo>();
+    Set<String> started = Sets.newHashSet();
+    Set<String> succeeded = Sets.newHashSet();
+    int running = startReadyStages(started, succeeded, finished, out);
+    boolean failed = false;
+    while (running > 0) {
+      StageInfo info = finished.take();
+      running--;
+      if (info.succeeded) {
+        succeeded.add(info.name);
+        if (!failed) {
+          running += startReadyStages(started, succeeded, finished, out);
+        }
+      } else {
+        failed = true;
+      }
+    }
+    wallClockMillis = System.currentTimeMillis() - start;
+    printStageTimes(out);
+    return !failed && succeeded.size() == stages.size();
+  }
+
+  // Starts the stages whose dependencies have all succeeded. Returns how many were started.
+  private int startReadyStages(Set<String> started, Set<String> succeeded,
+      final BlockingQueue<StageInfo> finished, final PrintStream out) {
+    int count = 0;
+    for (final StageInfo info : stages.values()) {
+      if (!started.contains(info.name) && succeeded.containsAll(info.dependencies)) {
+        started.add(info.name);
+        count++;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            out.println("________" + info.name);
+            long stageStart = System.currentTimeMillis();
+            try {
+              info.succeeded = info.stage.run();
+            } catch (Exception e) {
+              LOG.log(Level.WARNING, "Stage " + info.name + " failed", e);
+              info.exception = e;
+            } finally {
+              info.millis = System.currentTimeMillis() - stageStart;
+              finished.add(info);
+            }
+          }
+        });
+      }
+    }
+    return count;
+  }
+
+  private void printStageTimes(PrintStream out) {
+    out.println("________Stage times");
+    long totalMillis = 0;
+    for (StageInfo info : stages.values()) {
+      if (info.millis >= 0) {
+        out.println(info.name + ": " + (info.millis / 1000.0) + " seconds");
+        totalMillis += info.millis;
+      }
+    }
+    out.println("Stages took " + (totalMillis / 1000.0) + " seconds in " +
+        (wallClockMillis / 1000.0) + " seconds of wall-clock time");
+  }
+
+  /**
+   * Returns the exception that a stage threw, or {@code null} if it didn't
+   * throw one.
+   */
+  Exception getException(String name) {
+    return stages.get(name).exception;
+  }
+
+  /**
+   * Returns how long each stage that ran took, in milliseconds, in the order
+   * in which the stages were added.
+   */
+  Map<String, Long> getStageMillis() {
+    Map<String, Long> stageMillis = Maps.newLinkedHashMap();
+    for (StageInfo info : stages.values()) {
+      if (info.millis >= 0) {
+        stageMillis.put(info.name, info.millis);
+      }
+    }
+    return stageMillis;
+  }
+
+  /**
+   * Returns how long {@link #run} took, in milliseconds.
+   */
+  long getWallClockMillis() {
+    return wallClockMillis;
+  }
+}
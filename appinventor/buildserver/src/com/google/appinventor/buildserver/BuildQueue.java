@@ -0,0 +1,377 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Runs builds, a limited number at a time, queueing the others.
+ *
+ * <p>Queued builds are started in order of priority and, within a priority, in the order in which
+ * they arrived. The queue is bounded, each user may have only a limited number of builds queued or
+ * running, and a build that has waited longer than the queue timeout is expired instead of being
+ * run.</p>
+ */
+class BuildQueue {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildQueue.class.getName());
+
+  /**
+   * The priority of a build. Builds with an earlier priority are started first.
+   */
+  enum Priority {
+    // A build that someone is actively waiting for, such as a build for a connected phone.
+    INTERACTIVE,
+    NORMAL,
+    // A build that no one is waiting for, such as re-packaging an existing project.
+    BACKGROUND
+  }
+
+  /**
+   * A build to be run by the queue.
+   */
+  interface Build extends Runnable {
+    /**
+     * Called instead of {@link #run} if the build waited in the queue for longer than the queue
+     * timeout.
+     */
+    void expired();
+  }
+
+  /**
+   * Thrown when a build is rejected because its user already has as many builds queued or running
+   * as they are allowed. Unlike a full queue, this says nothing about the load of the server, and
+   * another build server would apply the same limit.
+   */
+  static class UserLimitException extends RejectedExecutionException {
+    private static final long serialVersionUID = 4702883657418130625L;
+
+    UserLimitException(String message) {
+      super(message);
+    }
+  }
+
+  // The upper bounds, in milliseconds, of the buckets of the queue wait time histogram. The last
+  // bucket holds the waits that are longer than all of these.
+  static final long[] WAIT_BUCKET_LIMITS_MILLIS = { 1000, 10000, 30000, 60000, 120000, 300000 };
+
+  // The estimated duration of a build, used until some builds have completed.
+  private static final long INITIAL_BUILD_MILLIS = 60000;
+
+  private static class Entry {
+    final String userId;
+    final Priority priority;
+    final Build build;
+    final long sequence;
+    final long enqueueMillis;
+
+    Entry(String userId, Priority priority, Build build, long sequence, long enqueueMillis) {
+      this.userId = userId;
+      this.priority = priority;
+      this.build = build;
+      this.sequence = sequence;
+      this.enqueueMillis = enqueueMillis;
+    }
+  }
+
+  private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry e1, Entry e2) {
+      int c = e1.priority.compareTo(e2.priority);
+      if (c != 0) {
+        return c;
+      }
+      return (e1.sequence < e2.sequence) ? -1 : ((e1.sequence == e2.sequence) ? 0 : 1);
+    }
+  };
+
+  // The maximum number of builds that may run at the same time. 0 means unlimited.
+  private final int maxActiveBuilds;
+
+  // The maximum number of builds that may wait in the queue. 0 means unlimited.
+  private final int maxQueuedBuilds;
+
+  // The maximum number of builds that each user may have queued or running. 0 means unlimited.
+  private final int maxBuildsPerUser;
+
+  // How long a build may wait in the queue before it is expired. 0 means forever.
+  private final long queueTimeoutMillis;
+
+  // The builds waiting to run. Guarded by this.
+  private final PriorityQueue<Entry> queued = new PriorityQueue<Entry>(11, ENTRY_ORDER);
+
+  // The number of builds that each user has queued or running. Guarded by this.
+  private final Map<String, Integer> userBuildCounts = new HashMap<String, Integer>();
+
+  // Guarded by this.
+  private int activeBuildCount;
+  private long nextSequence;
+  private long averageBuildMillis = INITIAL_BUILD_MILLIS;
+  private int completedBuildCount;
+  private int expiredBuildCount;
+  private int rejectedQueueFullCount;
+  private int rejectedUserLimitCount;
+  private int startedBuildCount;
+  private long totalWaitMillis;
+  private long maxWaitMillis;
+  private final int[] waitHistogram = new int[WAIT_BUCKET_LIMITS_MILLIS.length + 1];
+
+  /**
+   * Creates a BuildQueue.
+   *
+   * @param maxActiveBuilds the maximum number of builds that may run at the same time, or 0 for
+   *     unlimited
+   * @param maxQueuedBuilds the maximum number of builds that may wait to run, or 0 for unlimited
+   * @param maxBuildsPerUser the maximum number of builds that each user may have queued or
+   *     running, or 0 for unlimited
+   * @param queueTimeoutMillis how long a build may wait before it is expired, or 0 for no limit
+   */
+  BuildQueue(int maxActiveBuilds, int maxQueuedBuilds, int maxBuildsPerUser,
+      long queueTimeoutMillis) {
+    this.maxActiveBuilds = maxActiveBuilds;
+    this.maxQueuedBuilds = maxQueuedBuilds;
+    this.maxBuildsPerUser = maxBuildsPerUser;
+    this.queueTimeoutMillis = queueTimeoutMillis;
+  }
+
+  /**
+   * Queues a build, or starts it right away if fewer than the maximum number of builds are
+   * running.
+   *
+   * @param userId the user who requested the build
+   * @param priority the priority of the build
+   * @param build the build
+   * @return a rough estimate of how long, in milliseconds, the build will wait before it starts
+   * @throws UserLimitException if the user already has the maximum number of builds queued or
+   *     running
+   * @throws RejectedExecutionException if the queue is full
+   */
+  long submit(String userId, Priority priority, Build build) {
+    List<Entry> expired;
+    long estimatedWaitMillis;
+    synchronized (this) {
+      expired = removeExpired();
+      Integer userBuildCount = userBuildCounts.get(userId);
+      int count = (userBuildCount == null) ? 0 : userBuildCount;
+      if (maxBuildsPerUser != 0 && count >= maxBuildsPerUser) {
+        rejectedUserLimitCount++;
+        throw new UserLimitException("You already have " + count +
+            " builds waiting or in progress.");
+      }
+      if (maxQueuedBuilds != 0 && queued.size() >= maxQueuedBuilds) {
+        rejectedQueueFullCount++;
+        throw new RejectedExecutionException("The build server is currently at maximum capacity.");
+      }
+      userBuildCounts.put(userId, count + 1);
+      Entry entry = new Entry(userId, priority, build, nextSequence++, currentTimeMillis());
+      queued.add(entry);
+      estimatedWaitMillis = estimateWaitMillis(entry);
+      dispatch();
+    }
+    expire(expired);
+    return estimatedWaitMillis;
+  }
+
+  // Must be called while synchronized on this.
+  private long estimateWaitMillis(Entry entry) {
+    if (maxActiveBuilds == 0) {
+      return 0;
+    }
+    int ahead = 0;
+    for (Entry other : queued) {
+      if (ENTRY_ORDER.compare(other, entry) < 0) {
+        ahead++;
+      }
+    }
+    int freeSlots = maxActiveBuilds - activeBuildCount;
+    if (ahead < freeSlots) {
+      return 0;
+    }
+    // Every maxActiveBuilds builds ahead of this one add roughly the duration of a build.
+    return ((ahead - freeSlots) / maxActiveBuilds + 1) * averageBuildMillis;
+  }
+
+  // Starts queued builds while there are free slots. Must be called while synchronized on this.
+  private void dispatch() {
+    while (!queued.isEmpty() && (maxActiveBuilds == 0 || activeBuildCount < maxActiveBuilds)) {
+      final Entry entry = queued.poll();
+      recordWait(currentTimeMillis() - entry.enqueueMillis);
+      activeBuildCount++;
+      startThread(new Runnable() {
+        @Override
+        public void run() {
+          long start = currentTimeMillis();
+          try {
+            entry.build.run();
+          } finally {
+            finished(entry, currentTimeMillis() - start);
+          }
+        }
+      });
+    }
+  }
+
+  // Removes the builds that have waited too long. Must be called while synchronized on this.
+  private List<Entry> removeExpired() {
+    List<Entry> expired = new ArrayList<Entry>();
+    if (queueTimeoutMillis != 0) {
+      long now = currentTimeMillis();
+      for (Iterator<Entry> iterator = queued.iterator(); iterator.hasNext(); ) {
+        Entry entry = iterator.next();
+        if (now - entry.enqueueMillis > queueTimeoutMillis) {
+          iterator.remove();
+          decrementUserBuildCount(entry.userId);
+          expiredBuildCount++;
+          expired.add(entry);
+        }
+      }
+    }
+    return expired;
+  }
+
+  // Must not be called while synchronized on this, since expired builds may do I/O.
+  private void expire(List<Entry> expired) {
+    for (final Entry entry : expired) {
+      LOG.warning("Build for " + entry.userId + " expired after waiting more than " +
+          queueTimeoutMillis + " ms");
+      startThread(new Runnable() {
+        @Override
+        public void run() {
+          entry.build.expired();
+        }
+      });
+    }
+  }
+
+  private void finished(Entry entry, long buildMillis) {
+    List<Entry> expired;
+    synchronized (this) {
+      activeBuildCount--;
+      completedBuildCount++;
+      decrementUserBuildCount(entry.userId);
+      // An exponentially weighted moving average, so that the estimate follows the current load.
+      averageBuildMillis = (averageBuildMillis * 3 + buildMillis) / 4;
+      expired = removeExpired();
+      dispatch();
+    }
+    expire(expired);
+  }
+
+  // Must be called while synchronized on this.
+  private void decrementUserBuildCount(String userId) {
+    int count = userBuildCounts.get(userId);
+    if (count == 1) {
+      userBuildCounts.remove(userId);
+    } else {
+      userBuildCounts.put(userId, count - 1);
+    }
+  }
+
+  // Must be called while synchronized on this.
+  private void recordWait(long waitMillis) {
+    startedBuildCount++;
+    totalWaitMillis += waitMillis;
+    maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+    int bucket = 0;
+    while (bucket < WAIT_BUCKET_LIMITS_MILLIS.length &&
+        waitMillis > WAIT_BUCKET_LIMITS_MILLIS[bucket]) {
+      bucket++;
+    }
+    waitHistogram[bucket]++;
+  }
+
+  // Overridden in tests.
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  // Overridden in tests.
+  void startThread(Runnable runnable) {
+    new Thread(runnable).start();
+  }
+
+  public int getMaxActiveBuilds() {
+    return maxActiveBuilds;
+  }
+
+  public int getMaxQueuedBuilds() {
+    return maxQueuedBuilds;
+  }
+
+  public int getMaxBuildsPerUser() {
+    return maxBuildsPerUser;
+  }
+
+  public long getQueueTimeoutMillis() {
+    return queueTimeoutMillis;
+  }
+
+  public synchronized int getActiveBuildCount() {
+    return activeBuildCount;
+  }
+
+  public synchronized int getQueueLength() {
+    return queued.size();
+  }
+
+  /**
+   * Returns the number of queued builds with the given priority.
+   */
+  public synchronized int getQueueLength(Priority priority) {
+    int count = 0;
+    for (Entry entry : queued) {
+      if (entry.priority == priority) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public synchronized int getCompletedBuildCount() {
+    return completedBuildCount;
+  }
+
+  public synchronized int getExpiredBuildCount() {
+    return expiredBuildCount;
+  }
+
+  public synchronized int getRejectedQueueFullCount() {
+    return rejectedQueueFullCount;
+  }
+
+  public synchronized int getRejectedUserLimitCount() {
+    return rejectedUserLimitCount;
+  }
+
+  public synchronized int getStartedBuildCount() {
+    return startedBuildCount;
+  }
+
+  public synchronized long getTotalWaitMillis() {
+    return totalWaitMillis;
+  }
+
+  public synchronized long getMaxWaitMillis() {
+    return maxWaitMillis;
+  }
+
+  public synchronized long getAverageBuildMillis() {
+    return averageBuildMillis;
+  }
+
+  /**
+   * Returns the number of started builds whose queue wait fell in each bucket of
+   * {@link #WAIT_BUCKET_LIMITS_MILLIS}, followed by the number that waited longer.
+   */
+  public synchronized int[] getWaitHistogram() {
+    return waitHistogram.clone();
+  }
+}
@@ -63,10 +63,87 @@ public class BuildServer {
             usage = "Maximum ram that can be used by a child processes, in MB.")
     int childProcessRamMb = 2048;
 
+    @Option(name = "--kawaRamMb",
+            usage = "Ram that a Kawa process is run with, in MB. 0 means childProcessRamMb.")
+    int kawaRamMb = 0;
+
+    @Option(name = "--dxRamMb",
+            usage = "Ram that a DX process is run with, in MB. 0 means childProcessRamMb.")
+    int dxRamMb = 0;
+
+    @Option(name = "--childProcessRamBudgetMb",
+            usage = "Total ram that can be used by simultaneous Kawa and DX processes, in MB. " +
+            "0 means the physical memory not used by the build server and YailGenerator workers.")
+    int childProcessRamBudgetMb = 0;  // The default is derived from the physical memory.
+
+    @Option(name = "--maxSimultaneousChildProcesses",
+            usage = "Maximum number of Kawa and DX processes that can run in parallel. " +
+            "0 means the number of processors.")
+    int maxSimultaneousChildProcesses = 0;  // The default is the number of processors.
+
     @Option(name = "--maxSimultaneousBuilds",
             usage = "Maximum number of builds that can run in parallel. O means unlimited.")
     int maxSimultaneousBuilds = 0;  // The default is unlimited.
 
+    @Option(name = "--maxQueuedBuilds",
+            usage = "Maximum number of builds that can wait for one of the simultaneous builds " +
+            "to finish. 0 means unlimited.")
+    int maxQueuedBuilds = 100;
+
+    @Option(name = "--maxBuildsPerUser",
+            usage = "Maximum number of builds that each user can have waiting or in progress. " +
+            "0 means unlimited.")
+    int maxBuildsPerUser = 2;
+
+    @Option(name = "--buildQueueTimeoutSecs",
+            usage = "Seconds that a build can wait to start before it fails. 0 means forever.")
+    int buildQueueTimeoutSecs = 600;
+
+    @Option(name = "--yailGeneratorWorkers",
+            usage = "Number of YailGenerator processes kept running to generate YAIL for forms.")
+    int yailGeneratorWorkers = 2;
+
+    @Option(name = "--yailGeneratorTimeoutSecs",
+            usage = "Seconds that a YailGenerator process may take to generate the YAIL for a " +
+            "form before it is killed and replaced.")
+    int yailGeneratorTimeoutSecs = 120;
+
+    @Option(name = "--keystorePoolSize",
+            usage = "Number of key pairs kept ready for the keystores of users building for the " +
+            "first time. 0 means that key pairs are generated when they are needed.")
+    int keystorePoolSize = 20;
+
+    @Option(name = "--keystorePoolRefillPerMinute",
+            usage = "Maximum number of key pairs generated per minute to refill the keystore pool.")
+    int keystorePoolRefillPerMinute = 12;
+
+    @Option(name = "--workspaceDir",
+            usage = "Directory in which projects are extracted and built, such as a tmpfs mount.")
+    String workspaceDir = System.getProperty("java.io.tmpdir");
+
+    @Option(name = "--inMemoryWorkspace",
+            usage = "Keep the project files that only the build server reads (.scm, .blk and " +
+            "project.properties) in memory instead of writing them to the workspace.")
+    boolean inMemoryWorkspace = false;
+
+    @Option(name = "--classCacheDir",
+            usage = "Directory in which to cache the class files of forms. Empty, the default, " +
+            "means no caching. The directory can't be shared with another build server.")
+    String classCacheDir = "";
+
+    @Option(name = "--classCacheMb",
+            usage = "Maximum size of the class file cache, in MB.")
+    int classCacheMb = 512;
+
+    @Option(name = "--apkCacheDir",
+            usage = "Directory in which to cache signed APK files. Empty, the default, means no " +
+            "caching. The directory can't be shared with another build server.")
+    String apkCacheDir = "";
+
+    @Option(name = "--apkCacheMb",
+            usage = "Maximum size of the APK cache, in MB.")
+    int apkCacheMb = 2048;
+
     @Option(name = "--port",
             usage = "The port number to bind to on the local machine.")
     int port = 9990;
@@ -84,6 +161,13 @@ public class BuildServer {
   private static final MediaType ZIP_MEDIA_TYPE =
       new MediaType("application", "zip", ImmutableMap.of("charset", "utf-8"));
 
+  private static final MediaType PROMETHEUS_MEDIA_TYPE =
+      new MediaType("text", "plain", ImmutableMap.of("version", "0.0.4"));
+
+  // The status of a build request from a user who already has too many builds, which
+  // Response.Status doesn't have.
+  static final int SC_TOO_MANY_REQUESTS = 429;
+
   private static final AtomicInteger buildCount = new AtomicInteger(0);
 
   // The number of build requests for this server run
@@ -92,11 +176,32 @@ public class BuildServer {
   // The number of rejected build requests for this server run
   private static final AtomicInteger rejectedAsyncBuildRequests = new AtomicInteger(0);
 
-  // The build executor used to limit the number of simultaneous builds.
-  // NOTE(lizlooney) - the buildExecutor must be created after the command line options are
+  // The build queue used to limit the number of simultaneous builds.
+  // NOTE(lizlooney) - the buildQueue must be created after the command line options are
   // processed in main(). If it is created here, the number of simultaneous builds will always be
   // the default value, even if the --maxSimultaneousBuilds option is on the command line.
-  private static NonQueuingExecutor buildExecutor;
+  private static BuildQueue buildQueue;
+
+  // The pool of YailGenerator processes shared by all builds.
+  // NOTE - like the buildQueue, the yailGeneratorPool must be created in main().
+  private static YailGeneratorPool yailGeneratorPool;
+
+  // The scheduler that decides when Kawa and DX processes may run.
+  // NOTE - like the buildQueue, the childProcessScheduler must be created in main().
+  private static ChildProcessScheduler childProcessScheduler;
+
+  // The pool of key pairs for new keystores.
+  // NOTE - like the buildQueue, the keystorePool must be created in main().
+  private static KeystorePool keystorePool;
+
+  // The latency and size histograms of the builds for this server run.
+  private static final BuildMetrics buildMetrics = new BuildMetrics();
+
+  // The cache of class files for forms and runtime.scm, or null if caching is disabled.
+  private static DiskCache classCache;
+
+  // The cache of signed APK files, or null if caching is disabled.
+  private static DiskCache apkCache;
 
   // The input zip file. It will be deleted in cleanUp.
   private File inputZip;
@@ -157,14 +262,88 @@ public class BuildServer {
     variables.put("rejected-async-build-requests", rejectedAsyncBuildRequests.get() + "");
 
     // Build tasks
-    int max = buildExecutor.getMaxActiveTasks();
+    int max = buildQueue.getMaxActiveBuilds();
     if (max == 0) {
       variables.put("maximum-simultaneous-build-tasks", "unlimited");
     } else {
       variables.put("maximum-simultaneous-build-tasks", max + "");
     }
-    variables.put("completed-build-tasks", buildExecutor.getCompletedTaskCount() + "");
-    variables.put("active-build-tasks", buildExecutor.getActiveTaskCount() + "");
+    variables.put("completed-build-tasks", buildQueue.getCompletedBuildCount() + "");
+    variables.put("active-build-tasks", buildQueue.getActiveBuildCount() + "");
+
+    // Build queue
+    variables.put("maximum-queued-builds", buildQueue.getMaxQueuedBuilds() + "");
+    variables.put("maximum-builds-per-user", buildQueue.getMaxBuildsPerUser() + "");
+    variables.put("build-queue-timeout-ms", buildQueue.getQueueTimeoutMillis() + "");
+    variables.put("build-queue-length", buildQueue.getQueueLength() + "");
+    for (BuildQueue.Priority priority : BuildQueue.Priority.values()) {
+      variables.put("build-queue-length-" + priority.name().toLowerCase(),
+          buildQueue.getQueueLength(priority) + "");
+    }
+    variables.put("rejected-builds-queue-full", buildQueue.getRejectedQueueFullCount() + "");
+    variables.put("rejected-builds-user-limit", buildQueue.getRejectedUserLimitCount() + "");
+    variables.put("expired-builds", buildQueue.getExpiredBuildCount() + "");
+    int startedBuilds = buildQueue.getStartedBuildCount();
+    if (startedBuilds != 0) {
+      variables.put("build-queue-average-wait-ms",
+          (buildQueue.getTotalWaitMillis() / startedBuilds) + "");
+    }
+    variables.put("build-queue-max-wait-ms", buildQueue.getMaxWaitMillis() + "");
+    int[] waitHistogram = buildQueue.getWaitHistogram();
+    for (int i = 0; i < waitHistogram.length; i++) {
+      String bucket = (i < BuildQueue.WAIT_BUCKET_LIMITS_MILLIS.length)
+          ? "le-" + BuildQueue.WAIT_BUCKET_LIMITS_MILLIS[i]
+          : "gt-" + BuildQueue.WAIT_BUCKET_LIMITS_MILLIS[i - 1];
+      variables.put("build-queue-wait-ms-" + bucket, waitHistogram[i] + "");
+    }
+    variables.put("estimated-build-ms", buildQueue.getAverageBuildMillis() + "");
+
+    // YAIL generation
+    variables.put("maximum-yail-generator-workers", yailGeneratorPool.getMaxWorkers() + "");
+    variables.put("yail-generator-workers", yailGeneratorPool.getWorkerCount() + "");
+    variables.put("started-yail-generator-workers",
+        yailGeneratorPool.getStartedWorkerCount() + "");
+    int generatedForms = yailGeneratorPool.getGeneratedFormCount();
+    variables.put("yail-generated-forms", generatedForms + "");
+    variables.put("yail-generation-failures", yailGeneratorPool.getFailedFormCount() + "");
+    if (generatedForms != 0) {
+      variables.put("yail-generation-average-ms",
+          (yailGeneratorPool.getTotalLatencyMillis() / generatedForms) + "");
+    }
+    variables.put("yail-generation-max-ms", yailGeneratorPool.getMaxLatencyMillis() + "");
+
+    // Kawa and DX processes
+    variables.put("child-process-ram-budget-mb", childProcessScheduler.getMemoryBudgetMb() + "");
+    variables.put("child-process-ram-reserved-mb",
+        childProcessScheduler.getReservedMemoryMb() + "");
+    variables.put("maximum-simultaneous-child-processes",
+        childProcessScheduler.getMaxRunning() + "");
+    variables.put("running-child-processes", childProcessScheduler.getRunningCount() + "");
+    variables.put("child-process-queue-depth", childProcessScheduler.getQueueDepth() + "");
+    int admittedChildProcesses = childProcessScheduler.getAdmittedCount();
+    variables.put("admitted-child-processes", admittedChildProcesses + "");
+    if (admittedChildProcesses != 0) {
+      variables.put("child-process-average-wait-ms",
+          (childProcessScheduler.getTotalWaitMillis() / admittedChildProcesses) + "");
+    }
+    variables.put("child-process-max-wait-ms", childProcessScheduler.getMaxWaitMillis() + "");
+
+    // Keystores
+    variables.put("keystore-pool-size", keystorePool.getPoolSize() + "");
+    variables.put("keystore-pool-refill-per-minute", keystorePool.getRefillPerMinute() + "");
+    variables.put("keystore-pool-available", keystorePool.getAvailableCount() + "");
+    variables.put("keystores-from-pool", keystorePool.getPooledKeystoreCount() + "");
+    variables.put("keystores-not-from-pool", keystorePool.getUnpooledKeystoreCount() + "");
+
+    // Class file cache
+    if (classCache != null) {
+      putCacheVariables(variables, "class-cache", classCache);
+    }
+
+    // APK cache
+    if (apkCache != null) {
+      putCacheVariables(variables, "apk-cache", apkCache);
+    }
 
     StringBuilder html = new StringBuilder();
     html.append("<html><body><tt>");
@@ -176,6 +355,37 @@ public class BuildServer {
     return Response.ok(html.toString(), MediaType.TEXT_HTML_TYPE).build();
   }
 
+  /**
+   * Returns latency and size histograms of the builds in the Prometheus text
+   * format.
+   */
+  @GET
+  @Path("metrics")
+  @Produces(MediaType.TEXT_PLAIN)
+  public Response metrics() {
+    return Response.ok(buildMetrics.toPrometheus(), PROMETHEUS_MEDIA_TYPE).build();
+  }
+
+  /**
+   * Returns latency and size histograms of the builds as JSON.
+   */
+  @GET
+  @Path("metrics.json")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response metricsJson() throws JSONException {
+    return Response.ok(buildMetrics.toJson(), MediaType.APPLICATION_JSON_TYPE).build();
+  }
+
+  private static void putCacheVariables(Map<String, String> variables, String prefix,
+      DiskCache cache) {
+    variables.put(prefix + "-hits", cache.getHitCount() + "");
+    variables.put(prefix + "-misses", cache.getMissCount() + "");
+    variables.put(prefix + "-evictions", cache.getEvictionCount() + "");
+    variables.put(prefix + "-entries", cache.getEntryCount() + "");
+    variables.put(prefix + "-bytes", cache.getSizeBytes() + "");
+    variables.put(prefix + "-max-bytes", cache.getMaxBytes() + "");
+  }
+
   /**
    * Build an APK file from the input zip file. The zip file needs to be a variant of the same
    * App Inventor source zip that's generated by the Download Source command.  The differences are
@@ -266,21 +476,30 @@ public class BuildServer {
    * the same version of the code that loads the .blk and .scm files, the same version of
    * runtime.scm, and the same version of the App Inventor component classes.
    *
+   * If the maximum number of builds are already running, the build waits in a queue. Builds that
+   * have waited longer than the queue timeout are not built; a build.out describing the failure is
+   * sent to the callbackUrl instead.
+   *
    * The status code returned here will be seen by the server in YoungAndroidProjectService.build
-   * as connection.getResponseCode().
+   * as connection.getResponseCode(). If it is OK, the content is the estimated number of
+   * milliseconds that the build will wait before it starts.
    *
    * @param userName  The user name to be used in making the CN entry in the generated keystore.
+   *     Builds are limited per user name.
+   * @param priority  The name of a {@link BuildQueue.Priority}. Optional; the default is NORMAL.
    * @param mercurialBuildId  The value of MercurialBuildId.MERCURIAL_BUILD_ID sent from
    *     YoungAndroidProjectService.build.
    * @param callbackUrlStr An url to send the build results back to.
    * @param inputZipFile  The zip file representing the App Inventor source code.
-   * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503).
+   * @return a status response, typically OK (200), SERVICE_UNAVAILABLE (503) if the server is too
+   *     busy, or TOO_MANY_REQUESTS (429) if the user already has too many builds.
    */
   @POST
   @Path("build-all-from-zip-async")
   @Produces(MediaType.TEXT_PLAIN)
   public Response buildAllFromZipFileAsync(@QueryParam("uname") final String userName,
       @QueryParam("callback") final String callbackUrlStr,
+      @QueryParam("priority") String priorityName,
       @QueryParam("mercurialBuildId") final String mercurialBuildId,
       final File inputZipFile) throws IOException {
     // Set the inputZip field so we can delete the input zip file later in cleanUp.
@@ -308,45 +527,26 @@ public class BuildServer {
       }
     }
 
-    Runnable buildTask = new Runnable() {
+    BuildQueue.Priority priority = BuildQueue.Priority.NORMAL;
+    if (priorityName != null && !priorityName.isEmpty()) {
+      try {
+        priority = BuildQueue.Priority.valueOf(priorityName.toUpperCase());
+      } catch (IllegalArgumentException e) {
+        LOG.warning("Unknown build priority " + priorityName + ". Using NORMAL.");
+      }
+    }
+
+    final long submitMillis = System.currentTimeMillis();
+    BuildQueue.Build buildTask = new BuildQueue.Build() {
       @Override
       public void run() {
+        buildMetrics.recordQueueWait(System.currentTimeMillis() - submitMillis);
         int count = buildCount.incrementAndGet();
         try {
           System.out.println("START NEW BUILD " + count);
           checkMemory();
           buildAndCreateZip(userName, inputZipFile);
-          // Send zip back to the callbackUrl
-          System.out.println("CallbackURL: " + callbackUrlStr);
-          URL callbackUrl = new URL(callbackUrlStr);
-          HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
-          connection.setDoOutput(true);
-          connection.setRequestMethod("POST");
-          // Make sure we aren't misinterpreted as form-url-encoded
-          connection.addRequestProperty("Content-Type", "application/zip; charset=utf-8");
-          connection.setConnectTimeout(60000);
-          connection.setReadTimeout(60000);
-          BufferedOutputStream bufferedOutputStream =
-              new BufferedOutputStream(connection.getOutputStream());
-          try {
-            BufferedInputStream bufferedInputStream =
-                new BufferedInputStream(new FileInputStream(outputZip));
-            try {
-              ByteStreams.copy(bufferedInputStream, bufferedOutputStream);
-              checkMemory();
-              bufferedOutputStream.flush();
-            } finally {
-              bufferedInputStream.close();
-            }
-          } finally {
-            bufferedOutputStream.close();
-          }
-
-          if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-            System.out.println("Bad Response Code!: " + connection.getResponseCode());
-            // TODO(user) Maybe do some retries
-          }
-
+          sendZipToCallback(callbackUrlStr);
         } catch (Exception e) {
           // TODO(user): Maybe send a failure callback
           System.out.println("Exception: " + e.getMessage());
@@ -356,11 +556,35 @@ public class BuildServer {
           System.out.println("BUILD " + count + " FINISHED");
         }
       }
+
+      @Override
+      public void expired() {
+        try {
+          // Tell the server that the build failed, so the user isn't left waiting for it.
+          createZip(inputZipFile, new Result(Result.GENERAL_FAILURE, "",
+              "The build server was too busy to start this build. Please try again later."));
+          sendZipToCallback(callbackUrlStr);
+        } catch (Exception e) {
+          System.out.println("Exception: " + e.getMessage());
+        } finally {
+          cleanUp();
+        }
+      }
     };
+    long estimatedWaitMillis;
     try {
-      buildExecutor.execute(buildTask);
+      estimatedWaitMillis = buildQueue.submit(userName, priority, buildTask);
+    } catch (BuildQueue.UserLimitException e) {
+      // This request was rejected because the user already has as many builds as they are allowed
+      // waiting or in progress.
+      rejectedAsyncBuildRequests.incrementAndGet();
+      cleanUp();
+      // Here, we use TOO_MANY_REQUESTS (response code 429, rfc6585), so that the server doesn't
+      // mistake this for a busy build server and send the build to another one.
+      return Response.status(SC_TOO_MANY_REQUESTS).type(MediaType.TEXT_PLAIN_TYPE)
+          .entity(e.getMessage()).build();
     } catch (RejectedExecutionException e) {
-      // This request was rejected because all threads in the build executor are busy.
+      // This request was rejected because the build queue is full.
       rejectedAsyncBuildRequests.incrementAndGet();
       cleanUp();
       // Here, we use SERVICE_UNAVAILABLE (response code 503), which means (according to rfc2616,
@@ -368,15 +592,57 @@ public class BuildServer {
       // overloading or maintenance of the server. The implication is that this is a temporary
       // condition which will be alleviated after some delay."
       return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE)
-          .entity("The build server is currently at maximum capacity.").build();
+          .entity(e.getMessage()).build();
     }
 
-    return Response.ok().build();
+    return Response.ok(estimatedWaitMillis + "", MediaType.TEXT_PLAIN_TYPE).build();
+  }
+
+  private void sendZipToCallback(String callbackUrlStr) throws IOException {
+    // Send zip back to the callbackUrl
+    System.out.println("CallbackURL: " + callbackUrlStr);
+    long start = System.currentTimeMillis();
+    buildMetrics.recordResponseBytes(outputZip.length());
+    URL callbackUrl = new URL(callbackUrlStr);
+    HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    // Make sure we aren't misinterpreted as form-url-encoded
+    connection.addRequestProperty("Content-Type", "application/zip; charset=utf-8");
+    connection.setConnectTimeout(60000);
+    connection.setReadTimeout(60000);
+    BufferedOutputStream bufferedOutputStream =
+        new BufferedOutputStream(connection.getOutputStream());
+    try {
+      BufferedInputStream bufferedInputStream =
+          new BufferedInputStream(new FileInputStream(outputZip));
+      try {
+        ByteStreams.copy(bufferedInputStream, bufferedOutputStream);
+        checkMemory();
+        bufferedOutputStream.flush();
+      } finally {
+        bufferedInputStream.close();
+      }
+    } finally {
+      bufferedOutputStream.close();
+    }
+
+    if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+      System.out.println("Bad Response Code!: " + connection.getResponseCode());
+      // TODO(user) Maybe do some retries
+    }
+    buildMetrics.recordStage(BuildMetrics.CALLBACK_UPLOAD_STAGE,
+        System.currentTimeMillis() - start);
   }
 
   private void buildAndCreateZip(String userName, File inputZipFile)
       throws IOException, JSONException {
     Result buildResult = build(userName, inputZipFile);
+    createZip(inputZipFile, buildResult);
+  }
+
+  private void createZip(File inputZipFile, Result buildResult)
+      throws IOException, JSONException {
     boolean buildSucceeded = buildResult.succeeded();
     outputZip = File.createTempFile(inputZipFile.getName(), ".zip");
     outputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
@@ -412,13 +678,17 @@ public class BuildServer {
   }
 
   private Result build(String userName, File zipFile) throws IOException {
-    ProjectBuilder projectBuilder = new ProjectBuilder();
+    ProjectBuilder projectBuilder =
+        new ProjectBuilder(yailGeneratorPool, childProcessScheduler, classCache,
+            apkCache, keystorePool, buildMetrics, new File(commandLineOptions.workspaceDir),
+            commandLineOptions.inMemoryWorkspace);
     outputDir = Files.createTempDir();
     // We call outputDir.deleteOnExit() here, in case build server is killed before cleanUp
     // executes. However, it is likely that the directory won't be empty and therefore, won't
     // actually be deleted. That's only if the build server is killed (via ctrl+c) while a build
     // is happening, so we should be careful about that.
     outputDir.deleteOnExit();
+    buildMetrics.recordRequestBytes(zipFile.length());
     Result buildResult = projectBuilder.build(userName, new ZipFile(zipFile), outputDir, false,
                                               commandLineOptions.childProcessRamMb);
     String buildOutput = buildResult.getOutput();
@@ -475,8 +745,29 @@ public class BuildServer {
       System.exit(1);
     }
 
-    // Now that the command line options have been processed, we can create the buildExecutor.
-    buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    // Now that the command line options have been processed, we can create the buildQueue.
+    buildQueue = new BuildQueue(commandLineOptions.maxSimultaneousBuilds,
+        commandLineOptions.maxQueuedBuilds, commandLineOptions.maxBuildsPerUser,
+        commandLineOptions.buildQueueTimeoutSecs * 1000L);
+    yailGeneratorPool = new YailGeneratorPool(commandLineOptions.yailGeneratorWorkers,
+        commandLineOptions.yailGeneratorTimeoutSecs * 1000L);
+    yailGeneratorPool.prestartWorkers();
+    childProcessScheduler = ChildProcessScheduler.create(commandLineOptions.childProcessRamMb,
+        commandLineOptions.kawaRamMb, commandLineOptions.dxRamMb,
+        commandLineOptions.childProcessRamBudgetMb,
+        commandLineOptions.maxSimultaneousChildProcesses,
+        commandLineOptions.yailGeneratorWorkers * YailGeneratorPool.WORKER_RAM_MB);
+    keystorePool = new KeystorePool(commandLineOptions.keystorePoolSize,
+        commandLineOptions.keystorePoolRefillPerMinute);
+    keystorePool.start();
+    if (!commandLineOptions.classCacheDir.isEmpty()) {
+      classCache = new DiskCache(new File(commandLineOptions.classCacheDir),
+          commandLineOptions.classCacheMb * 1024L * 1024L);
+    }
+    if (!commandLineOptions.apkCacheDir.isEmpty()) {
+      apkCache = new DiskCache(new File(commandLineOptions.apkCacheDir),
+          commandLineOptions.apkCacheMb * 1024L * 1024L);
+    }
 
     int port = commandLineOptions.port;
     SelectorThread threadSelector = GrizzlyServerFactory.create("http://localhost:" + port + "/");
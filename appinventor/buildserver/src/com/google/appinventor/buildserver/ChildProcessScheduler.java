@@ -0,0 +1,228 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Decides when memory-hungry child processes (Kawa and DX) may run.
+ *
+ * <p>Each child process reserves the memory that it is run with and one core. That memory is the
+ * child process's maximum heap plus {@link Compiler#CHILD_PROCESS_OVERHEAD_MB} for the rest of
+ * the JVM. Kawa and DX may each be given their own amount of memory; otherwise they are run with
+ * the build's child process memory. A child process is admitted when there is enough unreserved
+ * memory and a free core; otherwise it waits. Waiting child processes are admitted in the order in
+ * which they arrived, so a large reservation can't be starved by smaller ones.</p>
+ */
+final class ChildProcessScheduler {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ChildProcessScheduler.class.getName());
+
+  // The total memory, in MB, that may be reserved by running child processes.
+  private final int memoryBudgetMb;
+
+  // The maximum number of child processes that may run at the same time.
+  private final int maxRunning;
+
+  // The memory, in MB, that each kind of child process that has its own budget is run with, by
+  // process name, such as BuildMetrics.KAWA_PROCESS.
+  private final Map<String, Integer> processMemoryMb;
+
+  // The child processes waiting to run, in order of arrival. Guarded by this.
+  private final LinkedList<Object> waiting = new LinkedList<Object>();
+
+  // Guarded by this.
+  private int reservedMemoryMb;
+  private int running;
+
+  private final AtomicInteger admittedCount = new AtomicInteger(0);
+  private final AtomicLong totalWaitMillis = new AtomicLong(0);
+  private final AtomicLong maxWaitMillis = new AtomicLong(0);
+
+  /**
+   * Creates a ChildProcessScheduler.
+   *
+   * @param memoryBudgetMb the total memory, in MB, that may be reserved by running child processes
+   * @param maxRunning the maximum number of child processes that may run at the same time
+   */
+  ChildProcessScheduler(int memoryBudgetMb, int maxRunning) {
+    this(memoryBudgetMb, maxRunning, Collections.<String, Integer>emptyMap());
+  }
+
+  /**
+   * Creates a ChildProcessScheduler that gives some kinds of child process their own amount of
+   * memory.
+   *
+   * @param memoryBudgetMb the total memory, in MB, that may be reserved by running child processes
+   * @param maxRunning the maximum number of child processes that may run at the same time
+   * @param processMemoryMb the memory, in MB, that each kind of child process that has its own
+   *     budget is run with, by process name, such as {@link BuildMetrics#KAWA_PROCESS}
+   */
+  ChildProcessScheduler(int memoryBudgetMb, int maxRunning, Map<String, Integer> processMemoryMb) {
+    if (memoryBudgetMb < 1 || maxRunning < 1) {
+      throw new IllegalArgumentException("memoryBudgetMb and maxRunning must be at least 1");
+    }
+    this.memoryBudgetMb = memoryBudgetMb;
+    this.maxRunning = maxRunning;
+    this.processMemoryMb = new HashMap<String, Integer>(processMemoryMb);
+  }
+
+  /**
+   * Creates a ChildProcessScheduler whose limits are derived from the host.
+   *
+   * @param childProcessRamMb maximum RAM for a child process, in MB
+   * @param kawaRamMb RAM for a Kawa process, in MB, or 0 to use {@code childProcessRamMb}
+   * @param dxRamMb RAM for a DX process, in MB, or 0 to use {@code childProcessRamMb}
+   * @param memoryBudgetMb the total memory, in MB, that may be reserved by running child
+   *     processes, or 0 to use the physical memory not already reserved by this JVM and by
+   *     {@code otherReservedMb}
+   * @param maxRunning the maximum number of child processes that may run at the same time, or 0 to
+   *     use the number of processors
+   * @param otherReservedMb memory, in MB, used by other long-lived processes, such as the
+   *     YailGenerator workers
+   */
+  static ChildProcessScheduler create(int childProcessRamMb, int kawaRamMb, int dxRamMb,
+      int memoryBudgetMb, int maxRunning, int otherReservedMb) {
+    Map<String, Integer> processMemoryMb = new HashMap<String, Integer>();
+    processMemoryMb.put(BuildMetrics.KAWA_PROCESS, (kawaRamMb > 0) ? kawaRamMb : childProcessRamMb);
+    processMemoryMb.put(BuildMetrics.DX_PROCESS, (dxRamMb > 0) ? dxRamMb : childProcessRamMb);
+    int largestProcessMb = Collections.max(processMemoryMb.values());
+    if (memoryBudgetMb == 0) {
+      memoryBudgetMb = largestProcessMb;
+      long physicalMemoryMb = getPhysicalMemoryMb();
+      if (physicalMemoryMb > 0) {
+        long ownHeapMb = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+        memoryBudgetMb = (int) Math.max(largestProcessMb,
+            physicalMemoryMb - ownHeapMb - otherReservedMb);
+      } else {
+        LOG.warning("Unable to determine physical memory. Only one Kawa or DX process at a time.");
+      }
+    }
+    if (maxRunning == 0) {
+      maxRunning = Runtime.getRuntime().availableProcessors();
+    }
+    LOG.info("Kawa and DX memory budget = " + memoryBudgetMb + " MB, " +
+        "maximum simultaneous Kawa and DX processes = " + maxRunning + ", " +
+        "memory per process = " + processMemoryMb + " MB");
+    return new ChildProcessScheduler(memoryBudgetMb, maxRunning, processMemoryMb);
+  }
+
+  private static long getPhysicalMemoryMb() {
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) osBean).getTotalPhysicalMemorySize() /
+          (1024 * 1024);
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the memory, in MB, that a child process of the given kind is run with and reserves.
+   *
+   * @param processName the kind of child process, such as {@link BuildMetrics#DX_PROCESS}
+   * @param defaultMemoryMb the memory for a kind of child process that doesn't have its own budget
+   */
+  int getProcessMemoryMb(String processName, int defaultMemoryMb) {
+    Integer memoryMb = processMemoryMb.get(processName);
+    return (memoryMb != null) ? memoryMb : defaultMemoryMb;
+  }
+
+  /**
+   * Waits until a child process that needs the given amount of memory may run and reserves the
+   * memory for it. Every call to this method must be followed by a call to {@link #release} with
+   * the same amount of memory.
+   *
+   * @param memoryMb the memory, in MB, that the child process may use. If this exceeds the memory
+   *     budget, the child process will run only when no other child process is running.
+   * @throws InterruptedException if the current thread is interrupted while waiting
+   */
+  void acquire(int memoryMb) throws InterruptedException {
+    memoryMb = Math.min(memoryMb, memoryBudgetMb);
+    long start = System.currentTimeMillis();
+    Object ticket = new Object();
+    synchronized (this) {
+      waiting.addLast(ticket);
+      try {
+        while (waiting.getFirst() != ticket || running >= maxRunning ||
+            reservedMemoryMb + memoryMb > memoryBudgetMb) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        waiting.remove(ticket);
+        notifyAll();
+        throw e;
+      }
+      waiting.removeFirst();
+      running++;
+      reservedMemoryMb += memoryMb;
+      // The next waiting child process may fit too.
+      notifyAll();
+    }
+    recordWait(System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Releases the memory reserved by {@link #acquire}.
+   *
+   * @param memoryMb the memory, in MB, that was passed to {@link #acquire}
+   */
+  void release(int memoryMb) {
+    memoryMb = Math.min(memoryMb, memoryBudgetMb);
+    synchronized (this) {
+      running--;
+      reservedMemoryMb -= memoryMb;
+      notifyAll();
+    }
+  }
+
+  private void recordWait(long waitMillis) {
+    admittedCount.incrementAndGet();
+    totalWaitMillis.addAndGet(waitMillis);
+    while (true) {
+      long max = maxWaitMillis.get();
+      if (waitMillis <= max || maxWaitMillis.compareAndSet(max, waitMillis)) {
+        break;
+      }
+    }
+  }
+
+  public int getMemoryBudgetMb() {
+    return memoryBudgetMb;
+  }
+
+  public int getMaxRunning() {
+    return maxRunning;
+  }
+
+  public synchronized int getReservedMemoryMb() {
+    return reservedMemoryMb;
+  }
+
+  public synchronized int getRunningCount() {
+    return running;
+  }
+
+  public synchronized int getQueueDepth() {
+    return waiting.size();
+  }
+
+  public int getAdmittedCount() {
+    return admittedCount.get();
+  }
+
+  public long getTotalWaitMillis() {
+    return totalWaitMillis.get();
+  }
+
+  public long getMaxWaitMillis() {
+    return maxWaitMillis.get();
+  }
+}
@@ -7,6 +7,7 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import com.google.common.io.Resources;
 
@@ -19,7 +20,11 @@ import org.codehaus.jettison.json.JSONObject;
 import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -30,8 +35,13 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
 
@@ -44,8 +54,32 @@ import javax.imageio.ImageIO;
  * @author lizlooney@google.com (Liz Looney)
  */
 public final class Compiler {
-  // Kawa and DX processes can use a lot of memory. We only launch one Kawa or DX process at a time.
-  private static final Object SYNC_KAWA_OR_DX = new Object();
+  /**
+   * Runs the Kawa and DX child processes of a build.
+   */
+  @VisibleForTesting
+  interface ChildProcessRunner {
+    /**
+     * Runs a child process.
+     *
+     * @param commandLine  command to execute and its arguments
+     * @param out  standard output stream to redirect to
+     * @param err  standard error stream to redirect to
+     * @param peakRssBytes  set to the peak resident set size of the process, in bytes, or left
+     *     unchanged if it can't be measured
+     * @return {@code true} if the process succeeded, {@code false} otherwise
+     */
+    boolean run(String[] commandLine, PrintStream out, PrintStream err, AtomicLong peakRssBytes);
+  }
+
+  // Runs child processes with Execution.
+  private static final ChildProcessRunner EXECUTION_RUNNER = new ChildProcessRunner() {
+    @Override
+    public boolean run(String[] commandLine, PrintStream out, PrintStream err,
+        AtomicLong peakRssBytes) {
+      return Execution.execute(null, commandLine, out, err, peakRssBytes);
+    }
+  };
 
   // TODO(sharon): temporary until we add support for new activities
   private static final String LIST_ACTIVITY_CLASS =
@@ -57,6 +91,11 @@ public final class Compiler {
 
   public static final String RUNTIME_FILES_DIR = "/files/";
 
+  // Memory, in MB, that a Kawa or DX process uses beyond its maximum heap, for the JVM's code,
+  // thread stacks and other native memory. A child process is run with a maximum heap this much
+  // smaller than the memory that it reserves.
+  static final int CHILD_PROCESS_OVERHEAD_MB = 200;
+
   private static final String DEFAULT_ICON =
       RUNTIME_FILES_DIR + "ya.png";
 
@@ -85,6 +124,16 @@ public final class Compiler {
   static final String YAIL_RUNTIME =
       RUNTIME_FILES_DIR + "runtime.scm";
 
+  // The runtime files that determine the contents of cached class files and APKs, together with
+  // the YAIL source.
+  private static final String[] CACHED_RUNTIME_FILES = {
+      DX_JAR, SIMPLE_ANDROID_RUNTIME_JAR, KAWA_RUNTIME, TWITTER_RUNTIME, ANDROID_RUNTIME,
+      YAIL_RUNTIME
+  };
+
+  // Hash of the CACHED_RUNTIME_FILES. Guarded by CACHED_RUNTIME_FILES.
+  private static String runtimeFilesKey;
+
   // Logging support
   private static final Logger LOG = Logger.getLogger(Compiler.class.getName());
 
@@ -101,7 +150,7 @@ public final class Compiler {
       new ConcurrentHashMap<String, File>();
 
   // TODO(user,lizlooney): i18n here and in lines below that call String.format(...)
-  private static final String ERROR_IN_STAGE =
+  static final String ERROR_IN_STAGE =
       "Error: Your build failed due to an error in the %s stage, " +
       "not because of an error in your program.\n";
   private static final String ICON_ERROR =
@@ -117,8 +166,17 @@ public final class Compiler {
   private final PrintStream err;
   private final PrintStream userErrors;
   private final boolean isForRepl;
-  // Maximum ram that can be used by a child processes, in MB.
+  // Maximum ram that can be used by a child processes, in MB, unless the childProcessScheduler
+  // gives Kawa or DX its own amount.
   private final int childProcessRamMb;
+  // Kawa and DX processes can use a lot of memory. The scheduler decides when they may run.
+  private final ChildProcessScheduler childProcessScheduler;
+  // Where the peak memory use of Kawa and DX processes is recorded, or null.
+  private final BuildMetrics buildMetrics;
+  // Cache of the class files for each form and for runtime.scm, or null.
+  private final DiskCache classCache;
+  // Runs the Kawa and DX processes once the childProcessScheduler admits them.
+  private final ChildProcessRunner childProcessRunner;
 
 
   /*
@@ -151,7 +209,8 @@ public final class Compiler {
   /*
    * Creates an AndroidManifest.xml file needed for the Android application.
    */
-  private boolean writeAndroidManifest(File manifestFile, Set<String> permissionsNeeded) {
+  @VisibleForTesting
+  boolean writeAndroidManifest(File manifestFile, Set<String> permissionsNeeded) {
     // Create AndroidManifest.xml
     String mainClass = project.getMainClass();
     String packageName = Signatures.getPackageName(mainClass);
@@ -280,9 +339,23 @@ public final class Compiler {
     return true;
   }
 
+  // The stages of a compilation
+  static final String ICON_STAGE = "Preparing application icon";
+  static final String PERMISSIONS_STAGE = "Determining permissions";
+  static final String MANIFEST_STAGE = "Generating manifest file";
+  static final String CLASSES_STAGE = "Compiling source files";
+  static final String DX_STAGE = "Invoking DX";
+  static final String AAPT_STAGE = "Invoking AAPT";
+  static final String APK_BUILDER_STAGE = "Invoking ApkBuilder";
+  static final String SIGNING_STAGE = "Signing the apk file";
+
   /**
    * Builds a YAIL project.
    *
+   * <p>The compilation adds its stages to the given pipeline and runs it.
+   * The stages run as soon as the stages they depend on are done, so that,
+   * for example, the manifest is packaged by AAPT while Kawa and DX run.
+   *
    * @param project  project to build
    * @param componentTypes component types used in the project
    * @param out  stdout stream for compiler messages
@@ -291,51 +364,79 @@ public final class Compiler {
    * @param isForRepl {@code true}, if this compilation is for the special REPL app
    * @param keystoreFilePath
    * @param childProcessRam   maximum RAM for child processes, in MBs.
+   * @param childProcessScheduler  the scheduler that decides when Kawa and DX may run
+   * @param classCache  cache of class files, or {@code null} to always compile every form
+   * @param buildMetrics  where to record the peak memory use of Kawa and DX, or {@code null}
+   * @param pipeline  the pipeline to run the compilation's stages in
+   * @param sourcesStage  the stage of the pipeline that generates the YAIL files, or
+   *     {@code null} if they already exist
+   * @param keystoreStage  the stage of the pipeline that creates the keystore, or
+   *     {@code null} if it already exists
    * @return  {@code true} if the compilation succeeds, {@code false} otherwise
    */
   public static boolean compile(Project project, Set<String> componentTypes,
                                 PrintStream out, PrintStream err, PrintStream userErrors,
-                                boolean isForRepl, String keystoreFilePath, int childProcessRam) {
+                                boolean isForRepl, final String keystoreFilePath,
+                                int childProcessRam, ChildProcessScheduler childProcessScheduler,
+                                DiskCache classCache, BuildMetrics buildMetrics,
+                                BuildPipeline pipeline,
+                                String sourcesStage, String keystoreStage) {
     long start = System.currentTimeMillis();
 
     // Create a new compiler instance for the compilation
-    Compiler compiler = new Compiler(project, componentTypes, out, err, userErrors, isForRepl,
-                                     childProcessRam);
+    final Compiler compiler = new Compiler(project, componentTypes, out, err, userErrors,
+                                           isForRepl, childProcessRam, childProcessScheduler,
+                                           classCache, buildMetrics, EXECUTION_RUNNER);
 
-    // Create build directory.
+    // Create the build directories before any of the stages run.
     File buildDir = createDirectory(project.getBuildDirectory());
+    final File resDir = createDirectory(buildDir, "res");
+    final File drawableDir = createDirectory(resDir, "drawable");
+    final File manifestFile = new File(buildDir, "AndroidManifest.xml");
+    final File classesDir = createDirectory(buildDir, "classes");
+    File tmpDir = createDirectory(buildDir, "tmp");
+    final String dexedClasses = tmpDir.getAbsolutePath() + File.separator + "classes.dex";
+    File deployDir = createDirectory(buildDir, "deploy");
+    final String tmpPackageName = deployDir.getAbsolutePath() + File.separatorChar +
+        project.getProjectName() + ".ap_";
+    final String apkAbsolutePath = deployDir.getAbsolutePath() + File.separatorChar +
+        project.getProjectName() + ".apk";
 
     // Prepare application icon.
-    out.println("________Preparing application icon");
-    File resDir = createDirectory(buildDir, "res");
-    File drawableDir = createDirectory(resDir, "drawable");
-    if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
-      return false;
-    }
+    pipeline.addStage(ICON_STAGE, new BuildPipeline.Stage() {
+      @Override
+      public boolean run() {
+        return compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"));
+      }
+    });
 
     // Determine android permissions.
-    out.println("________Determining permissions");
-    Set<String> permissionsNeeded = compiler.generatePermissions();
-    if (permissionsNeeded == null) {
-      return false;
-    }
+    final AtomicReference<Set<String>> permissionsNeeded = new AtomicReference<Set<String>>();
+    pipeline.addStage(PERMISSIONS_STAGE, new BuildPipeline.Stage() {
+      @Override
+      public boolean run() {
+        permissionsNeeded.set(compiler.generatePermissions());
+        return permissionsNeeded.get() != null;
+      }
+    });
 
-    // Generate AndroidManifest.xml
-    out.println("________Generating manifest file");
-    File manifestFile = new File(buildDir, "AndroidManifest.xml");
-    if (!compiler.writeAndroidManifest(manifestFile, permissionsNeeded)) {
-      return false;
-    }
+    // Generate AndroidManifest.xml. It lists an activity for each form, so it needs the YAIL.
+    pipeline.addStage(MANIFEST_STAGE, new BuildPipeline.Stage() {
+      @Override
+      public boolean run() {
+        return compiler.writeAndroidManifest(manifestFile, permissionsNeeded.get());
+      }
+    }, dependencies(PERMISSIONS_STAGE, sourcesStage));
 
     // Create class files.
-    out.println("________Compiling source files");
-    File classesDir = createDirectory(buildDir, "classes");
-    if (!compiler.generateClasses(classesDir)) {
-      return false;
-    }
+    pipeline.addStage(CLASSES_STAGE, new BuildPipeline.Stage() {
+      @Override
+      public boolean run() {
+        return compiler.generateClasses(classesDir);
+      }
+    }, dependencies(sourcesStage));
 
     // Invoke dx on class files
-    out.println("________Invoking DX");
     // TODO(markf): Running DX is now pretty slow (~25 sec overhead the first time and ~15 sec
     // overhead for subsequent runs).  I think it's because of the need to dx the entire
     // kawa runtime every time.  We should probably only do that once and then copy all the
@@ -345,39 +446,60 @@ public final class Compiler {
     // Android guy suggested an alternate approach of shipping the kawa runtime .dex file as
     // data with the application and then creating a new DexClassLoader using that .dex file
     // and with the original app class loader as the parent of the new one.
-    File tmpDir = createDirectory(buildDir, "tmp");
-    String dexedClasses = tmpDir.getAbsolutePath() + File.separator + "classes.dex";
-    if (!compiler.runDx(classesDir, dexedClasses)) {
-      return false;
-    }
+    pipeline.addStage(DX_STAGE, new BuildPipeline.Stage() {
+      @Override
+      public boolean run() {
+        return compiler.runDx(classesDir, dexedClasses);
+      }
+    }, CLASSES_STAGE);
 
     // Invoke aapt to package everything up
-    out.println("________Invoking AAPT");
-    File deployDir = createDirectory(buildDir, "deploy");
-    String tmpPackageName = deployDir.getAbsolutePath() + File.separatorChar +
-        project.getProjectName() + ".ap_";
-    if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName)) {
-      return false;
-    }
+    pipeline.addStage(AAPT_STAGE, new BuildPipeline.Stage() {
+      @Override
+      public boolean run() {
+        return compiler.runAaptPackage(manifestFile, resDir, tmpPackageName);
+      }
+    }, ICON_STAGE, MANIFEST_STAGE);
 
     // Seal the apk with ApkBuilder
-    out.println("________Invoking ApkBuilder");
-    String apkAbsolutePath = deployDir.getAbsolutePath() + File.separatorChar +
-        project.getProjectName() + ".apk";
-    if (!compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClasses)) {
-      return false;
-    }
+    pipeline.addStage(APK_BUILDER_STAGE, new BuildPipeline.Stage() {
+      @Override
+      public boolean run() {
+        return compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClasses);
+      }
+    }, DX_STAGE, AAPT_STAGE);
 
     // Sign the apk file
-    out.println("________Signing the apk file");
-    if (!compiler.runJarSigner(apkAbsolutePath, keystoreFilePath)) {
+    pipeline.addStage(SIGNING_STAGE, new BuildPipeline.Stage() {
+      @Override
+      public boolean run() {
+        return compiler.runJarSigner(apkAbsolutePath, keystoreFilePath);
+      }
+    }, dependencies(APK_BUILDER_STAGE, keystoreStage));
+
+    boolean success;
+    try {
+      success = pipeline.run(out);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
       return false;
     }
+    if (success) {
+      out.println("Build finished in " +
+          ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+    }
+    return success;
+  }
 
-    out.println("Build finished in " +
-        ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
-
-    return true;
+  // Returns the names of the given stages that are not null.
+  private static String[] dependencies(String... stages) {
+    List<String> dependencies = Lists.newArrayList();
+    for (String stage : stages) {
+      if (stage != null) {
+        dependencies.add(stage);
+      }
+    }
+    return dependencies.toArray(new String[dependencies.size()]);
   }
 
   /*
@@ -401,7 +523,7 @@ public final class Compiler {
   }
 
   /**
-   * Creates a new YAIL compiler.
+   * Creates a new YAIL compiler that runs one child process at a time, without a class cache.
    *
    * @param project  project to build
    * @param componentTypes component types used in the project
@@ -414,6 +536,30 @@ public final class Compiler {
   @VisibleForTesting
   Compiler(Project project, Set<String> componentTypes, PrintStream out, PrintStream err,
            PrintStream userErrors, boolean isForRepl, int childProcessMaxRam) {
+    this(project, componentTypes, out, err, userErrors, isForRepl, childProcessMaxRam,
+        new ChildProcessScheduler(childProcessMaxRam, 1), null, null, EXECUTION_RUNNER);
+  }
+
+  /**
+   * Creates a new YAIL compiler.
+   *
+   * @param project  project to build
+   * @param componentTypes component types used in the project
+   * @param out  stdout stream for compiler messages
+   * @param err  stderr stream for compiler messages
+   * @param userErrors stream to write user-visible error messages
+   * @param isForRepl {@code true}, if this compilation is for the special REPL app
+   * @param childProcessMaxRam  maximum RAM for child processes, in MBs.
+   * @param childProcessScheduler  the scheduler that decides when Kawa and DX may run
+   * @param classCache  cache of class files, or {@code null} to always compile every form
+   * @param buildMetrics  where to record the peak memory use of Kawa and DX, or {@code null}
+   * @param childProcessRunner  runs the Kawa and DX processes
+   */
+  @VisibleForTesting
+  Compiler(Project project, Set<String> componentTypes, PrintStream out, PrintStream err,
+           PrintStream userErrors, boolean isForRepl, int childProcessMaxRam,
+           ChildProcessScheduler childProcessScheduler, DiskCache classCache,
+           BuildMetrics buildMetrics, ChildProcessRunner childProcessRunner) {
     this.project = project;
     this.componentTypes = componentTypes;
     this.out = out;
@@ -421,16 +567,23 @@ public final class Compiler {
     this.userErrors = userErrors;
     this.isForRepl = isForRepl;
     this.childProcessRamMb = childProcessMaxRam;
+    this.childProcessScheduler = childProcessScheduler;
+    this.classCache = classCache;
+    this.buildMetrics = buildMetrics;
+    this.childProcessRunner = childProcessRunner;
   }
 
   /*
    * Runs the Kawa compiler in a separate process to generate classes. Returns false if not able to
    * create a class file for every source file in the project.
+   *
+   * If there is a classCache, the classes of forms whose YAIL hasn't changed, and the classes of
+   * runtime.scm, are restored from the cache, and only the other forms are compiled.
    */
-  private boolean generateClasses(File classesDir) {
+  @VisibleForTesting
+  boolean generateClasses(File classesDir) {
     try {
       List<Project.SourceDescriptor> sources = project.getSources();
-      List<String> sourceFileNames = Lists.newArrayListWithCapacity(sources.size());
       List<String> classFileNames = Lists.newArrayListWithCapacity(sources.size());
       boolean userCodeExists = false;
       for (Project.SourceDescriptor source : sources) {
@@ -458,7 +611,6 @@ public final class Compiler {
             fileReader.close();
           }
         }
-        sourceFileNames.add(sourceFileName);
         classFileNames.add(classFileName);
       }
 
@@ -467,6 +619,49 @@ public final class Compiler {
         return false;
       }
 
+      // Restore what we can from the classCache.
+      long startCache = System.currentTimeMillis();
+      List<String> formClassesKeys = null;
+      String runtimeClassesKey = null;
+      if (classCache != null) {
+        try {
+          runtimeClassesKey = getRuntimeClassesKey();
+          formClassesKeys = Lists.newArrayListWithCapacity(sources.size());
+          for (Project.SourceDescriptor source : sources) {
+            formClassesKeys.add(getFormClassesKey(source));
+          }
+        } catch (IOException e) {
+          // Not fatal. We just won't use the cache.
+          LOG.log(Level.WARNING, "YAIL compiler - unable to compute class cache keys.", e);
+          runtimeClassesKey = null;
+          formClassesKeys = null;
+        }
+      }
+      boolean compileRuntime =
+          (runtimeClassesKey == null) || !restoreClasses(runtimeClassesKey, classesDir);
+      List<Integer> compiledForms = Lists.newArrayList();
+      List<String> cachedFormNames = Lists.newArrayList();
+      for (int i = 0; i < sources.size(); i++) {
+        if (formClassesKeys != null && restoreClasses(formClassesKeys.get(i), classesDir)) {
+          cachedFormNames.add(Signatures.getClassName(sources.get(i).getQualifiedName()));
+        } else {
+          compiledForms.add(i);
+        }
+      }
+      if (classCache != null) {
+        String cacheTimeMessage = "Class cache time: " +
+            ((System.currentTimeMillis() - startCache) / 1000.0) + " seconds for " +
+            cachedFormNames.size() + " cached forms " + cachedFormNames +
+            (compileRuntime ? "" : " and runtime.scm");
+        out.println(cacheTimeMessage);
+        LOG.info(cacheTimeMessage);
+      }
+
+      if (compiledForms.isEmpty() && !compileRuntime) {
+        // Everything came from the cache.
+        return true;
+      }
+
       String classpath =
           getResource(KAWA_RUNTIME) + File.pathSeparator +
           getResource(SIMPLE_ANDROID_RUNTIME_JAR) + File.pathSeparator +
@@ -474,10 +669,10 @@ public final class Compiler {
           getResource(ANDROID_RUNTIME);
       String yailRuntime = getResource(YAIL_RUNTIME);
       List<String> kawaCommandArgs = Lists.newArrayList();
-      int mx = childProcessRamMb - 200;
+      int kawaRamMb = getChildProcessRamMb(BuildMetrics.KAWA_PROCESS);
       Collections.addAll(kawaCommandArgs,
           System.getProperty("java.home") + "/bin/java",
-          "-mx" + mx + "M",
+          "-mx" + (kawaRamMb - CHILD_PROCESS_OVERHEAD_MB) + "M",
           "-cp", classpath,
           "kawa.repl",
           "-f", yailRuntime,
@@ -489,8 +684,16 @@ public final class Compiler {
       // including the name of the tmp directory that contains them. We may be able to avoid that
       // by using source file names that are relative to the project root and using the project
       // root as the working directory for the Kawa compiler process.
-      kawaCommandArgs.addAll(sourceFileNames);
-      kawaCommandArgs.add(yailRuntime);
+      // Those references are only used in stack traces, so it doesn't matter that cached class
+      // files refer to the tmp directory of an earlier build.
+      List<String> compiledFormNames = Lists.newArrayList();
+      for (int i : compiledForms) {
+        kawaCommandArgs.add(sources.get(i).getFile().getAbsolutePath());
+        compiledFormNames.add(Signatures.getClassName(sources.get(i).getQualifiedName()));
+      }
+      if (compileRuntime) {
+        kawaCommandArgs.add(yailRuntime);
+      }
       String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
 
       long start = System.currentTimeMillis();
@@ -498,15 +701,14 @@ public final class Compiler {
       // them to the protocol buffer for logging purposes. (See
       // YoungAndroidProjectBuilder.processCompilerOutout.
       ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
-      boolean kawaSuccess;
-      synchronized (SYNC_KAWA_OR_DX) {
-        kawaSuccess = Execution.execute(null, kawaCommandLine,
-            System.out, new PrintStream(kawaOutputStream));
-      }
+      boolean kawaSuccess = executeChildProcess(BuildMetrics.KAWA_PROCESS, kawaRamMb,
+          kawaCommandLine, System.out, new PrintStream(kawaOutputStream));
       String kawaOutput = kawaOutputStream.toString();
       out.print(kawaOutput);
       String kawaCompileTimeMessage = "Kawa compile time: " +
-          ((System.currentTimeMillis() - start) / 1000.0) + " seconds";
+          ((System.currentTimeMillis() - start) / 1000.0) + " seconds for " +
+          compiledFormNames.size() + " compiled forms " + compiledFormNames +
+          (compileRuntime ? " and runtime.scm" : "");
       out.println(kawaCompileTimeMessage);
       LOG.info(kawaCompileTimeMessage);
 
@@ -522,6 +724,25 @@ public final class Compiler {
           return false;
         }
       }
+
+      if (formClassesKeys != null) {
+        // Cache the classes that Kawa just generated. Every class file that doesn't belong to a
+        // form belongs to runtime.scm.
+        List<File> formClassFiles = Lists.newArrayList();
+        for (int i = 0; i < classFileNames.size(); i++) {
+          List<File> classFiles = getFormClassFiles(new File(classFileNames.get(i)));
+          formClassFiles.addAll(classFiles);
+          if (compiledForms.contains(i)) {
+            storeClasses(formClassesKeys.get(i), classesDir, classFiles);
+          }
+        }
+        if (compileRuntime) {
+          List<File> runtimeClassFiles = Lists.newArrayList();
+          collectClassFiles(classesDir, runtimeClassFiles);
+          runtimeClassFiles.removeAll(formClassFiles);
+          storeClasses(runtimeClassesKey, classesDir, runtimeClassFiles);
+        }
+      }
     } catch (IOException e) {
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "compile"));
@@ -531,6 +752,130 @@ public final class Compiler {
     return true;
   }
 
+  /*
+   * Returns the key for the classes of runtime.scm in the classCache. These depend only on the
+   * runtime files.
+   */
+  private static String getRuntimeClassesKey() throws IOException {
+    return new ContentHasher().add(YAIL_RUNTIME).add(getRuntimeFilesKey()).toKey();
+  }
+
+  /*
+   * Returns the key for the classes of the given form in the classCache. These depend on the
+   * runtime files, the package in which Kawa puts classes without a module name, and the YAIL
+   * source of the form.
+   */
+  private String getFormClassesKey(Project.SourceDescriptor source) throws IOException {
+    return new ContentHasher()
+        .add(getRuntimeFilesKey())
+        .add(Signatures.getPackageName(project.getMainClass()))
+        .add(source.getQualifiedName())
+        .add(source.getFile())
+        .toKey();
+  }
+
+  /*
+   * Returns the class files that Kawa generated for a form, given the form's main class file. The
+   * other class files for the form are inner classes of the main class.
+   */
+  private static List<File> getFormClassFiles(File classFile) {
+    List<File> classFiles = Lists.newArrayList();
+    String className = classFile.getName().substring(0, classFile.getName().lastIndexOf('.'));
+    File[] files = classFile.getParentFile().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.equals(classFile) ||
+            (file.getName().startsWith(className + "$") && file.getName().endsWith(".class"))) {
+          classFiles.add(file);
+        }
+      }
+    }
+    return classFiles;
+  }
+
+  private static void collectClassFiles(File dir, List<File> classFiles) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isDirectory()) {
+          collectClassFiles(file, classFiles);
+        } else if (file.getName().endsWith(".class")) {
+          classFiles.add(file);
+        }
+      }
+    }
+  }
+
+  /*
+   * Extracts the class files cached under the given key into the classes directory. Returns false
+   * if they aren't in the cache or can't be extracted.
+   */
+  private boolean restoreClasses(String key, File classesDir) {
+    try {
+      File zip = File.createTempFile("classes", ".zip");
+      try {
+        if (!classCache.get(key, zip)) {
+          return false;
+        }
+        ZipInputStream zipInputStream =
+            new ZipInputStream(new BufferedInputStream(new FileInputStream(zip)));
+        try {
+          ZipEntry zipEntry;
+          while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+            File classFile = new File(classesDir, zipEntry.getName());
+            Files.createParentDirs(classFile);
+            BufferedOutputStream outputStream =
+                new BufferedOutputStream(new FileOutputStream(classFile));
+            try {
+              ByteStreams.copy(zipInputStream, outputStream);
+            } finally {
+              outputStream.close();
+            }
+          }
+        } finally {
+          zipInputStream.close();
+        }
+        return true;
+      } finally {
+        zip.delete();
+      }
+    } catch (IOException e) {
+      // Not fatal. Kawa will overwrite anything we extracted.
+      LOG.log(Level.WARNING, "YAIL compiler - unable to restore cached classes.", e);
+      return false;
+    }
+  }
+
+  /*
+   * Stores the given class files, which are in the classes directory, in the classCache under the
+   * given key.
+   */
+  private void storeClasses(String key, File classesDir, List<File> classFiles) {
+    try {
+      String classesPath = classesDir.getAbsolutePath() + File.separator;
+      File zip = File.createTempFile("classes", ".zip");
+      try {
+        ZipOutputStream zipOutputStream =
+            new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zip)));
+        try {
+          for (File classFile : classFiles) {
+            String name = classFile.getAbsolutePath().substring(classesPath.length());
+            zipOutputStream.putNextEntry(new ZipEntry(name.replace(File.separatorChar, '/')));
+            Files.copy(classFile, zipOutputStream);
+          }
+        } finally {
+          zipOutputStream.close();
+        }
+        classCache.put(key, zip);
+      } finally {
+        zip.delete();
+      }
+    } catch (IOException e) {
+      // Failing to cache the classes isn't fatal.
+      LOG.log(Level.WARNING, "YAIL compiler - unable to cache classes.", e);
+    }
+  }
+
   private boolean runJarSigner(String apkAbsolutePath, String keystoreAbsolutePath) {
     // TODO(user): maybe make a command line flag for the jarsigner location
     String javaHome = System.getProperty("java.home");
@@ -601,10 +946,11 @@ public final class Compiler {
   }
 
   private boolean runDx(File classesDir, String dexedClasses) {
-    int mx = childProcessRamMb - 200;
+    long startDx = System.currentTimeMillis();
+    int dxRamMb = getChildProcessRamMb(BuildMetrics.DX_PROCESS);
     String[] dxCommandLine = {
         System.getProperty("java.home") + "/bin/java",
-        "-mx" + mx + "M",
+        "-mx" + (dxRamMb - CHILD_PROCESS_OVERHEAD_MB) + "M",
         "-jar",
         getResource(DX_JAR),
         "--dex",
@@ -615,13 +961,11 @@ public final class Compiler {
         getResource(KAWA_RUNTIME),
         getResource(TWITTER_RUNTIME),
     };
-    long startDx = System.currentTimeMillis();
     // Using System.err and System.out on purpose. Don't want to polute build messages with
     // tools output
-    boolean dxSuccess;
-    synchronized (SYNC_KAWA_OR_DX) {
-      dxSuccess = Execution.execute(null, dxCommandLine, System.out, System.err);
-    }
+    boolean dxSuccess =
+        executeChildProcess(BuildMetrics.DX_PROCESS, dxRamMb, dxCommandLine, System.out,
+            System.err);
     if (!dxSuccess) {
       LOG.warning("YAIL compiler - DX execution failed.");
       err.println("YAIL compiler - DX execution failed.");
@@ -632,10 +976,59 @@ public final class Compiler {
         ((System.currentTimeMillis() - startDx) / 1000.0) + " seconds";
     out.println(dxTimeMessage);
     LOG.info(dxTimeMessage);
-
     return true;
   }
 
+  /*
+   * Returns a hash of the runtime files used by Kawa and DX. These can't change while the build
+   * server is running, so we only hash them once.
+   */
+  static String getRuntimeFilesKey() throws IOException {
+    synchronized (CACHED_RUNTIME_FILES) {
+      if (runtimeFilesKey == null) {
+        ContentHasher hasher = new ContentHasher();
+        for (String runtimeFile : CACHED_RUNTIME_FILES) {
+          hasher.add(runtimeFile).add(new File(getResource(runtimeFile)));
+        }
+        runtimeFilesKey = hasher.toKey();
+      }
+      return runtimeFilesKey;
+    }
+  }
+
+  /*
+   * Returns the memory, in MB, that a Kawa or DX process is run with: its maximum heap plus
+   * CHILD_PROCESS_OVERHEAD_MB.
+   */
+  private int getChildProcessRamMb(String processName) {
+    return childProcessScheduler.getProcessMemoryMb(processName, childProcessRamMb);
+  }
+
+  /*
+   * Runs a Kawa or DX process once the childProcessScheduler admits it with the given memory, and
+   * records its peak memory use.
+   */
+  private boolean executeChildProcess(String processName, int ramMb, String[] commandLine,
+      PrintStream out, PrintStream err) {
+    try {
+      childProcessScheduler.acquire(ramMb);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warning("YAIL compiler - interrupted while waiting to run " + commandLine[0]);
+      return false;
+    }
+    try {
+      AtomicLong peakRssBytes = new AtomicLong(-1);
+      boolean success = childProcessRunner.run(commandLine, out, err, peakRssBytes);
+      if (buildMetrics != null && peakRssBytes.get() > 0) {
+        buildMetrics.recordPeakRss(processName, peakRssBytes.get());
+      }
+      return success;
+    } finally {
+      childProcessScheduler.release(ramMb);
+    }
+  }
+
   private boolean runAaptPackage(File manifestFile, File resDir, String tmpPackageName) {
     // Need to make sure assets directory exists otherwise aapt will fail.
     createDirectory(project.getAssetsDirectory());
@@ -0,0 +1,82 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes a key for a {@link DiskCache} from the contents of everything that went into producing
+ * a cache entry.
+ *
+ * <p>Each value is added together with its length, so that different sequences of values can't
+ * produce the same key.</p>
+ */
+final class ContentHasher {
+  private final MessageDigest digest;
+
+  ContentHasher() {
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-1.
+      throw new RuntimeException(e);
+    }
+  }
+
+  ContentHasher add(String value) {
+    return add(value.getBytes(Charsets.UTF_8));
+  }
+
+  ContentHasher add(byte[] value) {
+    addLength(value.length);
+    digest.update(value);
+    return this;
+  }
+
+  ContentHasher add(File file) throws IOException {
+    addLength(file.length());
+    digest.update(Files.toByteArray(file));
+    return this;
+  }
+
+  /**
+   * Adds the contents of a stream, which are read a buffer at a time rather than all at once. The
+   * stream isn't closed.
+   */
+  ContentHasher add(InputStream in) throws IOException {
+    // The contents are hashed on their own, and their hash is added, since their length isn't
+    // known until they have been read.
+    ContentHasher contentHasher = new ContentHasher();
+    byte[] buffer = new byte[8192];
+    for (int count = in.read(buffer); count != -1; count = in.read(buffer)) {
+      contentHasher.digest.update(buffer, 0, count);
+    }
+    return add(contentHasher.digest.digest());
+  }
+
+  private void addLength(long length) {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      digest.update((byte) (length >>> shift));
+    }
+  }
+
+  /**
+   * Returns the key as a string of hex digits, which is also usable as a file name.
+   * The ContentHasher can't be used after calling this method.
+   */
+  String toKey() {
+    byte[] bytes = digest.digest();
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+}
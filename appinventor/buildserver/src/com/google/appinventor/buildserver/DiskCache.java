@@ -0,0 +1,222 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded, content-addressed cache of files in a directory.
+ *
+ * <p>Entries are keyed by a hash of everything that went into producing them (see
+ * {@link ContentHasher}), so an entry never needs to be invalidated. When the total size of the
+ * entries exceeds the limit, the least recently used entries are deleted. The entries survive
+ * restarts of the build server.</p>
+ *
+ * <p>The size of the entries is only counted by the DiskCache that uses the directory, and
+ * unfinished entries left in it are deleted when it is created, so a DiskCache locks its directory
+ * and two build servers can't share one.</p>
+ */
+final class DiskCache {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(DiskCache.class.getName());
+
+  private static final String TEMP_PREFIX = "tmp-";
+  private static final String LOCK_FILE_NAME = ".lock";
+
+  private final File directory;
+  private final long maxBytes;
+  private final RandomAccessFile lockFile;
+  private final FileLock lock;
+
+  // Maps keys to entry sizes, from least recently used to most recently used. Guarded by this.
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f,
+      true);
+
+  // Guarded by this.
+  private long sizeBytes;
+
+  private final AtomicInteger hitCount = new AtomicInteger(0);
+  private final AtomicInteger missCount = new AtomicInteger(0);
+  private final AtomicInteger evictionCount = new AtomicInteger(0);
+
+  /**
+   * Creates a DiskCache, picking up any entries already in the directory.
+   *
+   * @param directory the directory that holds the entries
+   * @param maxBytes the maximum total size of the entries
+   * @throws IllegalArgumentException if the directory can't be used or another DiskCache is using
+   *     it
+   */
+  DiskCache(File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    directory.mkdirs();
+
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IllegalArgumentException("Unable to use " + directory + " as a cache directory");
+    }
+    FileLock directoryLock = null;
+    try {
+      lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+      try {
+        directoryLock = lockFile.getChannel().tryLock();
+      } catch (OverlappingFileLockException e) {
+        // Another DiskCache in this process holds the lock.
+      }
+      if (directoryLock == null) {
+        lockFile.close();
+        throw new IllegalArgumentException(directory + " is already used by another cache");
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unable to lock " + directory, e);
+    }
+    lock = directoryLock;
+    // Rebuild the LRU order from the modification times, which we update on every hit.
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        long m1 = f1.lastModified();
+        long m2 = f2.lastModified();
+        return (m1 < m2) ? -1 : ((m1 == m2) ? 0 : 1);
+      }
+    });
+    synchronized (this) {
+      for (File file : files) {
+        if (file.getName().startsWith(TEMP_PREFIX)) {
+          // Left over from a put that didn't finish.
+          file.delete();
+        } else if (file.isFile() && !file.getName().equals(LOCK_FILE_NAME)) {
+          entries.put(file.getName(), file.length());
+          sizeBytes += file.length();
+        }
+      }
+      evictIfNecessary();
+    }
+  }
+
+  /**
+   * Copies the entry for the given key to the given file.
+   *
+   * @param key the key
+   * @param destination the file to copy the entry to
+   * @return {@code true} if the entry was found and copied, {@code false} otherwise
+   */
+  boolean get(String key, File destination) {
+    File file = new File(directory, key);
+    synchronized (this) {
+      if (entries.get(key) == null) {
+        missCount.incrementAndGet();
+        return false;
+      }
+      file.setLastModified(System.currentTimeMillis());
+    }
+    try {
+      Files.copy(file, destination);
+      hitCount.incrementAndGet();
+      return true;
+    } catch (IOException e) {
+      // The entry may have been evicted while we were copying it.
+      LOG.log(Level.INFO, "Unable to copy cache entry " + file, e);
+      missCount.incrementAndGet();
+      destination.delete();
+      return false;
+    }
+  }
+
+  /**
+   * Stores a copy of the given file as the entry for the given key.
+   *
+   * @param key the key
+   * @param source the file to copy into the cache
+   */
+  void put(String key, File source) {
+    File file = new File(directory, key);
+    try {
+      File temp = File.createTempFile(TEMP_PREFIX, null, directory);
+      try {
+        Files.copy(source, temp);
+        synchronized (this) {
+          Long oldSize = entries.remove(key);
+          if (oldSize != null) {
+            sizeBytes -= oldSize;
+          }
+          if (!temp.renameTo(file)) {
+            throw new IOException("Unable to rename " + temp + " to " + file);
+          }
+          entries.put(key, file.length());
+          sizeBytes += file.length();
+          evictIfNecessary();
+        }
+      } finally {
+        temp.delete();
+      }
+    } catch (IOException e) {
+      // Failing to cache something isn't fatal.
+      LOG.log(Level.WARNING, "Unable to store cache entry " + file, e);
+    }
+  }
+
+  /**
+   * Releases the lock on the directory, so that another DiskCache can use it. The lock is also
+   * released when the process exits.
+   */
+  void close() {
+    try {
+      lock.release();
+      lockFile.close();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to unlock " + directory, e);
+    }
+  }
+
+  // Must be called while synchronized on this.
+  private void evictIfNecessary() {
+    Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+    while (sizeBytes > maxBytes && iterator.hasNext()) {
+      Map.Entry<String, Long> entry = iterator.next();
+      new File(directory, entry.getKey()).delete();
+      sizeBytes -= entry.getValue();
+      iterator.remove();
+      evictionCount.incrementAndGet();
+    }
+  }
+
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  public synchronized long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public int getHitCount() {
+    return hitCount.get();
+  }
+
+  public int getMissCount() {
+    return missCount.get();
+  }
+
+  public int getEvictionCount() {
+    return evictionCount.get();
+  }
+}
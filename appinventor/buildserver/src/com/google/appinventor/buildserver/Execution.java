@@ -2,8 +2,11 @@
 
 package com.google.appinventor.buildserver;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -12,6 +15,8 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,6 +30,9 @@ public final class Execution {
   private static final Logger LOG = Logger.getLogger(Execution.class.getName());
   private static final Joiner joiner = Joiner.on(" ");
 
+  private static final File PROC_DIR = new File("/proc");
+  private static final long RSS_SAMPLE_MILLIS = 100;
+
   /*
    * Input stream handler used for stdout and stderr redirection.
    */
@@ -97,19 +105,133 @@ public final class Execution {
    */
   public static boolean execute(File workingDir, String[] command, PrintStream out,
       PrintStream err) {
+    return execute(workingDir, command, out, err, null);
+  }
+
+  /**
+   * Executes a command in a command shell, and measures the peak resident set
+   * size of the process while it runs.
+   *
+   * <p>The resident set size is read from /proc, so it is only measured on
+   * Linux. It is sampled, so a process that runs for less than the sampling
+   * interval may be reported as smaller than it was.
+   *
+   * @param workingDir  working directory for the command
+   * @param command  command to execute and its arguments
+   * @param out  standard output stream to redirect to
+   * @param err  standard error stream to redirect to
+   * @param peakRssBytes  set to the peak resident set size of the process, in
+   *     bytes, or left unchanged if it can't be measured. May be {@code null}.
+   * @return  {@code true} if the command succeeds, {@code false} otherwise
+   */
+  public static boolean execute(File workingDir, String[] command, PrintStream out,
+      PrintStream err, AtomicLong peakRssBytes) {
     LOG.log(Level.INFO, "____Executing " + joiner.join(command));
 
     try {
       Process process = Runtime.getRuntime().exec(command, null, workingDir);
       new RedirectStreamHandler(new PrintWriter(out, true), process.getInputStream());
       new RedirectStreamHandler(new PrintWriter(err, true), process.getErrorStream());
-      return process.waitFor() == 0;
+      RssSampler rssSampler = null;
+      if (peakRssBytes != null) {
+        int pid = getPid(process);
+        if (pid > 0 && new File(PROC_DIR, Integer.toString(pid)).isDirectory()) {
+          rssSampler = new RssSampler(pid, peakRssBytes);
+        }
+      }
+      try {
+        return process.waitFor() == 0;
+      } finally {
+        if (rssSampler != null) {
+          rssSampler.interrupt();
+          try {
+            rssSampler.join();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
     } catch (Exception e) {
       LOG.log(Level.WARNING, "____Execution failure: ", e);
       return false;
     }
   }
 
+  /*
+   * Returns the process id of a process, or -1 if it isn't available.
+   */
+  private static int getPid(Process process) {
+    try {
+      // Java 9 and later have Process.pid().
+      return ((Number) Process.class.getMethod("pid").invoke(process)).intValue();
+    } catch (NoSuchMethodException e) {
+      // Earlier versions keep it in a private field of java.lang.UNIXProcess.
+    } catch (Exception e) {
+      return -1;
+    }
+    try {
+      Field field = process.getClass().getDeclaredField("pid");
+      field.setAccessible(true);
+      return field.getInt(process);
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /*
+   * Returns the peak resident set size of a running process in bytes, or -1 if it can't be read.
+   */
+  @VisibleForTesting
+  static long readPeakRssBytes(int pid) {
+    try {
+      File status = new File(new File(PROC_DIR, Integer.toString(pid)), "status");
+      for (String line : Files.readLines(status, Charsets.US_ASCII)) {
+        // For example, "VmHWM:     12345 kB".
+        if (line.startsWith("VmHWM:")) {
+          String[] fields = line.substring("VmHWM:".length()).trim().split("\\s+");
+          return Long.parseLong(fields[0]) * 1024;
+        }
+      }
+    } catch (IOException e) {
+      // The process has exited.
+    } catch (NumberFormatException e) {
+      LOG.log(Level.WARNING, "Unexpected format of /proc/" + pid + "/status", e);
+    }
+    return -1;
+  }
+
+  /*
+   * Thread that samples the peak resident set size of a process until it is interrupted.
+   */
+  private static class RssSampler extends Thread {
+    private final int pid;
+    private final AtomicLong peakRssBytes;
+
+    RssSampler(int pid, AtomicLong peakRssBytes) {
+      this.pid = pid;
+      this.peakRssBytes = peakRssBytes;
+      setDaemon(true);
+      start();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          // VmHWM is the process's own high water mark, so sampling only misses the growth since
+          // the last sample.
+          long bytes = readPeakRssBytes(pid);
+          if (bytes > peakRssBytes.get()) {
+            peakRssBytes.set(bytes);
+          }
+          Thread.sleep(RSS_SAMPLE_MILLIS);
+        }
+      } catch (InterruptedException e) {
+        // The process has exited.
+      }
+    }
+  }
+
   /**
    * Executes a command, redirects standard output and standard error to
    * string buffers, and returns the process's exit code.
@@ -0,0 +1,118 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+/**
+ * Counts values, such as latencies or sizes, in buckets with fixed upper
+ * bounds, so that percentiles can be estimated without keeping every value.
+ *
+ * <p>This class is thread-safe.</p>
+ */
+final class Histogram {
+  // The upper bounds of the buckets, in increasing order. The last bucket holds the values that
+  // are larger than all of these.
+  private final long[] bucketLimits;
+
+  // Guarded by this.
+  private final long[] bucketCounts;
+  private long count;
+  private long sum;
+  private long max;
+
+  /**
+   * Creates a Histogram.
+   *
+   * @param bucketLimits  the inclusive upper bounds of the buckets, in
+   *     increasing order
+   */
+  Histogram(long... bucketLimits) {
+    for (int i = 1; i < bucketLimits.length; i++) {
+      if (bucketLimits[i] <= bucketLimits[i - 1]) {
+        throw new IllegalArgumentException("bucketLimits must be in increasing order");
+      }
+    }
+    this.bucketLimits = bucketLimits.clone();
+    bucketCounts = new long[bucketLimits.length + 1];
+  }
+
+  /**
+   * Returns limits for a histogram whose buckets grow by the given factor,
+   * starting at {@code first} and ending at or before {@code last}.
+   */
+  static long[] exponentialLimits(long first, long last, int factor) {
+    int length = 0;
+    for (long limit = first; limit <= last; limit *= factor) {
+      length++;
+    }
+    long[] limits = new long[length];
+    long limit = first;
+    for (int i = 0; i < length; i++) {
+      limits[i] = limit;
+      limit *= factor;
+    }
+    return limits;
+  }
+
+  /**
+   * Records a value.
+   */
+  synchronized void record(long value) {
+    int bucket = 0;
+    while (bucket < bucketLimits.length && value > bucketLimits[bucket]) {
+      bucket++;
+    }
+    bucketCounts[bucket]++;
+    count++;
+    sum += value;
+    max = Math.max(max, value);
+  }
+
+  long[] getBucketLimits() {
+    return bucketLimits.clone();
+  }
+
+  /**
+   * Returns the number of values in each bucket, followed by the number of
+   * values that are larger than the last limit.
+   */
+  synchronized long[] getBucketCounts() {
+    return bucketCounts.clone();
+  }
+
+  synchronized long getCount() {
+    return count;
+  }
+
+  synchronized long getSum() {
+    return sum;
+  }
+
+  synchronized long getMax() {
+    return max;
+  }
+
+  /**
+   * Estimates a percentile of the recorded values, assuming that the values
+   * in each bucket are spread evenly between its bounds. Returns 0 if no
+   * values have been recorded.
+   *
+   * @param percentile  the percentile, between 0 and 100
+   */
+  synchronized long getPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    double rank = count * percentile / 100;
+    long seen = 0;
+    for (int bucket = 0; bucket < bucketCounts.length; bucket++) {
+      long bucketCount = bucketCounts[bucket];
+      if (bucketCount > 0 && seen + bucketCount >= rank) {
+        long lower = (bucket == 0) ? 0 : bucketLimits[bucket - 1];
+        long upper = (bucket < bucketLimits.length) ? Math.min(bucketLimits[bucket], max) : max;
+        return lower + Math.round((upper - lower) * ((rank - seen) / bucketCount));
+      }
+      seen += bucketCount;
+    }
+    return max;
+  }
+}
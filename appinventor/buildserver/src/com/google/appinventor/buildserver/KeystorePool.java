@@ -0,0 +1,336 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the keystores used to sign the APKs of users who don't have one yet.
+ *
+ * <p>The keystores are created in this process, instead of by running keytool, and generating the
+ * RSA key pair, which is the slow part, is done ahead of time: a background thread keeps a pool of
+ * key pairs filled at a limited rate. The user's name is only put in the certificate when a
+ * keystore is created. Each key pair is taken out of the pool once, so no two keystores share a
+ * key. If the pool is empty, the key pair is generated on demand.</p>
+ *
+ * <p>The keystores are equivalent to the ones created by {@code keytool -genkey} with the options
+ * previously used by ProjectBuilder.</p>
+ */
+final class KeystorePool {
+  // The alias and passwords that Compiler.runJarSigner uses.
+  static final String KEY_ALIAS = "AndroidKey";
+  static final String KEYSTORE_PASSWORD = "android";
+  static final String KEY_PASSWORD = "android";
+
+  private static final String KEY_ALGORITHM = "RSA";
+  private static final int KEY_SIZE = 2048;
+  private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+  // Note: must expire after October 22, 2033, to be in the Android marketplace. Android docs
+  // recommend 10000 as the expiration number of days.
+  private static final long VALIDITY_MILLIS = 10000L * 24 * 60 * 60 * 1000;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KeystorePool.class.getName());
+
+  private final int poolSize;
+  private final int refillPerMinute;
+
+  private final BlockingQueue<KeyPair> keyPairs = new LinkedBlockingQueue<KeyPair>();
+  private final SecureRandom random = new SecureRandom();
+
+  private final AtomicInteger pooledKeystoreCount = new AtomicInteger(0);
+  private final AtomicInteger unpooledKeystoreCount = new AtomicInteger(0);
+
+  private ScheduledExecutorService refiller;
+
+  /**
+   * Creates a KeystorePool. The pool is empty until {@link #start} is called.
+   *
+   * @param poolSize  the number of key pairs to keep ready. 0 means that key
+   *     pairs are always generated when a keystore is created.
+   * @param refillPerMinute  the maximum number of key pairs to generate per
+   *     minute when refilling the pool
+   */
+  KeystorePool(int poolSize, int refillPerMinute) {
+    if (poolSize < 0) {
+      throw new IllegalArgumentException("poolSize must not be negative");
+    }
+    if (poolSize > 0 && refillPerMinute < 1) {
+      throw new IllegalArgumentException("refillPerMinute must be at least 1");
+    }
+    this.poolSize = poolSize;
+    this.refillPerMinute = refillPerMinute;
+  }
+
+  /**
+   * Starts filling the pool in the background.
+   */
+  synchronized void start() {
+    if (poolSize == 0 || refiller != null) {
+      return;
+    }
+    refiller = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("KeystorePool-%d").build());
+    refiller.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        refill();
+      }
+    }, 0, 60 * 1000L / refillPerMinute, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops filling the pool. The key pairs that are already in the pool can
+   * still be used.
+   */
+  synchronized void stop() {
+    if (refiller != null) {
+      refiller.shutdownNow();
+      refiller = null;
+    }
+  }
+
+  /*
+   * Adds one key pair to the pool, if it isn't full.
+   */
+  @VisibleForTesting
+  void refill() {
+    if (keyPairs.size() >= poolSize) {
+      return;
+    }
+    try {
+      keyPairs.add(generateKeyPair());
+    } catch (GeneralSecurityException e) {
+      LOG.log(Level.WARNING, "Unable to generate key pair for the keystore pool", e);
+    }
+  }
+
+  /**
+   * Creates a keystore containing a new key and a self-signed certificate for
+   * the given user.
+   *
+   * @param userName  the user name to use as the CN of the certificate
+   * @param keystoreFile  the file to write the keystore to
+   * @throws IOException if the keystore cannot be written
+   * @throws GeneralSecurityException if the key or certificate cannot be
+   *     created
+   */
+  void createKeystore(String userName, File keystoreFile)
+      throws IOException, GeneralSecurityException {
+    // poll removes the key pair from the pool, so no other keystore can get it.
+    KeyPair keyPair = keyPairs.poll();
+    if (keyPair != null) {
+      pooledKeystoreCount.incrementAndGet();
+    } else {
+      unpooledKeystoreCount.incrementAndGet();
+      keyPair = generateKeyPair();
+    }
+    writeKeystore(keyPair, userName, new Date(), new BigInteger(63, random), keystoreFile);
+  }
+
+  /*
+   * Takes a key pair out of the pool, or returns null if the pool is empty.
+   */
+  @VisibleForTesting
+  KeyPair takeKeyPair() {
+    return keyPairs.poll();
+  }
+
+  int getPoolSize() {
+    return poolSize;
+  }
+
+  int getRefillPerMinute() {
+    return refillPerMinute;
+  }
+
+  int getAvailableCount() {
+    return keyPairs.size();
+  }
+
+  int getPooledKeystoreCount() {
+    return pooledKeystoreCount.get();
+  }
+
+  int getUnpooledKeystoreCount() {
+    return unpooledKeystoreCount.get();
+  }
+
+  private KeyPair generateKeyPair() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+    generator.initialize(KEY_SIZE, random);
+    return generator.generateKeyPair();
+  }
+
+  /*
+   * Writes a JKS keystore containing the key pair under KEY_ALIAS, with a
+   * self-signed certificate whose subject and issuer are
+   * "CN=<userName>, O=AppInventor for Android, C=US".
+   */
+  @VisibleForTesting
+  static void writeKeystore(KeyPair keyPair, String userName, Date notBefore,
+      BigInteger serialNumber, File keystoreFile) throws IOException, GeneralSecurityException {
+    Certificate certificate = createCertificate(keyPair, userName, notBefore, serialNumber);
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    keyStore.load(null, null);
+    keyStore.setKeyEntry(KEY_ALIAS, keyPair.getPrivate(), KEY_PASSWORD.toCharArray(),
+        new Certificate[] { certificate });
+    OutputStream out = new FileOutputStream(keystoreFile);
+    try {
+      keyStore.store(out, KEYSTORE_PASSWORD.toCharArray());
+    } finally {
+      out.close();
+    }
+  }
+
+  /*
+   * Creates an X.509 v3 certificate without extensions, which is what keytool
+   * creates, by DER encoding it directly. The JDK has no public API for
+   * creating certificates.
+   */
+  private static Certificate createCertificate(KeyPair keyPair, String userName, Date notBefore,
+      BigInteger serialNumber) throws IOException, GeneralSecurityException {
+    byte[] signatureAlgorithm = sequence(
+        // sha1WithRSAEncryption
+        derObjectIdentifier(1, 2, 840, 113549, 1, 1, 5),
+        der(TAG_NULL, new byte[0]));
+    byte[] name = sequence(
+        set(sequence(derObjectIdentifier(2, 5, 4, 6), derString(TAG_PRINTABLE_STRING, "US"))),
+        set(sequence(derObjectIdentifier(2, 5, 4, 10),
+            derString(TAG_UTF8_STRING, "AppInventor for Android"))),
+        set(sequence(derObjectIdentifier(2, 5, 4, 3), derString(TAG_UTF8_STRING, userName))));
+    Date notAfter = new Date(notBefore.getTime() + VALIDITY_MILLIS);
+    byte[] tbsCertificate = sequence(
+        der(0xa0, derInteger(BigInteger.valueOf(2))),  // [0] version v3
+        derInteger(serialNumber),
+        signatureAlgorithm,
+        name,  // issuer
+        sequence(derTime(notBefore), derTime(notAfter)),
+        name,  // subject
+        keyPair.getPublic().getEncoded());  // SubjectPublicKeyInfo
+
+    Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+    signature.initSign(keyPair.getPrivate());
+    signature.update(tbsCertificate);
+    byte[] signatureBytes = signature.sign();
+    byte[] bitString = new byte[signatureBytes.length + 1];  // no unused bits
+    System.arraycopy(signatureBytes, 0, bitString, 1, signatureBytes.length);
+
+    byte[] encoded = sequence(tbsCertificate, signatureAlgorithm, der(TAG_BIT_STRING, bitString));
+    return CertificateFactory.getInstance("X.509")
+        .generateCertificate(new ByteArrayInputStream(encoded));
+  }
+
+  // DER tags
+  private static final int TAG_INTEGER = 0x02;
+  private static final int TAG_BIT_STRING = 0x03;
+  private static final int TAG_NULL = 0x05;
+  private static final int TAG_OBJECT_IDENTIFIER = 0x06;
+  private static final int TAG_UTF8_STRING = 0x0c;
+  private static final int TAG_PRINTABLE_STRING = 0x13;
+  private static final int TAG_UTC_TIME = 0x17;
+  private static final int TAG_GENERALIZED_TIME = 0x18;
+  private static final int TAG_SEQUENCE = 0x30;
+  private static final int TAG_SET = 0x31;
+
+  private static byte[] der(int tag, byte[] contents) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(contents.length + 6);
+    out.write(tag);
+    int length = contents.length;
+    if (length < 0x80) {
+      out.write(length);
+    } else {
+      int lengthBytes = (length > 0xffffff) ? 4 : (length > 0xffff) ? 3 : (length > 0xff) ? 2 : 1;
+      out.write(0x80 | lengthBytes);
+      for (int i = lengthBytes - 1; i >= 0; i--) {
+        out.write(length >>> (8 * i));
+      }
+    }
+    out.write(contents, 0, contents.length);
+    return out.toByteArray();
+  }
+
+  private static byte[] sequence(byte[]... elements) {
+    return der(TAG_SEQUENCE, concat(elements));
+  }
+
+  private static byte[] set(byte[] element) {
+    return der(TAG_SET, element);
+  }
+
+  private static byte[] derInteger(BigInteger value) {
+    return der(TAG_INTEGER, value.toByteArray());
+  }
+
+  private static byte[] derString(int tag, String value) {
+    return der(tag, value.getBytes(Charsets.UTF_8));
+  }
+
+  private static byte[] derObjectIdentifier(int... components) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(components[0] * 40 + components[1]);
+    for (int i = 2; i < components.length; i++) {
+      int component = components[i];
+      // Base 128, most significant group first, with the high bit set on all but the last.
+      int shift = 28;
+      while (shift > 0 && (component >>> shift) == 0) {
+        shift -= 7;
+      }
+      for (; shift > 0; shift -= 7) {
+        out.write(0x80 | ((component >>> shift) & 0x7f));
+      }
+      out.write(component & 0x7f);
+    }
+    return der(TAG_OBJECT_IDENTIFIER, out.toByteArray());
+  }
+
+  /*
+   * Encodes a time as UTCTime through 2049 and as GeneralizedTime after that,
+   * as RFC 5280 requires.
+   */
+  private static byte[] derTime(Date date) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    boolean utcTime = Integer.parseInt(format.format(date)) < 2050;
+    format.applyPattern(utcTime ? "yyMMddHHmmss'Z'" : "yyyyMMddHHmmss'Z'");
+    return derString(utcTime ? TAG_UTC_TIME : TAG_GENERALIZED_TIME, format.format(date));
+  }
+
+  private static byte[] concat(byte[]... arrays) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] array : arrays) {
+      out.write(array, 0, array.length);
+    }
+    return out.toByteArray();
+  }
+}
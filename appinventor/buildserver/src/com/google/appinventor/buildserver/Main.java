@@ -38,6 +38,19 @@ public final class Main {
     @Option(name = "--childProcessRamMb",
             usage = "Maximum ram that can be used by a child processes, in MB.")
     int childProcessRamMb = 2048;
+
+    @Option(name = "--yailGeneratorWorkers",
+            usage = "Number of YailGenerator processes used to generate YAIL for forms.")
+    int yailGeneratorWorkers = 2;
+
+    @Option(name = "--classCacheDir",
+            usage = "Directory in which to cache the class files of forms. If not set, Kawa " +
+            "compiles every form.")
+    File classCacheDir;
+
+    @Option(name = "--classCacheMb",
+            usage = "Maximum size of the class file cache, in MB.")
+    int classCacheMb = 512;
   }
 
   private static CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -64,7 +77,20 @@ public final class Main {
       System.exit(1);
     }
 
-    ProjectBuilder projectBuilder = new ProjectBuilder();
+    YailGeneratorPool yailGeneratorPool =
+        new YailGeneratorPool(commandLineOptions.yailGeneratorWorkers);
+    // There is only one build, and its Kawa and DX processes run one after the other.
+    ChildProcessScheduler childProcessScheduler =
+        new ChildProcessScheduler(commandLineOptions.childProcessRamMb, 1);
+    DiskCache classCache = null;
+    if (commandLineOptions.classCacheDir != null) {
+      classCache = new DiskCache(commandLineOptions.classCacheDir,
+          commandLineOptions.classCacheMb * 1024L * 1024L);
+    }
+    ProjectBuilder projectBuilder =
+        new ProjectBuilder(yailGeneratorPool, childProcessScheduler, classCache, null,
+            new KeystorePool(0, 0), new BuildMetrics(),
+            new File(System.getProperty("java.io.tmpdir")), false);
     ZipFile zip = null;
     try {
       zip = new ZipFile(commandLineOptions.inputZipFile);
@@ -77,6 +103,7 @@ public final class Main {
                                          commandLineOptions.outputDir,
                                          commandLineOptions.isForStemCellApp,
                                          commandLineOptions.childProcessRamMb);
+    yailGeneratorPool.shutdown();
     System.exit(result.getResult());
   }
 
@@ -4,9 +4,11 @@ package com.google.appinventor.buildserver;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Properties;
 
@@ -109,13 +111,27 @@ public final class Project {
    * @param file  project file
    */
   public Project(File file) {
+    this(file, null);
+  }
+
+  /**
+   * Creates a new Young Android project descriptor from the contents of a
+   * project file that may not have been written to disk.
+   *
+   * @param file  project file
+   * @param contents  the contents of the project file, or {@code null} to
+   *     read it from the file
+   */
+  Project(File file, byte[] contents) {
     try {
       File parentFile = Preconditions.checkNotNull(file.getParentFile());
       projectDir = parentFile.getAbsolutePath();
 
       // Load project file
       properties = new Properties();
-      FileInputStream in = new FileInputStream(file);
+      InputStream in = (contents != null)
+          ? new ByteArrayInputStream(contents)
+          : new FileInputStream(file);
       try {
         properties.load(in);
       } finally {
@@ -236,8 +252,8 @@ public final class Project {
    *
    * @return  list of source files
    */
-  public List<SourceDescriptor> getSources() {
-    // Lazily discover source files
+  public synchronized List<SourceDescriptor> getSources() {
+    // Lazily discover source files. Several stages of a build may ask for them at the same time.
     if (sources == null) {
       sources = Lists.newArrayList();
       String sourceTag = properties.getProperty(SOURCETAG);
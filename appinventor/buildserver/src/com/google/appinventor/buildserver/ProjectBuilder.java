@@ -3,15 +3,15 @@
 package com.google.appinventor.buildserver;
 
 import com.google.appinventor.common.utils.StringUtils;
+import com.google.appinventor.common.version.MercurialBuildId;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
-import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
-import com.google.common.io.InputSupplier;
 import com.google.common.io.Resources;
 
 import java.io.ByteArrayOutputStream;
@@ -20,11 +20,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -38,6 +42,15 @@ import java.util.zip.ZipFile;
  */
 public final class ProjectBuilder {
 
+  private final YailGeneratorPool yailGeneratorPool;
+  private final ChildProcessScheduler childProcessScheduler;
+  private final DiskCache classCache;
+  private final DiskCache apkCache;
+  private final KeystorePool keystorePool;
+  private final BuildMetrics buildMetrics;
+  private final File workspaceDir;
+  private final boolean inMemoryWorkspace;
+
   private File outputApk;
   private File outputKeystore;
   private boolean saveKeystore;
@@ -52,9 +65,9 @@ public final class ProjectBuilder {
   // appengine/src/com/google/appinventor/server/project/youngandroid/YoungAndroidProjectService
   // They should probably be in some place shared with the server
   private static final String PROJECT_DIRECTORY = "youngandroidproject";
-  private static final String PROJECT_PROPERTIES_FILE_NAME = PROJECT_DIRECTORY + "/" +
+  static final String PROJECT_PROPERTIES_FILE_NAME = PROJECT_DIRECTORY + "/" +
                                                             "project.properties";
-  private static final String KEYSTORE_FILE_NAME = YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION;
+  static final String KEYSTORE_FILE_NAME = YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION;
 
   private static final String FORM_PROPERTIES_EXTENSION =
       YoungAndroidConstants.FORM_PROPERTIES_EXTENSION;
@@ -63,9 +76,41 @@ public final class ProjectBuilder {
   private static final String CODEBLOCKS_SOURCE_EXTENSION =
       YoungAndroidConstants.CODEBLOCKS_SOURCE_EXTENSION;
 
+  // The stages of a build that come before the compiler's
+  static final String YAIL_STAGE = "Generating YAIL";
+  static final String KEYSTORE_STAGE = "Creating keystore";
+
   private static final String ALL_COMPONENT_TYPES =
       Compiler.RUNTIME_FILES_DIR + "simple_components.txt";
 
+  /**
+   * Creates a ProjectBuilder.
+   *
+   * @param yailGeneratorPool  the pool used to generate YAIL for forms that don't have any
+   * @param childProcessScheduler  the scheduler that decides when Kawa and DX may run
+   * @param classCache  cache of class files, or {@code null} to always compile every form
+   * @param apkCache  cache of signed APK files, or {@code null} to always compile
+   * @param keystorePool  the pool used to create keystores for users who don't have one
+   * @param buildMetrics  where to record the times of builds and their stages
+   * @param workspaceDir  the directory in which to create the directories that projects are built
+   *     in, such as a tmpfs mount
+   * @param inMemoryWorkspace  whether to keep the project files that only the build server reads
+   *     in memory, instead of writing them to the project's directory
+   */
+  ProjectBuilder(YailGeneratorPool yailGeneratorPool,
+                 ChildProcessScheduler childProcessScheduler, DiskCache classCache,
+                 DiskCache apkCache, KeystorePool keystorePool,
+                 BuildMetrics buildMetrics, File workspaceDir, boolean inMemoryWorkspace) {
+    this.yailGeneratorPool = yailGeneratorPool;
+    this.childProcessScheduler = childProcessScheduler;
+    this.classCache = classCache;
+    this.apkCache = apkCache;
+    this.keystorePool = keystorePool;
+    this.buildMetrics = buildMetrics;
+    this.workspaceDir = workspaceDir;
+    this.inMemoryWorkspace = inMemoryWorkspace;
+  }
+
   public File getOutputApk() {
     return outputApk;
   }
@@ -74,71 +119,37 @@ public final class ProjectBuilder {
     return outputKeystore;
   }
 
-  /**
-   * Creates a new directory beneath the system's temporary directory (as
-   * defined by the {@code java.io.tmpdir} system property), and returns its
-   * name. The name of the directory will contain the current time (in millis),
-   * and a random number.
-   *
-   * <p>This method assumes that the temporary volume is writable, has free
-   * inodes and free blocks, and that it will not be called thousands of times
-   * per second.
-   *
-   * @return the newly-created directory
-   * @throws IllegalStateException if the directory could not be created
-   */
-  private static File createNewTempDir() {
-    File baseDir = new File(System.getProperty("java.io.tmpdir"));
-    String baseNamePrefix = System.currentTimeMillis() + "_" + Math.random() + "-";
-
-    final int TEMP_DIR_ATTEMPTS = 10000;
-    for (int counter = 0; counter < TEMP_DIR_ATTEMPTS; counter++) {
-      File tempDir = new File(baseDir, baseNamePrefix + counter);
-      if (tempDir.exists()) {
-        continue;
-      }
-      if (tempDir.mkdir()) {
-        return tempDir;
-      }
-    }
-    throw new IllegalStateException("Failed to create directory within "
-        + TEMP_DIR_ATTEMPTS + " attempts (tried "
-        + baseNamePrefix + "0 to " + baseNamePrefix + (TEMP_DIR_ATTEMPTS - 1) + ')');
-  }
-
-  Result build(String userName, ZipFile inputZip, File outputDir, boolean isForRepl,
+  Result build(final String userName, ZipFile inputZip, File outputDir, boolean isForRepl,
                int childProcessRam) {
+    long start = System.currentTimeMillis();
     try {
       // Download project files into a temporary directory
-      File projectRoot = createNewTempDir();
+      final ProjectWorkspace workspace = new ProjectWorkspace(workspaceDir, inMemoryWorkspace);
+      final File projectRoot = workspace.getRoot();
       LOG.info("temporary project root: " + projectRoot.getAbsolutePath());
       try {
-        List<String> sourceFiles;
+        final List<String> sourceFiles;
         try {
-          sourceFiles = extractProjectFiles(inputZip, projectRoot);
+          sourceFiles = workspace.extract(inputZip);
         } catch (IOException e) {
           LOG.severe("unexpected problem extracting project file from zip");
           return Result.createFailingResult("", "Problems processing zip file.");
         }
-
-        try {
-          genYailFilesIfNecessary(sourceFiles);
-        } catch (YailGenerationException e) {
-          // Note that we're using a special result code here for the case of a Yail gen error.
-          return new Result(Result.YAIL_GENERATION_ERROR, "", e.getMessage(), e.getFormName());
-        } catch (Exception e) {
-          return Result.createFailingResult("", "Unexpected problems generating YAIL.");
-        }
-
-        File keyStoreFile = new File(projectRoot, KEYSTORE_FILE_NAME);
-        String keyStorePath = keyStoreFile.getPath();
-        if (!keyStoreFile.exists()) {
-          keyStorePath = createKeyStore(userName, projectRoot, KEYSTORE_FILE_NAME);
-          saveKeystore = true;
+        buildMetrics.recordStage(BuildMetrics.EXTRACT_STAGE, System.currentTimeMillis() - start);
+
+        String apkCacheKey = getApkCacheKey(inputZip, isForRepl);
+        if (apkCacheKey != null) {
+          File cachedApk = new File(outputDir,
+              getProjectProperties(workspace).getProjectName() + ".apk");
+          if (apkCache.get(apkCacheKey, cachedApk)) {
+            LOG.info("Young Android build - using cached " + cachedApk.getName());
+            outputApk = cachedApk;
+            return new Result(true, "", "");
+          }
         }
 
         // Create project object from project properties file.
-        Project project = getProjectProperties(projectRoot);
+        Project project = getProjectProperties(workspace);
 
         File buildTmpDir = new File(projectRoot, "build/tmp");
         buildTmpDir.mkdirs();
@@ -147,18 +158,60 @@ public final class ProjectBuilder {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         PrintStream console = new PrintStream(output);
         ByteArrayOutputStream errors = new ByteArrayOutputStream();
-        PrintStream userErrors = new PrintStream(errors);
+        final PrintStream userErrors = new PrintStream(errors);
 
         Set<String> componentTypes =
-            isForRepl ? getAllComponentTypes() : getComponentTypes(sourceFiles);
+            isForRepl ? getAllComponentTypes() : getComponentTypes(workspace, sourceFiles);
+
+        // Generating the YAIL and creating the keystore are the first stages of the build. The
+        // compiler's stages that don't need them run at the same time.
+        BuildPipeline pipeline = new BuildPipeline();
+        pipeline.addStage(YAIL_STAGE, new BuildPipeline.Stage() {
+          @Override
+          public boolean run() throws Exception {
+            genYailFilesIfNecessary(workspace, sourceFiles);
+            return true;
+          }
+        });
+
+        final File keyStoreFile = new File(projectRoot, KEYSTORE_FILE_NAME);
+        String keystoreStage = null;
+        if (!keyStoreFile.exists()) {
+          keystoreStage = KEYSTORE_STAGE;
+          pipeline.addStage(KEYSTORE_STAGE, new BuildPipeline.Stage() {
+            @Override
+            public boolean run() {
+              if (createKeyStore(userName, projectRoot, KEYSTORE_FILE_NAME) == null) {
+                userErrors.print(String.format(Compiler.ERROR_IN_STAGE, "keystore"));
+                return false;
+              }
+              return true;
+            }
+          });
+          saveKeystore = true;
+        }
 
         // Invoke YoungAndroid compiler
         boolean success =
             Compiler.compile(project, componentTypes, console, console, userErrors, isForRepl,
-                             keyStorePath, childProcessRam);
+                             keyStoreFile.getAbsolutePath(), childProcessRam,
+                             childProcessScheduler, classCache, buildMetrics,
+                             pipeline, YAIL_STAGE, keystoreStage);
         console.close();
+        for (Map.Entry<String, Long> stage : pipeline.getStageMillis().entrySet()) {
+          buildMetrics.recordStage(stage.getKey(), stage.getValue());
+        }
         userErrors.close();
 
+        Exception yailException = pipeline.getException(YAIL_STAGE);
+        if (yailException instanceof YailGenerationException) {
+          // Note that we're using a special result code here for the case of a Yail gen error.
+          YailGenerationException e = (YailGenerationException) yailException;
+          return new Result(Result.YAIL_GENERATION_ERROR, "", e.getMessage(), e.getFormName());
+        } else if (yailException != null) {
+          return Result.createFailingResult("", "Unexpected problems generating YAIL.");
+        }
+
         // Retrieve compiler messages and convert to HTML and log
         String srcPath = projectRoot.getAbsolutePath() + "/" + PROJECT_DIRECTORY + "/../src/";
         String messages = processCompilerOutput(output.toString(PathUtil.DEFAULT_CHARSET),
@@ -173,6 +226,9 @@ public final class ProjectBuilder {
           } else {
             outputApk = new File(outputDir, outputFile.getName());
             Files.copy(outputFile, outputApk);
+            if (apkCacheKey != null) {
+              apkCache.put(apkCacheKey, outputFile);
+            }
             if (saveKeystore) {
               outputKeystore = new File(outputDir, KEYSTORE_FILE_NAME);
               Files.copy(keyStoreFile, outputKeystore);
@@ -181,9 +237,8 @@ public final class ProjectBuilder {
         }
         return new Result(success, messages, errors.toString(PathUtil.DEFAULT_CHARSET));
       } finally {
-        // On some platforms (OS/X), the java.io.tmpdir contains a symlink. We need to use the
-        // canonical path here so that Files.deleteRecursively will work.
-        Files.deleteRecursively(new File(projectRoot.getCanonicalPath()));
+        buildMetrics.recordBuild(System.currentTimeMillis() - start);
+        workspace.delete();
       }
     } catch (Exception e) {
       e.printStackTrace();
@@ -191,8 +246,8 @@ public final class ProjectBuilder {
     }
   }
 
-  private void genYailFilesIfNecessary(List<String> sourceFiles)
-      throws IOException, YailGenerationException {
+  private void genYailFilesIfNecessary(ProjectWorkspace workspace, List<String> sourceFiles)
+      throws IOException, YailGenerationException, InterruptedException, ExecutionException {
     // Filter out the files that aren't really source files (i.e. that don't end in .scm or .yail)
     Collection<String> formAndYailSourceFiles = Collections2.filter(
         sourceFiles,
@@ -202,6 +257,8 @@ public final class ProjectBuilder {
             return input.endsWith(FORM_PROPERTIES_EXTENSION) || input.endsWith(YAIL_EXTENSION);
           }
         });
+    // Start generating the YAIL for all the forms at once, then wait for them in order.
+    Map<String, Future<YailGeneratorPool.Outcome>> outcomes = Maps.newLinkedHashMap();
     for (String sourceFile : formAndYailSourceFiles) {
       if (sourceFile.endsWith(FORM_PROPERTIES_EXTENSION)) {
         String rootPath = sourceFile.substring(0, sourceFile.length()
@@ -210,9 +267,64 @@ public final class ProjectBuilder {
         // Note: Famous last words: The following contains() makes this method O(n**2) but n should
         // be pretty small.
         if (!sourceFiles.contains(yailFilePath)) {
-          generateYail(rootPath);
+          outcomes.put(rootPath, yailGeneratorPool.submit(
+              readSource(workspace, rootPath + FORM_PROPERTIES_EXTENSION),
+              readSource(workspace, rootPath + CODEBLOCKS_SOURCE_EXTENSION), yailFilePath));
+        }
+      }
+    }
+    try {
+      for (Map.Entry<String, Future<YailGeneratorPool.Outcome>> entry : outcomes.entrySet()) {
+        writeYail(entry.getKey(), entry.getValue().get());
+      }
+    } finally {
+      // If we stopped early, don't bother generating the rest.
+      for (Future<YailGeneratorPool.Outcome> outcome : outcomes.values()) {
+        outcome.cancel(false);
+      }
+    }
+  }
+
+  /*
+   * Returns the key for the project's signed APK in the apkCache, or null if the APK shouldn't be
+   * cached.
+   *
+   * The key is a hash of every entry in the input zip (the .scm, .blk, and .yail files, the
+   * assets, the project properties, and the keystore), whether the APK is for the REPL, the build
+   * server version, and the runtime files. If the zip doesn't contain a keystore, we generate a new
+   * one for the build, so the APK can't be reused.
+   */
+  @VisibleForTesting
+  String getApkCacheKey(ZipFile inputZip, boolean isForRepl) {
+    if (apkCache == null || inputZip.getEntry(KEYSTORE_FILE_NAME) == null) {
+      return null;
+    }
+    try {
+      List<String> entryNames = Lists.newArrayList();
+      Enumeration<? extends ZipEntry> inputZipEnumeration = inputZip.entries();
+      while (inputZipEnumeration.hasMoreElements()) {
+        entryNames.add(inputZipEnumeration.nextElement().getName());
+      }
+      // The key shouldn't depend on the order of the entries in the zip.
+      Collections.sort(entryNames);
+      ContentHasher hasher = new ContentHasher()
+          .add(MercurialBuildId.MERCURIAL_BUILD_ID)
+          .add(Compiler.getRuntimeFilesKey())
+          .add(String.valueOf(isForRepl));
+      for (String entryName : entryNames) {
+        InputStream inputStream = inputZip.getInputStream(inputZip.getEntry(entryName));
+        try {
+          // The entry is hashed as it is read, so that large assets aren't held in memory.
+          hasher.add(entryName).add(inputStream);
+        } finally {
+          inputStream.close();
         }
       }
+      return hasher.toKey();
+    } catch (IOException e) {
+      // Not fatal. We just won't use the cache.
+      LOG.log(Level.WARNING, "Unable to compute APK cache key.", e);
+      return null;
     }
   }
 
@@ -226,69 +338,30 @@ public final class ProjectBuilder {
     return compSet;
   }
 
-  private ArrayList<String> extractProjectFiles(ZipFile inputZip, File projectRoot)
-      throws IOException {
-    ArrayList<String> projectFileNames = Lists.newArrayList();
-    Enumeration<? extends ZipEntry> inputZipEnumeration = inputZip.entries();
-    while (inputZipEnumeration.hasMoreElements()) {
-      ZipEntry zipEntry = inputZipEnumeration.nextElement();
-      final InputStream extractedInputStream = inputZip.getInputStream(zipEntry);
-      File extractedFile = new File(projectRoot, zipEntry.getName());
-      LOG.info("extracting " + extractedFile.getAbsolutePath() + " from input zip");
-      Files.createParentDirs(extractedFile); // Do I need this?
-      Files.copy(
-          new InputSupplier<InputStream>() {
-            public InputStream getInput() throws IOException {
-              return extractedInputStream;
-            }
-          },
-          extractedFile);
-      projectFileNames.add(extractedFile.getPath());
-    }
-    return projectFileNames;
-  }
-
-  private static Set<String> getComponentTypes(List<String> files)
+  private static Set<String> getComponentTypes(ProjectWorkspace workspace, List<String> files)
       throws IOException {
     Set<String> componentTypes = Sets.newHashSet();
     for (String f : files) {
       if (f.endsWith(".scm")) {
-        File scmFile = new File(f);
-        String scmContent = new String(Files.toByteArray(scmFile), PathUtil.DEFAULT_CHARSET);
-        componentTypes.addAll(getTypesFromScm(scmContent));
+        componentTypes.addAll(getTypesFromScm(readSource(workspace, f)));
       }
     }
     return componentTypes;
   }
 
-  static String createKeyStore(String userName, File projectRoot, String keystoreFileName)
-      throws IOException {
-    File keyStoreFile = new File(projectRoot.getPath(), keystoreFileName);
+  private static String readSource(ProjectWorkspace workspace, String path) throws IOException {
+    return new String(workspace.read(path), PathUtil.DEFAULT_CHARSET);
+  }
 
-    /* Note: must expire after October 22, 2033, to be in the Android
-    * marketplace.  Android docs recommend "10000" as the expiration # of
-    * days.
-    *
-    * For DNAME, US may not the right country to assign it to.
-    */
-    String[] keytoolCommandline = {
-        System.getProperty("java.home") + "/bin/keytool",
-        "-genkey",
-        "-keystore", keyStoreFile.getAbsolutePath(),
-        "-alias", "AndroidKey",
-        "-keyalg", "RSA",
-        "-dname", "CN=" + quotifyUserName(userName) + ", O=AppInventor for Android, C=US",
-        "-validity", "10000",
-        "-storepass", "android",
-        "-keypass", "android"
-    };
-
-    if (Execution.execute(null, keytoolCommandline, System.out, System.err)) {
-      if (keyStoreFile.length() > 0) {
-        return keyStoreFile.getAbsolutePath();
-      }
+  private String createKeyStore(String userName, File projectRoot, String keystoreFileName) {
+    File keyStoreFile = new File(projectRoot.getPath(), keystoreFileName);
+    try {
+      keystorePool.createKeystore(userName, keyStoreFile);
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Unable to create keystore", e);
+      return null;
     }
-    return null;
+    return keyStoreFile.getAbsolutePath();
   }
 
   @VisibleForTesting
@@ -375,64 +448,31 @@ public final class ProjectBuilder {
     return messages;
   }
 
-  /*
-   * Adds quotes around the given userName and encodes embedded quotes as \".
-   */
-  private static String quotifyUserName(String userName) {
-    Preconditions.checkNotNull(userName);
-    int length = userName.length();
-    StringBuilder sb = new StringBuilder(length + 2);
-    sb.append('"');
-    for (int i = 0; i < length; i++) {
-      char ch = userName.charAt(i);
-      if (ch == '"') {
-        sb.append('\\').append(ch);
-      } else {
-        sb.append(ch);
-      }
-    }
-    sb.append('"');
-    return sb.toString();
-  }
-
   /*
    * Loads the project properties file of a Young Android project.
    */
-  private Project getProjectProperties(File projectRoot) {
-    return new Project(projectRoot.getAbsolutePath() + "/" + PROJECT_PROPERTIES_FILE_NAME);
+  private Project getProjectProperties(ProjectWorkspace workspace) throws IOException {
+    File projectFile = new File(workspace.getRoot(), PROJECT_PROPERTIES_FILE_NAME);
+    return new Project(projectFile, workspace.read(projectFile.getPath()));
   }
 
-  private File generateYail(String rootName) throws IOException, YailGenerationException {
-    String formPropertiesPath = rootName + FORM_PROPERTIES_EXTENSION;
-    String codeblocksSourcePath = rootName + CODEBLOCKS_SOURCE_EXTENSION;
-    String yailPath = rootName + YAIL_EXTENSION;
-
-    String[] commandLine = {
-      System.getProperty("java.home") + "/bin/java",
-      "-mx1024M",
-      "-jar",
-      Compiler.getResource(Compiler.RUNTIME_FILES_DIR + "YailGenerator.jar"),
-      new File(formPropertiesPath).getAbsolutePath(),
-      new File(codeblocksSourcePath).getAbsolutePath(),
-      yailPath
-    };
-    StringBuffer out = new StringBuffer();
-    StringBuffer err = new StringBuffer();
-    int exitValue = Execution.execute(null, commandLine, out, err);
-    if (exitValue == 0) {
-      String generatedYailString = out.toString();
-      File generatedYailFile = new File(yailPath);
-      Files.write(generatedYailString, generatedYailFile, Charsets.UTF_8);
-      return generatedYailFile;
-    } else {
-      String formName = PathUtil.trimOffExtension(PathUtil.basename(formPropertiesPath));
-      if (exitValue == 1) {
+  private File writeYail(String rootName, YailGeneratorPool.Outcome outcome)
+      throws IOException, YailGenerationException {
+    String formName = PathUtil.trimOffExtension(PathUtil.basename(rootName));
+    LOG.info("YAIL generation time for " + formName + ": " +
+        (outcome.getLatencyMillis() / 1000.0) + " seconds");
+    switch (outcome.getStatus()) {
+      case YailGeneratorPool.STATUS_OK:
+        File generatedYailFile = new File(rootName + YAIL_EXTENSION);
+        Files.write(outcome.getOutput(), generatedYailFile, Charsets.UTF_8);
+        return generatedYailFile;
+      case YailGeneratorPool.STATUS_YAIL_GENERATION_ERROR:
         // Failed to generate yail for legitimate reasons, such as empty sockets.
         throw new YailGenerationException("Unable to generate code for " + formName + ".", formName);
-      } else {
-        // Any other exit value is unexpected.
-        throw new RuntimeException("YailGenerator for form " + formName + " exited with code " + exitValue);
-      }
+      default:
+        // Any other status is unexpected.
+        throw new RuntimeException("YailGenerator for form " + formName + " failed with status " +
+            outcome.getStatus() + ": " + outcome.getOutput());
     }
   }
 
@@ -0,0 +1,177 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The directory that a project is extracted to and built in.
+ *
+ * <p>The directory is created beneath a root directory, which can be on a
+ * tmpfs so that builds don't touch a disk at all. In memory mode, the files
+ * that only the build server reads (the form properties, the codeblocks, and
+ * the project properties) are kept in memory instead of being written to the
+ * directory. Everything that Kawa, DX, AAPT and jarsigner read is still
+ * written to the directory, and so are all of the directories.</p>
+ */
+final class ProjectWorkspace {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ProjectWorkspace.class.getName());
+
+  private static final int TEMP_DIR_ATTEMPTS = 10000;
+
+  private final File root;
+  private final boolean inMemory;
+
+  // The contents of the files that are kept in memory, by path. Guarded by this.
+  private final Map<String, byte[]> memoryFiles = Maps.newHashMap();
+
+  /**
+   * Creates a workspace in a new directory.
+   *
+   * @param parentDir  the directory in which to create the workspace's
+   *     directory
+   * @param inMemory  whether to keep the files that only the build server
+   *     reads in memory
+   * @throws IllegalStateException if the directory could not be created
+   */
+  ProjectWorkspace(File parentDir, boolean inMemory) {
+    this.root = createNewTempDir(parentDir);
+    this.inMemory = inMemory;
+  }
+
+  /**
+   * Returns the directory of the workspace.
+   */
+  File getRoot() {
+    return root;
+  }
+
+  /**
+   * Extracts the entries of a project zip into the workspace.
+   *
+   * @return the paths of the extracted files, whether or not they were
+   *     written to the directory
+   */
+  List<String> extract(ZipFile inputZip) throws IOException {
+    List<String> paths = Lists.newArrayList();
+    Enumeration<? extends ZipEntry> entries = inputZip.entries();
+    while (entries.hasMoreElements()) {
+      ZipEntry entry = entries.nextElement();
+      File extractedFile = new File(root, entry.getName());
+      // The directories are created even for files kept in memory, because the paths of other
+      // files, such as the build directory, are relative to them, and the YAIL is written next to
+      // the form properties.
+      Files.createParentDirs(extractedFile);
+      InputStream in = inputZip.getInputStream(entry);
+      try {
+        if (inMemory && isOnlyReadByBuildServer(entry.getName())) {
+          byte[] contents = ByteStreams.toByteArray(in);
+          synchronized (this) {
+            memoryFiles.put(extractedFile.getPath(), contents);
+          }
+        } else {
+          LOG.info("extracting " + extractedFile.getAbsolutePath() + " from input zip");
+          OutputStream out = new FileOutputStream(extractedFile);
+          try {
+            ByteStreams.copy(in, out);
+          } finally {
+            out.close();
+          }
+        }
+      } finally {
+        in.close();
+      }
+      paths.add(extractedFile.getPath());
+    }
+    return paths;
+  }
+
+  /*
+   * Returns whether a file of the project is only read by the build server, and not by any of the
+   * tools that it runs.
+   */
+  private static boolean isOnlyReadByBuildServer(String name) {
+    return name.endsWith(YoungAndroidConstants.FORM_PROPERTIES_EXTENSION) ||
+        name.endsWith(YoungAndroidConstants.CODEBLOCKS_SOURCE_EXTENSION) ||
+        name.equals(ProjectBuilder.PROJECT_PROPERTIES_FILE_NAME);
+  }
+
+  /**
+   * Returns the contents of a file that was extracted into the workspace.
+   *
+   * @param path  one of the paths returned by {@link #extract}
+   */
+  byte[] read(String path) throws IOException {
+    synchronized (this) {
+      byte[] contents = memoryFiles.get(path);
+      if (contents != null) {
+        return contents;
+      }
+    }
+    return Files.toByteArray(new File(path));
+  }
+
+  /**
+   * Returns the number of files that are kept in memory.
+   */
+  synchronized int getMemoryFileCount() {
+    return memoryFiles.size();
+  }
+
+  /**
+   * Deletes the workspace's directory and forgets the files kept in memory.
+   */
+  void delete() throws IOException {
+    synchronized (this) {
+      memoryFiles.clear();
+    }
+    // On some platforms (OS/X), the java.io.tmpdir contains a symlink. We need to use the
+    // canonical path here so that Files.deleteRecursively will work.
+    Files.deleteRecursively(new File(root.getCanonicalPath()));
+  }
+
+  /**
+   * Creates a new directory beneath the given directory and returns it. The
+   * name of the directory will contain the current time (in millis), and a
+   * random number.
+   *
+   * <p>This method assumes that the directory is writable, has free inodes
+   * and free blocks, and that it will not be called thousands of times per
+   * second.
+   *
+   * @return the newly-created directory
+   * @throws IllegalStateException if the directory could not be created
+   */
+  private static File createNewTempDir(File baseDir) {
+    String baseNamePrefix = System.currentTimeMillis() + "_" + Math.random() + "-";
+
+    for (int counter = 0; counter < TEMP_DIR_ATTEMPTS; counter++) {
+      File tempDir = new File(baseDir, baseNamePrefix + counter);
+      if (tempDir.exists()) {
+        continue;
+      }
+      if (tempDir.mkdir()) {
+        return tempDir;
+      }
+    }
+    throw new IllegalStateException("Failed to create directory within "
+        + TEMP_DIR_ATTEMPTS + " attempts (tried "
+        + baseNamePrefix + "0 to " + baseNamePrefix + (TEMP_DIR_ATTEMPTS - 1) + ')');
+  }
+}
@@ -0,0 +1,419 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of long-lived YailGenerator processes.
+ *
+ * <p>Starting a JVM and loading the language definition costs far more than generating the YAIL
+ * for a typical form, so instead of running YailGenerator.jar once per form, we keep a number of
+ * warm worker processes (see YailGenerator.runWorker) and send them one form at a time. The
+ * YailGenerator relies on global state, so a worker can only generate one form at a time; the
+ * forms of a build are generated concurrently by different workers.</p>
+ */
+final class YailGeneratorPool {
+  // Response status codes. These must match the ones in YailGenerator.
+  static final int STATUS_OK = 0;
+  static final int STATUS_YAIL_GENERATION_ERROR = 1;
+  static final int STATUS_UNEXPECTED_ERROR = -1;
+
+  // Maximum ram that can be used by a worker process, in MB.
+  static final int WORKER_RAM_MB = 1024;
+
+  // A worker is replaced after this many forms, in case codeblocks leaks memory.
+  private static final int MAX_FORMS_PER_WORKER = 500;
+
+  // How long a worker may take to generate the YAIL for one form before it is killed.
+  static final long DEFAULT_WORKER_TIMEOUT_MILLIS = 120 * 1000L;
+
+  private static final String YAIL_GENERATOR_JAR = Compiler.RUNTIME_FILES_DIR + "YailGenerator.jar";
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(YailGeneratorPool.class.getName());
+  private static final Joiner joiner = Joiner.on(" ");
+
+  // Kills workers that don't respond in time. A read from a pipe can't time out, but it ends when
+  // the process on the other end is killed. Shared by all pools, and never shut down, because
+  // forms that were submitted before a pool is shut down still need it.
+  private static final ScheduledExecutorService watchdog = Executors.newScheduledThreadPool(1,
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("YailGeneratorWatchdog-%d").build());
+
+  /**
+   * The result of generating the YAIL for one form.
+   */
+  static final class Outcome {
+    private final int status;
+    private final String output;
+    private final long latencyMillis;
+
+    private Outcome(int status, String output, long latencyMillis) {
+      this.status = status;
+      this.output = output;
+      this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Returns one of {@link #STATUS_OK}, {@link #STATUS_YAIL_GENERATION_ERROR}, or
+     * {@link #STATUS_UNEXPECTED_ERROR}.
+     */
+    int getStatus() {
+      return status;
+    }
+
+    /**
+     * Returns the generated YAIL if the status is {@link #STATUS_OK}, otherwise the error message.
+     */
+    String getOutput() {
+      return output;
+    }
+
+    /**
+     * Returns the time spent generating the YAIL, including any time spent waiting for a worker.
+     */
+    long getLatencyMillis() {
+      return latencyMillis;
+    }
+  }
+
+  // The maximum number of worker processes.
+  private final int maxWorkers;
+
+  private final long workerTimeoutMillis;
+
+  // The command line of a worker process, or null for YailGenerator.jar.
+  private final String[] workerCommandLine;
+
+  private final ExecutorService executor;
+
+  private final BlockingQueue<Worker> idleWorkers = new LinkedBlockingQueue<Worker>();
+
+  private final AtomicInteger workerCount = new AtomicInteger(0);
+  private final AtomicInteger startedWorkerCount = new AtomicInteger(0);
+  private final AtomicInteger generatedFormCount = new AtomicInteger(0);
+  private final AtomicInteger failedFormCount = new AtomicInteger(0);
+  private final AtomicLong totalLatencyMillis = new AtomicLong(0);
+  private final AtomicLong maxLatencyMillis = new AtomicLong(0);
+
+  /**
+   * Creates a YailGeneratorPool whose workers have {@link #DEFAULT_WORKER_TIMEOUT_MILLIS} to
+   * generate the YAIL for a form.
+   *
+   * @param maxWorkers the maximum number of worker processes, which is also the maximum number of
+   *     forms whose YAIL is generated at the same time
+   */
+  YailGeneratorPool(int maxWorkers) {
+    this(maxWorkers, DEFAULT_WORKER_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Creates a YailGeneratorPool.
+   *
+   * @param maxWorkers the maximum number of worker processes, which is also the maximum number of
+   *     forms whose YAIL is generated at the same time
+   * @param workerTimeoutMillis how long a worker may take to generate the YAIL for one form before
+   *     it is killed and the form fails
+   */
+  YailGeneratorPool(int maxWorkers, long workerTimeoutMillis) {
+    this(maxWorkers, workerTimeoutMillis, null);
+  }
+
+  @VisibleForTesting
+  YailGeneratorPool(int maxWorkers, long workerTimeoutMillis, String[] workerCommandLine) {
+    if (maxWorkers < 1) {
+      throw new IllegalArgumentException("maxWorkers must be at least 1");
+    }
+    if (workerTimeoutMillis < 1) {
+      throw new IllegalArgumentException("workerTimeoutMillis must be at least 1");
+    }
+    this.maxWorkers = maxWorkers;
+    this.workerTimeoutMillis = workerTimeoutMillis;
+    this.workerCommandLine = workerCommandLine;
+    executor = Executors.newFixedThreadPool(maxWorkers,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("YailGeneratorPool-%d").build());
+  }
+
+  /**
+   * Starts all of the worker processes now, so that the first builds don't have to wait for them.
+   */
+  void prestartWorkers() {
+    while (true) {
+      int count = workerCount.get();
+      if (count >= maxWorkers) {
+        return;
+      }
+      if (workerCount.compareAndSet(count, count + 1)) {
+        try {
+          idleWorkers.add(new Worker());
+        } catch (IOException e) {
+          workerCount.decrementAndGet();
+          LOG.log(Level.WARNING, "Unable to start YailGenerator worker", e);
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Asynchronously generates the YAIL for one form.
+   *
+   * @param formPropertiesSource the contents of the form properties (.scm) file
+   * @param codeblocksSource the contents of the codeblocks source (.blk) file
+   * @param yailPath the path of the .yail file
+   * @return a future for the outcome
+   */
+  Future<Outcome> submit(final String formPropertiesSource, final String codeblocksSource,
+      final String yailPath) {
+    final long start = System.currentTimeMillis();
+    return executor.submit(new Callable<Outcome>() {
+      @Override
+      public Outcome call() {
+        Outcome outcome = generateYail(formPropertiesSource, codeblocksSource, yailPath, start);
+        recordOutcome(outcome);
+        return outcome;
+      }
+    });
+  }
+
+  private Outcome generateYail(String formPropertiesSource, String codeblocksSource,
+      String yailPath, long start) {
+    Worker worker = null;
+    try {
+      worker = takeWorker();
+      Outcome outcome = worker.generateYail(formPropertiesSource, codeblocksSource, yailPath,
+          start);
+      if (outcome.getStatus() == STATUS_UNEXPECTED_ERROR || worker.isKilled()) {
+        // We don't know what state the worker is in, or it is dead. Don't reuse it.
+        retireWorker(worker);
+      } else {
+        returnWorker(worker);
+      }
+      worker = null;
+      return outcome;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "YailGenerator worker failed", e);
+      return new Outcome(STATUS_UNEXPECTED_ERROR, "YailGenerator worker failed: " + e.getMessage(),
+          System.currentTimeMillis() - start);
+    } finally {
+      if (worker != null) {
+        retireWorker(worker);
+      }
+    }
+  }
+
+  private Worker takeWorker() throws IOException {
+    Worker worker = idleWorkers.poll();
+    if (worker != null) {
+      return worker;
+    }
+    // Since the executor runs at most maxWorkers tasks at a time, we never exceed maxWorkers.
+    workerCount.incrementAndGet();
+    try {
+      return new Worker();
+    } catch (IOException e) {
+      workerCount.decrementAndGet();
+      throw e;
+    }
+  }
+
+  private void returnWorker(Worker worker) {
+    if (worker.getFormCount() >= MAX_FORMS_PER_WORKER) {
+      retireWorker(worker);
+    } else {
+      idleWorkers.add(worker);
+    }
+  }
+
+  private void retireWorker(Worker worker) {
+    worker.destroy();
+    workerCount.decrementAndGet();
+  }
+
+  private void recordOutcome(Outcome outcome) {
+    generatedFormCount.incrementAndGet();
+    if (outcome.getStatus() != STATUS_OK) {
+      failedFormCount.incrementAndGet();
+    }
+    long latency = outcome.getLatencyMillis();
+    totalLatencyMillis.addAndGet(latency);
+    while (true) {
+      long max = maxLatencyMillis.get();
+      if (latency <= max || maxLatencyMillis.compareAndSet(max, latency)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Stops the worker processes. Forms that have already been submitted are still generated.
+   */
+  void shutdown() {
+    executor.shutdown();
+    Worker worker;
+    while ((worker = idleWorkers.poll()) != null) {
+      retireWorker(worker);
+    }
+  }
+
+  public int getMaxWorkers() {
+    return maxWorkers;
+  }
+
+  public int getWorkerCount() {
+    return workerCount.get();
+  }
+
+  public int getStartedWorkerCount() {
+    return startedWorkerCount.get();
+  }
+
+  public int getGeneratedFormCount() {
+    return generatedFormCount.get();
+  }
+
+  public int getFailedFormCount() {
+    return failedFormCount.get();
+  }
+
+  public long getTotalLatencyMillis() {
+    return totalLatencyMillis.get();
+  }
+
+  public long getMaxLatencyMillis() {
+    return maxLatencyMillis.get();
+  }
+
+  /*
+   * A YailGenerator process running in worker mode.
+   */
+  private class Worker {
+    private final Process process;
+    private final DataOutputStream requests;
+    private final DataInputStream responses;
+    private int formCount;
+    // Set when the watchdog kills the process.
+    private volatile boolean killed;
+
+    Worker() throws IOException {
+      String[] commandLine = (workerCommandLine != null) ? workerCommandLine : new String[] {
+        System.getProperty("java.home") + "/bin/java",
+        "-mx" + WORKER_RAM_MB + "M",
+        "-jar",
+        Compiler.getResource(YAIL_GENERATOR_JAR),
+        "--worker"
+      };
+      LOG.info("____Starting " + joiner.join(commandLine));
+      process = new ProcessBuilder(commandLine).start();
+      requests = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      responses = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+      redirectToSystemErr(process.getErrorStream());
+      startedWorkerCount.incrementAndGet();
+    }
+
+    Outcome generateYail(String formPropertiesSource, String codeblocksSource, String yailPath,
+        long start) throws IOException {
+      formCount++;
+      // The deadline covers the request too, since a stuck worker stops reading it.
+      ScheduledFuture<?> deadline = watchdog.schedule(new Runnable() {
+        @Override
+        public void run() {
+          killed = true;
+          process.destroy();
+        }
+      }, workerTimeoutMillis, TimeUnit.MILLISECONDS);
+      try {
+        // The sources are sent rather than their paths, so that they don't have to be on disk.
+        // writeUTF is limited to 64KB, which codeblocks can exceed.
+        writeSource(formPropertiesSource);
+        writeSource(codeblocksSource);
+        requests.writeUTF(yailPath);
+        requests.flush();
+
+        int status = responses.readInt();
+        byte[] output = new byte[responses.readInt()];
+        responses.readFully(output);
+        return new Outcome(status, new String(output, Charsets.UTF_8),
+            System.currentTimeMillis() - start);
+      } catch (IOException e) {
+        if (killed) {
+          throw new IOException("No response within " + workerTimeoutMillis + " ms", e);
+        }
+        throw e;
+      } finally {
+        if (!deadline.cancel(false)) {
+          // The watchdog fired just as the response arrived, and is killing the process.
+          killed = true;
+        }
+      }
+    }
+
+    private void writeSource(String source) throws IOException {
+      byte[] bytes = source.getBytes(Charsets.UTF_8);
+      requests.writeInt(bytes.length);
+      requests.write(bytes);
+    }
+
+    int getFormCount() {
+      return formCount;
+    }
+
+    boolean isKilled() {
+      return killed;
+    }
+
+    void destroy() {
+      // Closing stdin tells the worker to exit. We destroy it anyway in case it is stuck.
+      try {
+        requests.close();
+      } catch (IOException e) {
+        // OK to ignore...
+      }
+      process.destroy();
+    }
+  }
+
+  /*
+   * Copies the worker's stderr to our stderr, so that stack traces aren't lost and the worker
+   * doesn't block on a full pipe.
+   */
+  private static void redirectToSystemErr(final InputStream input) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          ByteStreams.copy(input, System.err);
+        } catch (IOException e) {
+          // OK to ignore...
+        }
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+  }
+}
@@ -2,8 +2,10 @@
 
 package com.google.appinventor.yailgenerator;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.io.Files;
+import com.google.common.io.NullOutputStream;
 
 import openblocks.codeblocks.Block;
 import openblocks.codeblocks.ComplaintDepartment;
@@ -27,7 +29,12 @@ import org.json.JSONObject;
 import org.w3c.dom.Element;
 
 import java.awt.event.MouseEvent;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -57,6 +64,18 @@ public class YailGenerator implements IWorkspaceController {
   private volatile boolean loadingBlocks;
   private volatile boolean projectLoaded;
 
+  /**
+   * Command-line argument that runs the YailGenerator binary as a long-lived worker. See
+   * {@link #runWorker}.
+   */
+  public static final String WORKER_FLAG = "--worker";
+
+  // Response status codes for the worker protocol. These have the same meaning as the exit values
+  // of the one-shot binary.
+  private static final int STATUS_OK = 0;
+  private static final int STATUS_YAIL_GENERATION_ERROR = 1;
+  private static final int STATUS_UNEXPECTED_ERROR = -1;
+
   /**
    * Entry point for YailGenerator binary.
    * Command-line argumesnt:
@@ -67,8 +86,14 @@ public class YailGenerator implements IWorkspaceController {
    * </ol>
    *
    * <p>The generated YAIL is printed to stdout.</p>
+   *
+   * <p>Alternatively, if the only argument is {@link #WORKER_FLAG}, the binary runs as a worker
+   * that generates YAIL for many forms. See {@link #runWorker}.</p>
    */
   public static void main(String[] args) {
+    if (args.length == 1 && args[0].equals(WORKER_FLAG)) {
+      System.exit(runWorker());
+    }
     if (args.length != 3) {
       System.err.println("YailGenerator error - expected exactly 3 command line arguments");
       System.exit(-1);
@@ -103,13 +128,89 @@ public class YailGenerator implements IWorkspaceController {
     }
   }
 
+  /**
+   * Runs the YailGenerator as a long-lived worker, so that the cost of starting the JVM and
+   * loading the language definition is paid once rather than once per form.
+   *
+   * <p>The worker loads the language definition and then reads requests from stdin until stdin is
+   * closed. Each request consists of the form properties source and the codeblocks source, each
+   * written as an int length followed by its UTF-8 bytes, and the yail path, written with
+   * {@link DataOutputStream#writeUTF}. For each request, the worker writes a response to
+   * stdout consisting of an int status (0 for success, 1 if YAIL could not be generated for
+   * legitimate reasons, such as empty sockets, or -1 for any other failure) followed by the length
+   * and UTF-8 bytes of the generated YAIL (or of the error message).</p>
+   *
+   * @return the exit value for the process
+   */
+  private static int runWorker() {
+    // Keep the real stdout for responses and discard output from codeblocks. Unlike the one-shot
+    // binary, we can't buffer the output from codeblocks because the worker runs indefinitely.
+    PrintStream saveSystemErr = System.err;
+    DataOutputStream responses = new DataOutputStream(new BufferedOutputStream(System.out));
+    System.setOut(new PrintStream(new NullOutputStream()));
+    System.setErr(new PrintStream(new NullOutputStream()));
+
+    try {
+      // Load the language definition before reading the first request.
+      getInstance().loadLanguageIfNecessary();
+
+      DataInputStream requests = new DataInputStream(new BufferedInputStream(System.in));
+      while (true) {
+        String formPropertiesSource;
+        try {
+          formPropertiesSource = readSource(requests);
+        } catch (EOFException e) {
+          // The build server closed our stdin.
+          return 0;
+        }
+        String codeblocksSource = readSource(requests);
+        String yailPath = requests.readUTF();
+
+        int status;
+        String response;
+        try {
+          response = generateYail(formPropertiesSource, codeblocksSource, yailPath);
+          status = STATUS_OK;
+        } catch (YailGenerationException e) {
+          response = e.getMessage();
+          status = STATUS_YAIL_GENERATION_ERROR;
+        } catch (Throwable e) {
+          e.printStackTrace(saveSystemErr);
+          response = String.valueOf(e.getMessage());
+          status = STATUS_UNEXPECTED_ERROR;
+        }
+        byte[] responseBytes = response.getBytes(Charsets.UTF_8);
+        responses.writeInt(status);
+        responses.writeInt(responseBytes.length);
+        responses.write(responseBytes);
+        responses.flush();
+      }
+    } catch (Throwable e) {
+      e.printStackTrace(saveSystemErr);
+      return -1;
+    }
+  }
+
+  /*
+   * Reads a source sent by the build server as an int length followed by its UTF-8 bytes.
+   */
+  private static String readSource(DataInputStream requests) throws IOException {
+    byte[] bytes = new byte[requests.readInt()];
+    requests.readFully(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
   public static String generateYail(
       String formPropertiesSource, String codeblocksSource, String yailPath)
       throws YailGenerationException {
-    // Currently when YailGenerator is executed as a separate process, this method is called only
-    // once. However, in tests (see YailGeneratorTest.java), it may called multiple times in
-    // parallel.
+    // When YailGenerator is executed as a one-shot process, this method is called only once. When
+    // it is executed as a worker (see runWorker), it is called once per request. In tests (see
+    // YailGeneratorTest.java), it may called multiple times in parallel.
+    return getInstance().loadBlocksAndGenerateYail(formPropertiesSource, codeblocksSource,
+        yailPath);
+  }
 
+  private static YailGenerator getInstance() {
     // Give the WorkspaceControllerHolder a factory that will create a YailGenerator.
     // This ensures that only one workspace controller will be created and that it will be the
     // appropriate implementation: YailGenerator.
@@ -120,10 +221,7 @@ public class YailGenerator implements IWorkspaceController {
       }
     };
     WorkspaceControllerHolder.setFactory(factory, true);  // headless
-    YailGenerator yailGenerator = (YailGenerator) WorkspaceControllerHolder.get();
-
-    return yailGenerator.loadBlocksAndGenerateYail(formPropertiesSource, codeblocksSource,
-        yailPath);
+    return (YailGenerator) WorkspaceControllerHolder.get();
   }
 
   private YailGenerator() {
@@ -139,19 +237,7 @@ public class YailGenerator implements IWorkspaceController {
     // parallel. We use synchronized here to handle (prevent) concurreny.
     synchronized (generateYailLock) {
       try {
-
-        // The first time this method is called, langDefRoot will be null.
-        if (langDefRoot == null) {
-          try {
-            langDefRoot = WorkspaceUtils.loadLangDef();
-          } catch (Exception e) {
-            throw new RuntimeException(e);
-          }
-          WorkspaceUtils.resetLanguage();
-          WorkspaceUtils.loadLanguage(langDefRoot);
-          // The following is required to load the "My Definitions" page/drawer.
-          loadBlocks(null);
-        }
+        loadLanguageIfNecessary();
 
         JSONObject formProperties = WorkspaceUtils.parseFormProperties(formPropertiesSource);
         if (formProperties == null) {
@@ -220,6 +306,23 @@ public class YailGenerator implements IWorkspaceController {
     }
   }
 
+  private void loadLanguageIfNecessary() {
+    synchronized (generateYailLock) {
+      // The first time this method is called, langDefRoot will be null.
+      if (langDefRoot == null) {
+        try {
+          langDefRoot = WorkspaceUtils.loadLangDef();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+        WorkspaceUtils.resetLanguage();
+        WorkspaceUtils.loadLanguage(langDefRoot);
+        // The following is required to load the "My Definitions" page/drawer.
+        loadBlocks(null);
+      }
+    }
+  }
+
   private void loadBlocks(Element blocksRoot) {
     loadingBlocks = true;
     try {
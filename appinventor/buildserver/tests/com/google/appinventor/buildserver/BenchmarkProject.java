@@ -0,0 +1,315 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A synthetic Young Android project used as a fixture by
+ * {@link BuildServerBenchmarks}.
+ *
+ * <p>The project is written to a directory in the layout that the build
+ * server extracts projects into, with a YAIL file next to each form, and is
+ * also zipped the way that the ODE server sends it to the build server. The
+ * contents are generated from a fixed seed, so every run of the benchmarks
+ * builds the same project.</p>
+ *
+ */
+final class BenchmarkProject {
+  /**
+   * The sizes of project that are benchmarked.
+   */
+  static final List<String> SIZES = ImmutableList.of("small", "medium", "large");
+
+  // Visible components that are placed on forms, some of which need permissions.
+  private static final String[] VISIBLE_TYPES = {
+    "Button", "Label", "TextBox", "PasswordTextBox", "Image", "CheckBox", "ListPicker",
+    "ImagePicker", "ContactPicker", "PhoneNumberPicker", "EmailPicker", "VideoPlayer",
+  };
+  // Non-visible components, most of which need permissions.
+  private static final String[] NON_VISIBLE_TYPES = {
+    "Clock", "TinyDB", "TinyWebDB", "Sound", "Player", "LocationSensor", "AccelerometerSensor",
+    "OrientationSensor", "Texting", "PhoneCall", "ActivityStarter", "BluetoothClient",
+    "Notifier", "TextToSpeech", "Twitter", "Camera",
+  };
+  private static final String[] ARRANGEMENT_TYPES = {
+    "HorizontalArrangement", "VerticalArrangement", "TableArrangement",
+  };
+
+  private static final String PACKAGE = "appinventor.ai_benchmark";
+
+  private final String size;
+  private final File projectDir;
+  private final File zipFile;
+  private final List<String> formSources = Lists.newArrayList();
+  private final Set<String> componentTypes = Sets.newHashSet();
+  private final String compilerOutput;
+  private final String srcPath;
+
+  private BenchmarkProject(String size, File projectDir, File zipFile, String compilerOutput,
+      String srcPath) {
+    this.size = size;
+    this.projectDir = projectDir;
+    this.zipFile = zipFile;
+    this.compilerOutput = compilerOutput;
+    this.srcPath = srcPath;
+  }
+
+  /**
+   * Creates a project of the given size beneath a directory.
+   *
+   * <ul>
+   * <li>small: 1 screen with 8 components and 2 small assets</li>
+   * <li>medium: 3 screens with 40 components each and 20 assets</li>
+   * <li>large: 10 screens with 80 components each and 150 assets, as large
+   *     as the assets of a game with sounds and sprites</li>
+   * </ul>
+   *
+   * @param size  one of {@link #SIZES}
+   * @param parentDir  the directory in which to create the project
+   */
+  static BenchmarkProject create(String size, File parentDir) throws IOException, JSONException {
+    int screens;
+    int componentsPerScreen;
+    int assets;
+    int assetBytes;
+    if (size.equals("small")) {
+      screens = 1;
+      componentsPerScreen = 8;
+      assets = 2;
+      assetBytes = 16 * 1024;
+    } else if (size.equals("medium")) {
+      screens = 3;
+      componentsPerScreen = 40;
+      assets = 20;
+      assetBytes = 64 * 1024;
+    } else if (size.equals("large")) {
+      screens = 10;
+      componentsPerScreen = 80;
+      assets = 150;
+      assetBytes = 128 * 1024;
+    } else {
+      throw new IllegalArgumentException("Unknown project size: " + size);
+    }
+
+    Random random = new Random(size.hashCode());
+    File projectDir = new File(parentDir, size);
+    String projectName = "Benchmark_" + size;
+    String packagePath = PACKAGE.replace('.', '/') + "/" + projectName;
+    File srcDir = new File(projectDir, "src");
+    List<String> zipEntries = Lists.newArrayList();
+
+    write(projectDir, zipEntries, ProjectBuilder.PROJECT_PROPERTIES_FILE_NAME,
+        ("main=" + PACKAGE + "." + projectName + ".Screen1\n" +
+        "name=" + projectName + "\n" +
+        "assets=../assets\n" +
+        "source=../src\n" +
+        "build=../build\n").getBytes(Charsets.UTF_8));
+
+    StringBuilder compilerOutput = new StringBuilder();
+    List<String> formSources = Lists.newArrayList();
+    Set<String> componentTypes = Sets.newHashSet();
+    for (int screen = 1; screen <= screens; screen++) {
+      String formName = "Screen" + screen;
+      String rootPath = "src/" + packagePath + "/" + formName;
+      String scm = createFormSource(random, formName, componentsPerScreen, componentTypes);
+      formSources.add(scm);
+      write(projectDir, zipEntries, rootPath + YoungAndroidConstants.FORM_PROPERTIES_EXTENSION,
+          scm.getBytes(Charsets.UTF_8));
+      // The codeblocks and YAIL aren't parsed by any of the benchmarks, so only their sizes
+      // matter.
+      write(projectDir, zipEntries, rootPath + YoungAndroidConstants.CODEBLOCKS_SOURCE_EXTENSION,
+          randomText(random, componentsPerScreen * 1024));
+      // The YAIL isn't in the zip that the build server receives. It's generated during the build.
+      Files.write(randomText(random, componentsPerScreen * 512),
+          new File(projectDir, rootPath + YoungAndroidConstants.YAIL_EXTENSION));
+      appendCompilerOutput(random, compilerOutput, srcDir.getPath(),
+          packagePath + "/" + formName + YoungAndroidConstants.YAIL_EXTENSION, componentsPerScreen);
+    }
+
+    for (int i = 1; i <= assets; i++) {
+      byte[] asset = new byte[assetBytes];
+      random.nextBytes(asset);
+      write(projectDir, zipEntries, "assets/asset" + i + ((i % 3 == 0) ? ".mp3" : ".png"), asset);
+    }
+
+    File zipFile = new File(parentDir, size + ".zip");
+    zip(projectDir, zipEntries, zipFile);
+
+    BenchmarkProject project = new BenchmarkProject(size, projectDir, zipFile,
+        compilerOutput.toString(), srcDir.getPath());
+    project.formSources.addAll(formSources);
+    project.componentTypes.addAll(componentTypes);
+    return project;
+  }
+
+  /*
+   * Returns the contents of a .scm file with the given number of components, some of them nested
+   * in arrangements, and adds their types to componentTypes.
+   */
+  private static String createFormSource(Random random, String formName, int components,
+      Set<String> componentTypes) throws JSONException {
+    JSONObject form = new JSONObject();
+    form.put("$Name", formName);
+    form.put("$Type", "Form");
+    form.put("$Version", "5");
+    form.put("Title", formName);
+    form.put("Uuid", "0");
+    componentTypes.add("Form");
+
+    JSONArray formComponents = new JSONArray();
+    JSONArray arrangementComponents = null;
+    for (int i = 1; i <= components; i++) {
+      boolean visible = (i % 10 != 0);
+      boolean arrangement = (i % 5 == 1);
+      String type;
+      if (!visible) {
+        type = NON_VISIBLE_TYPES[random.nextInt(NON_VISIBLE_TYPES.length)];
+      } else if (arrangement) {
+        type = ARRANGEMENT_TYPES[random.nextInt(ARRANGEMENT_TYPES.length)];
+      } else {
+        type = VISIBLE_TYPES[random.nextInt(VISIBLE_TYPES.length)];
+      }
+      componentTypes.add(type);
+      JSONObject component = new JSONObject();
+      component.put("$Name", type + i);
+      component.put("$Type", type);
+      component.put("$Version", "1");
+      component.put("Uuid", Integer.toString(random.nextInt()));
+      if (arrangement) {
+        // The visible components that follow are nested in this arrangement, every other one.
+        arrangementComponents = new JSONArray();
+        component.put("$Components", arrangementComponents);
+        formComponents.put(component);
+      } else if (visible) {
+        component.put("Text", "Text for " + type + i);
+        component.put("Width", "-2");
+        if (arrangementComponents != null && i % 2 == 0) {
+          arrangementComponents.put(component);
+        } else {
+          formComponents.put(component);
+        }
+      } else {
+        formComponents.put(component);
+      }
+    }
+    form.put("$Components", formComponents);
+
+    JSONObject properties = new JSONObject();
+    properties.put("Source", "Form");
+    properties.put("Properties", form);
+    return "#|\n$JSON\n" + properties.toString() + "\n|#";
+  }
+
+  /*
+   * Appends what Kawa prints when it compiles a form with warnings, together with some warnings
+   * in runtime.scm, which processCompilerOutput filters out.
+   */
+  private static void appendCompilerOutput(Random random, StringBuilder output, String srcPath,
+      String yailPath, int lines) {
+    output.append("(compiling ").append(srcPath).append('/').append(yailPath).append(")\n");
+    for (int i = 0; i < lines; i++) {
+      int line = 1 + random.nextInt(2000);
+      if (i % 4 == 0) {
+        output.append("/tmp/runtime1234.scm:").append(line)
+            .append(":5: warning - no known slot 'Text' in java.lang.Object\n");
+      } else {
+        output.append(srcPath).append('/').append(yailPath).append(':').append(line)
+            .append(":12: ").append((i % 3 == 0) ? "error" : "warning")
+            .append(": unreachable code <after set-lexical! of $result>\n");
+      }
+    }
+  }
+
+  private static byte[] randomText(Random random, int length) {
+    byte[] text = new byte[length];
+    for (int i = 0; i < length; i++) {
+      text[i] = (byte) ('a' + random.nextInt(26));
+    }
+    return text;
+  }
+
+  private static void write(File projectDir, List<String> zipEntries, String name,
+      byte[] contents) throws IOException {
+    File file = new File(projectDir, name);
+    Files.createParentDirs(file);
+    Files.write(contents, file);
+    zipEntries.add(name);
+  }
+
+  private static void zip(File projectDir, List<String> names, File zipFile) throws IOException {
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile));
+    try {
+      for (String name : names) {
+        out.putNextEntry(new ZipEntry(name));
+        Files.copy(new File(projectDir, name), out);
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  String getSize() {
+    return size;
+  }
+
+  /**
+   * Returns a new Project for the project, which hasn't looked for its
+   * sources yet.
+   */
+  Project getProject() {
+    return new Project(new File(projectDir, ProjectBuilder.PROJECT_PROPERTIES_FILE_NAME));
+  }
+
+  /**
+   * Returns the zip of the project that the build server would receive.
+   */
+  File getZipFile() {
+    return zipFile;
+  }
+
+  /**
+   * Returns the contents of the .scm files of the project.
+   */
+  List<String> getFormSources() {
+    return Collections.unmodifiableList(formSources);
+  }
+
+  /**
+   * Returns the types of the components used in the project.
+   */
+  Set<String> getComponentTypes() {
+    return Collections.unmodifiableSet(componentTypes);
+  }
+
+  /**
+   * Returns what Kawa would print when compiling the project, and the source
+   * path that {@link ProjectBuilder#processCompilerOutput} removes from it.
+   */
+  String getCompilerOutput() {
+    return compilerOutput;
+  }
+
+  String getSrcPath() {
+    return srcPath;
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Tests BuildMetrics class.
+ *
+ */
+public class BuildMetricsTest extends TestCase {
+  private BuildMetrics metrics;
+
+  @Override
+  protected void setUp() throws Exception {
+    metrics = new BuildMetrics();
+    metrics.recordStage(Compiler.CLASSES_STAGE, 15);
+    metrics.recordStage(Compiler.CLASSES_STAGE, 30000);
+    metrics.recordStage(BuildMetrics.EXTRACT_STAGE, 5);
+    metrics.recordPeakRss(BuildMetrics.DX_PROCESS, 100L << 20);
+    metrics.recordBuild(45000);
+    metrics.recordRequestBytes(2048);
+  }
+
+  public void testPrometheus() {
+    String text = metrics.toPrometheus();
+    assertTrue(text.contains("# TYPE appinventor_build_stage_duration_seconds histogram\n"));
+    // Buckets are cumulative, and in seconds.
+    assertTrue(text.contains(
+        "appinventor_build_stage_duration_seconds_bucket{stage=\"kawa\",le=\"0.01\"} 0\n"));
+    assertTrue(text.contains(
+        "appinventor_build_stage_duration_seconds_bucket{stage=\"kawa\",le=\"0.02\"} 1\n"));
+    assertTrue(text.contains(
+        "appinventor_build_stage_duration_seconds_bucket{stage=\"kawa\",le=\"+Inf\"} 2\n"));
+    assertTrue(text.contains(
+        "appinventor_build_stage_duration_seconds_sum{stage=\"kawa\"} 30.015\n"));
+    assertTrue(text.contains(
+        "appinventor_build_stage_duration_seconds_count{stage=\"extract\"} 1\n"));
+    assertTrue(text.contains(
+        "appinventor_build_child_process_peak_rss_bytes_count{process=\"dx\"} 1\n"));
+    assertTrue(text.contains("appinventor_build_duration_seconds_bucket{le=\"+Inf\"} 1\n"));
+    assertTrue(text.contains("appinventor_build_duration_seconds_sum 45.0\n"));
+    assertTrue(text.contains("appinventor_build_request_bytes_sum 2048\n"));
+    assertTrue(text.contains("appinventor_build_queue_wait_seconds_count 0\n"));
+  }
+
+  public void testJson() throws Exception {
+    JSONObject json = new JSONObject(metrics.toJson());
+    JSONObject kawa = json.getJSONObject("stage_ms").getJSONObject("kawa");
+    assertEquals(2, kawa.getLong("count"));
+    assertEquals(30015, kawa.getLong("sum"));
+    assertEquals(30000, kawa.getLong("max"));
+    JSONArray buckets = kawa.getJSONArray("buckets");
+    assertEquals("+Inf", buckets.getJSONObject(buckets.length() - 1).getString("le"));
+    // Percentiles are interpolated within the bucket, which starts at 40.96 seconds.
+    long p99 = json.getJSONObject("build_ms").getLong("p99");
+    assertTrue(p99 > 40960 && p99 <= 45000);
+    assertEquals(1, json.getJSONObject("child_process_peak_rss_bytes").getJSONObject("dx")
+        .getLong("count"));
+  }
+}
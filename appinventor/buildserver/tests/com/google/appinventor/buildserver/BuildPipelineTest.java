@@ -0,0 +1,148 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests BuildPipeline class.
+ *
+ */
+public class BuildPipelineTest extends TestCase {
+  private ExecutorService executor;
+  private ByteArrayOutputStream output;
+  private PrintStream out;
+  private List<String> order;
+
+  @Override
+  protected void setUp() throws Exception {
+    executor = Executors.newCachedThreadPool();
+    output = new ByteArrayOutputStream();
+    out = new PrintStream(output);
+    order = Collections.synchronizedList(new ArrayList<String>());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  public void testStagesRunAfterTheirDependencies() throws Exception {
+    BuildPipeline pipeline = new BuildPipeline(executor);
+    pipeline.addStage("a", new RecordingStage("a", true));
+    pipeline.addStage("b", new RecordingStage("b", true), "a");
+    pipeline.addStage("c", new RecordingStage("c", true));
+    pipeline.addStage("d", new RecordingStage("d", true), "b", "c");
+    assertTrue(pipeline.run(out));
+
+    assertEquals(4, order.size());
+    assertTrue(order.indexOf("a") < order.indexOf("b"));
+    assertTrue(order.indexOf("b") < order.indexOf("d"));
+    assertTrue(order.indexOf("c") < order.indexOf("d"));
+  }
+
+  public void testIndependentStagesRunAtTheSameTime() throws Exception {
+    // Each stage waits for the other, so they only succeed if they run at the same time.
+    final CyclicBarrier barrier = new CyclicBarrier(2);
+    BuildPipeline.Stage waitForOther = new BuildPipeline.Stage() {
+      @Override
+      public boolean run() throws Exception {
+        barrier.await(5, TimeUnit.SECONDS);
+        return true;
+      }
+    };
+    BuildPipeline pipeline = new BuildPipeline(executor);
+    pipeline.addStage("a", waitForOther);
+    pipeline.addStage("b", waitForOther);
+    assertTrue(pipeline.run(out));
+  }
+
+  public void testFailedStageStopsLaterStages() throws Exception {
+    BuildPipeline pipeline = new BuildPipeline(executor);
+    pipeline.addStage("a", new RecordingStage("a", false));
+    pipeline.addStage("b", new RecordingStage("b", true), "a");
+    pipeline.addStage("c", new RecordingStage("c", true));
+    assertFalse(pipeline.run(out));
+
+    assertFalse(order.contains("b"));
+    // Stages that had already started are waited for.
+    assertTrue(order.contains("c"));
+    assertNull(pipeline.getException("a"));
+  }
+
+  public void testExceptionFailsStage() throws Exception {
+    final IOException exception = new IOException();
+    BuildPipeline pipeline = new BuildPipeline(executor);
+    pipeline.addStage("a", new BuildPipeline.Stage() {
+      @Override
+      public boolean run() throws Exception {
+        throw exception;
+      }
+    });
+    pipeline.addStage("b", new RecordingStage("b", true), "a");
+    assertFalse(pipeline.run(out));
+    assertSame(exception, pipeline.getException("a"));
+    assertTrue(order.isEmpty());
+  }
+
+  public void testDependenciesMustBeAddedFirst() {
+    BuildPipeline pipeline = new BuildPipeline(executor);
+    try {
+      pipeline.addStage("a", new RecordingStage("a", true), "b");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    pipeline.addStage("b", new RecordingStage("b", true));
+    try {
+      pipeline.addStage("b", new RecordingStage("b", true));
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testStageTimesArePrinted() throws Exception {
+    BuildPipeline pipeline = new BuildPipeline(executor);
+    pipeline.addStage("Compiling", new RecordingStage("Compiling", true));
+    pipeline.addStage("Signing", new RecordingStage("Signing", true), "Compiling");
+    assertTrue(pipeline.run(out));
+    out.flush();
+
+    String printed = output.toString("UTF-8");
+    assertTrue(printed.contains("________Compiling\n"));
+    assertTrue(printed.contains("________Stage times\n"));
+    assertTrue(printed.contains("Signing: "));
+    assertEquals(2, pipeline.getStageMillis().size());
+    assertTrue(pipeline.getWallClockMillis() >= 0);
+  }
+
+  private class RecordingStage implements BuildPipeline.Stage {
+    private final String name;
+    private final boolean succeed;
+
+    RecordingStage(String name, boolean succeed) {
+      this.name = name;
+      this.succeed = succeed;
+    }
+
+    @Override
+    public boolean run() {
+      if (succeed) {
+        order.add(name);
+      }
+      return succeed;
+    }
+  }
+}
@@ -0,0 +1,223 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests BuildQueue class.
+ *
+ */
+public class BuildQueueTest extends TestCase {
+  private final AtomicLong now = new AtomicLong(1000000);
+
+  public void testAdditionalBuildIsQueued() throws Exception {
+    BuildQueue queue = new TestBuildQueue(2, 10, 0, 0);
+    CountDownLatch signal = new CountDownLatch(1);
+    queue.submit("a", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, null));
+    queue.submit("b", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, null));
+    assertEquals(2, queue.getActiveBuildCount());
+
+    // The third build waits instead of being rejected.
+    CountDownLatch finished = new CountDownLatch(1);
+    queue.submit("c", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, finished));
+    assertEquals(1, queue.getQueueLength());
+    assertEquals(1, queue.getQueueLength(BuildQueue.Priority.NORMAL));
+
+    signal.countDown();
+    assertTrue(finished.await(5, TimeUnit.SECONDS));
+    assertEquals(0, queue.getQueueLength());
+    assertEquals(3, queue.getStartedBuildCount());
+  }
+
+  public void testBuildsStartInPriorityOrder() throws Exception {
+    BuildQueue queue = new TestBuildQueue(1, 10, 0, 0);
+    CountDownLatch signal = new CountDownLatch(1);
+    queue.submit("a", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, null));
+
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch finished = new CountDownLatch(4);
+    queue.submit("b", BuildQueue.Priority.BACKGROUND, new RecordingBuild("b", order, finished));
+    queue.submit("c", BuildQueue.Priority.NORMAL, new RecordingBuild("c", order, finished));
+    queue.submit("d", BuildQueue.Priority.INTERACTIVE, new RecordingBuild("d", order, finished));
+    queue.submit("e", BuildQueue.Priority.NORMAL, new RecordingBuild("e", order, finished));
+    assertEquals(1, queue.getQueueLength(BuildQueue.Priority.INTERACTIVE));
+    assertEquals(2, queue.getQueueLength(BuildQueue.Priority.NORMAL));
+    assertEquals(1, queue.getQueueLength(BuildQueue.Priority.BACKGROUND));
+
+    signal.countDown();
+    assertTrue(finished.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("d", "c", "e", "b"), order);
+  }
+
+  public void testBuildsPerUserAreLimited() throws Exception {
+    BuildQueue queue = new TestBuildQueue(1, 10, 2, 0);
+    CountDownLatch signal = new CountDownLatch(1);
+    queue.submit("a", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, null));
+    queue.submit("a", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, null));
+    try {
+      queue.submit("a", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, null));
+      fail();
+    } catch (BuildQueue.UserLimitException e) {
+      // expected
+    }
+    // Other users may still build.
+    CountDownLatch finished = new CountDownLatch(1);
+    queue.submit("b", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, finished));
+    assertEquals(1, queue.getRejectedUserLimitCount());
+
+    signal.countDown();
+    assertTrue(finished.await(5, TimeUnit.SECONDS));
+  }
+
+  public void testFullQueueRejects() throws Exception {
+    BuildQueue queue = new TestBuildQueue(1, 1, 0, 0);
+    CountDownLatch signal = new CountDownLatch(1);
+    queue.submit("a", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, null));
+    queue.submit("b", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, null));
+    try {
+      queue.submit("c", BuildQueue.Priority.INTERACTIVE, new WaitingBuild(signal, null));
+      fail();
+    } catch (RejectedExecutionException e) {
+      assertFalse(e instanceof BuildQueue.UserLimitException);
+    }
+    assertEquals(1, queue.getRejectedQueueFullCount());
+    signal.countDown();
+  }
+
+  public void testQueuedBuildExpires() throws Exception {
+    BuildQueue queue = new TestBuildQueue(1, 10, 0, 60000);
+    CountDownLatch signal = new CountDownLatch(1);
+    queue.submit("a", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, null));
+    CountDownLatch expired = new CountDownLatch(1);
+    WaitingBuild late = new WaitingBuild(signal, null, expired);
+    queue.submit("b", BuildQueue.Priority.NORMAL, late);
+
+    now.addAndGet(60001);
+    CountDownLatch finished = new CountDownLatch(1);
+    queue.submit("c", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, finished));
+    assertTrue(expired.await(5, TimeUnit.SECONDS));
+    assertEquals(1, queue.getExpiredBuildCount());
+    assertEquals(1, queue.getQueueLength());
+
+    signal.countDown();
+    assertTrue(finished.await(5, TimeUnit.SECONDS));
+    assertFalse(late.ran);
+  }
+
+  public void testEstimatedWait() throws Exception {
+    BuildQueue queue = new TestBuildQueue(2, 10, 0, 0);
+    CountDownLatch signal = new CountDownLatch(1);
+    long averageBuildMillis = queue.getAverageBuildMillis();
+    assertEquals(0, queue.submit("a", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, null)));
+    assertEquals(0, queue.submit("b", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, null)));
+    assertEquals(averageBuildMillis,
+        queue.submit("c", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, null)));
+    assertEquals(averageBuildMillis,
+        queue.submit("d", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, null)));
+    assertEquals(2 * averageBuildMillis,
+        queue.submit("e", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, null)));
+    // An interactive build goes ahead of the queued normal builds.
+    assertEquals(averageBuildMillis,
+        queue.submit("f", BuildQueue.Priority.INTERACTIVE, new WaitingBuild(signal, null)));
+    signal.countDown();
+  }
+
+  public void testWaitHistogram() throws Exception {
+    BuildQueue queue = new TestBuildQueue(1, 10, 0, 0);
+    CountDownLatch signal = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    queue.submit("a", BuildQueue.Priority.NORMAL, new WaitingBuild(signal, null));
+    queue.submit("b", BuildQueue.Priority.NORMAL,
+        new RecordingBuild("b", new ArrayList<String>(), started));
+
+    now.addAndGet(45000);
+    signal.countDown();
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    int[] histogram = queue.getWaitHistogram();
+    assertEquals(BuildQueue.WAIT_BUCKET_LIMITS_MILLIS.length + 1, histogram.length);
+    assertEquals(1, histogram[0]);  // "a" didn't wait.
+    assertEquals(1, histogram[3]);  // "b" waited between 30 and 60 seconds.
+    assertEquals(45000, queue.getMaxWaitMillis());
+  }
+
+  private class TestBuildQueue extends BuildQueue {
+    TestBuildQueue(int maxActiveBuilds, int maxQueuedBuilds, int maxBuildsPerUser,
+        long queueTimeoutMillis) {
+      super(maxActiveBuilds, maxQueuedBuilds, maxBuildsPerUser, queueTimeoutMillis);
+    }
+
+    @Override
+    long currentTimeMillis() {
+      return now.get();
+    }
+  }
+
+  private static class WaitingBuild implements BuildQueue.Build {
+    private final CountDownLatch signal;
+    private final CountDownLatch finished;
+    private final CountDownLatch expired;
+    volatile boolean ran;
+
+    WaitingBuild(CountDownLatch signal, CountDownLatch finished) {
+      this(signal, finished, null);
+    }
+
+    WaitingBuild(CountDownLatch signal, CountDownLatch finished, CountDownLatch expired) {
+      this.signal = signal;
+      this.finished = finished;
+      this.expired = expired;
+    }
+
+    @Override
+    public void run() {
+      ran = true;
+      try {
+        signal.await();
+      } catch (InterruptedException e) {
+        // ignored
+      }
+      if (finished != null) {
+        finished.countDown();
+      }
+    }
+
+    @Override
+    public void expired() {
+      if (expired != null) {
+        expired.countDown();
+      }
+    }
+  }
+
+  private static class RecordingBuild implements BuildQueue.Build {
+    private final String name;
+    private final List<String> order;
+    private final CountDownLatch finished;
+
+    RecordingBuild(String name, List<String> order, CountDownLatch finished) {
+      this.name = name;
+      this.order = order;
+      this.finished = finished;
+    }
+
+    @Override
+    public void run() {
+      order.add(name);
+      finished.countDown();
+    }
+
+    @Override
+    public void expired() {
+    }
+  }
+}
@@ -0,0 +1,382 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.ZipFile;
+
+/**
+ * Benchmarks of the parts of a build that run in the build server itself,
+ * rather than in Kawa, DX, AAPT or jarsigner, for small, medium and large
+ * projects (see {@link BenchmarkProject}).
+ *
+ * <p>Each benchmark is run in the style of JMH: warmup iterations whose
+ * results are discarded are followed by measurement iterations, each of which
+ * calls the benchmark for a fixed time. The score is the average time per
+ * call, with the half-width of its 99.9% confidence interval as the error.
+ * The results are written as JSON in the format of JMH's
+ * {@code -rf json}, so that results from different commits can be compared
+ * with the same tools.</p>
+ *
+ * <p>Run it with {@code ant BuildServerBenchmarks}, which puts the component
+ * permissions that {@code generatePermissions} needs on the class path.</p>
+ *
+ */
+public final class BuildServerBenchmarks {
+
+  static class CommandLineOptions {
+    @Option(name = "--resultFile",
+            usage = "the file to write the results to, as JSON. If not set, only a summary is " +
+            "printed.")
+    File resultFile;
+
+    @Option(name = "--include",
+            usage = "a regular expression matching the names of the benchmarks to run")
+    String include = ".*";
+
+    @Option(name = "--sizes",
+            usage = "comma separated list of the project sizes to benchmark")
+    String sizes = Joiner.on(',').join(BenchmarkProject.SIZES);
+
+    @Option(name = "--warmupIterations",
+            usage = "number of warmup iterations whose results are discarded")
+    int warmupIterations = 5;
+
+    @Option(name = "--iterations",
+            usage = "number of measurement iterations")
+    int iterations = 10;
+
+    @Option(name = "--iterationMillis",
+            usage = "how long each iteration calls the benchmark for, in milliseconds")
+    int iterationMillis = 1000;
+  }
+
+  /*
+   * A benchmark, which is set up once for each project and then called repeatedly.
+   */
+  private abstract static class Benchmark {
+    final String name;
+
+    Benchmark(String name) {
+      this.name = name;
+    }
+
+    void setUp(BenchmarkProject project) throws Exception {
+    }
+
+    /*
+     * Runs the benchmark once and returns its result, so that the work can't be optimized away.
+     */
+    abstract Object run(BenchmarkProject project) throws Exception;
+
+    void tearDown() throws Exception {
+    }
+  }
+
+  private static final PrintStream NULL_PRINT_STREAM = new PrintStream(new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+  });
+
+  // The permissions written to the manifest by the writeAndroidManifest benchmark.
+  private static final Set<String> MANIFEST_PERMISSIONS = ImmutableSet.of(
+      "android.permission.INTERNET",
+      "android.permission.ACCESS_FINE_LOCATION",
+      "android.permission.ACCESS_COARSE_LOCATION",
+      "android.permission.READ_CONTACTS",
+      "android.permission.SEND_SMS",
+      "android.permission.CALL_PHONE",
+      "android.permission.BLUETOOTH");
+
+  // Student's t for a two-sided 99.9% confidence interval, by degrees of freedom, as used by JMH.
+  private static final double[] T_999 = {
+    636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+    4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+    3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646,
+  };
+
+  private static final List<Benchmark> BENCHMARKS = ImmutableList.of(
+      new Benchmark("processCompilerOutput") {
+        @Override
+        Object run(BenchmarkProject project) {
+          return ProjectBuilder.processCompilerOutput(project.getCompilerOutput(),
+              project.getSrcPath());
+        }
+      },
+
+      new Benchmark("getComponentTypesFromFormFile") {
+        @Override
+        Object run(BenchmarkProject project) {
+          Set<String> componentTypes = Sets.newHashSet();
+          for (String source : project.getFormSources()) {
+            componentTypes.addAll(FormPropertiesAnalyzer.getComponentTypesFromFormFile(source));
+          }
+          return componentTypes;
+        }
+      },
+
+      new Benchmark("generatePermissions") {
+        private Compiler compiler;
+
+        @Override
+        void setUp(BenchmarkProject project) {
+          compiler = new Compiler(null, project.getComponentTypes(), NULL_PRINT_STREAM,
+              NULL_PRINT_STREAM, NULL_PRINT_STREAM, false, 2048);
+          if (compiler.generatePermissions() == null) {
+            throw new IllegalStateException("The component permissions aren't on the class path");
+          }
+        }
+
+        @Override
+        Object run(BenchmarkProject project) {
+          return compiler.generatePermissions();
+        }
+      },
+
+      new Benchmark("writeAndroidManifest") {
+        private Compiler compiler;
+        private File manifestFile;
+
+        @Override
+        void setUp(BenchmarkProject project) {
+          Project buildProject = project.getProject();
+          // Find the sources once, as the build does before the manifest stage.
+          buildProject.getSources();
+          compiler = new Compiler(buildProject, project.getComponentTypes(), NULL_PRINT_STREAM,
+              NULL_PRINT_STREAM, NULL_PRINT_STREAM, false, 2048);
+          File buildDir = buildProject.getBuildDirectory();
+          buildDir.mkdirs();
+          manifestFile = new File(buildDir, "AndroidManifest.xml");
+        }
+
+        @Override
+        Object run(BenchmarkProject project) {
+          if (!compiler.writeAndroidManifest(manifestFile, MANIFEST_PERMISSIONS)) {
+            throw new IllegalStateException("Unable to write " + manifestFile);
+          }
+          return manifestFile;
+        }
+      },
+
+      new Benchmark("extractProjectZip") {
+        private ZipFile zip;
+        private File workspaceDir;
+
+        @Override
+        void setUp(BenchmarkProject project) throws IOException {
+          zip = new ZipFile(project.getZipFile());
+          workspaceDir = Files.createTempDir();
+        }
+
+        @Override
+        Object run(BenchmarkProject project) throws IOException {
+          ProjectWorkspace workspace = new ProjectWorkspace(workspaceDir, false);
+          List<String> files = workspace.extract(zip);
+          workspace.delete();
+          return files;
+        }
+
+        @Override
+        void tearDown() throws IOException {
+          zip.close();
+          Files.deleteRecursively(new File(workspaceDir.getCanonicalPath()));
+        }
+      });
+
+  // Where the results of the benchmarks are accumulated, so that they are used.
+  private static volatile int sink;
+
+  private BuildServerBenchmarks() {
+  }
+
+  /**
+   * Runs the benchmarks.
+   *
+   * @param args  command line arguments
+   */
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions options = new CommandLineOptions();
+    CmdLineParser cmdLineParser = new CmdLineParser(options);
+    try {
+      cmdLineParser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      cmdLineParser.printUsage(System.err);
+      System.exit(1);
+    }
+
+    Pattern include = Pattern.compile(options.include);
+    File fixturesDir = Files.createTempDir();
+    int skipped = 0;
+    try {
+      List<BenchmarkProject> projects = Lists.newArrayList();
+      for (String size : Splitter.on(',').trimResults().omitEmptyStrings().split(options.sizes)) {
+        projects.add(BenchmarkProject.create(size, fixturesDir));
+      }
+
+      JSONArray results = new JSONArray();
+      System.out.println(String.format("%-40s %-10s %12s %12s  %s",
+          "Benchmark", "(project)", "Score", "Error", "Units"));
+      for (Benchmark benchmark : BENCHMARKS) {
+        if (!include.matcher(benchmark.name).find()) {
+          continue;
+        }
+        for (BenchmarkProject project : projects) {
+          JSONObject result = runBenchmark(benchmark, project, options);
+          if (result != null) {
+            results.put(result);
+          } else {
+            skipped++;
+          }
+        }
+      }
+
+      if (options.resultFile != null) {
+        Files.createParentDirs(options.resultFile);
+        Files.write(results.toString(2), options.resultFile, Charsets.UTF_8);
+        System.out.println("Results written to " + options.resultFile.getAbsolutePath());
+      }
+    } finally {
+      Files.deleteRecursively(new File(fixturesDir.getCanonicalPath()));
+    }
+
+    // A benchmark that can't be set up is a failure, not a smaller set of results.
+    if (skipped > 0) {
+      System.err.println(skipped + " benchmark(s) skipped.");
+      System.exit(1);
+    }
+  }
+
+  /*
+   * Runs a benchmark for a project, prints a summary, and returns the result in the format of JMH,
+   * or null if the benchmark can't be set up.
+   */
+  private static JSONObject runBenchmark(Benchmark benchmark, BenchmarkProject project,
+      CommandLineOptions options) throws Exception {
+    try {
+      benchmark.setUp(project);
+    } catch (Exception e) {
+      System.out.println(String.format("%-40s %-10s skipped: %s",
+          benchmark.name, project.getSize(), e));
+      return null;
+    }
+    double[] micros = new double[options.iterations];
+    try {
+      long iterationNanos = options.iterationMillis * 1000000L;
+      for (int i = 0; i < options.warmupIterations; i++) {
+        runIteration(benchmark, project, iterationNanos);
+      }
+      for (int i = 0; i < options.iterations; i++) {
+        micros[i] = runIteration(benchmark, project, iterationNanos) / 1000;
+      }
+    } finally {
+      benchmark.tearDown();
+    }
+
+    double score = mean(micros);
+    double error = confidenceHalfWidth(micros);
+    System.out.println(String.format("%-40s %-10s %12.3f %12.3f  us/op",
+        benchmark.name, project.getSize(), score, error));
+    return toJson(benchmark, project, options, micros, score, error);
+  }
+
+  /*
+   * Calls a benchmark repeatedly for at least the given time, and returns the average time of a
+   * call in nanoseconds.
+   */
+  private static double runIteration(Benchmark benchmark, BenchmarkProject project,
+      long iterationNanos) throws Exception {
+    int result = 0;
+    long calls = 0;
+    long start = System.nanoTime();
+    long elapsed;
+    do {
+      result += System.identityHashCode(benchmark.run(project));
+      calls++;
+      elapsed = System.nanoTime() - start;
+    } while (elapsed < iterationNanos);
+    sink += result;
+    return (double) elapsed / calls;
+  }
+
+  private static double mean(double[] values) {
+    double sum = 0;
+    for (double value : values) {
+      sum += value;
+    }
+    return sum / values.length;
+  }
+
+  private static double confidenceHalfWidth(double[] values) {
+    if (values.length < 2) {
+      return Double.NaN;
+    }
+    double mean = mean(values);
+    double squares = 0;
+    for (double value : values) {
+      squares += (value - mean) * (value - mean);
+    }
+    double standardDeviation = Math.sqrt(squares / (values.length - 1));
+    int degreesOfFreedom = values.length - 1;
+    double t = T_999[Math.min(degreesOfFreedom, T_999.length) - 1];
+    return t * standardDeviation / Math.sqrt(values.length);
+  }
+
+  private static JSONObject toJson(Benchmark benchmark, BenchmarkProject project,
+      CommandLineOptions options, double[] micros, double score, double error)
+      throws JSONException {
+    JSONObject primaryMetric = new JSONObject();
+    primaryMetric.put("score", score);
+    primaryMetric.put("scoreError", Double.isNaN(error) ? "NaN" : error);
+    if (!Double.isNaN(error)) {
+      primaryMetric.put("scoreConfidence", new JSONArray().put(score - error).put(score + error));
+    }
+    primaryMetric.put("scoreUnit", "us/op");
+    JSONArray rawData = new JSONArray();
+    for (double value : micros) {
+      rawData.put(value);
+    }
+    primaryMetric.put("rawData", new JSONArray().put(rawData));
+
+    JSONObject result = new JSONObject();
+    result.put("benchmark", BuildServerBenchmarks.class.getName() + "." + benchmark.name);
+    result.put("mode", "avgt");
+    result.put("threads", 1);
+    // The benchmarks run in this JVM, not in forks of it as JMH's do.
+    result.put("forks", 0);
+    result.put("jvm", System.getProperty("java.home"));
+    result.put("jdkVersion", System.getProperty("java.version"));
+    result.put("vmName", System.getProperty("java.vm.name"));
+    result.put("vmVersion", System.getProperty("java.vm.version"));
+    result.put("warmupIterations", options.warmupIterations);
+    result.put("warmupTime", options.iterationMillis + " ms");
+    result.put("measurementIterations", options.iterations);
+    result.put("measurementTime", options.iterationMillis + " ms");
+    result.put("params", new JSONObject().put("project", project.getSize()));
+    result.put("primaryMetric", primaryMetric);
+    return result;
+  }
+}
@@ -0,0 +1,105 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests ChildProcessScheduler class.
+ *
+ */
+public class ChildProcessSchedulerTest extends TestCase {
+  public void testAdmitsWithinMemoryBudget() throws Exception {
+    // Enough memory for two 1000 MB child processes, and plenty of cores.
+    ChildProcessScheduler scheduler = new ChildProcessScheduler(2500, 16);
+    scheduler.acquire(1000);
+    scheduler.acquire(1000);
+    assertEquals(2, scheduler.getRunningCount());
+    assertEquals(2000, scheduler.getReservedMemoryMb());
+
+    // The third child process must wait until one of the others finishes.
+    CountDownLatch admitted = acquireInBackground(scheduler, 1000);
+    assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, scheduler.getQueueDepth());
+
+    scheduler.release(1000);
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    assertEquals(0, scheduler.getQueueDepth());
+    assertEquals(2, scheduler.getRunningCount());
+    assertEquals(3, scheduler.getAdmittedCount());
+    assertTrue(scheduler.getMaxWaitMillis() >= 200);
+  }
+
+  public void testAdmitsWithinCoreLimit() throws Exception {
+    ChildProcessScheduler scheduler = new ChildProcessScheduler(100000, 1);
+    scheduler.acquire(1000);
+
+    CountDownLatch admitted = acquireInBackground(scheduler, 1000);
+    assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+
+    scheduler.release(1000);
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+  }
+
+  public void testOversizedChildProcessRunsAlone() throws Exception {
+    ChildProcessScheduler scheduler = new ChildProcessScheduler(1000, 16);
+    scheduler.acquire(500);
+
+    // A child process that needs more than the whole budget waits for the others to finish.
+    CountDownLatch admitted = acquireInBackground(scheduler, 4000);
+    assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+
+    scheduler.release(500);
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    assertEquals(1000, scheduler.getReservedMemoryMb());
+
+    scheduler.release(4000);
+    assertEquals(0, scheduler.getReservedMemoryMb());
+  }
+
+  public void testKawaAndDxHaveTheirOwnMemory() throws Exception {
+    ChildProcessScheduler scheduler = ChildProcessScheduler.create(2048, 1000, 3000, 4000, 16, 0);
+    int kawaMb = scheduler.getProcessMemoryMb(BuildMetrics.KAWA_PROCESS, 2048);
+    int dxMb = scheduler.getProcessMemoryMb(BuildMetrics.DX_PROCESS, 2048);
+    assertEquals(1000, kawaMb);
+    assertEquals(3000, dxMb);
+    assertEquals(2048, scheduler.getProcessMemoryMb("other", 2048));
+
+    // A Kawa process fits beside a DX process, but a second DX process doesn't.
+    scheduler.acquire(dxMb);
+    scheduler.acquire(kawaMb);
+    assertEquals(4000, scheduler.getReservedMemoryMb());
+    scheduler.release(kawaMb);
+    CountDownLatch admitted = acquireInBackground(scheduler, dxMb);
+    assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+    scheduler.release(dxMb);
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+
+    // Without their own memory, Kawa and DX use the child process memory.
+    scheduler = ChildProcessScheduler.create(2048, 0, 0, 4000, 16, 0);
+    assertEquals(2048, scheduler.getProcessMemoryMb(BuildMetrics.KAWA_PROCESS, 2048));
+    assertEquals(2048, scheduler.getProcessMemoryMb(BuildMetrics.DX_PROCESS, 2048));
+  }
+
+  private static CountDownLatch acquireInBackground(final ChildProcessScheduler scheduler,
+      final int memoryMb) {
+    final CountDownLatch admitted = new CountDownLatch(1);
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          scheduler.acquire(memoryMb);
+          admitted.countDown();
+        } catch (InterruptedException e) {
+          // ignored
+        }
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+    return admitted;
+  }
+}
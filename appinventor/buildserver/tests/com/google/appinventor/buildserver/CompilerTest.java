@@ -2,11 +2,19 @@
 
 package com.google.appinventor.buildserver;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Tests Compiler class.
@@ -34,4 +42,100 @@ public class CompilerTest extends TestCase {
     assertTrue(permissions.contains(
         "android.permission.ACCESS_LOCATION_EXTRA_COMMANDS"));
   }
+
+  public void testClassCacheCompilesOnlyChangedForms() throws Exception {
+    File tempDir = Files.createTempDir();
+    try {
+      File projectFile = new File(tempDir, "youngandroidproject/project.properties");
+      Files.createParentDirs(projectFile);
+      Files.write("main=appinventor.ai_someone.Hello.Screen1\nname=Hello\nsource=../src\n",
+          projectFile, Charsets.UTF_8);
+      File formDir = new File(tempDir, "src/appinventor/ai_someone/Hello");
+      formDir.mkdirs();
+      Files.write("(screen1)", new File(formDir, "Screen1.yail"), Charsets.UTF_8);
+      Files.write("(screen2)", new File(formDir, "Screen2.yail"), Charsets.UTF_8);
+      DiskCache classCache = new DiskCache(new File(tempDir, "classes-cache"), 1 << 20);
+
+      // The first build compiles everything.
+      FakeKawa kawa = new FakeKawa();
+      File classesDir = new File(tempDir, "classes1");
+      assertTrue(newCompiler(projectFile, classCache, kawa).generateClasses(classesDir));
+      assertEquals(Sets.newHashSet("Screen1", "Screen2"), kawa.compiledForms);
+      assertTrue(kawa.compiledRuntime);
+
+      // After Screen2 changes, only Screen2 is compiled. Screen1 and runtime.scm come from the
+      // cache, including Screen1's inner class.
+      Files.write("(screen2 changed)", new File(formDir, "Screen2.yail"), Charsets.UTF_8);
+      kawa = new FakeKawa();
+      classesDir = new File(tempDir, "classes2");
+      assertTrue(newCompiler(projectFile, classCache, kawa).generateClasses(classesDir));
+      assertEquals(Sets.newHashSet("Screen2"), kawa.compiledForms);
+      assertFalse(kawa.compiledRuntime);
+      String formClasses = "appinventor/ai_someone/Hello/";
+      assertEquals("(screen1)",
+          Files.toString(new File(classesDir, formClasses + "Screen1.class"), Charsets.UTF_8));
+      assertEquals("(screen1)", Files.toString(
+          new File(classesDir, formClasses + "Screen1$frame.class"), Charsets.UTF_8));
+      assertEquals("(screen2 changed)",
+          Files.toString(new File(classesDir, formClasses + "Screen2.class"), Charsets.UTF_8));
+      assertEquals("runtime", Files.toString(
+          new File(classesDir, "com/google/youngandroid/runtime.class"), Charsets.UTF_8));
+
+      // Without changes, nothing is compiled.
+      kawa = new FakeKawa();
+      assertTrue(newCompiler(projectFile, classCache, kawa).generateClasses(
+          new File(tempDir, "classes3")));
+      assertTrue(kawa.compiledForms.isEmpty());
+      assertFalse(kawa.compiledRuntime);
+    } finally {
+      Files.deleteRecursively(tempDir.getCanonicalFile());
+    }
+  }
+
+  private static Compiler newCompiler(File projectFile, DiskCache classCache,
+      Compiler.ChildProcessRunner kawa) {
+    return new Compiler(new Project(projectFile), Sets.<String>newHashSet(), System.out,
+        System.err, System.err, false, 2048, new ChildProcessScheduler(2048, 1), classCache,
+        new BuildMetrics(), kawa);
+  }
+
+  /*
+   * A stand-in for the Kawa process, which writes each form's YAIL as the content of its class and
+   * an inner class, and records what it was asked to compile.
+   */
+  private static class FakeKawa implements Compiler.ChildProcessRunner {
+    final Set<String> compiledForms = Sets.newHashSet();
+    boolean compiledRuntime;
+
+    @Override
+    public boolean run(String[] commandLine, PrintStream out, PrintStream err,
+        AtomicLong peakRssBytes) {
+      List<String> args = Arrays.asList(commandLine);
+      File classesDir = new File(args.get(args.indexOf("-d") + 1));
+      try {
+        for (String source : args.subList(args.indexOf("-C") + 1, args.size())) {
+          if (source.endsWith(".scm")) {
+            compiledRuntime = true;
+            write("runtime", new File(classesDir, "com/google/youngandroid/runtime.class"));
+          } else {
+            File sourceFile = new File(source);
+            String name = sourceFile.getName().substring(0, sourceFile.getName().indexOf('.'));
+            compiledForms.add(name);
+            String yail = Files.toString(sourceFile, Charsets.UTF_8);
+            String classPrefix = classesDir + "/appinventor/ai_someone/Hello/" + name;
+            write(yail, new File(classPrefix + ".class"));
+            write(yail, new File(classPrefix + "$frame.class"));
+          }
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return true;
+    }
+
+    private static void write(String content, File file) throws IOException {
+      Files.createParentDirs(file);
+      Files.write(content, file, Charsets.UTF_8);
+    }
+  }
 }
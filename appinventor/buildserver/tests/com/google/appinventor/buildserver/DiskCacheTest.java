@@ -0,0 +1,102 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests DiskCache class.
+ *
+ */
+public class DiskCacheTest extends TestCase {
+  private File tempDir;
+  private File cacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    tempDir = Files.createTempDir();
+    cacheDir = new File(tempDir, "cache");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Files.deleteRecursively(tempDir.getCanonicalFile());
+    super.tearDown();
+  }
+
+  public void testPutAndGet() throws Exception {
+    DiskCache cache = new DiskCache(cacheDir, 1000);
+    String key = new ContentHasher().add("classes").toKey();
+    File destination = new File(tempDir, "classes.dex");
+
+    assertFalse(cache.get(key, destination));
+    assertEquals(1, cache.getMissCount());
+
+    cache.put(key, createFile("a", "dex contents"));
+    assertTrue(cache.get(key, destination));
+    assertEquals("dex contents", Files.toString(destination, Charsets.UTF_8));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getEntryCount());
+    assertEquals(12, cache.getSizeBytes());
+  }
+
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    DiskCache cache = new DiskCache(cacheDir, 25);
+    File destination = new File(tempDir, "out");
+    cache.put("a", createFile("a", "0123456789"));
+    cache.put("b", createFile("b", "0123456789"));
+    // Use a, so that b is the least recently used.
+    assertTrue(cache.get("a", destination));
+
+    cache.put("c", createFile("c", "0123456789"));
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(20, cache.getSizeBytes());
+    assertTrue(cache.get("a", destination));
+    assertFalse(cache.get("b", destination));
+    assertTrue(cache.get("c", destination));
+  }
+
+  public void testEntriesSurviveRestart() throws Exception {
+    DiskCache cache = new DiskCache(cacheDir, 1000);
+    cache.put("a", createFile("a", "0123456789"));
+    cache.close();
+
+    cache = new DiskCache(cacheDir, 1000);
+    assertEquals(1, cache.getEntryCount());
+    assertEquals(10, cache.getSizeBytes());
+    assertTrue(cache.get("a", new File(tempDir, "out")));
+    cache.close();
+  }
+
+  public void testDirectoryIsLocked() throws Exception {
+    DiskCache cache = new DiskCache(cacheDir, 1000);
+    try {
+      new DiskCache(cacheDir, 1000);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    cache.close();
+    new DiskCache(cacheDir, 1000).close();
+  }
+
+  public void testKeysDependOnAllValues() throws Exception {
+    assertEquals(new ContentHasher().add("ab").add("c").toKey(),
+        new ContentHasher().add("ab").add("c").toKey());
+    assertFalse(new ContentHasher().add("ab").add("c").toKey().equals(
+        new ContentHasher().add("a").add("bc").toKey()));
+  }
+
+  private File createFile(String name, String contents) throws IOException {
+    File file = new File(tempDir, name);
+    Files.write(contents, file, Charsets.UTF_8);
+    return file;
+  }
+}
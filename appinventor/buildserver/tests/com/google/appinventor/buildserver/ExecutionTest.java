@@ -0,0 +1,31 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests Execution class.
+ *
+ */
+public class ExecutionTest extends TestCase {
+
+  public void testPeakRssIsMeasuredOnLinux() throws Exception {
+    if (!new File("/proc/self/status").exists()) {
+      return;
+    }
+    AtomicLong peakRssBytes = new AtomicLong(-1);
+    String[] command = { "/bin/sh", "-c", "sleep 0.3" };
+    assertTrue(Execution.execute(null, command, System.out, System.err, peakRssBytes));
+    assertTrue(peakRssBytes.get() > 0);
+  }
+
+  public void testFailingCommand() throws Exception {
+    AtomicLong peakRssBytes = new AtomicLong(-1);
+    String[] command = { "/bin/sh", "-c", "exit 1" };
+    assertFalse(Execution.execute(null, command, System.out, System.err, peakRssBytes));
+  }
+}
@@ -0,0 +1,60 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests Histogram class.
+ *
+ */
+public class HistogramTest extends TestCase {
+
+  public void testExponentialLimits() {
+    assertTrue(Arrays.equals(new long[] { 10, 20, 40, 80 },
+        Histogram.exponentialLimits(10, 100, 2)));
+    assertTrue(Arrays.equals(new long[] { 1, 4, 16 }, Histogram.exponentialLimits(1, 16, 4)));
+  }
+
+  public void testRecord() {
+    Histogram histogram = new Histogram(10, 100);
+    histogram.record(5);
+    histogram.record(10);
+    histogram.record(11);
+    histogram.record(1000);
+    assertTrue(Arrays.equals(new long[] { 2, 1, 1 }, histogram.getBucketCounts()));
+    assertEquals(4, histogram.getCount());
+    assertEquals(1026, histogram.getSum());
+    assertEquals(1000, histogram.getMax());
+  }
+
+  public void testPercentile() {
+    Histogram histogram = new Histogram(100, 200, 400);
+    assertEquals(0, histogram.getPercentile(50));
+    for (int i = 0; i < 90; i++) {
+      histogram.record(50);
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(300);
+    }
+    // The 50th value is in the first bucket, halfway between 0 and 100.
+    assertEquals(56, histogram.getPercentile(50));
+    // The 99th value is in the third bucket, which only goes up to the max.
+    assertEquals(290, histogram.getPercentile(99));
+    assertEquals(300, histogram.getPercentile(100));
+
+    histogram.record(5000);
+    assertEquals(5000, histogram.getPercentile(100));
+  }
+
+  public void testLimitsMustIncrease() {
+    try {
+      new Histogram(10, 10);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+/**
+ * Tests KeystorePool class.
+ *
+ */
+public class KeystorePoolTest extends TestCase {
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Files.deleteRecursively(new File(tempDir.getCanonicalPath()));
+  }
+
+  public void testKeystoreCanBeUsedByJarSigner() throws Exception {
+    KeystorePool pool = new KeystorePool(0, 0);
+    File keystoreFile = new File(tempDir, "android.keystore");
+    String userName = "Ben \"Bitdiddle\", Jr.";
+    pool.createKeystore(userName, keystoreFile);
+
+    KeyStore keyStore = loadKeystore(keystoreFile);
+    assertTrue(keyStore.isKeyEntry(KeystorePool.KEY_ALIAS));
+    assertNotNull(keyStore.getKey(KeystorePool.KEY_ALIAS,
+        KeystorePool.KEY_PASSWORD.toCharArray()));
+
+    X509Certificate certificate =
+        (X509Certificate) keyStore.getCertificate(KeystorePool.KEY_ALIAS);
+    certificate.verify(certificate.getPublicKey());
+    assertEquals(3, certificate.getVersion());
+    assertEquals(certificate.getSubjectX500Principal(), certificate.getIssuerX500Principal());
+    List<Rdn> rdns = new LdapName(certificate.getSubjectX500Principal().getName()).getRdns();
+    assertEquals(3, rdns.size());
+    assertEquals("C=US", rdns.get(0).toString());
+    assertEquals("O=AppInventor for Android", rdns.get(1).toString());
+    assertEquals("CN", rdns.get(2).getType());
+    assertEquals(userName, rdns.get(2).getValue());
+    // The Android Market requires the certificate to be valid until after October 22, 2033.
+    Date october222033 = new GregorianCalendar(2033, 9, 23).getTime();
+    assertTrue(certificate.getNotAfter().after(october222033));
+    assertEquals(0, pool.getPooledKeystoreCount());
+    assertEquals(1, pool.getUnpooledKeystoreCount());
+  }
+
+  public void testKeystoresUseKeyPairsFromThePool() throws Exception {
+    KeystorePool pool = new KeystorePool(2, 60);
+    pool.refill();
+    pool.refill();
+    pool.refill();
+    assertEquals(2, pool.getAvailableCount());
+
+    File first = new File(tempDir, "first.keystore");
+    File second = new File(tempDir, "second.keystore");
+    File third = new File(tempDir, "third.keystore");
+    pool.createKeystore("first", first);
+    pool.createKeystore("second", second);
+    pool.createKeystore("third", third);
+    assertEquals(0, pool.getAvailableCount());
+    assertEquals(2, pool.getPooledKeystoreCount());
+    assertEquals(1, pool.getUnpooledKeystoreCount());
+
+    Set<Object> publicKeys = Sets.newHashSet();
+    for (File keystoreFile : new File[] { first, second, third }) {
+      publicKeys.add(loadKeystore(keystoreFile).getCertificate(KeystorePool.KEY_ALIAS)
+          .getPublicKey());
+    }
+    assertEquals(3, publicKeys.size());
+  }
+
+  public void testKeyPairIsNeverTakenTwice() throws Exception {
+    final KeystorePool pool = new KeystorePool(8, 60);
+    for (int i = 0; i < 8; i++) {
+      pool.refill();
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Callable<KeyPair>> takers =
+          Collections.nCopies(12, (Callable<KeyPair>) new Callable<KeyPair>() {
+            @Override
+            public KeyPair call() {
+              return pool.takeKeyPair();
+            }
+          });
+      Set<KeyPair> taken = Sets.newIdentityHashSet();
+      int count = 0;
+      for (Future<KeyPair> future : executor.invokeAll(takers)) {
+        KeyPair keyPair = future.get();
+        if (keyPair != null) {
+          count++;
+          taken.add(keyPair);
+        }
+      }
+      assertEquals(8, count);
+      assertEquals(8, taken.size());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static KeyStore loadKeystore(File keystoreFile) throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    InputStream in = new FileInputStream(keystoreFile);
+    try {
+      keyStore.load(in, KeystorePool.KEYSTORE_PASSWORD.toCharArray());
+    } finally {
+      in.close();
+    }
+    return keyStore;
+  }
+}
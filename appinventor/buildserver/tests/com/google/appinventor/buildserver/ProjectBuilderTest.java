@@ -0,0 +1,104 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests ProjectBuilder's use of the APK cache.
+ *
+ */
+public class ProjectBuilderTest extends TestCase {
+  private static final String FORM = "src/appinventor/ai_someone/Hello/Screen1";
+  private static final String PROPERTIES = "main=appinventor.ai_someone.Hello.Screen1\n"
+      + "name=Hello\n";
+
+  private File tempDir;
+  private DiskCache apkCache;
+  private ProjectBuilder projectBuilder;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    tempDir = Files.createTempDir();
+    apkCache = new DiskCache(new File(tempDir, "apks"), 1000);
+    projectBuilder = new ProjectBuilder(null, null, null, apkCache, null,
+        new BuildMetrics(), tempDir, false);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Files.deleteRecursively(tempDir.getCanonicalFile());
+    super.tearDown();
+  }
+
+  public void testApkCacheKey() throws Exception {
+    ZipFile zip = createZip("a.zip", "png", "keystore");
+    String key = projectBuilder.getApkCacheKey(zip, false);
+    assertNotNull(key);
+    assertEquals(key, projectBuilder.getApkCacheKey(createZip("b.zip", "png", "keystore"), false));
+
+    // The REPL's APK isn't the app's, and an APK with a different asset is a different APK.
+    assertFalse(key.equals(projectBuilder.getApkCacheKey(zip, true)));
+    assertFalse(key.equals(
+        projectBuilder.getApkCacheKey(createZip("c.zip", "other png", "keystore"), false)));
+
+    // Without a keystore, the build signs the APK with a new one, so it can't be cached.
+    assertNull(projectBuilder.getApkCacheKey(createZip("d.zip", "png", null), false));
+  }
+
+  public void testCachedApkIsReused() throws Exception {
+    ZipFile zip = createZip("a.zip", "png", "keystore");
+    File cachedApk = new File(tempDir, "cached.apk");
+    Files.write("apk", cachedApk, Charsets.UTF_8);
+    apkCache.put(projectBuilder.getApkCacheKey(zip, false), cachedApk);
+    File outputDir = new File(tempDir, "out");
+    outputDir.mkdirs();
+
+    // A hit returns the cached APK without compiling anything, which the builder, having no
+    // scheduler or YAIL generator, couldn't.
+    Result result = projectBuilder.build("someone", zip, outputDir, false, 1024);
+    assertTrue(result.succeeded());
+    assertEquals(1, apkCache.getHitCount());
+    assertEquals(new File(outputDir, "Hello.apk"), projectBuilder.getOutputApk());
+    assertEquals("apk", Files.toString(projectBuilder.getOutputApk(), Charsets.UTF_8));
+
+    // The REPL's APK for the same project is a miss.
+    assertFalse(apkCache.get(projectBuilder.getApkCacheKey(zip, true),
+        new File(tempDir, "repl.apk")));
+    assertEquals(1, apkCache.getMissCount());
+  }
+
+  private ZipFile createZip(String name, String asset, String keystore) throws Exception {
+    File zipFile = new File(tempDir, name);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile));
+    try {
+      addEntry(out, ProjectBuilder.PROJECT_PROPERTIES_FILE_NAME, PROPERTIES);
+      addEntry(out, FORM + ".scm", "scm");
+      addEntry(out, FORM + ".blk", "blk");
+      addEntry(out, "assets/kitty.png", asset);
+      if (keystore != null) {
+        addEntry(out, ProjectBuilder.KEYSTORE_FILE_NAME, keystore);
+      }
+    } finally {
+      out.close();
+    }
+    return new ZipFile(zipFile);
+  }
+
+  private static void addEntry(ZipOutputStream out, String name, String content)
+      throws Exception {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(content.getBytes(Charsets.UTF_8));
+    out.closeEntry();
+  }
+}
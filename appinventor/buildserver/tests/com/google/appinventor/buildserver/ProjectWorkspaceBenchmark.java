@@ -0,0 +1,148 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Measures how long it takes to extract a project into a ProjectWorkspace,
+ * read its sources, write its YAIL, and delete it, with and without the
+ * in-memory mode.
+ *
+ * <p>Usage: ProjectWorkspaceBenchmark [workspaceDir [iterations [forms]]]. The
+ * workspaceDir defaults to java.io.tmpdir; compare it with a tmpfs mount such
+ * as /dev/shm.</p>
+ *
+ */
+public class ProjectWorkspaceBenchmark {
+  // Typical sizes of the files of a form, and of a project's assets.
+  private static final int SCM_BYTES = 8 * 1024;
+  private static final int BLK_BYTES = 64 * 1024;
+  private static final int YAIL_BYTES = 32 * 1024;
+  private static final int ASSETS = 10;
+  private static final int ASSET_BYTES = 64 * 1024;
+
+  private ProjectWorkspaceBenchmark() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    File workspaceDir =
+        new File((args.length > 0) ? args[0] : System.getProperty("java.io.tmpdir"));
+    int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+    int forms = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+    File zipFile = createProjectZip(forms);
+    ZipFile zip = new ZipFile(zipFile);
+    try {
+      System.out.println("Workspace directory: " + workspaceDir.getAbsolutePath());
+      System.out.println(forms + " forms, " + ASSETS + " assets, " + iterations + " iterations");
+      // Warm up both modes before measuring either.
+      run(zip, workspaceDir, false, iterations / 5 + 1);
+      run(zip, workspaceDir, true, iterations / 5 + 1);
+      report("disk", run(zip, workspaceDir, false, iterations));
+      report("in-memory", run(zip, workspaceDir, true, iterations));
+    } finally {
+      zip.close();
+      zipFile.delete();
+    }
+  }
+
+  /*
+   * Returns the extraction and cleanup times of each iteration, in microseconds, as pairs.
+   */
+  private static long[][] run(ZipFile zip, File workspaceDir, boolean inMemory, int iterations)
+      throws IOException {
+    long[][] micros = new long[2][iterations];
+    byte[] yail = new byte[YAIL_BYTES];
+    for (int i = 0; i < iterations; i++) {
+      long start = System.nanoTime();
+      ProjectWorkspace workspace = new ProjectWorkspace(workspaceDir, inMemory);
+      List<String> paths = workspace.extract(zip);
+      for (String path : paths) {
+        if (path.endsWith(YoungAndroidConstants.FORM_PROPERTIES_EXTENSION)) {
+          // What the build does with each form: read the sources and write the YAIL for Kawa.
+          String rootPath = path.substring(0,
+              path.length() - YoungAndroidConstants.FORM_PROPERTIES_EXTENSION.length());
+          workspace.read(path);
+          workspace.read(rootPath + YoungAndroidConstants.CODEBLOCKS_SOURCE_EXTENSION);
+          Files.write(yail, new File(rootPath + YoungAndroidConstants.YAIL_EXTENSION));
+        }
+      }
+      long extracted = System.nanoTime();
+      workspace.delete();
+      long deleted = System.nanoTime();
+      micros[0][i] = (extracted - start) / 1000;
+      micros[1][i] = (deleted - extracted) / 1000;
+    }
+    return micros;
+  }
+
+  private static void report(String mode, long[][] micros) {
+    System.out.println(mode + ": extract " + summarize(micros[0]) + ", cleanup " +
+        summarize(micros[1]));
+  }
+
+  private static String summarize(long[] micros) {
+    long[] sorted = micros.clone();
+    Arrays.sort(sorted);
+    long total = 0;
+    for (long value : sorted) {
+      total += value;
+    }
+    return "mean " + (total / sorted.length / 1000.0) + " ms, median " +
+        (sorted[sorted.length / 2] / 1000.0) + " ms, p90 " +
+        (sorted[sorted.length * 9 / 10] / 1000.0) + " ms";
+  }
+
+  private static File createProjectZip(int forms) throws IOException {
+    File zipFile = File.createTempFile("ProjectWorkspaceBenchmark", ".zip");
+    Random random = new Random(0);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile));
+    try {
+      addEntry(out, ProjectBuilder.PROJECT_PROPERTIES_FILE_NAME,
+          ("main=appinventor.ai_someone.Project1.Screen1\nname=Project1\nassets=../assets\n" +
+          "source=../src\nbuild=../build\n").getBytes("UTF-8"));
+      for (int i = 1; i <= forms; i++) {
+        String rootPath = "src/appinventor/ai_someone/Project1/Screen" + i;
+        addEntry(out, rootPath + YoungAndroidConstants.FORM_PROPERTIES_EXTENSION,
+            randomText(random, SCM_BYTES));
+        addEntry(out, rootPath + YoungAndroidConstants.CODEBLOCKS_SOURCE_EXTENSION,
+            randomText(random, BLK_BYTES));
+      }
+      for (int i = 1; i <= ASSETS; i++) {
+        byte[] asset = new byte[ASSET_BYTES];
+        random.nextBytes(asset);
+        addEntry(out, "assets/asset" + i + ".png", asset);
+      }
+      addEntry(out, YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION, new byte[2048]);
+    } finally {
+      out.close();
+    }
+    return zipFile;
+  }
+
+  private static byte[] randomText(Random random, int length) {
+    byte[] text = new byte[length];
+    for (int i = 0; i < length; i++) {
+      text[i] = (byte) ('a' + random.nextInt(26));
+    }
+    return text;
+  }
+
+  private static void addEntry(ZipOutputStream out, String name, byte[] content)
+      throws IOException {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(content);
+    out.closeEntry();
+  }
+}
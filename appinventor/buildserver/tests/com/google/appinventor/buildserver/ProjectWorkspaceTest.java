@@ -0,0 +1,102 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests ProjectWorkspace class.
+ *
+ */
+public class ProjectWorkspaceTest extends TestCase {
+  private static final String FORM = "src/appinventor/ai_someone/Project1/Screen1";
+
+  private File tempDir;
+  private ZipFile zip;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    File zipFile = new File(tempDir, "project.zip");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile));
+    try {
+      addEntry(out, ProjectBuilder.PROJECT_PROPERTIES_FILE_NAME, "main=appinventor.Screen1\n");
+      addEntry(out, FORM + ".scm", "scm");
+      addEntry(out, FORM + ".blk", "blk");
+      addEntry(out, "assets/kitty.png", "png");
+    } finally {
+      out.close();
+    }
+    zip = new ZipFile(zipFile);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    zip.close();
+    Files.deleteRecursively(new File(tempDir.getCanonicalPath()));
+  }
+
+  public void testDiskWorkspace() throws Exception {
+    ProjectWorkspace workspace = new ProjectWorkspace(tempDir, false);
+    List<String> paths = workspace.extract(zip);
+    assertEquals(4, paths.size());
+    for (String path : paths) {
+      assertTrue(path, new File(path).isFile());
+    }
+    assertEquals(0, workspace.getMemoryFileCount());
+    assertEquals("scm", read(workspace, FORM + ".scm"));
+
+    workspace.delete();
+    assertFalse(workspace.getRoot().exists());
+  }
+
+  public void testInMemoryWorkspace() throws Exception {
+    ProjectWorkspace workspace = new ProjectWorkspace(tempDir, true);
+    List<String> paths = workspace.extract(zip);
+    assertEquals(4, paths.size());
+    assertEquals(3, workspace.getMemoryFileCount());
+
+    // Only the asset, which AAPT reads, is written, but all of the directories are created.
+    File root = workspace.getRoot();
+    assertTrue(new File(root, "assets/kitty.png").isFile());
+    assertFalse(new File(root, FORM + ".scm").exists());
+    assertFalse(new File(root, FORM + ".blk").exists());
+    assertFalse(new File(root, ProjectBuilder.PROJECT_PROPERTIES_FILE_NAME).exists());
+    assertTrue(new File(root, FORM + ".scm").getParentFile().isDirectory());
+
+    assertEquals("scm", read(workspace, FORM + ".scm"));
+    assertEquals("blk", read(workspace, FORM + ".blk"));
+    assertEquals("png", read(workspace, "assets/kitty.png"));
+
+    // The project can be read from memory.
+    File projectFile = new File(root, ProjectBuilder.PROJECT_PROPERTIES_FILE_NAME);
+    Project project = new Project(projectFile, workspace.read(projectFile.getPath()));
+    assertEquals("appinventor.Screen1", project.getMainClass());
+
+    workspace.delete();
+    assertFalse(root.exists());
+    assertEquals(0, workspace.getMemoryFileCount());
+  }
+
+  private static String read(ProjectWorkspace workspace, String name) throws Exception {
+    return new String(workspace.read(new File(workspace.getRoot(), name).getPath()),
+        Charsets.UTF_8);
+  }
+
+  private static void addEntry(ZipOutputStream out, String name, String content)
+      throws Exception {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(content.getBytes(Charsets.UTF_8));
+    out.closeEntry();
+  }
+}
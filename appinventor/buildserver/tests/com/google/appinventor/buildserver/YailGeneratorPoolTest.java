@@ -0,0 +1,111 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.testutils.TestUtils;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Tests YailGeneratorPool class, using the same testing files as YailGeneratorTest.
+ *
+ */
+public class YailGeneratorPoolTest extends TestCase {
+  private static final String TESTING_SOURCE_PATH = TestUtils.APP_INVENTOR_ROOT_DIR +
+      "/buildserver/tests/com/google/appinventor/yailgenerator/testing_files/";
+
+  private static final String[] CAT_SURVEY_FORM_NAMES = {
+    "Screen1",
+    "BlackCat",
+    "CalicoCat",
+    "OrangeCat",
+    "PersianCat",
+    "SiameseCat",
+  };
+
+  private YailGeneratorPool pool;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    pool = new YailGeneratorPool(3);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    pool.shutdown();
+    super.tearDown();
+  }
+
+  public void testGenerateYailMultipleFormsConcurrently() throws Exception {
+    List<Future<YailGeneratorPool.Outcome>> outcomes = Lists.newArrayList();
+    for (String formName : CAT_SURVEY_FORM_NAMES) {
+      outcomes.add(submit("CatSurvey", formName));
+    }
+    for (int i = 0; i < CAT_SURVEY_FORM_NAMES.length; i++) {
+      String formName = CAT_SURVEY_FORM_NAMES[i];
+      YailGeneratorPool.Outcome outcome = outcomes.get(i).get();
+      assertEquals(outcome.getOutput(), YailGeneratorPool.STATUS_OK, outcome.getStatus());
+      assertTrue(outcome.getOutput().contains(
+          "(define-form appinventor.ai_someone.CatSurvey." + formName + " " + formName + ")"));
+      assertTrue(outcome.getLatencyMillis() >= 0);
+    }
+
+    // The workers are reused.
+    assertTrue(pool.getStartedWorkerCount() <= 3);
+    assertEquals(CAT_SURVEY_FORM_NAMES.length, pool.getGeneratedFormCount());
+    assertEquals(0, pool.getFailedFormCount());
+  }
+
+  public void testWorkerIsReusableAfterYailGenerationError() throws Exception {
+    // Use a single worker so that both forms go to the same process.
+    pool.shutdown();
+    pool = new YailGeneratorPool(1);
+
+    YailGeneratorPool.Outcome outcome = submit("EmptySocket", "Screen1").get();
+    assertEquals(YailGeneratorPool.STATUS_YAIL_GENERATION_ERROR, outcome.getStatus());
+
+    outcome = submit("NewProject", "Screen1").get();
+    assertEquals(outcome.getOutput(), YailGeneratorPool.STATUS_OK, outcome.getStatus());
+    assertTrue(outcome.getOutput().contains(
+        "(do-after-form-creation (set-and-coerce-property! 'Screen1 'Title \"Screen1\" 'text)"));
+
+    assertEquals(1, pool.getStartedWorkerCount());
+    assertEquals(2, pool.getGeneratedFormCount());
+    assertEquals(1, pool.getFailedFormCount());
+  }
+
+  public void testWorkerThatDoesNotRespondIsKilled() throws Exception {
+    // A worker that never responds.
+    pool.shutdown();
+    pool = new YailGeneratorPool(1, 500, new String[] { "sleep", "60" });
+
+    long start = System.currentTimeMillis();
+    YailGeneratorPool.Outcome outcome = pool.submit("", "", "Screen1.yail").get();
+    assertEquals(YailGeneratorPool.STATUS_UNEXPECTED_ERROR, outcome.getStatus());
+    assertTrue(outcome.getOutput(), outcome.getOutput().contains("No response within 500 ms"));
+    assertTrue(System.currentTimeMillis() - start < 10000);
+
+    // The worker was thrown away, so the next form gets a new one.
+    assertEquals(0, pool.getWorkerCount());
+    pool.submit("", "", "Screen1.yail").get();
+    assertEquals(2, pool.getStartedWorkerCount());
+    assertEquals(2, pool.getFailedFormCount());
+  }
+
+  private Future<YailGeneratorPool.Outcome> submit(String projectName, String formName)
+      throws IOException {
+    String rootPath = TESTING_SOURCE_PATH + projectName + "/" + formName;
+    String yailPath = "src/appinventor/ai_someone/" + projectName + "/" + formName + ".yail";
+    return pool.submit(Files.toString(new File(rootPath + ".scm"), Charsets.UTF_8),
+        Files.toString(new File(rootPath + ".blk"), Charsets.UTF_8), yailPath);
+  }
+}
@@ -0,0 +1,182 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.common.youngandroid;
+
+/**
+ * A change to the contents of a text file, which is sent to the ODE server
+ * instead of the whole new contents when a file that was saved before is
+ * saved again.
+ *
+ * <p>A delta replaces the part of the old contents between a common prefix
+ * and a common suffix. That's compact for the changes between two autosaves,
+ * which are usually close together in the file. A delta names the versions
+ * of the contents that it applies to and results in, so that it isn't applied
+ * to contents that have changed since the sender saved them, for example in
+ * another browser window. The sender then saves the whole contents instead.
+ * A full delta replaces all of the contents, whatever they are.</p>
+ *
+ * <p>This class is shared by the ODE client, the ODE server and the Blocks
+ * Editor, so it must compile with GWT and run on Java 5.</p>
+ *
+ */
+public final class TextDelta {
+  // The base version of a full delta, which applies to any contents
+  private static final String ANY_VERSION = "*";
+
+  // The parameters of the 64-bit FNV-1a hash
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final String baseVersion;
+  private final String resultVersion;
+  private final int prefixLength;
+  private final int suffixLength;
+  private final String replacement;
+
+  private TextDelta(String baseVersion, String resultVersion, int prefixLength, int suffixLength,
+      String replacement) {
+    this.baseVersion = baseVersion;
+    this.resultVersion = resultVersion;
+    this.prefixLength = prefixLength;
+    this.suffixLength = suffixLength;
+    this.replacement = replacement;
+  }
+
+  /**
+   * Returns the delta that changes the old contents into the new contents.
+   */
+  public static TextDelta create(String oldContents, String newContents) {
+    int maxLength = Math.min(oldContents.length(), newContents.length());
+    int prefixLength = 0;
+    while (prefixLength < maxLength
+        && oldContents.charAt(prefixLength) == newContents.charAt(prefixLength)) {
+      prefixLength++;
+    }
+    // Don't split a surrogate pair, which couldn't be encoded on its own.
+    if (prefixLength > 0 && isHighSurrogate(newContents.charAt(prefixLength - 1))) {
+      prefixLength--;
+    }
+    int suffixLength = 0;
+    while (suffixLength < maxLength - prefixLength
+        && oldContents.charAt(oldContents.length() - 1 - suffixLength)
+            == newContents.charAt(newContents.length() - 1 - suffixLength)) {
+      suffixLength++;
+    }
+    if (suffixLength > 0
+        && isLowSurrogate(newContents.charAt(newContents.length() - suffixLength))) {
+      suffixLength--;
+    }
+    return new TextDelta(version(oldContents), version(newContents), prefixLength, suffixLength,
+        newContents.substring(prefixLength, newContents.length() - suffixLength));
+  }
+
+  /**
+   * Returns the delta that replaces any contents with the given contents.
+   */
+  public static TextDelta full(String contents) {
+    return new TextDelta(ANY_VERSION, version(contents), 0, 0, contents);
+  }
+
+  /**
+   * Returns a short string that identifies the given contents. Different
+   * contents are very unlikely to have the same version.
+   *
+   * <p>The version is the length and a 64-bit FNV-1a hash of the UTF-16
+   * contents. String.hashCode isn't used, because contents of the same length
+   * that differ in a way it doesn't see, such as "Aa" and "BB", still differ
+   * after the same change, so a stale delta would pass both checks in
+   * {@link #apply}. FNV-1a is used rather than a digest because the ODE client
+   * computes versions too, and GWT has no MessageDigest.</p>
+   */
+  public static String version(String contents) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < contents.length(); i++) {
+      char c = contents.charAt(i);
+      hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+      hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+    }
+    return contents.length() + "-" + Long.toHexString(hash);
+  }
+
+  /**
+   * Returns whether this delta replaces all of the contents.
+   */
+  public boolean isFull() {
+    return baseVersion.equals(ANY_VERSION);
+  }
+
+  /**
+   * Returns the new contents that result from applying this delta to the
+   * given contents, or null if this delta doesn't apply to them.
+   *
+   * @param contents  the old contents, which may be null for a full delta
+   */
+  public String apply(String contents) {
+    String result;
+    if (isFull()) {
+      result = replacement;
+    } else {
+      if (contents == null || !version(contents).equals(baseVersion)
+          || prefixLength + suffixLength > contents.length()) {
+        return null;
+      }
+      result = contents.substring(0, prefixLength) + replacement
+          + contents.substring(contents.length() - suffixLength);
+    }
+    return version(result).equals(resultVersion) ? result : null;
+  }
+
+  /**
+   * Returns the length of the text that this delta inserts, which is the
+   * length of the new contents for a full delta.
+   */
+  public int getReplacementLength() {
+    return replacement.length();
+  }
+
+  /**
+   * Returns this delta as a string, from which {@link #decode} recreates it.
+   */
+  public String encode() {
+    return baseVersion + ":" + resultVersion + ":" + prefixLength + ":" + suffixLength + ":"
+        + replacement;
+  }
+
+  /**
+   * Returns the delta that was encoded as the given string by
+   * {@link #encode}.
+   *
+   * @throws IllegalArgumentException if the string isn't an encoded delta
+   */
+  public static TextDelta decode(String encoded) {
+    int baseEnd = encoded.indexOf(':');
+    int resultEnd = encoded.indexOf(':', baseEnd + 1);
+    int prefixEnd = encoded.indexOf(':', resultEnd + 1);
+    int suffixEnd = encoded.indexOf(':', prefixEnd + 1);
+    if (baseEnd < 0 || resultEnd < 0 || prefixEnd < 0 || suffixEnd < 0) {
+      throw new IllegalArgumentException("Not an encoded delta");
+    }
+    int prefixLength;
+    int suffixLength;
+    try {
+      prefixLength = Integer.parseInt(encoded.substring(resultEnd + 1, prefixEnd));
+      suffixLength = Integer.parseInt(encoded.substring(prefixEnd + 1, suffixEnd));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Not an encoded delta");
+    }
+    if (prefixLength < 0 || suffixLength < 0) {
+      throw new IllegalArgumentException("Not an encoded delta");
+    }
+    return new TextDelta(encoded.substring(0, baseEnd), encoded.substring(baseEnd + 1, resultEnd),
+        prefixLength, suffixLength, encoded.substring(suffixEnd + 1));
+  }
+
+  // The UTF-16 surrogate ranges
+  private static boolean isHighSurrogate(char c) {
+    return c >= '\uD800' && c <= '\uDBFF';
+  }
+
+  private static boolean isLowSurrogate(char c) {
+    return c >= '\uDC00' && c <= '\uDFFF';
+  }
+}
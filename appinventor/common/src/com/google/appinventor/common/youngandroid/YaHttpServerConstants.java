@@ -30,6 +30,10 @@ public class YaHttpServerConstants {
   // Filename used for saving the codeblocks connection info
   public static final String CODEBLOCKS_INFO_FILE_PREFIX = "codeblocks_info_";
 
+  // MIME type of a request that saves a TextDelta instead of the whole contents of a file
+  public static final String DELTA_MIME_TYPE = "text/x-appinventor-delta";
+  public static final String DELTA_CONTENT_TYPE = DELTA_MIME_TYPE + "; charset=utf-8";
+
   // Constants used in HTTP requests:
   public static final String LOAD_FORM = "loadForm"; //async
   public static final String RELOAD_PROPERTIES = "reloadProperties";  // async
@@ -0,0 +1,110 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appinventor.common.youngandroid;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TextDelta}.
+ *
+ */
+public class TextDeltaTest extends TestCase {
+  private static final String OLD_BLOCKS =
+      "<YACodeBlocks><Block id=\"1\"/><Block id=\"2\"/></YACodeBlocks>\n";
+  private static final String NEW_BLOCKS =
+      "<YACodeBlocks><Block id=\"1\"/><Block id=\"3\"/><Block id=\"2\"/></YACodeBlocks>\n";
+
+  public void testCreateAndApply() {
+    TextDelta delta = TextDelta.create(OLD_BLOCKS, NEW_BLOCKS);
+    assertFalse(delta.isFull());
+    assertEquals(NEW_BLOCKS, delta.apply(OLD_BLOCKS));
+    // Only the inserted block is sent.
+    assertEquals("<Block id=\"3\"/>".length(), delta.getReplacementLength());
+
+    assertEquals(OLD_BLOCKS, TextDelta.create(NEW_BLOCKS, OLD_BLOCKS).apply(NEW_BLOCKS));
+  }
+
+  public void testEmptyAndIdenticalContents() {
+    assertEquals("abc", TextDelta.create("", "abc").apply(""));
+    assertEquals("", TextDelta.create("abc", "").apply("abc"));
+    TextDelta unchanged = TextDelta.create(OLD_BLOCKS, OLD_BLOCKS);
+    assertEquals(0, unchanged.getReplacementLength());
+    assertEquals(OLD_BLOCKS, unchanged.apply(OLD_BLOCKS));
+  }
+
+  public void testRepeatedText() {
+    assertEquals("aaaa", TextDelta.create("aa", "aaaa").apply("aa"));
+    assertEquals("aa", TextDelta.create("aaaa", "aa").apply("aaaa"));
+    assertEquals("abab", TextDelta.create("ab", "abab").apply("ab"));
+  }
+
+  public void testStaleBase() {
+    TextDelta delta = TextDelta.create(OLD_BLOCKS, NEW_BLOCKS);
+    // The contents were changed by someone else since the delta's base was saved.
+    assertNull(delta.apply(OLD_BLOCKS.replace('1', '4')));
+    assertNull(delta.apply(NEW_BLOCKS));
+    assertNull(delta.apply(null));
+  }
+
+  public void testStaleBaseWithSameStringHashCode() {
+    // The stale base has the same length and String.hashCode as the delta's base, and so does the
+    // result of applying the delta to it.
+    assertEquals("Aa".hashCode(), "BB".hashCode());
+    assertEquals("Aab".hashCode(), "BBb".hashCode());
+    assertFalse(TextDelta.version("Aa").equals(TextDelta.version("BB")));
+    assertNull(TextDelta.create("Aa", "Aab").apply("BB"));
+    assertNull(TextDelta.create("xAay", "xAazy").apply("xBBy"));
+  }
+
+  public void testFull() {
+    TextDelta delta = TextDelta.full(NEW_BLOCKS);
+    assertTrue(delta.isFull());
+    assertEquals(NEW_BLOCKS.length(), delta.getReplacementLength());
+    assertEquals(NEW_BLOCKS, delta.apply(OLD_BLOCKS));
+    assertEquals(NEW_BLOCKS, delta.apply(null));
+  }
+
+  public void testEncodeAndDecode() {
+    // The replacement may contain the separator.
+    String newContents = OLD_BLOCKS + "a:b:c\n";
+    TextDelta delta = TextDelta.decode(TextDelta.create(OLD_BLOCKS, newContents).encode());
+    assertFalse(delta.isFull());
+    assertEquals(newContents, delta.apply(OLD_BLOCKS));
+
+    delta = TextDelta.decode(TextDelta.full(newContents).encode());
+    assertTrue(delta.isFull());
+    assertEquals(newContents, delta.apply(null));
+  }
+
+  public void testDecodeInvalid() {
+    String[] invalid = { "", "abc", "1-a:2-b:0", "1-a:2-b:x:0:", "1-a:2-b:0:-1:" };
+    for (String encoded : invalid) {
+      try {
+        TextDelta.decode(encoded);
+        fail(encoded);
+      } catch (IllegalArgumentException expected) {
+        // expected
+      }
+    }
+  }
+
+  public void testTamperedDeltaIsNotApplied() {
+    String encoded = TextDelta.create(OLD_BLOCKS, NEW_BLOCKS).encode();
+    TextDelta tampered = TextDelta.decode(encoded.substring(0, encoded.length() - 1));
+    assertNull(tampered.apply(OLD_BLOCKS));
+  }
+
+  public void testSurrogatePairsAreNotSplit() {
+    // U+1F600 and U+1F601 share their high surrogate, and U+1F600 and U+1D600 their low one.
+    String oldContents = "a\uD83D\uDE00b";
+    String newContents = "a\uD83D\uDE01b";
+    TextDelta delta = TextDelta.create(oldContents, newContents);
+    assertEquals(2, delta.getReplacementLength());
+    assertEquals(newContents, delta.apply(oldContents));
+
+    newContents = "a\uD835\uDE00b";
+    delta = TextDelta.create(oldContents, newContents);
+    assertEquals(2, delta.getReplacementLength());
+    assertEquals(newContents, delta.apply(oldContents));
+  }
+}